@@ -9,6 +9,10 @@ import org.usgs.ms.config.ConfigStats;
 import org.usgs.ms.config.converters.GeneralConverterSingle;
 import org.usgs.ms.config.converters.GeneralConverterList;
 
+import org.usgs.manifold.database.InsertDescriptor;
+import org.usgs.manifold.database.InsertQueue;
+import org.usgs.manifold.database.PartitionManager;
+
 
 public class ConfigurationGeneral extends Configuration {
     
@@ -27,6 +31,168 @@ public class ConfigurationGeneral extends Configuration {
     /** The connection string to log into the database. */
     public final String CONNECTION_URL;
 
+    /** The default maximum number of statements in a database batch. */
+    public static final int DEFAULT_DATABASE_BATCH_SIZE = 500;
+
+    /** The default maximum milliseconds a statement waits for its batch. */
+    public static final int DEFAULT_DATABASE_BATCH_AGE = 1000;
+
+    /** The maximum number of statements sent to the database in a batch. */
+    public final int DATABASE_BATCH_SIZE;
+
+    /** The maximum milliseconds a statement waits for its batch to fill. */
+    public final int DATABASE_BATCH_AGE;
+
+    /** The default handling of rows whose key is already in the table. */
+    public static final InsertDescriptor.Conflict DEFAULT_DATABASE_CONFLICT =
+            InsertDescriptor.Conflict.IGNORE;
+
+    /** The handling of rows whose key is already in the table. Null if the
+     * configured mode is not known. */
+    public final InsertDescriptor.Conflict DATABASE_CONFLICT;
+
+    /** The default number of database writer threads. */
+    public static final int DEFAULT_DATABASE_WRITERS = 2;
+
+    /** The number of database writer threads, partitioned by table. */
+    public final int DATABASE_WRITERS;
+
+    /** The maximum number of open database connections shared by writers. */
+    public final int DATABASE_CONNECTIONS;
+
+    /** The default number of statements each database writer can queue. */
+    public static final int DEFAULT_DATABASE_QUEUE_SIZE = 1024;
+
+    /** The default policy for statements offered to a full writer queue. */
+    public static final InsertQueue.Overflow DEFAULT_DATABASE_QUEUE_OVERFLOW =
+            InsertQueue.Overflow.SPILL;
+
+    /** The default milliseconds to wait for room in a full writer queue. */
+    public static final int DEFAULT_DATABASE_QUEUE_BLOCK_TIMEOUT = 1000;
+
+    /** The number of statements each database writer can queue. */
+    public final int DATABASE_QUEUE_SIZE;
+
+    /** The policy for statements offered to a full writer queue. Null if the
+     * configured policy is not known. */
+    public final InsertQueue.Overflow DATABASE_QUEUE_OVERFLOW;
+
+    /** The milliseconds to wait for room in a full writer queue. */
+    public final int DATABASE_QUEUE_BLOCK_TIMEOUT;
+
+    /** The default number of queued statements that switch on bulk loads. */
+    public static final int DEFAULT_DATABASE_BULK_THRESHOLD = 256;
+
+    /** The default maximum number of statements in one bulk load. */
+    public static final int DEFAULT_DATABASE_BULK_SIZE = 10000;
+
+    /** The number of statements queued for a writer that switch it to bulk
+     * loads, or 0 to never use them. */
+    public final int DATABASE_BULK_THRESHOLD;
+
+    /** The maximum number of statements in one bulk load. */
+    public final int DATABASE_BULK_SIZE;
+
+    /** The default milliseconds to wait after the first failed connection. */
+    public static final int DEFAULT_DATABASE_RETRY_MIN = 1000;
+
+    /** The default longest wait between connection attempts. */
+    public static final int DEFAULT_DATABASE_RETRY_MAX = 60000;
+
+    /** The milliseconds to wait after the first failed connection. */
+    public final int DATABASE_RETRY_MIN;
+
+    /** The longest milliseconds to wait between connection attempts. */
+    public final int DATABASE_RETRY_MAX;
+
+    /** The default length of each table partition. */
+    public static final PartitionManager.Period
+            DEFAULT_DATABASE_PARTITION_PERIOD = PartitionManager.Period.NONE;
+
+    /** The default number of partitions created ahead of time. */
+    public static final int DEFAULT_DATABASE_PARTITION_AHEAD = 2;
+
+    /** The length of each table partition. Null if the configured period is
+     * not known. */
+    public final PartitionManager.Period DATABASE_PARTITION_PERIOD;
+
+    /** The number of periods after the current one to create partitions for
+     * ahead of time. */
+    public final int DATABASE_PARTITION_AHEAD;
+
+    /** The number of periods before the current one to keep, or 0 to keep
+     * everything. */
+    public final int DATABASE_PARTITION_RETENTION;
+
+    /** Archive expired partitions rather than drop them. Null if the
+     * configured action is not known. */
+    public final Boolean DATABASE_PARTITION_ARCHIVE;
+
+    /** The default directory to spool database inserts to. */
+    public static final String DEFAULT_DATABASE_SPOOL_DIRECTORY = "spool";
+
+    /** The default size of each spool segment in megabytes. */
+    public static final int DEFAULT_DATABASE_SPOOL_SEGMENT_SIZE = 16;
+
+    /** The default maximum disk space used by the spool in megabytes. */
+    public static final int DEFAULT_DATABASE_SPOOL_MAX_SIZE = 1024;
+
+    /** The directory to spool database inserts to. */
+    public final String DATABASE_SPOOL_DIRECTORY;
+
+    /** The size of each spool segment in megabytes. */
+    public final int DATABASE_SPOOL_SEGMENT_SIZE;
+
+    /** The maximum disk space used by the spool in megabytes. */
+    public final int DATABASE_SPOOL_MAX_SIZE;
+
+    /** The default number of NIO worker threads shared by all clients. */
+    public static final int DEFAULT_CLIENT_WORKER_THREADS =
+            Runtime.getRuntime().availableProcessors() * 2;
+
+    /** The number of NIO worker threads shared by all MOXA connections. */
+    public final int CLIENT_WORKER_THREADS;
+
+    /** The default number of threads sending out decoded packets. */
+    public static final int DEFAULT_CLIENT_DISPATCH_THREADS =
+            Runtime.getRuntime().availableProcessors();
+
+    /** The default number of packets each dispatch thread can queue. */
+    public static final int DEFAULT_CLIENT_DISPATCH_QUEUE = 1000;
+
+    /** The number of threads, partitioned by station, sending out packets. */
+    public final int CLIENT_DISPATCH_THREADS;
+
+    /** The number of packets each dispatch thread can queue. */
+    public final int CLIENT_DISPATCH_QUEUE;
+
+    /** The default write buffer water marks of each export connection in
+     * kilobytes. */
+    public static final int DEFAULT_SERVER_WRITE_HIGH = 64;
+    public static final int DEFAULT_SERVER_WRITE_LOW = 32;
+
+    /** The default kilobytes queued for each export connection. */
+    public static final int DEFAULT_SERVER_QUEUE_SIZE = 1024;
+
+    /** The default seconds an export connection may lag before it is closed
+     * under the disconnect policy. */
+    public static final int DEFAULT_SERVER_LAG_LIMIT = 30;
+
+    /** The kilobytes in an export connection's write buffer at which it stops
+     * taking data from its queue. */
+    public final int SERVER_WRITE_HIGH;
+
+    /** The kilobytes in an export connection's write buffer at which it takes
+     * data from its queue again. */
+    public final int SERVER_WRITE_LOW;
+
+    /** The most kilobytes queued for each export connection. */
+    public final int SERVER_QUEUE_SIZE;
+
+    /** The seconds an export connection may lag before it is closed under
+     * the disconnect policy. */
+    public final int SERVER_LAG_LIMIT;
+
     public ConfigurationGeneral() throws IOException {
         this(DEFAULT_PATH);
     }
@@ -41,6 +207,8 @@ public class ConfigurationGeneral extends Configuration {
                 new GeneralConverterList<String>(String.class);
         GeneralConverterList<Integer> integerListConverter =
                 new GeneralConverterList<Integer>(Integer.class);
+        GeneralConverterSingle<Integer> integerConverter =
+                new GeneralConverterSingle<Integer>(Integer.class);
 
         // Load network properties
         NETWORK_ID = config.getValue("network.id",
@@ -56,6 +224,133 @@ public class ConfigurationGeneral extends Configuration {
         CONNECTION_URL = config.getValue("connection.url",
                 PropertiesReader.REQUIRED, stringConverter);
 
+        // Load database batch properties
+        Integer batchSize = config.getValue("database.batch.size",
+                PropertiesReader.OPTIONAL, integerConverter);
+        DATABASE_BATCH_SIZE = (batchSize == null)
+                ? DEFAULT_DATABASE_BATCH_SIZE : batchSize;
+        Integer batchAge = config.getValue("database.batch.age",
+                PropertiesReader.OPTIONAL, integerConverter);
+        DATABASE_BATCH_AGE = (batchAge == null)
+                ? DEFAULT_DATABASE_BATCH_AGE : batchAge;
+
+        // Load database writer properties
+        String conflict = config.getValue("database.conflict",
+                PropertiesReader.OPTIONAL, stringConverter);
+        DATABASE_CONFLICT = (conflict == null)
+                ? DEFAULT_DATABASE_CONFLICT
+                : InsertDescriptor.Conflict.forName(conflict);
+
+        Integer writers = config.getValue("database.writers",
+                PropertiesReader.OPTIONAL, integerConverter);
+        DATABASE_WRITERS = (writers == null)
+                ? DEFAULT_DATABASE_WRITERS : writers;
+        Integer connections = config.getValue("database.connections",
+                PropertiesReader.OPTIONAL, integerConverter);
+        DATABASE_CONNECTIONS = (connections == null)
+                ? DATABASE_WRITERS : connections;
+
+        // Load database queue properties
+        Integer queueSize = config.getValue("database.queue.size",
+                PropertiesReader.OPTIONAL, integerConverter);
+        DATABASE_QUEUE_SIZE = (queueSize == null)
+                ? DEFAULT_DATABASE_QUEUE_SIZE : queueSize;
+        String overflow = config.getValue("database.queue.overflow",
+                PropertiesReader.OPTIONAL, stringConverter);
+        DATABASE_QUEUE_OVERFLOW = (overflow == null)
+                ? DEFAULT_DATABASE_QUEUE_OVERFLOW
+                : InsertQueue.Overflow.forName(overflow);
+        Integer blockTimeout = config.getValue("database.queue.block.timeout",
+                PropertiesReader.OPTIONAL, integerConverter);
+        DATABASE_QUEUE_BLOCK_TIMEOUT = (blockTimeout == null)
+                ? DEFAULT_DATABASE_QUEUE_BLOCK_TIMEOUT : blockTimeout;
+
+        // Load database spool properties
+        Integer bulkThreshold = config.getValue("database.bulk.threshold",
+                PropertiesReader.OPTIONAL, integerConverter);
+        DATABASE_BULK_THRESHOLD = (bulkThreshold == null)
+                ? DEFAULT_DATABASE_BULK_THRESHOLD : bulkThreshold;
+        Integer bulkSize = config.getValue("database.bulk.size",
+                PropertiesReader.OPTIONAL, integerConverter);
+        DATABASE_BULK_SIZE = (bulkSize == null)
+                ? DEFAULT_DATABASE_BULK_SIZE : bulkSize;
+
+        Integer retryMin = config.getValue("database.retry.min",
+                PropertiesReader.OPTIONAL, integerConverter);
+        DATABASE_RETRY_MIN = (retryMin == null)
+                ? DEFAULT_DATABASE_RETRY_MIN : retryMin;
+        Integer retryMax = config.getValue("database.retry.max",
+                PropertiesReader.OPTIONAL, integerConverter);
+        DATABASE_RETRY_MAX = (retryMax == null)
+                ? DEFAULT_DATABASE_RETRY_MAX : retryMax;
+
+        String partitionPeriod = config.getValue("database.partition.period",
+                PropertiesReader.OPTIONAL, stringConverter);
+        DATABASE_PARTITION_PERIOD = (partitionPeriod == null)
+                ? DEFAULT_DATABASE_PARTITION_PERIOD
+                : PartitionManager.Period.forName(partitionPeriod);
+        Integer partitionAhead = config.getValue("database.partition.ahead",
+                PropertiesReader.OPTIONAL, integerConverter);
+        DATABASE_PARTITION_AHEAD = (partitionAhead == null)
+                ? DEFAULT_DATABASE_PARTITION_AHEAD : partitionAhead;
+        Integer retention = config.getValue("database.partition.retention",
+                PropertiesReader.OPTIONAL, integerConverter);
+        DATABASE_PARTITION_RETENTION = (retention == null) ? 0 : retention;
+        String expire = config.getValue("database.partition.expire",
+                PropertiesReader.OPTIONAL, stringConverter);
+        if (expire == null || expire.trim().equalsIgnoreCase("drop")) {
+            DATABASE_PARTITION_ARCHIVE = false;
+        } else if (expire.trim().equalsIgnoreCase("archive")) {
+            DATABASE_PARTITION_ARCHIVE = true;
+        } else {
+            DATABASE_PARTITION_ARCHIVE = null;
+        }
+
+        String spoolDirectory = config.getValue("database.spool.directory",
+                PropertiesReader.OPTIONAL, stringConverter);
+        DATABASE_SPOOL_DIRECTORY = (spoolDirectory == null)
+                ? DEFAULT_DATABASE_SPOOL_DIRECTORY : spoolDirectory;
+        Integer segmentSize = config.getValue("database.spool.segment.size",
+                PropertiesReader.OPTIONAL, integerConverter);
+        DATABASE_SPOOL_SEGMENT_SIZE = (segmentSize == null)
+                ? DEFAULT_DATABASE_SPOOL_SEGMENT_SIZE : segmentSize;
+        Integer spoolSize = config.getValue("database.spool.max.size",
+                PropertiesReader.OPTIONAL, integerConverter);
+        DATABASE_SPOOL_MAX_SIZE = (spoolSize == null)
+                ? DEFAULT_DATABASE_SPOOL_MAX_SIZE : spoolSize;
+
+        // Load client thread pool properties
+        Integer workerThreads = config.getValue("client.worker.threads",
+                PropertiesReader.OPTIONAL, integerConverter);
+        CLIENT_WORKER_THREADS = (workerThreads == null)
+                ? DEFAULT_CLIENT_WORKER_THREADS : workerThreads;
+        Integer dispatchThreads = config.getValue("client.dispatch.threads",
+                PropertiesReader.OPTIONAL, integerConverter);
+        CLIENT_DISPATCH_THREADS = (dispatchThreads == null)
+                ? DEFAULT_CLIENT_DISPATCH_THREADS : dispatchThreads;
+        Integer dispatchQueue = config.getValue("client.dispatch.queue",
+                PropertiesReader.OPTIONAL, integerConverter);
+        CLIENT_DISPATCH_QUEUE = (dispatchQueue == null)
+                ? DEFAULT_CLIENT_DISPATCH_QUEUE : dispatchQueue;
+
+        // Load export server properties
+        Integer writeHigh = config.getValue("server.write.high",
+                PropertiesReader.OPTIONAL, integerConverter);
+        SERVER_WRITE_HIGH = (writeHigh == null)
+                ? DEFAULT_SERVER_WRITE_HIGH : writeHigh;
+        Integer writeLow = config.getValue("server.write.low",
+                PropertiesReader.OPTIONAL, integerConverter);
+        SERVER_WRITE_LOW = (writeLow == null)
+                ? DEFAULT_SERVER_WRITE_LOW : writeLow;
+        Integer serverQueue = config.getValue("server.queue.size",
+                PropertiesReader.OPTIONAL, integerConverter);
+        SERVER_QUEUE_SIZE = (serverQueue == null)
+                ? DEFAULT_SERVER_QUEUE_SIZE : serverQueue;
+        Integer lagLimit = config.getValue("server.lag.limit",
+                PropertiesReader.OPTIONAL, integerConverter);
+        SERVER_LAG_LIMIT = (lagLimit == null)
+                ? DEFAULT_SERVER_LAG_LIMIT : lagLimit;
+
         if(stats.getErrors().isEmpty()) {
             runTests();
         }
@@ -72,5 +367,77 @@ public class ConfigurationGeneral extends Configuration {
                     + "match the given number of ip addresses and/or the "
                     + "given number of ports.");
         }
+
+        if (DATABASE_BATCH_SIZE < 1 || DATABASE_BATCH_AGE < 0) {
+            stats.addError("The database batch size must be at least 1 and "
+                    + "the batch age can not be negative.");
+        }
+
+        if (DATABASE_CONFLICT == null) {
+            stats.addError("The database conflict mode must be one of error, "
+                    + "ignore or update.");
+        }
+
+        if (DATABASE_WRITERS < 1 || DATABASE_CONNECTIONS < 1) {
+            stats.addError("The number of database writers and database "
+                    + "connections must be at least 1.");
+        }
+
+        if (DATABASE_QUEUE_SIZE < 1 || DATABASE_QUEUE_SIZE > (1 << 30)
+                || DATABASE_QUEUE_BLOCK_TIMEOUT < 0) {
+            stats.addError("The database queue size must be between 1 and "
+                    + "2^30 and the block timeout can not be negative.");
+        }
+
+        if (DATABASE_QUEUE_OVERFLOW == null) {
+            stats.addError("The database queue overflow policy must be one of "
+                    + "drop-newest, drop-oldest, block or spill.");
+        }
+
+        if (DATABASE_BULK_THRESHOLD < 0 || DATABASE_BULK_SIZE < 1) {
+            stats.addError("The database bulk threshold can not be negative "
+                    + "and the bulk size must be at least 1.");
+        }
+
+        if (DATABASE_RETRY_MIN < 1 || DATABASE_RETRY_MAX < DATABASE_RETRY_MIN) {
+            stats.addError("The database retry minimum must be at least 1 "
+                    + "and no more than the maximum.");
+        }
+
+        if (DATABASE_PARTITION_PERIOD == null) {
+            stats.addError("The database partition period must be one of "
+                    + "none, day, week, month or year.");
+        }
+
+        if (DATABASE_PARTITION_AHEAD < 0 || DATABASE_PARTITION_RETENTION < 0
+                || DATABASE_PARTITION_ARCHIVE == null) {
+            stats.addError("The database partitions created ahead and kept "
+                    + "can not be negative and expired partitions must be "
+                    + "dropped or archived.");
+        }
+
+        if (DATABASE_SPOOL_SEGMENT_SIZE < 1 || DATABASE_SPOOL_SEGMENT_SIZE > 1024
+                || DATABASE_SPOOL_MAX_SIZE < DATABASE_SPOOL_SEGMENT_SIZE) {
+            stats.addError("The database spool segment size must be between 1 "
+                    + "and 1024 megabytes and the maximum spool size must be "
+                    + "at least one segment.");
+        }
+
+        if (CLIENT_WORKER_THREADS < 1) {
+            stats.addError("The number of client worker threads must be at "
+                    + "least 1.");
+        }
+
+        if (CLIENT_DISPATCH_THREADS < 1 || CLIENT_DISPATCH_QUEUE < 1) {
+            stats.addError("The number of client dispatch threads and the "
+                    + "dispatch queue size must be at least 1.");
+        }
+
+        if (SERVER_WRITE_LOW < 1 || SERVER_WRITE_HIGH < SERVER_WRITE_LOW
+                || SERVER_QUEUE_SIZE < 1 || SERVER_LAG_LIMIT < 1) {
+            stats.addError("The server write low water mark must be at least "
+                    + "1 and no more than the high water mark, and the queue "
+                    + "size and lag limit must be at least 1.");
+        }
     }
 }
@@ -4,10 +4,15 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 
+import org.usgs.manifold.packet.earthworm.TraceChannel;
+import org.usgs.manifold.server.SubscriberQueue;
+
 import org.usgs.ms.config.Configuration;
 import org.usgs.ms.config.PropertiesReader;
 import org.usgs.ms.config.ConfigStats;
@@ -19,6 +24,27 @@ public class ConfigurationPacket extends Configuration {
     /** The default path to the configuration file. */
     public static final String DEFAULT_PATH = "/packet.properties";
     
+    /** The default minutes of trace messages sent to a new earthworm. */
+    public static final int DEFAULT_SEISMIC_BACKFILL_MINUTES = 0;
+
+    /** The default kilobytes of trace messages kept for each trace. */
+    public static final int DEFAULT_SEISMIC_BACKFILL_SIZE = 1024;
+
+    /** The default kilobytes sent each second to a new earthworm. */
+    public static final int DEFAULT_SEISMIC_BACKFILL_RATE = 1024;
+
+    /** The default directory of the wave server tank files. */
+    public static final String DEFAULT_WAVESERVER_DIRECTORY = "tanks";
+
+    /** The default kilobytes of trace messages in each wave server tank. */
+    public static final int DEFAULT_WAVESERVER_TANK_SIZE = 4096;
+
+    /** The default number of miniSEED records kept for each station. */
+    public static final int DEFAULT_SEEDLINK_RING_SIZE = 8192;
+
+    /** The default seconds of data after which a record is sent unfilled. */
+    public static final int DEFAULT_SEEDLINK_FLUSH_SECONDS = 10;
+
     /** max number of stations imported into Manifold */
     public static final Integer MAX_STATIONS = 255;
 
@@ -38,6 +64,51 @@ public class ConfigurationPacket extends Configuration {
     /** The heartbeat message to send. */
     public final String SEISMIC_EARTHWORM_HEARTBEAT_MESSAGE;
 
+    /** What to do with an earthworm connection that can't keep up. */
+    public final SubscriberQueue.Policy SEISMIC_EARTHWORM_SLOW_POLICY;
+
+    /** The minutes of trace messages sent to a new earthworm connection, or
+     * 0 to send only live data. */
+    public final int SEISMIC_BACKFILL_MINUTES;
+
+    /** The kilobytes of trace messages kept for each trace. */
+    public final int SEISMIC_BACKFILL_SIZE;
+
+    /** The most kilobytes sent each second to a new earthworm connection. */
+    public final int SEISMIC_BACKFILL_RATE;
+
+    /** The milliseconds a trace's samples may wait to be merged into a
+     * larger message, or 0 to send each packet as its own message. */
+    public final int SEISMIC_COALESCE_LATENCY;
+
+    /** Whether trace messages whose samples all fit in 16 bits are sent as
+     * i2, unless a multi channel gives its own format. */
+    public final boolean SEISMIC_SAMPLE_COMPACT;
+
+    /** The port the wave server answers on, or 0 for no wave server. */
+    public final int WAVESERVER_PORT;
+
+    /** The interface the wave server is bound on, or null for all. */
+    public final String WAVESERVER_INTERFACE;
+
+    /** The directory of the wave server tank files. */
+    public final String WAVESERVER_DIRECTORY;
+
+    /** The kilobytes of trace messages in each wave server tank. */
+    public final int WAVESERVER_TANK_SIZE;
+
+    /** The port the SeedLink server answers on, or 0 for no server. */
+    public final int SEEDLINK_PORT;
+
+    /** The interface the SeedLink server is bound on, or null for all. */
+    public final String SEEDLINK_INTERFACE;
+
+    /** The number of miniSEED records kept for each station. */
+    public final int SEEDLINK_RING_SIZE;
+
+    /** The seconds of data after which a record is sent before it is full. */
+    public final int SEEDLINK_FLUSH_SECONDS;
+
     /** The Installation number to send */
     public final int SEISMIC_EARTHWORM_INTALLATION;
     
@@ -59,14 +130,25 @@ public class ConfigurationPacket extends Configuration {
     /** Holds a mapping of station numbers to the interface they are to use**/
     public final Map<Integer, String> GPS_STATION_TO_INTERFACE;
     
+    /** Holds a mapping of station numbers to the policy for GPS connections
+     * that can't keep up. */
+    public final Map<Integer, SubscriberQueue.Policy>
+            GPS_STATION_TO_SLOW_POLICY;
+
     /** Holds a mapping from station numbers to GPS station names */
     public final Map<Integer, String> GPS_SATION_NAME_MAP;
 
+    /** The station numbers that have a GPS station name. */
+    public final Set<Integer> GPS_STATIONS;
+
     /** The message type indicating one second scan packets. */
     public final short SCAN_MESSAGE_TYPE;
     /** The database to store one second scan data in. */
     public final String SCAN_DATABASE;
 
+    /** Write one minute and one hour rollups of the scan and rain data. */
+    public final boolean ROLLUPS;
+
     /** The message type indicating one second scan packets. */
     public final short RAIN_MESSAGE_TYPE;
     /** The database to store one second scan data in. */
@@ -84,6 +166,13 @@ public class ConfigurationPacket extends Configuration {
    /** Mapping from station numbers and channels to station names */
    public final Map<Integer, String> MULTI_LOCATION_MAP;
 
+   /** The station numbers with at least one multi channel configured. */
+   public final Set<Integer> MULTI_STATIONS;
+
+   /** Routing table of multi channels indexed by
+    * {@code station * MAX_CHANNELS + channel}. Unconfigured entries are null. */
+   private final TraceChannel[] multiChannels;
+
    public ConfigurationPacket() throws IOException {
         this(DEFAULT_PATH);
    }
@@ -117,6 +206,78 @@ public class ConfigurationPacket extends Configuration {
                 PropertiesReader.REQUIRED, integerConverter);
         SEISMIC_EARTHWORM_MODULE = config.getValue("seismic.earthworm.module",
                 PropertiesReader.REQUIRED, integerConverter);
+        SEISMIC_EARTHWORM_SLOW_POLICY = getSlowPolicy(config,
+                "seismic.earthworm.slow.policy",
+                SubscriberQueue.Policy.DROP_OLDEST);
+
+        Integer backfillMinutes = config.getValue("seismic.backfill.minutes",
+                PropertiesReader.OPTIONAL, integerConverter);
+        SEISMIC_BACKFILL_MINUTES = (backfillMinutes == null)
+                ? DEFAULT_SEISMIC_BACKFILL_MINUTES : backfillMinutes;
+        Integer backfillSize = config.getValue("seismic.backfill.size",
+                PropertiesReader.OPTIONAL, integerConverter);
+        SEISMIC_BACKFILL_SIZE = (backfillSize == null)
+                ? DEFAULT_SEISMIC_BACKFILL_SIZE : backfillSize;
+        Integer backfillRate = config.getValue("seismic.backfill.rate",
+                PropertiesReader.OPTIONAL, integerConverter);
+        SEISMIC_BACKFILL_RATE = (backfillRate == null)
+                ? DEFAULT_SEISMIC_BACKFILL_RATE : backfillRate;
+        if (SEISMIC_BACKFILL_MINUTES < 0 || SEISMIC_BACKFILL_SIZE < 1
+                || SEISMIC_BACKFILL_RATE < 1) {
+            stats.addError("The seismic backfill minutes can not be negative "
+                    + "and the backfill size and rate must be at least 1.");
+        }
+
+        Integer coalesceLatency = config.getValue("seismic.coalesce.latency",
+                PropertiesReader.OPTIONAL, integerConverter);
+        SEISMIC_COALESCE_LATENCY = (coalesceLatency == null)
+                ? 0 : coalesceLatency;
+        if (SEISMIC_COALESCE_LATENCY < 0) {
+            stats.addError("The seismic coalesce latency can not be "
+                    + "negative.");
+        }
+
+        SEISMIC_SAMPLE_COMPACT = getSampleFormat(config,
+                "seismic.sample.format", false);
+
+        // Load wave server properties.
+        Integer wavePort = config.getValue("waveserver.port",
+                PropertiesReader.OPTIONAL, integerConverter);
+        WAVESERVER_PORT = (wavePort == null) ? 0 : wavePort;
+        WAVESERVER_INTERFACE = config.getValue("waveserver.interface",
+                PropertiesReader.OPTIONAL, stringConverter);
+        String waveDirectory = config.getValue("waveserver.directory",
+                PropertiesReader.OPTIONAL, stringConverter);
+        WAVESERVER_DIRECTORY = (waveDirectory == null)
+                ? DEFAULT_WAVESERVER_DIRECTORY : waveDirectory;
+        Integer tankSize = config.getValue("waveserver.tank.size",
+                PropertiesReader.OPTIONAL, integerConverter);
+        WAVESERVER_TANK_SIZE = (tankSize == null)
+                ? DEFAULT_WAVESERVER_TANK_SIZE : tankSize;
+        if (WAVESERVER_PORT < 0 || WAVESERVER_TANK_SIZE < 1) {
+            stats.addError("The wave server port can not be negative and the "
+                    + "tank size must be at least 1.");
+        }
+
+        // Load SeedLink properties.
+        Integer seedLinkPort = config.getValue("seedlink.port",
+                PropertiesReader.OPTIONAL, integerConverter);
+        SEEDLINK_PORT = (seedLinkPort == null) ? 0 : seedLinkPort;
+        SEEDLINK_INTERFACE = config.getValue("seedlink.interface",
+                PropertiesReader.OPTIONAL, stringConverter);
+        Integer ringSize = config.getValue("seedlink.ring.size",
+                PropertiesReader.OPTIONAL, integerConverter);
+        SEEDLINK_RING_SIZE = (ringSize == null)
+                ? DEFAULT_SEEDLINK_RING_SIZE : ringSize;
+        Integer flushSeconds = config.getValue("seedlink.flush.seconds",
+                PropertiesReader.OPTIONAL, integerConverter);
+        SEEDLINK_FLUSH_SECONDS = (flushSeconds == null)
+                ? DEFAULT_SEEDLINK_FLUSH_SECONDS : flushSeconds;
+        if (SEEDLINK_PORT < 0 || SEEDLINK_RING_SIZE < 1
+                || SEEDLINK_FLUSH_SECONDS < 1) {
+            stats.addError("The SeedLink port can not be negative and the "
+                    + "ring size and flush seconds must be at least 1.");
+        }
         
         // Load GPS properties.
         GPS_MESSAGE_TYPE = config.getValue("gps.messagetype",
@@ -127,6 +288,11 @@ public class ConfigurationPacket extends Configuration {
         Map<Integer, String> gpsstationmap = new HashMap<Integer, String>();
         Map<Integer, Integer> portmap = new HashMap<Integer, Integer>();
         Map<Integer, String> interfacemap = new HashMap<Integer, String>();
+        Map<Integer, SubscriberQueue.Policy> policymap =
+                new HashMap<Integer, SubscriberQueue.Policy>();
+        SubscriberQueue.Policy gpspolicy = getSlowPolicy(config,
+                "gps.slow.policy", SubscriberQueue.Policy.COALESCE);
+        Set<Integer> gpsstations = new TreeSet<Integer>();
         for(int i = 0; i < MAX_STATIONS; ++i) {
             String stationname = config.getValue("gps." + i + ".station" ,
                         PropertiesReader.OPTIONAL, stringConverter);
@@ -135,6 +301,9 @@ public class ConfigurationPacket extends Configuration {
             String intface = config.getValue("gps." + i + ".interface" ,
                         PropertiesReader.OPTIONAL, stringConverter);
             gpsstationmap.put(i, stationname);
+            if (stationname != null) {
+                gpsstations.add(i);
+            }
             
             if(port != null) {  // make shure that port is not null
                 portmap.put(i, port);                
@@ -143,11 +312,16 @@ public class ConfigurationPacket extends Configuration {
             if(intface != null) {  // make shure that the interface is not null
                 interfacemap.put(i, intface);
             }
+
+            policymap.put(i, getSlowPolicy(config, "gps." + i + ".slow.policy",
+                    gpspolicy));
         }
 
         GPS_SATION_NAME_MAP = gpsstationmap;
+        GPS_STATIONS = Collections.unmodifiableSet(gpsstations);
         GPS_STATION_TO_PORT_MAP = portmap;
         GPS_STATION_TO_INTERFACE = interfacemap;
+        GPS_STATION_TO_SLOW_POLICY = policymap;
 
         // Load one second scan properties.
         SCAN_MESSAGE_TYPE = config.getValue("scan.messagetype",
@@ -155,6 +329,10 @@ public class ConfigurationPacket extends Configuration {
         SCAN_DATABASE = config.getValue("scan.output.database",
                 PropertiesReader.REQUIRED, stringConverter);
 
+        String rollups = config.getValue("rollup.enabled",
+                PropertiesReader.OPTIONAL, stringConverter);
+        ROLLUPS = (rollups != null) && Boolean.parseBoolean(rollups.trim());
+
         RAIN_MESSAGE_TYPE = config.getValue("rain.messagetype",
                 PropertiesReader.REQUIRED, shortConverter);
 
@@ -168,6 +346,8 @@ public class ConfigurationPacket extends Configuration {
         Map<Integer, String> stationmap = new HashMap<Integer, String>();
         Map<Integer, String> typemap = new HashMap<Integer, String>();
         Map<Integer, String> locationmap = new HashMap<Integer, String>();
+        Set<Integer> multistations = new TreeSet<Integer>();
+        TraceChannel[] channels = new TraceChannel[MAX_STATIONS * MAX_CHANNELS];
         for (int i = 0; i < MAX_STATIONS; ++i) {
             for(int j = 0; j < MAX_CHANNELS; ++j) {
                 String station = config.getValue("multi." + i + "."  + j + ".station",
@@ -179,11 +359,94 @@ public class ConfigurationPacket extends Configuration {
                 stationmap.put((i * 10 + j), station);
                 typemap.put((i * 10 + j),type);
                 locationmap.put((i * 10 + j),location);
+                if (station != null) {
+                    multistations.add(i);
+                }
+
+                // Only channels with a full SCNL can be routed.
+                if (station != null && type != null && location != null) {
+                    channels[i * MAX_CHANNELS + j] = new TraceChannel(station,
+                            type, location, SEISMIC_EARTHWORM_INTALLATION,
+                            SEISMIC_EARTHWORM_MODULE, getSampleFormat(config,
+                                    "multi." + i + "." + j + ".format",
+                                    SEISMIC_SAMPLE_COMPACT));
+                }
             }
         }
 
         MULTI_STATION_MAP = stationmap;
         MULTI_TYPE_MAP = typemap;
         MULTI_LOCATION_MAP = locationmap;
-    }   
+        MULTI_STATIONS = Collections.unmodifiableSet(multistations);
+        multiChannels = channels;
+    }
+
+    /**
+     * Read a slow consumer policy, recording an error if it is not known.
+     *
+     * @param config the properties to read.
+     * @param key the key of the policy.
+     * @param defaultPolicy the policy if none is given or it is not known.
+     * @return the policy.
+     */
+    private SubscriberQueue.Policy getSlowPolicy(PropertiesReader config,
+            String key, SubscriberQueue.Policy defaultPolicy) {
+
+        String name = config.getValue(key, PropertiesReader.OPTIONAL,
+                new GeneralConverterSingle<String>(String.class));
+        if (name == null) {
+            return defaultPolicy;
+        }
+
+        SubscriberQueue.Policy policy = SubscriberQueue.Policy.forName(name);
+        if (policy == null) {
+            stats.addError("The slow consumer policy " + key + " must be one "
+                    + "of drop-oldest, coalesce or disconnect.");
+            return defaultPolicy;
+        }
+        return policy;
+    }
+
+    /**
+     * Read a sample format, recording an error if it is not known.
+     *
+     * @param config the properties to read.
+     * @param key the key of the format.
+     * @param defaultCompact the format if none is given or it is not known.
+     * @return true for auto, which sends messages whose samples all fit in
+     *         16 bits as i2, or false for i4.
+     */
+    private boolean getSampleFormat(PropertiesReader config, String key,
+            boolean defaultCompact) {
+
+        String name = config.getValue(key, PropertiesReader.OPTIONAL,
+                new GeneralConverterSingle<String>(String.class));
+        if (name == null) {
+            return defaultCompact;
+        }
+
+        if (name.trim().equalsIgnoreCase("auto")) {
+            return true;
+        } else if (name.trim().equalsIgnoreCase("i4")) {
+            return false;
+        }
+        stats.addError("The sample format " + key + " must be auto or i4.");
+        return defaultCompact;
+    }
+
+    /**
+     * Look up where data from a multi station channel should be sent.
+     *
+     * @param station the station number.
+     * @param channel the channel number of the station.
+     * @return the channel description or null if the station and channel
+     *         have not been configured.
+     */
+    public TraceChannel getMultiChannel(int station, int channel) {
+        if (station < 0 || station >= MAX_STATIONS
+                || channel < 0 || channel >= MAX_CHANNELS) {
+            return null;
+        }
+        return multiChannels[station * MAX_CHANNELS + channel];
+    }
 }
\ No newline at end of file
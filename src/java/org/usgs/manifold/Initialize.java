@@ -1,11 +1,11 @@
 package org.usgs.manifold;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 
 import org.apache.commons.dbutils.DbUtils;
 
@@ -19,15 +19,25 @@ import org.slf4j.LoggerFactory;
 
 import org.usgs.ms.config.Configuration;
 
-import org.usgs.manifold.database.DatabaseInsertStatement;
 import org.usgs.manifold.database.DatabaseInsertThread;
+import org.usgs.manifold.database.DatabaseSpool;
+import org.usgs.manifold.database.DatabaseWriterPool;
 import org.usgs.manifold.client.CVOClient;
 
 import org.usgs.manifold.packet.data.SendGPS;
+import org.usgs.manifold.packet.data.SendMulti;
 import org.usgs.manifold.packet.data.SendOneSecondScan;
 import org.usgs.manifold.packet.data.SendRainGadge;
+import org.usgs.manifold.packet.data.SendSingleSeismic;
+import org.usgs.manifold.packet.data.TraceCoalescer;
 import org.usgs.manifold.server.CVOServer;
 import org.usgs.manifold.server.HeartbeatExportThread;
+import org.usgs.manifold.server.SeedLinkServer;
+import org.usgs.manifold.server.SeedLinkStore;
+import org.usgs.manifold.server.SubscriberQueue;
+import org.usgs.manifold.server.TraceBackfill;
+import org.usgs.manifold.server.WaveServer;
+import org.usgs.manifold.server.WaveStore;
 
 /**
  * Set up all the needed variables for the data types as well as starting the
@@ -87,33 +97,129 @@ public class Initialize {
         //Create the mapping of ports to interfaces
         Map<Integer, String> portInterfaceMap = preparePortInterfaceMap();
         
-        // Specify the PortChannelMap to use
-        SendGPS.setChannelMap(portChannelMap);
-        if (loadDriver(getGeneralConfig().CONNECTION_DRIVER)) {
+        // Keep the recent trace messages for earthworms that connect later.
+        Map<Integer, TraceBackfill> portBackfillMap =
+                new HashMap<Integer, TraceBackfill>();
+        if (packetConfig.SEISMIC_BACKFILL_MINUTES > 0) {
+            TraceBackfill backfill = new TraceBackfill(
+                    packetConfig.SEISMIC_EARTHWORM_CHANNELS,
+                    packetConfig.SEISMIC_BACKFILL_MINUTES * 60000L,
+                    packetConfig.SEISMIC_BACKFILL_SIZE * 1024,
+                    packetConfig.SEISMIC_BACKFILL_RATE * 1024);
+            SendMulti.setBackfill(backfill);
+            SendSingleSeismic.setBackfill(backfill);
+            portBackfillMap.put(packetConfig.SEISMIC_EARTHWORM_PORT, backfill);
+        }
+
+        // Merge small trace packets into larger messages.
+        if (packetConfig.SEISMIC_COALESCE_LATENCY > 0) {
+            SendMulti.setCoalescer(new TraceCoalescer(
+                    packetConfig.SEISMIC_COALESCE_LATENCY));
+        }
 
-            // Queue to pass around DatabaseInsertStatements.
-            final BlockingQueue<DatabaseInsertStatement> insertStatements =
-                    new ArrayBlockingQueue<DatabaseInsertStatement>(100);
+        // Keep the recent trace messages for the wave server.
+        WaveStore waveStore = null;
+        if (packetConfig.WAVESERVER_PORT > 0) {
+            waveStore = openWaveStore(packetConfig);
+            SendMulti.setWaveStore(waveStore);
+        }
 
-            // Specify the queue to use.
-            SendGPS.setStatementQueue(insertStatements);
-            SendOneSecondScan.setStatementQueue(insertStatements);
-            SendRainGadge.setStatementQueue(insertStatements);
+        // Encode the seismic data into miniSEED for the SeedLink server.
+        SeedLinkStore seedLinkStore = null;
+        if (packetConfig.SEEDLINK_PORT > 0) {
+            seedLinkStore = new SeedLinkStore(packetConfig.SEEDLINK_RING_SIZE,
+                    packetConfig.SEEDLINK_FLUSH_SECONDS);
+            SendMulti.setSeedLinkStore(seedLinkStore);
+            SendSingleSeismic.setSeedLinkStore(seedLinkStore);
+        }
 
-            // Create a thread to execute the SQL statments on the queue.
-            DatabaseInsertThread databaseImport = new DatabaseInsertThread(
-                    insertStatements, getGeneralConfig().CONNECTION_URL);
+        // Specify the PortChannelMap to use
+        SendGPS.setChannelMap(portChannelMap);
+        if (loadDriver(getGeneralConfig().CONNECTION_DRIVER)) {
 
-            databaseImport.start();
+            // Create the threads that execute the SQL statements, each with a
+            // queue of statements to pass around and a spool on disk for
+            // statements that can't be inserted yet.
+            DatabaseWriterPool databaseWriters = new DatabaseWriterPool(
+                    getGeneralConfig().CONNECTION_URL,
+                    getGeneralConfig().DATABASE_WRITERS,
+                    getGeneralConfig().DATABASE_CONNECTIONS,
+                    getGeneralConfig().DATABASE_QUEUE_SIZE,
+                    getGeneralConfig().DATABASE_QUEUE_OVERFLOW,
+                    getGeneralConfig().DATABASE_QUEUE_BLOCK_TIMEOUT,
+                    openSpool(getGeneralConfig()),
+                    getGeneralConfig().DATABASE_BATCH_SIZE,
+                    getGeneralConfig().DATABASE_BATCH_AGE,
+                    getGeneralConfig().DATABASE_CONFLICT,
+                    getGeneralConfig().DATABASE_BULK_THRESHOLD,
+                    getGeneralConfig().DATABASE_BULK_SIZE);
+
+            databaseWriters.setRetryDelay(
+                    getGeneralConfig().DATABASE_RETRY_MIN,
+                    getGeneralConfig().DATABASE_RETRY_MAX);
+
+            databaseWriters.setPartitioning(
+                    getGeneralConfig().DATABASE_PARTITION_PERIOD,
+                    getGeneralConfig().DATABASE_PARTITION_AHEAD,
+                    getGeneralConfig().DATABASE_PARTITION_RETENTION,
+                    getGeneralConfig().DATABASE_PARTITION_ARCHIVE);
+
+            // Specify the writers to use.
+            SendGPS.setDatabaseWriters(databaseWriters);
+            SendOneSecondScan.setDatabaseWriters(databaseWriters);
+            SendRainGadge.setDatabaseWriters(databaseWriters);
+
+            // Create and validate the tables of the configured stations
+            // before any data arrives.
+            List<String> networkIDs = getGeneralConfig().NETWORK_ID;
+            databaseWriters.addKnownTables(
+                    SendGPS.getKnownDescriptors(networkIDs));
+            databaseWriters.addKnownTables(
+                    SendOneSecondScan.getKnownDescriptors(networkIDs));
+            databaseWriters.addKnownTables(
+                    SendRainGadge.getKnownDescriptors(networkIDs));
+
+            databaseWriters.start();
+
+            // Write the open rollup windows when the program stops.
+            if (packetConfig.ROLLUPS) {
+                Runtime.getRuntime().addShutdownHook(new Thread("Rollups") {
+
+                    @Override
+                    public void run() {
+                        SendOneSecondScan.flushRollups();
+                        SendRainGadge.flushRollups();
+                    }
+                });
+            }
         }
 
         // Set the logger for Netty
         InternalLoggerFactory.setDefaultFactory(new Slf4JLoggerFactory());
 
         // Start up the server to send out packets.
-        CVOServer.startServer(portChannelMap, portInterfaceMap);
+        CVOServer.startServer(portChannelMap, portInterfaceMap,
+                preparePortPolicyMap(),
+                getGeneralConfig().SERVER_WRITE_HIGH * 1024,
+                getGeneralConfig().SERVER_WRITE_LOW * 1024,
+                getGeneralConfig().SERVER_QUEUE_SIZE * 1024,
+                getGeneralConfig().SERVER_LAG_LIMIT * 1000L,
+                portBackfillMap);
+        if (waveStore != null) {
+            WaveServer.startServer(waveStore, packetConfig.WAVESERVER_PORT,
+                    packetConfig.WAVESERVER_INTERFACE);
+        }
+        if (seedLinkStore != null) {
+            SeedLinkServer.startServer(seedLinkStore,
+                    packetConfig.SEEDLINK_PORT,
+                    packetConfig.SEEDLINK_INTERFACE);
+        }
 
-        // Start up the client connections to the moxa to get packets.
+        // Start up the client connections to the moxa to get packets. All of
+        // the connections share the same worker threads and timer.
+        CVOClient.initialize(getGeneralConfig().CLIENT_WORKER_THREADS,
+                getGeneralConfig().CLIENT_DISPATCH_THREADS,
+                getGeneralConfig().CLIENT_DISPATCH_QUEUE);
         for (int i = 0; i < getGeneralConfig().NETWORK_ID.size(); i++) {
             CVOClient.startClient(generalConfig.IP_ADDRESS.get(i),
                     generalConfig.PORT.get(i), generalConfig.NETWORK_ID.get(i));
@@ -140,6 +246,28 @@ public class Initialize {
     }
     
     
+    /**
+     * Prepares a mapping of ports to the policy for connections that can't
+     * keep up with the data sent out on them.
+     *
+     * @return the prepared mapping of ports to slow consumer policies.
+     */
+    private static Map<Integer, SubscriberQueue.Policy> preparePortPolicyMap() {
+
+        final Map<Integer, SubscriberQueue.Policy> policymap =
+                new HashMap<Integer, SubscriberQueue.Policy>();
+
+        policymap.put(packetConfig.SEISMIC_EARTHWORM_PORT,
+                packetConfig.SEISMIC_EARTHWORM_SLOW_POLICY);
+
+        for (Integer key : getPacketConfig().GPS_STATION_TO_PORT_MAP.keySet()) {
+            policymap.put(getPacketConfig().GPS_STATION_TO_PORT_MAP.get(key),
+                    getPacketConfig().GPS_STATION_TO_SLOW_POLICY.get(key));
+        }
+
+        return Collections.unmodifiableMap(policymap);
+    }
+
     /**
      * Prepares a mapping of ports to {@link ChannelGroup} objects so that
      * incoming connections to the server can organized into the groups.
@@ -163,6 +291,42 @@ public class Initialize {
         return Collections.unmodifiableMap(portChannelMap);
     }
 
+    /**
+     * Opens the spool used to hold database inserts while the database is
+     * slow or unavailable.
+     *
+     * @param config the general configuration.
+     * @return the spool, or null if it could not be opened.
+     */
+    private static DatabaseSpool openSpool(ConfigurationGeneral config) {
+        try {
+            return new DatabaseSpool(new File(config.DATABASE_SPOOL_DIRECTORY),
+                    config.DATABASE_SPOOL_SEGMENT_SIZE * 1024 * 1024,
+                    config.DATABASE_SPOOL_MAX_SIZE * 1024L * 1024L);
+        } catch (IOException e) {
+            log.error("Could not open the database spool. Inserts that can "
+                    + "not be made will be discarded.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Opens the tanks the wave server answers requests from.
+     *
+     * @param config the packet configuration.
+     * @return the tanks, or null if they could not be opened.
+     */
+    private static WaveStore openWaveStore(ConfigurationPacket config) {
+        try {
+            return new WaveStore(new File(config.WAVESERVER_DIRECTORY),
+                    config.WAVESERVER_TANK_SIZE * 1024);
+        } catch (IOException e) {
+            log.error("Could not open the wave server tanks. The wave server "
+                    + "will not be started.", e);
+            return null;
+        }
+    }
+
     /**
      * <p>Load a database driver so that any {@link DatabaseInsertThread}s that
      * depend on the driver for a connection will be able to connect.
@@ -15,8 +15,8 @@ import org.usgs.manifold.packet.DataPacket;
 /**
  * A client that connects to a server and reads in data parsing it into
  * {@link DataPacket}s as specified in the {@link PacketFactory}. After the data 
- * is parsed into {@link DataPacket}s it is then fanned out using the
- * {@link DataPacket}s sendOut() method.
+ * is parsed into {@link DataPacket}s it is then fanned out by a
+ * {@link PacketDispatcher} using the {@link DataPacket}s sendOut() method.
  *
  */
 public class CVOClient {
@@ -28,6 +28,53 @@ public class CVOClient {
     if no data is read from the connection over the time period. */
     static final int READ_TIMEOUT = 30;
 
+    /** Factory shared by every client so they share one set of threads. */
+    private static ChannelFactory factory = null;
+
+    /** Timer shared by every client for reconnects and read timeouts. */
+    private static Timer timer = null;
+
+    /** Sends out the decoded packets from every client. */
+    private static PacketDispatcher dispatcher = null;
+
+    // Prevent instantiation
+    private CVOClient() {
+    }
+
+    /**
+     * Set up the thread pools and timer shared by all of the clients. This
+     * must be called once before any client is started.
+     *
+     * @param workerThreads the number of NIO worker threads that will service
+     *        every client connection.
+     * @param dispatchThreads the number of threads, partitioned by station,
+     *        that send out the decoded packets.
+     * @param dispatchQueue the number of packets each dispatch thread can
+     *        queue.
+     */
+    public static synchronized void initialize(int workerThreads,
+            int dispatchThreads, int dispatchQueue) {
+
+        if (factory != null) {
+            throw new IllegalStateException("The clients have already been "
+                    + "initialized.");
+        }
+
+        // Initialize the timer that schedules reconnection attempts and read
+        // timeouts for all connections.
+        timer = new HashedWheelTimer();
+
+        // Create a factory with a single boss thread and a fixed number of
+        // worker threads that all of the connections are spread over.
+        factory = new NioClientSocketChannelFactory(
+                Executors.newCachedThreadPool(),
+                Executors.newFixedThreadPool(workerThreads),
+                workerThreads);
+
+        // Send out the packets off of the I/O threads.
+        dispatcher = new PacketDispatcher(dispatchThreads, dispatchQueue);
+    }
+
     /**
      * Start a CVOClient trying to connect to the given address on the given
      * port.
@@ -36,24 +83,24 @@ public class CVOClient {
      * @param port the port to connect on.
      * @param networkID an ID which is used to generate table names and for
      *        earthworm connections.
+     * @throws IllegalStateException if {@link #initialize(int) initialize} has
+     *         not been called.
      */
-    public static void startClient(String ipAddress, int port,
+    public static synchronized void startClient(String ipAddress, int port,
             String networkID) {
 
-        // Initialize the timer that schedules subsequent reconnection attempts.
-        final Timer timer = new HashedWheelTimer();
-
-        // Create a basic factory with thread pools.
-        final ChannelFactory factory = new NioClientSocketChannelFactory(
-                Executors.newCachedThreadPool(),
-                Executors.newCachedThreadPool());
+        if (factory == null) {
+            throw new IllegalStateException("The client thread pools have not "
+                    + "been initialized.");
+        }
 
         // Set up the client.
         final ClientBootstrap bootstrap = new ClientBootstrap(factory);
 
         // Set up the event pipeline factory for the MOXA connection.
         bootstrap.setPipelineFactory(
-                new CVOClientPipelineFactory(timer, bootstrap, networkID));
+                new CVOClientPipelineFactory(timer, bootstrap, networkID,
+                        dispatcher));
 
         // The address to the MOXA.
         InetSocketAddress connectionAddress = new InetSocketAddress(
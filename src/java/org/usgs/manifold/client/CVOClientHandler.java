@@ -15,8 +15,10 @@ import org.usgs.manifold.packet.DataPacket;
 /**
  * A {@code SimpleChannelUpstreamHandler} that takes a frame of data, parsing
  * it into a {@link DataPacket} as specified in the {@link PacketFactory}. After
- * the data is parsed into a {@link DataPacket} it is then fanned out using the
- * {@link DataPacket}s sendOut() method.
+ * the data is parsed into a {@link DataPacket} it is handed to a
+ * {@link PacketDispatcher} which fans it out using the {@link DataPacket}s
+ * sendOut() method off of the I/O thread, suspending reads from the
+ * connection while the dispatcher is full.
  */
 public class CVOClientHandler extends SimpleChannelUpstreamHandler
 {
@@ -25,19 +27,24 @@ public class CVOClientHandler extends SimpleChannelUpstreamHandler
     /** Used to generate table names and for earthworm connections. */
     private final String networkID;
 
+    /** Sends out the parsed packets. */
+    private final PacketDispatcher dispatcher;
+
     /**
      * @param networkID an ID which is used to generate table names and for
      *        earthworm connections.
+     * @param dispatcher the dispatcher used to send out the parsed packets.
      */
-    public CVOClientHandler(String networkID) {
+    public CVOClientHandler(String networkID, PacketDispatcher dispatcher) {
         this.networkID = networkID;
+        this.dispatcher = dispatcher;
     }
 
     /**
      * {@inheritDoc}
      * <p>
-     * Create a {@link DataPacket} from the frame and then send out the.
-     * data.
+     * Create a {@link DataPacket} from the frame and then hand it to the
+     * dispatcher to send out the data.
      */
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e)
@@ -57,7 +64,7 @@ public class CVOClientHandler extends SimpleChannelUpstreamHandler
         // Send the data packet to where it needs to go.
         if (data != null)
         {
-            data.sendOut();
+            dispatcher.dispatch(data, ctx.getChannel());
         }
     }
 
@@ -4,11 +4,11 @@ import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
-import org.jboss.netty.handler.codec.frame.DelimiterBasedFrameDecoder;
 import org.jboss.netty.handler.timeout.ReadTimeoutHandler;
 import org.jboss.netty.util.Timer;
 import org.usgs.manifold.packet.DataPacket;
 import org.usgs.manifold.packet.DefaultFooter;
+import org.usgs.manifold.packet.DefaultHeader;
 
 /**
  * A {@code ChannelPipelineFactory} that sets up a client server connection.
@@ -17,9 +17,9 @@ import org.usgs.manifold.packet.DefaultFooter;
  * reconnection attempts.
  *
  * <p>
- * A {@code DelimiterBasedFrameDecoder} is used to parse the data into frames
- * which are sent to the {@link CVOClientHandler} to be parsed into
- * {@link DataPacket}s.
+ * A {@link CVOFrameDecoder} is used to parse the data into frames between the
+ * {@link DefaultHeader} and {@link DefaultFooter} delimeters which are sent to
+ * the {@link CVOClientHandler} to be parsed into {@link DataPacket}s.
  *
  */
 public class CVOClientPipelineFactory implements ChannelPipelineFactory {
@@ -33,24 +33,23 @@ public class CVOClientPipelineFactory implements ChannelPipelineFactory {
     /** Used to generate table names and for earthworm connections. */
     private final String networkID;
 
-    /** The max size for any given frame of data. This is set absurdly high.*/
-    //private final int MAX_FRAME_SIZE = 2048;
-
-    /** Not high enuff for 1000 S/s or higher -CGL */
-    private final int MAX_FRAME_SIZE =  9216;//2048;
+    /** Sends out the parsed packets. */
+    private final PacketDispatcher dispatcher;
 
     /**
      * @param timer a Timer Object used to time reconnection attempts.
      * @param bootstrap the ClientBootsrap to use for reconnection attempts.
      * @param networkID an ID which is used to generate table names and for
      *        earthworm connections.
+     * @param dispatcher the dispatcher used to send out the parsed packets.
      */
     public CVOClientPipelineFactory(Timer timer, ClientBootstrap bootstrap,
-            String networkID) {
+            String networkID, PacketDispatcher dispatcher) {
 
         this.timer = timer;
         this.bootstrap = bootstrap;
         this.networkID = networkID;
+        this.dispatcher = dispatcher;
     }
 
     /**
@@ -70,13 +69,13 @@ public class CVOClientPipelineFactory implements ChannelPipelineFactory {
         pipeline.addLast("connectionHandler",
                 new CVOClientConnectionHandler(bootstrap, timer, 2));
 
-        // Split the stream into frames using the header as a delimeter. The
-        // first frame should always be blank.
-        pipeline.addLast("frameDecoder", new DelimiterBasedFrameDecoder(
-                MAX_FRAME_SIZE, DefaultFooter.getDelimeter()));
+        // Split the stream into frames between the start and end of packet
+        // delimeters. Frames have no size limit.
+        pipeline.addLast("frameDecoder", new CVOFrameDecoder());
 
-        // Parse the frames into packets and send them out.
-        pipeline.addLast("mainHandler", new CVOClientHandler(networkID));
+        // Parse the frames into packets and hand them off to be sent out.
+        pipeline.addLast("mainHandler",
+                new CVOClientHandler(networkID, dispatcher));
 
         return pipeline;
     }
@@ -0,0 +1,118 @@
+package org.usgs.manifold.client;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.usgs.manifold.packet.DefaultFooter;
+import org.usgs.manifold.packet.DefaultHeader;
+import org.usgs.manifold.packet.PacketFactory;
+
+/**
+ * A {@code FrameDecoder} that splits the stream from a MOXA into frames that
+ * start with the {@link DefaultHeader} delimeter and end with the
+ * {@link DefaultFooter} delimeter.
+ *
+ * <p>
+ * When the message type has a known length, as given by
+ * {@link PacketFactory#getBodyLength(short, ChannelBuffer, int)}, the end of
+ * packet delimeter is only checked at the expected position so sample data
+ * that happens to contain the delimeter does not split the frame. Otherwise
+ * the stream is scanned for the end of packet delimeter. There is no limit on
+ * the size of a frame.
+ *
+ * <p>
+ * Frames are passed up as slices of the received data, starting with the start
+ * of packet delimeter and without the end of packet delimeter. A frame is only
+ * valid until the handler that receives it returns.
+ *
+ */
+public class CVOFrameDecoder extends FrameDecoder {
+
+    private static Logger log = LoggerFactory.getLogger(CVOFrameDecoder.class);
+
+    /** The number of bytes in the start of packet delimeter. */
+    private static final int START_LENGTH =
+            DefaultHeader.START_OF_PACKET.length();
+
+    /** The number of bytes in the end of packet delimeter. */
+    private static final int END_LENGTH = DefaultFooter.END_OF_PACKET.length();
+
+    /** {@inheritDoc} */
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, Channel channel,
+            ChannelBuffer buffer) {
+
+        // Skip anything before the start of the next packet.
+        int start = DefaultHeader.indexOf(buffer, buffer.readerIndex());
+        if (start < 0) {
+            // Keep what could be the beginning of a split delimeter.
+            int keep = Math.min(buffer.readableBytes(), START_LENGTH - 1);
+            discard(buffer, buffer.writerIndex() - keep);
+            return null;
+        }
+        discard(buffer, start);
+
+        // Wait for the whole header.
+        int bodyIndex = start + START_LENGTH + DefaultHeader.LENGTH;
+        if (bodyIndex > buffer.writerIndex()) {
+            return null;
+        }
+
+        short messageType = buffer.getUnsignedByte(start + START_LENGTH);
+        int bodyLength = PacketFactory.getBodyLength(messageType, buffer,
+                bodyIndex);
+
+        int end = -1;
+        if (bodyLength >= 0) {
+            // Wait until the packet should be complete.
+            if (bodyIndex + bodyLength + END_LENGTH > buffer.writerIndex()) {
+                return null;
+            }
+            if (DefaultFooter.isDelimeter(buffer, bodyIndex + bodyLength)) {
+                end = bodyIndex + bodyLength;
+            }
+        }
+
+        if (end < 0) {
+            // The length is not known or was wrong so look for the delimeter.
+            end = DefaultFooter.indexOf(buffer, bodyIndex);
+            if (end < 0) {
+                return null;
+            }
+
+            // Another packet started before this one ended so this one is
+            // missing its end and can't be trusted.
+            int next = DefaultHeader.indexOf(buffer, start + START_LENGTH);
+            if (next >= 0 && next < end) {
+                log.warn("Dropping a packet of type '{}' without an end of "
+                        + "packet string.", messageType);
+                discard(buffer, next);
+                return null;
+            }
+        }
+
+        ChannelBuffer frame = buffer.slice(start, end - start);
+        buffer.readerIndex(end + END_LENGTH);
+        return frame;
+    }
+
+    /**
+     * Move the reader index of the buffer forward, logging the amount of data
+     * that was skipped.
+     *
+     * @param buffer the buffer being decoded.
+     * @param index the absolute index to move the reader index to.
+     */
+    private void discard(ChannelBuffer buffer, int index) {
+        int skipped = index - buffer.readerIndex();
+        if (skipped > 0) {
+            log.warn("Discarding {} bytes found outside of a packet.", skipped);
+            buffer.readerIndex(index);
+        }
+    }
+}
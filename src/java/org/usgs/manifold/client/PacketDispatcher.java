@@ -0,0 +1,228 @@
+package org.usgs.manifold.client;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.Channel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.usgs.manifold.packet.DataPacket;
+
+/**
+ * Hands {@link DataPacket}s off from the Netty I/O threads to a fixed number
+ * of partitions, each with its own queue and thread, which call
+ * {@link DataPacket#sendOut()}. Packets are assigned to a partition by their
+ * station number so the packets from a station are always sent out in the
+ * order they were received, while different stations are sent out in
+ * parallel. A slow database queue or export connection only holds up the
+ * stations in its partition instead of the socket reads for a whole MOXA.
+ *
+ * <p>
+ * If a partition's queue is full the packet waits in the partition's
+ * overflow and reading from the connection it came from is suspended, rather
+ * than dropping the packet or blocking the I/O thread. The partition's
+ * thread moves the waiting packets into the queue as it makes room, and
+ * resumes reading from the suspended connections once none are left. The
+ * depth and high-water mark of each partition's queue are logged once a
+ * minute.
+ *
+ */
+public class PacketDispatcher {
+
+    private static Logger log = LoggerFactory.getLogger(PacketDispatcher.class);
+
+    /** The partitions, each with its queue and thread. */
+    private final List<Partition> partitions;
+
+    /** Milliseconds between reports of the queue depths. */
+    private static final int REPORT_INTERVAL = 60000;
+
+    /** The time of the next report of the queue depths. */
+    private final AtomicLong nextReport = new AtomicLong();
+
+    /** The number of times a connection was suspended for a full queue. */
+    private final AtomicLong suspends = new AtomicLong();
+
+    /**
+     * @param partitions the number of partitions, each with its own thread.
+     * @param queueSize the number of packets each partition can hold before
+     *        reading from a connection is suspended.
+     */
+    public PacketDispatcher(int partitions, int queueSize) {
+
+        this.partitions = new ArrayList<Partition>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            Partition partition = new Partition(i, queueSize);
+            this.partitions.add(partition);
+            partition.start();
+        }
+        nextReport.set(System.currentTimeMillis() + REPORT_INTERVAL);
+    }
+
+    /**
+     * Queue the packet to be sent out by the partition for its station. If
+     * the partition is full, reading from the channel is suspended until the
+     * partition has caught up.
+     *
+     * @param packet the packet to send out.
+     * @param channel the connection the packet was read from.
+     */
+    public void dispatch(DataPacket packet, Channel channel) {
+
+        Partition partition = partitions.get(
+                packet.getStationNumber() % partitions.size());
+        if (partition.add(packet, channel)) {
+            suspends.incrementAndGet();
+        }
+
+        reportQueues();
+    }
+
+    /**
+     * Log the depth and high-water mark of each partition's queue every
+     * {@link #REPORT_INTERVAL}, warning if any connection was suspended.
+     */
+    private void reportQueues() {
+
+        long now = System.currentTimeMillis();
+        long next = nextReport.get();
+        if (now < next
+                || !nextReport.compareAndSet(next, now + REPORT_INTERVAL)) {
+            return;
+        }
+
+        StringBuilder depths = new StringBuilder();
+        for (Partition partition : partitions) {
+            if (depths.length() > 0) {
+                depths.append(", ");
+            }
+            depths.append(partition.queue.size()).append('/')
+                    .append(partition.getAndResetHighWaterMark());
+        }
+
+        long count = suspends.getAndSet(0);
+        if (count > 0) {
+            log.warn("Dispatch queues (depth/high-water mark of {}): {}; "
+                    + "connections suspended {} times for a full queue.",
+                    new Object[]{partitions.get(0).capacity, depths, count});
+        } else {
+            log.info("Dispatch queues (depth/high-water mark of {}): {}.",
+                    partitions.get(0).capacity, depths);
+        }
+    }
+
+    /**
+     * A partition's queue and the thread that sends out its packets.
+     */
+    private static class Partition extends Thread {
+
+        /** The number of packets the queue holds. */
+        private final int capacity;
+
+        /** Holds packets to be sent out. */
+        private final BlockingQueue<DataPacket> queue;
+
+        /** The packets that didn't fit in the queue, oldest first. Guarded
+         * by this partition. */
+        private final Queue<DataPacket> overflow = new LinkedList<DataPacket>();
+
+        /** The connections suspended until the overflow is empty. Guarded by
+         * this partition. */
+        private final List<Channel> suspended = new ArrayList<Channel>();
+
+        /** The most packets queued since the last report. Guarded by this
+         * partition. */
+        private int highWaterMark;
+
+        Partition(int partition, int capacity) {
+            super("PacketDispatcher-" + partition);
+            this.capacity = capacity;
+            this.queue = new ArrayBlockingQueue<DataPacket>(capacity);
+        }
+
+        /**
+         * Queue the packet, or hold it in the overflow behind any packets
+         * already there and suspend reading from its channel.
+         *
+         * @param packet the packet to send out.
+         * @param channel the connection the packet was read from.
+         * @return true if the channel was suspended.
+         */
+        synchronized boolean add(DataPacket packet, Channel channel) {
+
+            if (overflow.isEmpty() && queue.offer(packet)) {
+                highWaterMark = Math.max(highWaterMark, queue.size());
+                return false;
+            }
+
+            overflow.add(packet);
+            if (suspended.contains(channel)) {
+                return false;
+            }
+            suspended.add(channel);
+            channel.setReadable(false);
+            return true;
+        }
+
+        /**
+         * Move the overflow into the queue while it has room.
+         *
+         * @return the channels to resume reading from, if the overflow has
+         *         emptied.
+         */
+        private synchronized List<Channel> refill() {
+
+            while (!overflow.isEmpty() && queue.offer(overflow.peek())) {
+                overflow.poll();
+            }
+            highWaterMark = Math.max(highWaterMark, queue.size());
+
+            if (!overflow.isEmpty() || suspended.isEmpty()) {
+                return null;
+            }
+            List<Channel> resumed = new ArrayList<Channel>(suspended);
+            suspended.clear();
+            return resumed;
+        }
+
+        /**
+         * @return the most packets queued since the last call.
+         */
+        synchronized int getAndResetHighWaterMark() {
+            int high = highWaterMark;
+            highWaterMark = queue.size();
+            return high;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    /* This blocks when the queue is empty. */
+                    DataPacket packet = queue.take();
+
+                    List<Channel> resumed = refill();
+                    if (resumed != null) {
+                        for (Channel channel : resumed) {
+                            channel.setReadable(true);
+                        }
+                    }
+
+                    packet.sendOut();
+                } catch (InterruptedException e) {
+                    /*don't care*/
+                } catch (RuntimeException e) {
+                    log.warn("Could not send out a packet.", e);
+                }
+            }
+        }
+    }
+}
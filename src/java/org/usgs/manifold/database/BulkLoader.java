@@ -0,0 +1,267 @@
+package org.usgs.manifold.database;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.List;
+
+import org.apache.commons.dbutils.DbUtils;
+
+/**
+ * Loads rows into a table with {@code LOAD DATA LOCAL INFILE}, streaming them
+ * from memory rather than from a file. This is much faster than inserting the
+ * rows one at a time, even in batches, and is used by a
+ * {@link DatabaseInsertThread} to catch up when it falls behind.
+ *
+ * <p>
+ * The rows are written to a reusable buffer as tab separated values, one row
+ * per line, with the default {@code LOAD DATA} escapes: a backslash, tab,
+ * newline, carriage return or NUL in a value is written as a backslash and
+ * {@code \}, {@code t}, {@code n}, {@code r} or {@code 0}, and a null value
+ * as {@code \N}. The buffer is handed to the MySQL driver as the stream to
+ * read in place of the file.
+ *
+ * <p>
+ * A loader is only used by one thread at a time.
+ *
+ */
+class BulkLoader {
+
+    /** The MySQL error when LOAD DATA LOCAL is disabled on the server. */
+    private static final int ER_NOT_ALLOWED_COMMAND = 1148;
+
+    /** The SQL state of a feature the driver does not support. */
+    private static final String FEATURE_NOT_SUPPORTED = "0A000";
+
+    /** Holds the rows being loaded. */
+    private final RowBuffer buffer = new RowBuffer();
+
+    /**
+     * Load rows into the table. The rows are part of the connection's current
+     * transaction.
+     *
+     * @param connection the connection to use.
+     * @param loadSQL the {@link InsertDescriptor#getLoadSQL load SQL} of the
+     *        table to load the rows into.
+     * @param rows the rows to load.
+     * @return the number of rows loaded, as counted by the server. Rows that
+     *         duplicate an existing key are skipped, or counted twice if they
+     *         replace it.
+     * @throws SQLException if the rows could not be loaded or the driver
+     *         can't stream them.
+     */
+    int load(CachedConnection connection, String loadSQL,
+            List<DatabaseInsertStatement> rows) throws SQLException {
+
+        buffer.reset();
+        for (DatabaseInsertStatement row : rows) {
+            if (row.isTyped()) {
+                writeTyped(row);
+            } else {
+                write(row.getParameters());
+            }
+        }
+
+        Statement statement = connection.getConnection().createStatement();
+        try {
+            if (!(statement instanceof com.mysql.jdbc.Statement)) {
+                throw new SQLException("The database driver can't stream "
+                        + "rows to LOAD DATA LOCAL INFILE.",
+                        FEATURE_NOT_SUPPORTED);
+            }
+
+            ((com.mysql.jdbc.Statement) statement).setLocalInfileInputStream(
+                    buffer.toInputStream());
+            return statement.executeUpdate(loadSQL);
+
+        } finally {
+            DbUtils.closeQuietly(statement);
+            buffer.trim();
+        }
+    }
+
+    /**
+     * @param e an exception thrown by {@link #load}.
+     * @return true if the exception means bulk loads can't be used at all,
+     *         because the database or the driver does not allow them.
+     */
+    static boolean isUnsupported(SQLException e) {
+        return e.getErrorCode() == ER_NOT_ALLOWED_COMMAND
+                || FEATURE_NOT_SUPPORTED.equals(e.getSQLState());
+    }
+
+    /**
+     * Write the primitive values of a typed row as one line.
+     *
+     * @param row the typed row.
+     */
+    private void writeTyped(DatabaseInsertStatement row) {
+
+        InsertDescriptor descriptor = row.getDescriptor();
+        int count = descriptor.getParameterCount();
+
+        for (int i = 1; i <= count; i++) {
+            if (i > 1) {
+                buffer.write('\t');
+            }
+            switch (descriptor.getParameterType(i)) {
+                case Types.DOUBLE:
+                    buffer.writeAscii(Double.toString(row.getDouble(i)));
+                    break;
+                case Types.INTEGER:
+                    buffer.writeAscii(Integer.toString(row.getInt(i)));
+                    break;
+                default:
+                    buffer.writeEscaped(row.getBytes(i));
+            }
+        }
+        buffer.write('\n');
+    }
+
+    /**
+     * Write a row of parameters as one line.
+     *
+     * @param parameters the parameters in column order. May be null.
+     */
+    private void write(Object[] parameters) {
+
+        if (parameters != null) {
+            for (int i = 0; i < parameters.length; i++) {
+                if (i > 0) {
+                    buffer.write('\t');
+                }
+
+                Object parameter = parameters[i];
+                if (parameter instanceof byte[]) {
+                    buffer.writeEscaped((byte[]) parameter);
+                } else if (parameter == null) {
+                    buffer.writeEscaped((byte[]) null);
+                } else {
+                    buffer.writeEscaped(parameter.toString());
+                }
+            }
+        }
+        buffer.write('\n');
+    }
+
+    /**
+     * A byte buffer that escapes values for {@code LOAD DATA} and can be read
+     * back without copying. Unlike a {@code ByteArrayOutputStream} it is not
+     * synchronized, since every byte of every row goes through it.
+     */
+    private static class RowBuffer {
+
+        /** The capacity kept between loads. */
+        private static final int RETAINED_SIZE = 1 << 20;
+
+        /** The bytes written. */
+        private byte[] buf = new byte[64 * 1024];
+
+        /** The number of bytes written. */
+        private int count;
+
+        /**
+         * @param b the byte to write.
+         */
+        void write(int b) {
+            if (count == buf.length) {
+                byte[] larger = new byte[buf.length * 2];
+                System.arraycopy(buf, 0, larger, 0, count);
+                buf = larger;
+            }
+            buf[count++] = (byte) b;
+        }
+
+        /**
+         * Forget the bytes written.
+         */
+        void reset() {
+            count = 0;
+        }
+
+        /**
+         * Write a string of ASCII characters, such as a number.
+         *
+         * @param value the characters.
+         */
+        void writeAscii(String value) {
+            for (int i = 0; i < value.length(); i++) {
+                write(value.charAt(i));
+            }
+        }
+
+        /**
+         * Write the UTF-8 bytes of a string, escaped.
+         *
+         * @param value the string.
+         */
+        void writeEscaped(String value) {
+            try {
+                writeEscaped(value.getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Write bytes, escaped, or the null marker.
+         *
+         * @param value the bytes, or null.
+         */
+        void writeEscaped(byte[] value) {
+
+            if (value == null) {
+                write('\\');
+                write('N');
+                return;
+            }
+
+            for (byte b : value) {
+                switch (b) {
+                    case '\\':
+                        write('\\');
+                        write('\\');
+                        break;
+                    case '\t':
+                        write('\\');
+                        write('t');
+                        break;
+                    case '\n':
+                        write('\\');
+                        write('n');
+                        break;
+                    case '\r':
+                        write('\\');
+                        write('r');
+                        break;
+                    case 0:
+                        write('\\');
+                        write('0');
+                        break;
+                    default:
+                        write(b);
+                }
+            }
+        }
+
+        /**
+         * @return a stream of the bytes written since the last reset.
+         */
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+
+        /**
+         * Let go of the array if a large load grew it past the retained size.
+         */
+        void trim() {
+            reset();
+            if (buf.length > RETAINED_SIZE) {
+                buf = new byte[RETAINED_SIZE];
+            }
+        }
+    }
+}
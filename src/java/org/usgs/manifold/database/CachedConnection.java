@@ -0,0 +1,90 @@
+package org.usgs.manifold.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.dbutils.DbUtils;
+
+/**
+ * A database connection from a {@link ConnectionPool} together with the
+ * prepared statements that have been used on it. Each insert SQL is prepared
+ * once per connection and reused for every batch after that, so inserting a
+ * row only needs its parameters to be bound. The least recently used
+ * statements are closed once there are too many.
+ *
+ * <p>
+ * A cached connection is only used by one thread at a time.
+ *
+ */
+public class CachedConnection {
+
+    /** The open connection. */
+    private final Connection connection;
+
+    /** Prepared statements keyed by their SQL, least recently used first. */
+    private final Map<String, PreparedStatement> statements;
+
+    /**
+     * @param connection an open connection.
+     * @param cacheSize the maximum number of prepared statements to keep.
+     */
+    CachedConnection(Connection connection, final int cacheSize) {
+        this.connection = connection;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(
+                16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, PreparedStatement> eldest) {
+
+                if (size() > cacheSize) {
+                    DbUtils.closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the open connection.
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Get the prepared statement for the SQL, preparing it if it has not been
+     * used on this connection before. The statement must not be closed.
+     *
+     * @param sql the SQL to prepare.
+     * @return the prepared statement.
+     * @throws SQLException if the statement could not be prepared.
+     */
+    public PreparedStatement prepareStatement(String sql)
+            throws SQLException {
+
+        PreparedStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = connection.prepareStatement(sql);
+            statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Roll back the current transaction and close the prepared statements and
+     * the connection, ignoring any errors.
+     */
+    void rollbackAndCloseQuietly() {
+        for (PreparedStatement statement : statements.values()) {
+            DbUtils.closeQuietly(statement);
+        }
+        statements.clear();
+
+        DbUtils.rollbackAndCloseQuietly(connection);
+    }
+}
@@ -0,0 +1,336 @@
+package org.usgs.manifold.database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.dbutils.DbUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A small fixed size pool of database connections shared by the
+ * {@link DatabaseInsertThread}s. Connections are opened when they are first
+ * needed and closed when they are found to be broken.
+ *
+ * <p>
+ * Connections are opened with auto-commit off and with batched statements
+ * rewritten by the MySQL driver into multi-row inserts. Statements are
+ * prepared on the server and each connection keeps its prepared statements
+ * in a {@link CachedConnection}.
+ *
+ * <p>
+ * Opening connections goes through a circuit breaker. When a connection can't
+ * be opened the circuit opens and no connection is tried again until a retry
+ * delay has passed. The delay doubles with each failure in a row up to a
+ * maximum, and is randomly shortened by up to half so that a restarted
+ * database isn't hit by every client at once. While the circuit is open
+ * {@link #getConnection()} fails straight away, so callers can send their
+ * data to the spool instead of waiting. Once the delay has passed a single
+ * caller tries to connect; the circuit closes again if it succeeds.
+ *
+ */
+public class ConnectionPool {
+
+    private static Logger log = LoggerFactory.getLogger(ConnectionPool.class);
+
+    /** The state of the circuit breaker. */
+    public enum State {
+
+        /** Connections are being opened normally. */
+        CLOSED,
+
+        /** Connections failed and are not tried until the retry delay. */
+        OPEN,
+
+        /** A single connection is being tried after the retry delay. */
+        HALF_OPEN
+    }
+
+    /** The SQL state of the exception thrown while the circuit is open. */
+    private static final String CONNECTION_FAILURE = "08001";
+
+    /** Milliseconds to wait for a connection to the database to open. */
+    private static final int CONNECT_TIMEOUT = 3000;
+
+    /** The number of prepared statements kept for each connection. */
+    private static final int STATEMENT_CACHE_SIZE = 256;
+
+    /** Connection string specifying the address, username and password. */
+    private final String dbURL;
+
+    /** Extra properties used when opening connections. */
+    private final Properties properties;
+
+    /** Limits the number of connections that can be in use or idle. */
+    private final Semaphore permits;
+
+    /** The state of the circuit breaker. */
+    private volatile State state = State.CLOSED;
+
+    /** The number of connection attempts that have failed in a row. */
+    private volatile int failures;
+
+    /** The time the next connection may be tried while the circuit is open. */
+    private volatile long nextAttempt;
+
+    /** The message of the last connection failure, or null. */
+    private volatile String lastFailure;
+
+    /** The first and maximum milliseconds to wait between attempts. */
+    private volatile int minRetryDelay = 1000;
+    private volatile int maxRetryDelay = 60000;
+
+    /** Shortens the retry delays. */
+    private final Random jitter = new Random();
+
+    /** Run when a connection is opened after a failure. May be null. */
+    private volatile Runnable reconnectListener;
+
+    /** Open connections that are not in use. */
+    private final ConcurrentLinkedQueue<CachedConnection> idle =
+            new ConcurrentLinkedQueue<CachedConnection>();
+
+    /**
+     * @param dbURL database connection string specifying the address, username
+     *        and password.
+     * @param size the maximum number of open connections.
+     * @param localInfile true to allow {@code LOAD DATA LOCAL INFILE} for
+     *        bulk loads. This also lets the server ask for any local file, so
+     *        it is only allowed when bulk loads are used.
+     */
+    public ConnectionPool(String dbURL, int size, boolean localInfile) {
+        this.dbURL = dbURL;
+        this.permits = new Semaphore(size, true);
+
+        // Let the driver send batches as multi-row inserts.
+        properties = new Properties();
+        properties.setProperty("rewriteBatchedStatements", "true");
+
+        // Prepare statements on the server and let the driver cache the
+        // multi-row statements it prepares for rewritten batches.
+        properties.setProperty("useServerPrepStmts", "true");
+        properties.setProperty("cachePrepStmts", "true");
+        properties.setProperty("prepStmtCacheSize",
+                String.valueOf(STATEMENT_CACHE_SIZE));
+
+        // Let bulk loads stream rows to LOAD DATA LOCAL INFILE.
+        properties.setProperty("allowLoadLocalInfile",
+                String.valueOf(localInfile));
+
+        // Give up on an unreachable database quickly, without changing the
+        // login timeout of every driver.
+        properties.setProperty("connectTimeout",
+                String.valueOf(CONNECT_TIMEOUT));
+    }
+
+    /**
+     * Set the milliseconds to wait before trying to connect again after
+     * connections fail. The delay starts at the minimum and doubles with each
+     * failure in a row up to the maximum.
+     *
+     * @param minRetryDelay the delay after the first failure.
+     * @param maxRetryDelay the longest delay.
+     */
+    public void setRetryDelay(int minRetryDelay, int maxRetryDelay) {
+        this.minRetryDelay = minRetryDelay;
+        this.maxRetryDelay = maxRetryDelay;
+    }
+
+    /**
+     * Borrow a connection from the pool, opening a new one if there are no
+     * idle connections. Blocks while all the connections are in use. The
+     * connection must be handed back with
+     * {@link #release(CachedConnection)} or
+     * {@link #invalidate(CachedConnection)}.
+     *
+     * @return an open connection with auto-commit off.
+     * @throws SQLException if a new connection could not be opened, or
+     *         without trying if the circuit is open. Its SQL state is a
+     *         connection exception (08).
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public CachedConnection getConnection()
+            throws SQLException, InterruptedException {
+
+        permits.acquire();
+
+        CachedConnection cached = idle.poll();
+        if (cached != null) {
+            return cached;
+        }
+
+        if (!tryAttempt()) {
+            permits.release();
+            throw new SQLException("Not connecting to the database for "
+                    + getRetryDelay() + " ms after " + failures
+                    + " failed attempts.", CONNECTION_FAILURE);
+        }
+
+        Connection connection = null;
+        try {
+            connection = DriverManager.getConnection(dbURL, properties);
+            connection.setAutoCommit(false);
+
+            connected();
+            return new CachedConnection(connection, STATEMENT_CACHE_SIZE);
+        } catch (SQLException e) {
+            DbUtils.closeQuietly(connection);
+            permits.release();
+            failed(e);
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if a connection may be opened now. Moves an open circuit
+     *         whose retry delay has passed to half open.
+     */
+    private synchronized boolean tryAttempt() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() >= nextAttempt) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Close the circuit after a connection was opened, running the reconnect
+     * listener if it was open.
+     */
+    private void connected() {
+        boolean reconnected;
+        synchronized (this) {
+            reconnected = (state != State.CLOSED);
+            state = State.CLOSED;
+            failures = 0;
+        }
+
+        if (reconnected) {
+            log.info("Reconnected to the database.");
+
+            Runnable listener = reconnectListener;
+            if (listener != null) {
+                listener.run();
+            }
+        }
+    }
+
+    /**
+     * Open the circuit after a connection could not be opened and close the
+     * idle connections, which are most likely broken too.
+     *
+     * @param e the reason the connection failed.
+     */
+    private void failed(SQLException e) {
+        long delay;
+        synchronized (this) {
+            failures++;
+            long full = Math.min((long) minRetryDelay
+                    << Math.min(failures - 1, 30), maxRetryDelay);
+            delay = full - (long) (jitter.nextDouble() * full / 2);
+
+            nextAttempt = System.currentTimeMillis() + delay;
+            lastFailure = e.getMessage();
+            state = State.OPEN;
+        }
+
+        log.warn("Could not connect to the database ({} failures in a row), "
+                + "trying again in {} ms.", new Object[]{failures, delay, e});
+
+        CachedConnection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.rollbackAndCloseQuietly();
+        }
+    }
+
+    /**
+     * Hand a working connection back to the pool.
+     *
+     * @param connection a connection from {@link #getConnection()}.
+     */
+    public void release(CachedConnection connection) {
+        idle.offer(connection);
+        permits.release();
+    }
+
+    /**
+     * Roll back and close a connection that has failed rather than handing it
+     * back to the pool. The next connection is opened new, which decides
+     * whether the database is still reachable.
+     *
+     * @param connection a connection from {@link #getConnection()}.
+     */
+    public void invalidate(CachedConnection connection) {
+        connection.rollbackAndCloseQuietly();
+        permits.release();
+    }
+
+    /**
+     * @param listener run on the thread that opens a new connection after a
+     *        connection has failed. It should not block.
+     */
+    public void setReconnectListener(Runnable listener) {
+        this.reconnectListener = listener;
+    }
+
+    /**
+     * @return true if the circuit is closed and connections are being opened
+     *         normally.
+     */
+    public boolean isHealthy() {
+        return state == State.CLOSED;
+    }
+
+    /**
+     * @return the state of the circuit breaker.
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return true if the circuit is open and its retry delay has passed, so
+     *         the next request for a connection will try to connect.
+     */
+    public boolean isRetryDue() {
+        return state == State.OPEN
+                && System.currentTimeMillis() >= nextAttempt;
+    }
+
+    /**
+     * @return the milliseconds until a connection will be tried again, or 0
+     *         if one can be tried now.
+     */
+    public long getRetryDelay() {
+        return (state == State.CLOSED) ? 0
+                : Math.max(0, nextAttempt - System.currentTimeMillis());
+    }
+
+    /**
+     * @return the number of connection attempts that have failed in a row.
+     */
+    public int getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return the message of the last connection failure, or null if there
+     *         has not been one.
+     */
+    public String getLastFailure() {
+        return lastFailure;
+    }
+}
@@ -1,5 +1,6 @@
 package org.usgs.manifold.database;
 
+import java.sql.Types;
 import java.util.Map;
 
 /**
@@ -14,26 +15,77 @@ import java.util.Map;
  * Parameters: "John Doe", 1.82}
  * </code> </pre>
  *
+ * <p>
+ * The table details are held in an {@link InsertDescriptor} which producers
+ * should create once per table and reuse for every row.
+ *
+ * <p>
+ * If the descriptor gives the types of its parameters the values are stored
+ * in primitive arrays, one per type, and set with {@link #setDouble},
+ * {@link #setInt} and {@link #setBytes}. This avoids boxing every value of
+ * every row. Otherwise the values are held as objects.
+ *
  */
 public class DatabaseInsertStatement {
 
-    /** The SQL statement to execute. */
-    private final String statement;
+    /** The table to insert into and the SQL to use. */
+    private final InsertDescriptor descriptor;
 
-    /** Parameters used by the SQL statement. */
+    /** Parameters used by the SQL statement, or null for typed rows. */
     private final Object[] parameters;
 
-    /** the name of the table .*/
-    private String table;
+    /** The values of the typed parameters, by type. */
+    private final double[] doubles;
+    private final int[] ints;
+    private final byte[][] bytes;
+
+    /** Shared by typed rows without parameters of a type. */
+    private static final double[] NO_DOUBLES = new double[0];
+    private static final int[] NO_INTS = new int[0];
+    private static final byte[][] NO_BYTES = new byte[0][];
+
+    /**
+     * Creates a typed row with every parameter set to zero or null. The values
+     * are set with {@link #setDouble}, {@link #setInt} and {@link #setBytes}.
+     *
+     * @param descriptor the table to insert into and the SQL to use. It must
+     *        give the types of its parameters.
+     * @throws IllegalArgumentException if the descriptor is not typed.
+     */
+    public DatabaseInsertStatement(InsertDescriptor descriptor) {
+
+        if (!descriptor.isTyped()) {
+            throw new IllegalArgumentException("The descriptor for "
+                    + descriptor.getTablePath() + " does not give the types "
+                    + "of its parameters.");
+        }
 
-    /** the Schema the table is in. */
-    private String database;
-    
-    /** The statement to use to create the tables if they don't exist. */
-    private String tableCreation;
+        this.descriptor = descriptor;
+        this.parameters = null;
+
+        int count = descriptor.getDoubleCount();
+        this.doubles = (count == 0) ? NO_DOUBLES : new double[count];
+        count = descriptor.getIntCount();
+        this.ints = (count == 0) ? NO_INTS : new int[count];
+        count = descriptor.getBytesCount();
+        this.bytes = (count == 0) ? NO_BYTES : new byte[count][];
+    }
+
+    /**
+     * @param descriptor the table to insert into and the SQL to use.
+     * @param parameters the parameters that will used by the SQL insert
+     *        statement. May be {@code (Object[])null} if no parameters are
+     *        needed.
+     */
+    public DatabaseInsertStatement(InsertDescriptor descriptor,
+            Object... parameters) {
 
-    /** Defines the columns that the table should contain. */
-    private Map<String, String> tableDefinition;
+        this.descriptor = descriptor;
+        this.parameters = parameters;
+        this.doubles = null;
+        this.ints = null;
+        this.bytes = null;
+    }
 
     /**
      * @param table the name of the table to insert into.
@@ -49,30 +101,33 @@ public class DatabaseInsertStatement {
      *        statement. May be {@code (Object[])null} if no parameters are
      *        needed.
      */
-    public DatabaseInsertStatement(String table, String database, 
+    public DatabaseInsertStatement(String table, String database,
             Map<String, String> tableDefinition, String tableCreation,
             String statement, Object... parameters) {
 
-        this.table = table;
-        this.database = database;
-        this.tableDefinition = tableDefinition;
-        this.tableCreation = tableCreation;
-        this.statement = statement;
-        this.parameters = parameters;
+        this(new InsertDescriptor(table, database, tableDefinition,
+                tableCreation, statement), parameters);
+    }
+
+    /**
+     * @return the table to insert into and the SQL to use.
+     */
+    public InsertDescriptor getDescriptor() {
+        return descriptor;
     }
 
     /**
      * @return the name of the table.
      */
     public String getTable() {
-        return table;
+        return descriptor.getTable();
     }
 
     /**
      * @return the schema the table belongs to.
      */
     public String getDatabse() {
-        return database;
+        return descriptor.getDatabase();
     }
 
     /**
@@ -80,7 +135,7 @@ public class DatabaseInsertStatement {
      *         create the table if it doesn't exist.
      */
     public Map<String, String> getTableDefinition() {
-        return tableDefinition;
+        return descriptor.getTableDefinition();
     }
 
     /**
@@ -88,7 +143,7 @@ public class DatabaseInsertStatement {
      *         structure of the table.
      */
     public String getTableCreation() {
-        return tableCreation;
+        return descriptor.getTableCreation();
     }
 
     /**
@@ -96,13 +151,114 @@ public class DatabaseInsertStatement {
      *         SQL statement on its own.
      */
     public String getStatement() {
-        return statement;
+        return descriptor.getStatement();
     }
 
     /**
-     * @return parameters used by the SQL statement. May be null.
+     * @return true if the values are held in primitive arrays and must be
+     *         read with {@link #getDouble}, {@link #getInt} and
+     *         {@link #getBytes}.
+     */
+    public boolean isTyped() {
+        return parameters == null && doubles != null;
+    }
+
+    /**
+     * @return parameters used by the SQL statement. May be null. The values of
+     *         a typed row are boxed into a new array.
      */
     public Object[] getParameters() {
-        return parameters;
+        if (!isTyped()) {
+            return parameters;
+        }
+
+        Object[] boxed = new Object[descriptor.getParameterCount()];
+        for (int i = 1; i <= boxed.length; i++) {
+            switch (descriptor.getParameterType(i)) {
+                case Types.DOUBLE:
+                    boxed[i - 1] = getDouble(i);
+                    break;
+                case Types.INTEGER:
+                    boxed[i - 1] = getInt(i);
+                    break;
+                default:
+                    boxed[i - 1] = getBytes(i);
+            }
+        }
+        return boxed;
+    }
+
+    /**
+     * @param index the parameter index, starting at 1.
+     * @param value the value of the {@link Types#DOUBLE} parameter.
+     * @return this row.
+     * @throws IllegalArgumentException if the parameter is not a double.
+     */
+    public DatabaseInsertStatement setDouble(int index, double value) {
+        doubles[slot(index, Types.DOUBLE)] = value;
+        return this;
+    }
+
+    /**
+     * @param index the parameter index, starting at 1.
+     * @param value the value of the {@link Types#INTEGER} parameter.
+     * @return this row.
+     * @throws IllegalArgumentException if the parameter is not an integer.
+     */
+    public DatabaseInsertStatement setInt(int index, int value) {
+        ints[slot(index, Types.INTEGER)] = value;
+        return this;
+    }
+
+    /**
+     * @param index the parameter index, starting at 1.
+     * @param value the value of the {@link Types#BLOB} parameter. The array is
+     *        not copied.
+     * @return this row.
+     * @throws IllegalArgumentException if the parameter is not a blob.
+     */
+    public DatabaseInsertStatement setBytes(int index, byte[] value) {
+        bytes[slot(index, Types.BLOB)] = value;
+        return this;
+    }
+
+    /**
+     * @param index the parameter index, starting at 1.
+     * @return the value of the {@link Types#DOUBLE} parameter.
+     */
+    public double getDouble(int index) {
+        return doubles[descriptor.getParameterSlot(index)];
+    }
+
+    /**
+     * @param index the parameter index, starting at 1.
+     * @return the value of the {@link Types#INTEGER} parameter.
+     */
+    public int getInt(int index) {
+        return ints[descriptor.getParameterSlot(index)];
+    }
+
+    /**
+     * @param index the parameter index, starting at 1.
+     * @return the value of the {@link Types#BLOB} parameter.
+     */
+    public byte[] getBytes(int index) {
+        return bytes[descriptor.getParameterSlot(index)];
+    }
+
+    /**
+     * @param index the parameter index, starting at 1.
+     * @param type the type the parameter is being set as.
+     * @return the index of the parameter in the array for its type.
+     * @throws IllegalArgumentException if the row is not typed or the
+     *         parameter is of a different type.
+     */
+    private int slot(int index, int type) {
+        if (!isTyped() || descriptor.getParameterType(index) != type) {
+            throw new IllegalArgumentException("Parameter " + index + " of "
+                    + descriptor.getTablePath() + " is not of type " + type
+                    + ".");
+        }
+        return descriptor.getParameterSlot(index);
     }
 }
@@ -1,23 +1,57 @@
 package org.usgs.manifold.database;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import java.util.concurrent.BlockingQueue;
-
-import org.apache.commons.dbutils.DbUtils;
-import org.apache.commons.dbutils.QueryRunner;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A consumer thread to read {@link DatabaseInsertStatement}s off a
- * {@link BlockingQueue} and execute them on a given database connection.
+ * {@link InsertQueue} and execute them on connections borrowed from a
+ * {@link ConnectionPool}.
+ *
+ * <p>
+ * Statements are taken off the queue in batches. A batch is sent once it holds
+ * the maximum number of statements or the oldest statement in it has waited
+ * the maximum batch age. The statements in a batch are grouped by table and
+ * each group is sent as a single JDBC batch, which the MySQL driver rewrites
+ * into multi-row {@code INSERT ... VALUES (...),(...)} statements. The whole
+ * batch is committed in one transaction.
+ *
+ * <p>
+ * If a batch fails because the connection was lost, a lock wait timed out or
+ * the transaction was rolled back by the database, the batch is appended to
+ * a {@link DatabaseSpool} so it can be replayed later rather than lost. Any
+ * other failure, such as a duplicate key or a missing column, rolls the
+ * batch back and the connection is kept. The batch is then inserted again one
+ * table at a time, and a table that still fails is split in halves until only
+ * the rows that fail on their own are dropped.
+ *
+ * <p>
+ * Rows whose key is already in the table are handled by the
+ * {@link InsertDescriptor.Conflict} mode, so replays and redundant feeds can
+ * resend rows without failing the batch.
+ *
+ * <p>
+ * When the queue backs up past the bulk threshold, after an outage or while
+ * the spool is replayed, the writer switches to bulk mode. It then takes as
+ * many statements as are waiting, up to the bulk size, without waiting for
+ * the batch to age, and loads the rows of each table with one
+ * {@code LOAD DATA LOCAL INFILE} through a {@link BulkLoader}. It switches
+ * back to normal inserts once the queue drains below a quarter of the
+ * threshold. Tables whose insert statements can't be bulk loaded are always
+ * inserted normally.
  *
  */
 public class DatabaseInsertThread extends Thread {
@@ -25,232 +59,572 @@ public class DatabaseInsertThread extends Thread {
     private static Logger log =
             LoggerFactory.getLogger(DatabaseInsertThread.class);
     
-    /** Known good tables. */
-    private final Set<String> validTables = new HashSet<String>();
-    /** Known bad tables. */
-    private final Set<String> invalidTables = new HashSet<String>();
-    /** Connection string specifying the address, username and password. */
-    private final String dbURL;
-    /** Database connection object. */
-    private Connection dbConnection;
-    /** Used to execute SQL insertStatements on the connection. */
-    private final QueryRunner runQuery;
+    /** Creates and validates the tables, shared by all writers. */
+    private final TableValidator tableValidator;
+    /** The pool to borrow database connections from. */
+    private final ConnectionPool connectionPool;
+    /** Holds failed batches for replay. May be null. */
+    private final DatabaseSpool spool;
     /** Holds insertStatements to consumed and be executed. */
-    private final BlockingQueue<DatabaseInsertStatement> insertStatements;
-    /** Milliseconds to sleep between reconnection attempts. */
-    private final int RECONNECT_DELAY;
+    private final InsertQueue insertStatements;
+    /** The least milliseconds to sleep between reconnection attempts. */
+    private static final int RECONNECT_WAIT = 100;
+    /** The maximum number of statements sent in one batch. */
+    private final int batchSize;
+    /** The maximum milliseconds a statement waits for its batch to fill. */
+    private final int batchAge;
+    /** What to do with rows whose key is already in the table. */
+    private final InsertDescriptor.Conflict conflict;
+    /** The queued statements that switch on bulk mode, or 0 to never. */
+    private final int bulkThreshold;
+    /** The maximum number of statements loaded in one bulk batch. */
+    private final int bulkSize;
+    /** Loads the rows in bulk mode, or null if bulk loads can't be used. */
+    private BulkLoader bulkLoader;
+    /** True while the writer is in bulk mode. */
+    private boolean bulk;
     /** Specifies if the thread should be stopped. */
     private boolean run;
+    /** Milliseconds between reports of the queue's overflow counts. */
+    private static final int REPORT_INTERVAL = 60000;
+    /** The time and total overflow count of the last queue report. */
+    private long lastReport;
+    private long lastOverflows;
 
     /**
-     * @param statements a blocking queue of {@link DatabaseInsertStatement}
-     *        objects to run on the database connection.
-     * @param dbURL database connection string specifying the address, username
-     *        and password.
+     * @param statements a queue of {@link DatabaseInsertStatement} objects to
+     *        run on the database connection.
+     * @param connectionPool the pool to borrow database connections from.
+     * @param tableValidator creates and validates the tables.
+     * @param spool the spool to append failed batches to, or null to discard
+     *        them.
+     * @param batchSize the maximum number of statements sent in one batch.
+     * @param batchAge the maximum milliseconds a statement waits for its
+     *        batch to fill before the batch is sent.
+     * @param conflict what to do with rows whose key is already in the table.
+     * @param bulkThreshold the number of queued statements that switches the
+     *        writer to bulk loads, or 0 to never use them.
+     * @param bulkSize the maximum number of statements loaded in one bulk
+     *        batch.
      */
     public DatabaseInsertThread(
-            BlockingQueue<DatabaseInsertStatement> statements, String dbURL) {
-
-        this.dbURL = dbURL;
-        this.dbConnection = null;
-        this.runQuery = new QueryRunner();
+            InsertQueue statements,
+            ConnectionPool connectionPool, TableValidator tableValidator,
+            DatabaseSpool spool, int batchSize, int batchAge,
+            InsertDescriptor.Conflict conflict, int bulkThreshold,
+            int bulkSize) {
+
+        this.connectionPool = connectionPool;
+        this.tableValidator = tableValidator;
+        this.spool = spool;
+        this.batchSize = batchSize;
+        this.batchAge = batchAge;
         this.insertStatements = statements;
+        this.conflict = conflict;
+        this.bulkThreshold = bulkThreshold;
+        this.bulkSize = bulkSize;
+        this.bulkLoader = (bulkThreshold > 0) ? new BulkLoader() : null;
 
-        RECONNECT_DELAY = 30000;
         run = true;
-
-        DriverManager.setLoginTimeout(3);
     }
 
-    /** 
-     * Connect to a database using the URL provided in the constructor. If a
-     * {@code SQLException} is thrown during the connection process the
-     * {@code Thread} is put to sleep for a time before another connection
-     * attempt is made.
+    /**
+     * Borrow a connection from the pool. If there is a spool and no connection
+     * can be had the exception is thrown straight away so the batch is
+     * spooled and the writer keeps draining its queue. Without a spool the
+     * writer holds on to the batch and sleeps until the pool's circuit breaker
+     * allows another attempt.
+     *
+     * @return an open connection.
+     * @throws SQLException if no connection can be had and there is a spool.
+     * @throws InterruptedException if interrupted while waiting.
      */
-    private void connect() {
-
-        validTables.clear();
-        invalidTables.clear();
-        
-        while (dbConnection == null) {
+    private CachedConnection connect()
+            throws SQLException, InterruptedException {
 
+        while (true) {
             try {
-                dbConnection = DriverManager.getConnection(dbURL);
+                return connectionPool.getConnection();
 
             } catch (SQLException e) {
-                log.warn("Could not connect to the database.", e);
-
-                DbUtils.closeQuietly(dbConnection);
-                dbConnection = null;
-
-                try {
-                    Thread.sleep(RECONNECT_DELAY);
-                } catch (InterruptedException ex) {
-                    /*don't care*/
+                // The pool logs the failed attempts.
+                if (spool != null) {
+                    throw e;
                 }
+                Thread.sleep(Math.max(connectionPool.getRetryDelay(),
+                        RECONNECT_WAIT));
             }
         }
     }
 
     /**
-     * Reads {@link DatabaseInsertStatement} objects from the blocking queue and
-     * uses them to insert data into a database. If there is an
-     * {@code SQLException} the database connection is closed and a reconnection
-     * attempt is made but the data from the {@link DatabaseInsertStatement} is
-     * lost.
+     * Reads batches of {@link DatabaseInsertStatement} objects from the
+     * blocking queue and uses them to insert data into a database. If there is
+     * an {@code SQLException} the transaction is rolled back. If the failure
+     * was transient the database connection is closed, a new one is used for
+     * the next batch and the statements not yet committed are spooled.
      */
     @Override
     public void run() {
 
-        connect();
+        List<DatabaseInsertStatement> batch =
+                new ArrayList<DatabaseInsertStatement>(batchSize);
 
         while (run) {
             try {
-                /* This blocks when the queue is empty. */
-                DatabaseInsertStatement insert = this.insertStatements.take();
+                fillBatch(batch);
+                insertBatch(batch);
 
-                String tablePath = validateTable(insert.getTable(),
-                        insert.getDatabse(), insert.getTableDefinition(),
-                        insert.getTableCreation());
+            } catch (SQLException e) {
+                if (connectionPool.isHealthy()) {
+                    log.warn("Could not insert a batch of {} statements into "
+                            + "the database.", batch.size(), e);
+                }
 
-                if (tablePath != null) {
+                if (spool != null && isTransient(e)) {
+                    spoolBatch(batch);
+                }
+            } catch (InterruptedException e) {/*don't care*/
+            } finally {
+                batch.clear();
+                reportQueue();
+            }
+        }
+    }
 
-                    String statement = "INSERT INTO " + tablePath
-                            + insert.getStatement();
+    /**
+     * Log the queue's high-water mark and overflow counts every
+     * {@link #REPORT_INTERVAL} if any statements overflowed since the last
+     * report.
+     */
+    private void reportQueue() {
 
-                    if (insert.getParameters() == null) {
-                        runQuery.update(dbConnection, statement);
-                    } else {
-                        runQuery.update(dbConnection, statement,
-                                insert.getParameters());
-                    }
-                }
-            } catch (SQLException e) {
+        long now = System.currentTimeMillis();
+        if (now - lastReport < REPORT_INTERVAL) {
+            return;
+        }
+
+        InsertQueue queue = insertStatements;
+        long overflows = queue.getDroppedNewest() + queue.getDroppedOldest()
+                + queue.getBlocked() + queue.getSpilled();
+        int highWaterMark = queue.getAndResetHighWaterMark();
+
+        if (overflows != lastOverflows) {
+            log.warn("{} queue: high-water mark {} of {}, {} dropped new, "
+                    + "{} dropped old, {} blocked, {} timed out, {} spilled.",
+                    new Object[]{getName(), highWaterMark, queue.capacity(),
+                        queue.getDroppedNewest(), queue.getDroppedOldest(),
+                        queue.getBlocked(), queue.getTimedOut(),
+                        queue.getSpilled()});
+        }
+
+        lastReport = now;
+        lastOverflows = overflows;
+    }
+
+    /** The MySQL error code of a lock wait timeout. */
+    private static final int LOCK_WAIT_TIMEOUT = 1205;
+
+    /**
+     * @param e the exception thrown by a failed batch.
+     * @return true if the batch may succeed when it is tried again, which is
+     *         when the SQL state is a connection exception (08), a
+     *         transaction rollback (40) or a lock wait timeout (41000).
+     */
+    private static boolean isTransient(SQLException e) {
+        String state = e.getSQLState();
+        return e.getErrorCode() == LOCK_WAIT_TIMEOUT || (state != null
+                && (state.startsWith("08") || state.startsWith("40")
+                || state.equals("41000")));
+    }
+
+    /**
+     * Append a failed batch to the spool.
+     *
+     * @param batch the statements that were not inserted.
+     */
+    private void spoolBatch(List<DatabaseInsertStatement> batch) {
+        int spooled = 0;
+        for (DatabaseInsertStatement insert : batch) {
+            if (spool.append(insert)) {
+                spooled++;
+            }
+        }
+
+        log.info("Spooled {} of {} statements for replay.", spooled,
+                batch.size());
+    }
+
+    /**
+     * Fill the batch from the queue. This blocks until there is at least one
+     * statement and then waits until the batch is full or the first statement
+     * is older than the maximum batch age. In bulk mode it only takes the
+     * statements that are already waiting.
+     *
+     * @param batch the empty list to fill.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private void fillBatch(List<DatabaseInsertStatement> batch)
+            throws InterruptedException {
 
+        /* This blocks when the queue is empty. */
+        batch.add(insertStatements.take());
+        updateBulkMode(insertStatements.size() + 1);
 
-            System.out.println("fail insert in DabaseInsertThread");
+        if (bulk) {
+            insertStatements.drainTo(batch, bulkSize - 1);
+            return;
+        }
 
-            //TODO: fix this to give a better error message
-            //    log.warn("Could not execute the insert statement on the "
-            //            + "database.", e);
+        long deadline = System.currentTimeMillis() + batchAge;
 
+        while (batch.size() < batchSize) {
+            if (insertStatements.drainTo(batch, batchSize - batch.size()) > 0) {
+                continue;
+            }
 
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                break;
+            }
 
-                DbUtils.closeQuietly(dbConnection);
-                dbConnection = null;
-                connect();
-            } catch (InterruptedException e) {/*don't care*/}
+            DatabaseInsertStatement next =
+                    insertStatements.poll(wait, TimeUnit.MILLISECONDS);
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
         }
     }
 
     /**
-     * Checks to see if the table exists and matches the given table definition.
-     * If the table does not exist it is created and validated. Tables are only
-     * validated once per database connection. Tables changed during the
-     * connection will not be re-evaluated and may cause errors. This also
-     * goes for tables marked as invalid.
+     * Switch bulk mode on when the backlog reaches the bulk threshold and off
+     * when it falls below a quarter of it, so the writer doesn't flip between
+     * modes while the backlog hovers around the threshold.
      *
-     * @param table the name of the table.
-     * @param database the name of the database.
-     * @param tableDefinition the 'definition' of the table. A mapping of column
-     *        names to column types that should exist in the table.
-     * @param tableCreation the body of the SQL creation statement to use to
-     *        create the table if it doesn't exist. Everything that comes after
-     *        "CREATE TABLE IF NOT EXISTS database.table"
-     * @return the table location as "database.table" if it was found to be
-     *         valid. If the table or database is not valid {@code null} is
-     *         returned.
+     * @param backlog the number of statements waiting to be inserted.
      */
-    private String validateTable(String table, String database,
-            Map<String, String> tableDefinition, String tableCreation) {
+    private void updateBulkMode(int backlog) {
 
-        // The full path of the table
-        String tablePath = database + "." + table;
+        if (bulkLoader == null) {
+            return;
+        }
 
-        /* Only validate the table if it has not previously been evaluated. */
-        if (invalidTables.contains(tablePath)) {
-            return null;
-        } else if (validTables.contains(tablePath)) {
-            return tablePath;
+        if (!bulk && backlog >= bulkThreshold) {
+            bulk = true;
+            log.info("{} switching to bulk loads with {} statements queued.",
+                    getName(), backlog);
+        } else if (bulk && backlog < bulkThreshold / 4) {
+            bulk = false;
+            log.info("{} switching back to inserts with {} statements queued.",
+                    getName(), backlog);
         }
+    }
 
-        try {
-            /* Test if the database is valid. This is checked here for security
-             * reasons since the database comes from user input and the create
-             * table statement uses it directly. */
-            String statement = "SELECT TABLE_SCHEMA FROM "
-                    + "INFORMATION_SCHEMA.TABLES "
-                    + "WHERE TABLE_SCHEMA = ?;";
-
-            SchemaResultSet schemaResultSet = new SchemaResultSet();
-            boolean isValidSchema = runQuery.query(dbConnection, statement,
-                    schemaResultSet, database);
-
-            if (isValidSchema) {
-
-                runQuery.update(dbConnection,
-                        "CREATE TABLE IF NOT EXISTS " + tablePath + " "
-                        + tableCreation + ";");
-
-                /* Test to see if the table is valid. */
-                statement = "SELECT COLUMN_NAME, DATA_TYPE "
-                        + "FROM INFORMATION_SCHEMA.COLUMNS "
-                        + "WHERE TABLE_NAME  = ? "
-                        + "AND TABLE_SCHEMA = ?;";
-
-                SingleTableResultSet tableResultSet =
-                        new SingleTableResultSet(tableDefinition);
-                boolean isValidTable = runQuery.query(dbConnection, statement,
-                        tableResultSet, table, database);
-
-                if (isValidTable) {
-                    validTables.add(tablePath);
-                    return tablePath;
-                } else {
-                    //TODO fix this later os it actualy checks the table.
-                    return tablePath;
-                    //log.error("The table '{}' was found to be invalid.",
-                    //    tablePath);
-                    
-                    //invalidTables.add(tablePath);
-                    //return null;
+    /**
+     * Insert the batch of statements, grouped by table, in one transaction.
+     * Statements for invalid tables are skipped. If the transaction fails for
+     * a reason that won't go away when it is tried again, the statements are
+     * inserted again one table at a time so only the rows that fail are lost.
+     *
+     * @param batch the statements to insert. When a transient failure is
+     *        thrown, only the statements not yet committed are left in it.
+     * @throws SQLException if the inserts fail transiently, or the failed
+     *         transaction can't be rolled back.
+     */
+    private void insertBatch(List<DatabaseInsertStatement> batch)
+            throws SQLException, InterruptedException {
 
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        CachedConnection connection = connect();
+        try {
+            try {
+                insertBatch(connection, batch);
+            } catch (SQLException e) {
+                if (isTransient(e)) {
+                    throw e;
                 }
+                connection.getConnection().rollback();
+                log.warn("Could not insert a batch of {} statements, "
+                        + "inserting each table on its own.", batch.size(), e);
+                insertTables(connection, batch);
+            }
+            connectionPool.release(connection);
+        } catch (SQLException e) {
+            // Only a broken connection needs to be replaced.
+            if (isTransient(e)) {
+                connectionPool.invalidate(connection);
             } else {
-                log.error("The schema '{}' was found to be invalid.",
-                        database);
+                rollbackAndRelease(connection);
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            connectionPool.invalidate(connection);
+            throw e;
+        }
+    }
 
-                invalidTables.add(tablePath);
-                return null;
+    /**
+     * Insert the statements of each table in its own transaction, dropping
+     * only the rows that fail.
+     *
+     * @param connection the connection to use.
+     * @param batch the statements to insert. When a transient failure is
+     *        thrown, the statements committed or dropped are removed from it.
+     * @throws SQLException if an insert fails transiently or a failed
+     *         transaction can't be rolled back.
+     */
+    private void insertTables(CachedConnection connection,
+            List<DatabaseInsertStatement> batch) throws SQLException {
+
+        Map<String, List<DatabaseInsertStatement>> tables =
+                new LinkedHashMap<String, List<DatabaseInsertStatement>>();
+        for (DatabaseInsertStatement insert : batch) {
+            String table = insert.getDescriptor().getTablePath();
+            List<DatabaseInsertStatement> rows = tables.get(table);
+            if (rows == null) {
+                rows = new ArrayList<DatabaseInsertStatement>();
+                tables.put(table, rows);
+            }
+            rows.add(insert);
+        }
+
+        Set<DatabaseInsertStatement> done =
+                new HashSet<DatabaseInsertStatement>();
+        try {
+            for (Map.Entry<String, List<DatabaseInsertStatement>> table
+                    : tables.entrySet()) {
+
+                int dropped = insertRows(connection, table.getValue(), done);
+                if (dropped > 0) {
+                    log.warn("Dropped {} of {} rows that could not be "
+                            + "inserted into {}.", new Object[]{dropped,
+                                table.getValue().size(), table.getKey()});
+                }
             }
         } catch (SQLException e) {
-            log.warn("Failed trying to validate the table '{}'.", tablePath,
-                    e);
-            return null;
+            for (Iterator<DatabaseInsertStatement> i = batch.iterator();
+                    i.hasNext();) {
+                if (done.contains(i.next())) {
+                    i.remove();
+                }
+            }
+            throw e;
         }
     }
 
-//    /**
-//     * Try to create the tables specified in the array of tableSets if they
-//     * don't exist.
-//     */
-//    private void makeTable(String table, String tableCreation) {
-//
-//        if (tables.contains(table)) {
-//            return;
-//        }
-//
-//        try {
-//            runQuery.update(dbConnection,
-//                    "CREATE TABLE IF NOT EXISTS " + table + " "
-//                    + tableCreation + ";");
-//
-//            tables.add(table);
-//        } catch (SQLException e) {
-//            log.warn("Could not create the missing table '{}'", table, e);
-//        }
-//    }
+    /**
+     * Insert rows in one transaction. If it fails, the rows are split in
+     * halves and each half is inserted the same way, down to single rows,
+     * which are dropped if they fail.
+     *
+     * @param connection the connection to use.
+     * @param rows the rows to insert.
+     * @param done the set to add the rows committed or dropped to.
+     * @return the number of rows dropped.
+     * @throws SQLException if an insert fails transiently or a failed
+     *         transaction can't be rolled back.
+     */
+    private int insertRows(CachedConnection connection,
+            List<DatabaseInsertStatement> rows,
+            Set<DatabaseInsertStatement> done) throws SQLException {
+
+        try {
+            insertBatch(connection, rows);
+            done.addAll(rows);
+            return 0;
+
+        } catch (SQLException e) {
+            if (isTransient(e)) {
+                throw e;
+            }
+            connection.getConnection().rollback();
+
+            if (rows.size() == 1) {
+                log.debug("Dropped a row that could not be inserted into {}.",
+                        rows.get(0).getDescriptor().getTablePath(), e);
+                done.addAll(rows);
+                return 1;
+            }
+
+            int half = rows.size() / 2;
+            return insertRows(connection, rows.subList(0, half), done)
+                    + insertRows(connection, rows.subList(half, rows.size()),
+                    done);
+        }
+    }
+
+    /**
+     * Roll back the connection's transaction and hand it back to the pool, or
+     * close it if the rollback fails.
+     *
+     * @param connection the connection used for a failed batch.
+     */
+    private void rollbackAndRelease(CachedConnection connection) {
+        try {
+            connection.getConnection().rollback();
+            connectionPool.release(connection);
+        } catch (SQLException e) {
+            connectionPool.invalidate(connection);
+        }
+    }
+
+    /**
+     * Insert the batch of statements on the given connection. The statements
+     * for each table are bound to the connection's cached prepared statement
+     * for the table and sent as one JDBC batch, or in bulk mode loaded with
+     * one {@code LOAD DATA LOCAL INFILE}.
+     *
+     * @param connection the connection to use.
+     * @param batch the statements to insert.
+     * @throws SQLException if any of the inserts fail.
+     */
+    private void insertBatch(CachedConnection connection,
+            List<DatabaseInsertStatement> batch) throws SQLException {
+
+        // Group the rows by the insert SQL, keeping the order.
+        Map<String, List<DatabaseInsertStatement>> groups =
+                new LinkedHashMap<String, List<DatabaseInsertStatement>>();
+
+        for (DatabaseInsertStatement insert : batch) {
+            InsertDescriptor descriptor = insert.getDescriptor();
+            List<DatabaseInsertStatement> group =
+                    groups.get(descriptor.getInsertSQL(conflict));
+            if (group == null) {
+                if (!tableValidator.validate(connection.getConnection(),
+                        descriptor)) {
+                    continue;
+                }
+                group = new ArrayList<DatabaseInsertStatement>();
+                groups.put(descriptor.getInsertSQL(conflict), group);
+            }
+            group.add(insert);
+        }
+
+        for (Map.Entry<String, List<DatabaseInsertStatement>> group
+                : groups.entrySet()) {
+
+            if (bulk && bulkLoad(connection, group.getValue())) {
+                continue;
+            }
+
+            PreparedStatement statement =
+                    connection.prepareStatement(group.getKey());
+
+            for (DatabaseInsertStatement row : group.getValue()) {
+                if (row.isTyped()) {
+                    bindTyped(statement, row);
+                } else {
+                    bind(statement, row.getParameters());
+                }
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+
+        connection.getConnection().commit();
+    }
+
+    /**
+     * Load the rows of one table with the bulk loader if they can be.
+     *
+     * @param connection the connection to use.
+     * @param rows the rows for one table.
+     * @return true if the rows were loaded, false if they should be inserted
+     *         normally instead.
+     * @throws SQLException if the load failed.
+     */
+    private boolean bulkLoad(CachedConnection connection,
+            List<DatabaseInsertStatement> rows) throws SQLException {
+
+        InsertDescriptor descriptor = rows.get(0).getDescriptor();
+        String loadSQL = descriptor.getLoadSQL(conflict);
+        if (bulkLoader == null || loadSQL == null) {
+            return false;
+        }
+
+        try {
+            int loaded = bulkLoader.load(connection, loadSQL, rows);
+            if (loaded < rows.size()) {
+                log.debug("Skipped {} duplicate rows loading {}.",
+                        rows.size() - loaded, descriptor.getTablePath());
+            }
+            return true;
+
+        } catch (SQLException e) {
+            // A failed statement leaves the transaction open, so the rows can
+            // still be inserted normally.
+            if (!BulkLoader.isUnsupported(e)) {
+                throw e;
+            }
+
+            log.warn("Bulk loads can't be used, LOAD DATA LOCAL INFILE is "
+                    + "not allowed by the database or driver.", e);
+            bulkLoader = null;
+            bulk = false;
+            return false;
+        }
+    }
+
+    /**
+     * Bind the primitive values of a typed row to a prepared statement.
+     *
+     * @param statement the statement to bind to.
+     * @param row the typed row.
+     * @throws SQLException if a value could not be bound.
+     */
+    private static void bindTyped(PreparedStatement statement,
+            DatabaseInsertStatement row) throws SQLException {
+
+        InsertDescriptor descriptor = row.getDescriptor();
+        int count = descriptor.getParameterCount();
+
+        for (int i = 1; i <= count; i++) {
+            switch (descriptor.getParameterType(i)) {
+                case Types.DOUBLE:
+                    statement.setDouble(i, row.getDouble(i));
+                    break;
+                case Types.INTEGER:
+                    statement.setInt(i, row.getInt(i));
+                    break;
+                default:
+                    statement.setBytes(i, row.getBytes(i));
+            }
+        }
+    }
+
+    /**
+     * Bind a row of parameters to a prepared statement.
+     *
+     * @param statement the statement to bind to.
+     * @param parameters the parameters in column order.
+     * @throws SQLException if a parameter could not be bound.
+     */
+    private static void bind(PreparedStatement statement, Object[] parameters)
+            throws SQLException {
+
+        if (parameters == null) {
+            return;
+        }
+
+        for (int i = 0; i < parameters.length; i++) {
+            Object parameter = parameters[i];
+            if (parameter == null) {
+                statement.setNull(i + 1, Types.NULL);
+            } else if (parameter instanceof Double) {
+                statement.setDouble(i + 1, (Double) parameter);
+            } else if (parameter instanceof Integer) {
+                statement.setInt(i + 1, (Integer) parameter);
+            } else if (parameter instanceof byte[]) {
+                statement.setBytes(i + 1, (byte[]) parameter);
+            } else {
+                statement.setObject(i + 1, parameter);
+            }
+        }
+    }
 
     /**
      * Stop the thread after it completes its current loop.
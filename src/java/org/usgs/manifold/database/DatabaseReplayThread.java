@@ -0,0 +1,132 @@
+package org.usgs.manifold.database;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replays the statements held in a {@link DatabaseSpool} by handing them back
+ * to the {@link DatabaseWriterPool} in the order they were spooled. A
+ * statement is only removed from the spool once a writer has queued it.
+ *
+ * <p>
+ * Replay runs while the database connections are healthy and the writer
+ * queues have room to spare for live data. While the connection pool's
+ * circuit is open a single statement is replayed each time its retry delay
+ * passes, so a writer tries to connect and finds out when the database is
+ * back.
+ *
+ */
+class DatabaseReplayThread extends Thread {
+
+    private static Logger log =
+            LoggerFactory.getLogger(DatabaseReplayThread.class);
+
+    /** Milliseconds to wait for statements when the spool is empty. */
+    private static final int IDLE_WAIT = 1000;
+    /** Milliseconds to wait when the writers have no room. */
+    private static final int FULL_WAIT = 100;
+    /** The least milliseconds between single statements while unhealthy. */
+    private static final int PROBE_DELAY = 1000;
+    /** Milliseconds between logging the replay metrics. */
+    private static final int REPORT_INTERVAL = 60000;
+
+    /** The spool to replay. */
+    private final DatabaseSpool spool;
+    /** The writers to hand the statements to. */
+    private final DatabaseWriterPool writers;
+    /** The connections used by the writers. */
+    private final ConnectionPool connectionPool;
+    /** Specifies if the thread should be stopped. */
+    private volatile boolean run;
+
+    /** The time of the next replay while unhealthy. */
+    private long nextProbe;
+    /** The time and count of the last metrics report. */
+    private long lastReport;
+    private long lastReplayed;
+
+    /**
+     * @param spool the spool to replay.
+     * @param writers the writers to hand the statements to.
+     * @param connectionPool the connections used by the writers.
+     */
+    DatabaseReplayThread(DatabaseSpool spool, DatabaseWriterPool writers,
+            ConnectionPool connectionPool) {
+
+        super("DatabaseReplayThread");
+        this.spool = spool;
+        this.writers = writers;
+        this.connectionPool = connectionPool;
+        this.run = true;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+
+        lastReport = System.currentTimeMillis();
+
+        while (run) {
+            try {
+                report();
+
+                DatabaseInsertStatement statement = spool.peek();
+                if (statement == null) {
+                    spool.await(IDLE_WAIT);
+                    continue;
+                }
+
+                long now = System.currentTimeMillis();
+                if (!connectionPool.isHealthy()) {
+                    if (now < nextProbe || !connectionPool.isRetryDue()) {
+                        Thread.sleep(FULL_WAIT);
+                        continue;
+                    }
+                    nextProbe = now + PROBE_DELAY;
+                }
+
+                if (writers.offerReplay(statement)) {
+                    spool.remove();
+                } else {
+                    Thread.sleep(FULL_WAIT);
+                }
+            } catch (InterruptedException e) {/*don't care*/
+            }
+        }
+    }
+
+    /**
+     * Log the size of the spool and the replay rate every
+     * {@link #REPORT_INTERVAL} while there is something to report.
+     */
+    private void report() {
+
+        long now = System.currentTimeMillis();
+        if (now - lastReport < REPORT_INTERVAL) {
+            return;
+        }
+
+        long replayed = spool.getReplayedCount();
+        long pending = spool.getPendingBytes();
+        if (replayed != lastReplayed || pending > 0) {
+            double rate = (replayed - lastReplayed) * 1000.0
+                    / (now - lastReport);
+
+            log.info("Spool: {} bytes waiting in {} segments, {} replayed "
+                    + "({} per second), {} spooled, {} dropped, {} corrupt.",
+                    new Object[]{pending, spool.getSegmentCount(), replayed,
+                        String.format("%.1f", rate), spool.getSpooledCount(),
+                        spool.getDroppedCount(), spool.getCorruptCount()});
+        }
+
+        lastReport = now;
+        lastReplayed = replayed;
+    }
+
+    /**
+     * Stop the thread after it completes its current loop.
+     */
+    public void stopRun() {
+        run = false;
+    }
+}
@@ -0,0 +1,1050 @@
+package org.usgs.manifold.database;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A write-ahead spool of {@link DatabaseInsertStatement}s kept on disk while
+ * the database is slow or unavailable. Statements are appended to fixed size,
+ * memory-mapped segment files and read back in the order they were written.
+ *
+ * <p>
+ * Each segment starts with a header holding a magic number and the offset of
+ * the next record to read, so replay resumes where it left off after a
+ * restart. Each record is a length, a CRC32 of the body and the body itself.
+ * A record with a zero length marks the end of the written part of a segment.
+ * A record that fails its checksum ends the replay of its segment.
+ *
+ * <p>
+ * A body is either a table or a row. The table, database, creation SQL,
+ * insert statement and column definitions of a table are written once per
+ * segment, in a table record with an ID, before the first row for it. Each
+ * row only gives its table's ID and its parameters. When a segment is read,
+ * the table records before the read offset are read again first, so the rows
+ * after a restart still find their tables.
+ *
+ * <pre>
+ * segment: magic(4) readOffset(4) record* 0(4)
+ * record:  length(4) crc(4) body(length)
+ * table:   1(1) id(4) table database creation statement definition
+ * row:     2(1) id(4) parameters
+ * </pre>
+ *
+ * <p>
+ * Segments are created as they are needed and deleted once they have been
+ * read. A segment left from a previous run with a bad header is deleted
+ * rather than kept. Appends are refused once the segments would use more
+ * than the maximum disk space. Statements are only forced to disk when a
+ * segment is finished, so statements survive the process stopping but may
+ * not survive the host stopping.
+ *
+ */
+public class DatabaseSpool {
+
+    private static Logger log = LoggerFactory.getLogger(DatabaseSpool.class);
+
+    /** Marks the start of a spool segment. */
+    private static final int MAGIC = 0x53504c32;
+
+    /** The length of the segment header. */
+    private static final int HEADER_LENGTH = 8;
+
+    /** The offset of the read offset in the segment header. */
+    private static final int READ_OFFSET_POSITION = 4;
+
+    /** The length of the header of each record. */
+    private static final int RECORD_HEADER_LENGTH = 8;
+
+    /** The kinds of record body. */
+    private static final byte RECORD_TABLE = 1;
+    private static final byte RECORD_ROW   = 2;
+
+    /** The length of the kind and table ID that start each body. */
+    private static final int BODY_HEADER_LENGTH = 5;
+
+    /** The file name extension of the segments. */
+    private static final String SEGMENT_EXTENSION = ".spool";
+
+    /** Parameter type tags used in the record body. */
+    private static final byte TYPE_NULL    = 0;
+    private static final byte TYPE_INTEGER = 1;
+    private static final byte TYPE_LONG    = 2;
+    private static final byte TYPE_DOUBLE  = 3;
+    private static final byte TYPE_FLOAT   = 4;
+    private static final byte TYPE_SHORT   = 5;
+    private static final byte TYPE_BOOLEAN = 6;
+    private static final byte TYPE_STRING  = 7;
+    private static final byte TYPE_BYTES   = 8;
+
+    /** The directory holding the segments. */
+    private final File directory;
+
+    /** The size of each segment file in bytes. */
+    private final int segmentSize;
+
+    /** The maximum number of segments on disk. */
+    private final int maxSegments;
+
+    /** The segments waiting to be read, oldest first. */
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+
+    /** The segment being appended to, or null. */
+    private Segment writeSegment;
+
+    /** The sequence number of the last segment created. */
+    private long sequence;
+
+    /** The statement at the read position, decoded by {@link #peek()}. */
+    private DatabaseInsertStatement next;
+
+    /** The read offset following {@link #next}. */
+    private int nextOffset;
+
+    /** Descriptors of the tables read back, keyed by table path. */
+    private final Map<String, InsertDescriptor> descriptors =
+            new HashMap<String, InsertDescriptor>();
+
+    /** Reused when encoding statements. */
+    private final ByteArrayOutputStream encodeBytes =
+            new ByteArrayOutputStream(256);
+    private final DataOutputStream encodeOut =
+            new DataOutputStream(encodeBytes);
+    private final CRC32 crc = new CRC32();
+
+    /** Metrics. */
+    private long spooledCount;
+    private long replayedCount;
+    private long droppedCount;
+    private long corruptCount;
+
+    /**
+     * Opens the spool, keeping any segments left in the directory from a
+     * previous run so they are replayed first.
+     *
+     * @param directory the directory to keep the segments in. It is created
+     *        if it does not exist.
+     * @param segmentSize the size of each segment file in bytes.
+     * @param maxSize the maximum number of bytes of segments kept on disk.
+     * @throws IOException if the directory can not be created or a segment
+     *         can not be opened.
+     * @throws IllegalArgumentException if the sizes leave no room for at least
+     *         one segment.
+     */
+    public DatabaseSpool(File directory, int segmentSize, long maxSize)
+            throws IOException {
+
+        if (segmentSize <= HEADER_LENGTH + RECORD_HEADER_LENGTH
+                || maxSize < segmentSize) {
+            throw new IllegalArgumentException("The spool must have room for "
+                    + "at least one segment.");
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.min(Integer.MAX_VALUE,
+                maxSize / segmentSize);
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the spool directory "
+                    + directory + ".");
+        }
+
+        File[] files = directory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile()
+                        && file.getName().endsWith(SEGMENT_EXTENSION);
+            }
+        });
+        Arrays.sort(files);
+
+        for (File file : files) {
+            sequence = Math.max(sequence, parseSequence(file));
+            Segment segment = Segment.open(file);
+            if (segment == null) {
+                log.error("Deleting spool segment {} with a bad header.",
+                        file);
+                corruptCount++;
+                if (!file.delete()) {
+                    log.warn("Could not delete spool segment {}.", file);
+                    file.deleteOnExit();
+                }
+                continue;
+            }
+            segments.add(segment);
+        }
+
+        if (!segments.isEmpty()) {
+            log.info("Found {} spool segments to replay in {}.",
+                    segments.size(), directory);
+        }
+    }
+
+    /**
+     * Append a statement to the end of the spool.
+     *
+     * @param statement the statement to spool.
+     * @return true if the statement was spooled, false if the spool is full or
+     *         the statement could not be written.
+     */
+    public synchronized boolean append(DatabaseInsertStatement statement) {
+
+        InsertDescriptor descriptor = statement.getDescriptor();
+        byte[] row;
+        byte[] table = null;
+        TableId id = (writeSegment == null)
+                ? null : writeSegment.getTableId(descriptor);
+        try {
+            row = encodeRow(statement);
+            if (id == null) {
+                table = encodeTable(descriptor);
+            }
+        } catch (IOException e) {
+            log.error("Could not encode a statement for the spool.", e);
+            droppedCount++;
+            return false;
+        } catch (IllegalArgumentException e) {
+            log.error("Could not encode a statement for the spool.", e);
+            droppedCount++;
+            return false;
+        }
+
+        try {
+            // Leave room for the records and the end of segment marker.
+            if (writeSegment == null || writeSegment.writeOffset
+                    + getRecordsLength(row, table) + 4 > segmentSize) {
+
+                if (table == null) {
+                    table = encodeTable(descriptor);
+                }
+                int length = getRecordsLength(row, table);
+                if (HEADER_LENGTH + length + 4 > segmentSize) {
+                    log.error("A statement of {} bytes is too large for the "
+                            + "spool.", length);
+                    droppedCount++;
+                    return false;
+                }
+
+                if (!roll()) {
+                    droppedCount++;
+                    return false;
+                }
+                id = null;
+            }
+        } catch (IOException e) {
+            log.error("Could not create a spool segment.", e);
+            droppedCount++;
+            return false;
+        }
+
+        if (id == null) {
+            id = writeSegment.addTableId(descriptor);
+            setTableId(table, id.id);
+            write(table);
+        }
+        setTableId(row, id.id);
+        write(row);
+        spooledCount++;
+
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * @param row the body of a row record.
+     * @param table the body of its table record, or null if the table has
+     *        been written to the segment.
+     * @return the number of bytes the records take in a segment.
+     */
+    private static int getRecordsLength(byte[] row, byte[] table) {
+        int length = RECORD_HEADER_LENGTH + row.length;
+        if (table != null) {
+            length += RECORD_HEADER_LENGTH + table.length;
+        }
+        return length;
+    }
+
+    /**
+     * @param body a record body.
+     * @param id the table ID to put in it.
+     */
+    private static void setTableId(byte[] body, int id) {
+        body[1] = (byte) (id >>> 24);
+        body[2] = (byte) (id >>> 16);
+        body[3] = (byte) (id >>> 8);
+        body[4] = (byte) id;
+    }
+
+    /**
+     * Append a record to the write segment, which must have room for it.
+     *
+     * @param body the record body.
+     */
+    private void write(byte[] body) {
+        crc.reset();
+        crc.update(body, 0, body.length);
+
+        int recordLength = RECORD_HEADER_LENGTH + body.length;
+        MappedByteBuffer buffer = writeSegment.buffer;
+        int offset = writeSegment.writeOffset;
+        buffer.putInt(offset + 4, (int) crc.getValue());
+        buffer.position(offset + RECORD_HEADER_LENGTH);
+        buffer.put(body);
+        buffer.putInt(offset + recordLength, 0);
+        // The length goes in last so a reader never sees a partial record.
+        buffer.putInt(offset, body.length);
+
+        writeSegment.writeOffset += recordLength;
+    }
+
+    /**
+     * Finish the current write segment and start a new one.
+     *
+     * @return false if there is no room on disk for another segment.
+     * @throws IOException if the segment could not be created.
+     */
+    private boolean roll() throws IOException {
+
+        if (segments.size() >= maxSegments) {
+            if (droppedCount % 1000 == 0) {
+                log.error("The spool in {} is full. Statements will be "
+                        + "discarded.", directory);
+            }
+            return false;
+        }
+
+        if (writeSegment != null) {
+            writeSegment.buffer.force();
+        }
+
+        File file = new File(directory, String.format("%020d%s", ++sequence,
+                SEGMENT_EXTENSION));
+        writeSegment = Segment.create(file, segmentSize);
+        segments.add(writeSegment);
+        return true;
+    }
+
+    /**
+     * Read the oldest statement in the spool without removing it.
+     *
+     * @return the oldest statement, or null if the spool is empty.
+     */
+    public synchronized DatabaseInsertStatement peek() {
+
+        while (next == null && !segments.isEmpty()) {
+            Segment segment = segments.getFirst();
+            if (segment.tables == null) {
+                readTables(segment);
+            }
+
+            MappedByteBuffer buffer = segment.buffer;
+            int offset = segment.getReadOffset();
+            int capacity = buffer.capacity();
+
+            int length = (offset + RECORD_HEADER_LENGTH <= capacity)
+                    ? buffer.getInt(offset) : 0;
+
+            if (length == 0) {
+                if (segment == writeSegment) {
+                    return null;
+                }
+                // Finished with this segment.
+                segments.removeFirst();
+                segment.delete();
+                continue;
+            }
+
+            int end = offset + RECORD_HEADER_LENGTH + length;
+            if (length < BODY_HEADER_LENGTH || end > capacity) {
+                skipCorrupt(segment, "a bad record length");
+                continue;
+            }
+
+            byte[] body = read(segment, offset, length);
+            if (body == null) {
+                skipCorrupt(segment, "a bad checksum");
+                continue;
+            }
+
+            try {
+                if (body[0] == RECORD_TABLE) {
+                    decodeTable(segment, body);
+                    segment.setReadOffset(end);
+                } else {
+                    next = decodeRow(segment, body);
+                    nextOffset = end;
+                }
+            } catch (IOException e) {
+                skipCorrupt(segment, "a record that could not be decoded");
+            }
+        }
+
+        return next;
+    }
+
+    /**
+     * Read the table records before the read offset of a segment, which were
+     * read before a restart, so the rows after it can find their tables.
+     *
+     * @param segment the segment about to be read.
+     */
+    private void readTables(Segment segment) {
+        segment.tables = new HashMap<Integer, InsertDescriptor>();
+
+        int offset = HEADER_LENGTH;
+        int readOffset = segment.getReadOffset();
+        while (offset < readOffset) {
+            int length = segment.buffer.getInt(offset);
+            int end = offset + RECORD_HEADER_LENGTH + length;
+            if (length < BODY_HEADER_LENGTH || end > readOffset) {
+                return;
+            }
+
+            byte[] body = read(segment, offset, length);
+            if (body != null && body[0] == RECORD_TABLE) {
+                try {
+                    decodeTable(segment, body);
+                } catch (IOException e) {
+                    // The rows of the table are skipped when they are read.
+                }
+            }
+            offset = end;
+        }
+    }
+
+    /**
+     * @param segment the segment to read from.
+     * @param offset the offset of the record.
+     * @param length the length of its body.
+     * @return the body, or null if it fails its checksum.
+     */
+    private byte[] read(Segment segment, int offset, int length) {
+        byte[] body = new byte[length];
+        segment.buffer.position(offset + RECORD_HEADER_LENGTH);
+        segment.buffer.get(body);
+
+        crc.reset();
+        crc.update(body, 0, length);
+        return (segment.buffer.getInt(offset + 4) == (int) crc.getValue())
+                ? body : null;
+    }
+
+    /**
+     * Remove the statement returned by {@link #peek()} from the spool.
+     */
+    public synchronized void remove() {
+        if (next == null) {
+            throw new IllegalStateException("Nothing has been peeked.");
+        }
+
+        segments.getFirst().setReadOffset(nextOffset);
+        next = null;
+        replayedCount++;
+    }
+
+    /**
+     * Give up on the rest of a segment after finding a bad record.
+     *
+     * @param segment the segment being read.
+     * @param reason why the segment is being skipped.
+     */
+    private void skipCorrupt(Segment segment, String reason) {
+        log.error("Skipping the rest of spool segment {} after {}.",
+                segment.file, reason);
+        corruptCount++;
+
+        if (segment == writeSegment) {
+            segment.setReadOffset(segment.writeOffset);
+        } else {
+            segments.removeFirst();
+            segment.delete();
+        }
+    }
+
+    /**
+     * Wait for a statement to be appended if the spool is empty.
+     *
+     * @param timeout the maximum milliseconds to wait.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public synchronized void await(long timeout) throws InterruptedException {
+        if (peek() == null) {
+            wait(timeout);
+        }
+    }
+
+    /**
+     * @return true if there are no statements waiting in the spool.
+     */
+    public synchronized boolean isEmpty() {
+        return peek() == null;
+    }
+
+    /**
+     * @return the number of segment files on disk.
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return the number of bytes of segment files on disk.
+     */
+    public synchronized long getDiskUsage() {
+        long usage = 0;
+        for (Segment segment : segments) {
+            usage += segment.buffer.capacity();
+        }
+        return usage;
+    }
+
+    /**
+     * @return the number of bytes of statements waiting to be replayed.
+     */
+    public synchronized long getPendingBytes() {
+        long pending = 0;
+        for (Segment segment : segments) {
+            int written = (segment == writeSegment)
+                    ? segment.writeOffset : segment.buffer.capacity();
+            pending += written - segment.getReadOffset();
+        }
+        return pending;
+    }
+
+    /**
+     * @return the number of statements appended since the spool was opened.
+     */
+    public synchronized long getSpooledCount() {
+        return spooledCount;
+    }
+
+    /**
+     * @return the number of statements replayed since the spool was opened.
+     */
+    public synchronized long getReplayedCount() {
+        return replayedCount;
+    }
+
+    /**
+     * @return the number of statements that could not be spooled.
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return the number of corrupt records and segments that were skipped.
+     */
+    public synchronized long getCorruptCount() {
+        return corruptCount;
+    }
+
+    /**
+     * @param file a segment file.
+     * @return the sequence number in the segment's name, or 0 if there is
+     *         none.
+     */
+    private static long parseSequence(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(0,
+                    name.length() - SEGMENT_EXTENSION.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @param descriptor the table to encode.
+     * @return the body of a table record for the table, with an ID of 0.
+     * @throws IOException if the table could not be written.
+     */
+    private byte[] encodeTable(InsertDescriptor descriptor)
+            throws IOException {
+
+        encodeBytes.reset();
+        DataOutputStream out = encodeOut;
+
+        out.writeByte(RECORD_TABLE);
+        out.writeInt(0);
+        out.writeUTF(descriptor.getTable());
+        out.writeUTF(descriptor.getDatabase());
+        out.writeUTF(descriptor.getTableCreation());
+        out.writeUTF(descriptor.getStatement());
+
+        Map<String, String> definition = descriptor.getTableDefinition();
+        out.writeShort(definition.size());
+        for (Map.Entry<String, String> column : definition.entrySet()) {
+            out.writeUTF(column.getKey());
+            out.writeUTF(column.getValue());
+        }
+
+        out.flush();
+        return encodeBytes.toByteArray();
+    }
+
+    /**
+     * @param statement the statement to encode.
+     * @return the body of a row record for the statement, with a table ID of
+     *         0.
+     * @throws IOException if the statement could not be written.
+     * @throws IllegalArgumentException if a parameter is of a type that can
+     *         not be spooled.
+     */
+    private byte[] encodeRow(DatabaseInsertStatement statement)
+            throws IOException {
+
+        encodeBytes.reset();
+        DataOutputStream out = encodeOut;
+
+        out.writeByte(RECORD_ROW);
+        out.writeInt(0);
+
+        if (statement.isTyped()) {
+            // Typed rows are marked with a count below -1.
+            InsertDescriptor descriptor = statement.getDescriptor();
+            int count = descriptor.getParameterCount();
+            out.writeShort(-2 - count);
+            for (int i = 1; i <= count; i++) {
+                switch (descriptor.getParameterType(i)) {
+                    case Types.DOUBLE:
+                        out.writeByte(TYPE_DOUBLE);
+                        out.writeDouble(statement.getDouble(i));
+                        break;
+                    case Types.INTEGER:
+                        out.writeByte(TYPE_INTEGER);
+                        out.writeInt(statement.getInt(i));
+                        break;
+                    default:
+                        encodeParameter(out, statement.getBytes(i));
+                }
+            }
+            out.flush();
+            return encodeBytes.toByteArray();
+        }
+
+        Object[] parameters = statement.getParameters();
+        if (parameters == null) {
+            out.writeShort(-1);
+        } else {
+            out.writeShort(parameters.length);
+            for (Object parameter : parameters) {
+                encodeParameter(out, parameter);
+            }
+        }
+
+        out.flush();
+        return encodeBytes.toByteArray();
+    }
+
+    /**
+     * @param out the stream to write to.
+     * @param parameter the parameter to write with its type.
+     * @throws IOException if the parameter could not be written.
+     */
+    private static void encodeParameter(DataOutputStream out,
+            Object parameter) throws IOException {
+
+        if (parameter == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (parameter instanceof Integer) {
+            out.writeByte(TYPE_INTEGER);
+            out.writeInt((Integer) parameter);
+        } else if (parameter instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) parameter);
+        } else if (parameter instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) parameter);
+        } else if (parameter instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float) parameter);
+        } else if (parameter instanceof Short) {
+            out.writeByte(TYPE_SHORT);
+            out.writeShort((Short) parameter);
+        } else if (parameter instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) parameter);
+        } else if (parameter instanceof String) {
+            out.writeByte(TYPE_STRING);
+            out.writeUTF((String) parameter);
+        } else if (parameter instanceof byte[]) {
+            byte[] bytes = (byte[]) parameter;
+            out.writeByte(TYPE_BYTES);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else {
+            throw new IllegalArgumentException("Can not spool a parameter of "
+                    + parameter.getClass() + ".");
+        }
+    }
+
+    /**
+     * Add the table held in a table record to the tables of its segment.
+     *
+     * @param segment the segment the record is in.
+     * @param body the record body.
+     * @throws IOException if the body is not a valid table.
+     */
+    private static void decodeTable(Segment segment, byte[] body)
+            throws IOException {
+
+        DataInputStream in =
+                new DataInputStream(new ByteArrayInputStream(body));
+        in.readByte();
+        int id = in.readInt();
+
+        String table = in.readUTF();
+        String database = in.readUTF();
+        String tableCreation = in.readUTF();
+        String statement = in.readUTF();
+
+        int columns = in.readShort();
+        Map<String, String> definition = new HashMap<String, String>();
+        for (int i = 0; i < columns; i++) {
+            definition.put(in.readUTF(), in.readUTF());
+        }
+
+        segment.tables.put(id, new InsertDescriptor(table, database,
+                definition, tableCreation, statement));
+    }
+
+    /**
+     * @param segment the segment the record is in.
+     * @param body the body of a row record.
+     * @return the statement held in the body.
+     * @throws IOException if the body is not a valid statement or its table
+     *         is not known.
+     */
+    private DatabaseInsertStatement decodeRow(Segment segment, byte[] body)
+            throws IOException {
+
+        DataInputStream in =
+                new DataInputStream(new ByteArrayInputStream(body));
+        if (in.readByte() != RECORD_ROW) {
+            throw new IOException("Unknown record kind " + body[0] + ".");
+        }
+        InsertDescriptor known = segment.tables.get(in.readInt());
+        if (known == null) {
+            throw new IOException("A row of an unknown table.");
+        }
+
+        String table = known.getTable();
+        String database = known.getDatabase();
+        String tableCreation = known.getTableCreation();
+        String statement = known.getStatement();
+        Map<String, String> definition = known.getTableDefinition();
+
+        Object[] parameters = null;
+        int count = in.readShort();
+        if (count < -1) {
+            return decodeTyped(in, -2 - count, table, database, definition,
+                    tableCreation, statement);
+        } else if (count >= 0) {
+            parameters = new Object[count];
+            for (int i = 0; i < count; i++) {
+                parameters[i] = decodeParameter(in);
+            }
+        }
+
+        return new DatabaseInsertStatement(descriptorFor(table, database,
+                definition, tableCreation, statement, null), parameters);
+    }
+
+    /**
+     * Read the values of a typed row.
+     *
+     * @param in the stream to read from.
+     * @param count the number of parameters.
+     * @return the typed row.
+     * @throws IOException if a value is not of a supported type.
+     */
+    private DatabaseInsertStatement decodeTyped(DataInputStream in, int count,
+            String table, String database, Map<String, String> definition,
+            String tableCreation, String statement) throws IOException {
+
+        int[] types = new int[count];
+        Object[] values = new Object[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = decodeParameter(in);
+            if (values[i] instanceof Double) {
+                types[i] = Types.DOUBLE;
+            } else if (values[i] instanceof Integer) {
+                types[i] = Types.INTEGER;
+            } else if (values[i] == null || values[i] instanceof byte[]) {
+                types[i] = Types.BLOB;
+            } else {
+                throw new IOException("Unexpected typed parameter "
+                        + values[i].getClass() + ".");
+            }
+        }
+
+        DatabaseInsertStatement row = new DatabaseInsertStatement(
+                descriptorFor(table, database, definition, tableCreation,
+                statement, types));
+
+        for (int i = 0; i < count; i++) {
+            switch (types[i]) {
+                case Types.DOUBLE:
+                    row.setDouble(i + 1, (Double) values[i]);
+                    break;
+                case Types.INTEGER:
+                    row.setInt(i + 1, (Integer) values[i]);
+                    break;
+                default:
+                    row.setBytes(i + 1, (byte[]) values[i]);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Reuse the descriptor for a table so the statements read back share one
+     * descriptor per table, as they did when they were spooled.
+     *
+     * @return the descriptor for the table.
+     */
+    private InsertDescriptor descriptorFor(String table, String database,
+            Map<String, String> definition, String tableCreation,
+            String statement, int[] types) {
+
+        String tablePath = database + "." + table;
+        InsertDescriptor descriptor = descriptors.get(tablePath);
+        if (descriptor == null
+                || !descriptor.getStatement().equals(statement)
+                || !descriptor.getTableCreation().equals(tableCreation)
+                || !descriptor.getTableDefinition().equals(definition)
+                || !descriptor.hasParameterTypes(types)) {
+
+            descriptor = new InsertDescriptor(table, database, definition,
+                    tableCreation, statement, types);
+            descriptors.put(tablePath, descriptor);
+        }
+        return descriptor;
+    }
+
+    /**
+     * @param in the stream to read from.
+     * @return the parameter read.
+     * @throws IOException if the parameter type is unknown.
+     */
+    private static Object decodeParameter(DataInputStream in)
+            throws IOException {
+
+        byte type = in.readByte();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_INTEGER:
+                return in.readInt();
+            case TYPE_LONG:
+                return in.readLong();
+            case TYPE_DOUBLE:
+                return in.readDouble();
+            case TYPE_FLOAT:
+                return in.readFloat();
+            case TYPE_SHORT:
+                return in.readShort();
+            case TYPE_BOOLEAN:
+                return in.readBoolean();
+            case TYPE_STRING:
+                return in.readUTF();
+            case TYPE_BYTES:
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return bytes;
+            default:
+                throw new IOException("Unknown parameter type " + type + ".");
+        }
+    }
+
+    /**
+     * A memory-mapped segment file.
+     */
+    private static class Segment {
+
+        /** The segment file. */
+        final File file;
+
+        /** The open file. */
+        final RandomAccessFile randomAccessFile;
+
+        /** The whole segment mapped into memory. */
+        final MappedByteBuffer buffer;
+
+        /** The offset to append the next record at. */
+        int writeOffset;
+
+        /** The IDs of the tables written to the segment, by table path. */
+        final Map<String, TableId> tableIds = new HashMap<String, TableId>();
+
+        /** The ID of the next table written to the segment. */
+        int nextTableId;
+
+        /** The tables read from the segment by ID, or null before it is
+         * read. */
+        Map<Integer, InsertDescriptor> tables;
+
+        /**
+         * @param file the segment file.
+         * @param randomAccessFile the open file.
+         * @param size the length of the file.
+         * @throws IOException if the file could not be mapped.
+         */
+        private Segment(File file, RandomAccessFile randomAccessFile, int size)
+                throws IOException {
+            this.file = file;
+            this.randomAccessFile = randomAccessFile;
+            this.buffer = randomAccessFile.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        /**
+         * @param file the segment file to create.
+         * @param size the length of the file.
+         * @return the new empty segment.
+         * @throws IOException if the file could not be created.
+         */
+        static Segment create(File file, int size) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(size);
+                Segment segment = new Segment(file, raf, size);
+                segment.buffer.putInt(0, MAGIC);
+                segment.setReadOffset(HEADER_LENGTH);
+                segment.buffer.putInt(HEADER_LENGTH, 0);
+                segment.writeOffset = HEADER_LENGTH;
+                return segment;
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @param file an existing segment file.
+         * @return the segment, or null if its header is not valid. It will not
+         *         be appended to.
+         * @throws IOException if the file could not be opened.
+         */
+        static Segment open(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                long length = raf.length();
+                if (length < HEADER_LENGTH || length > Integer.MAX_VALUE) {
+                    raf.close();
+                    return null;
+                }
+
+                Segment segment = new Segment(file, raf, (int) length);
+                int readOffset = segment.getReadOffset();
+                if (segment.buffer.getInt(0) != MAGIC
+                        || readOffset < HEADER_LENGTH || readOffset > length) {
+                    raf.close();
+                    return null;
+                }
+
+                segment.writeOffset = (int) length;
+                return segment;
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @param descriptor a table.
+         * @return the ID of the table in the segment, or null if it has not
+         *         been written to the segment.
+         */
+        TableId getTableId(InsertDescriptor descriptor) {
+            TableId id = tableIds.get(descriptor.getTablePath());
+            return (id != null && id.isFor(descriptor)) ? id : null;
+        }
+
+        /**
+         * @param descriptor a table about to be written to the segment.
+         * @return the new ID of the table.
+         */
+        TableId addTableId(InsertDescriptor descriptor) {
+            TableId id = new TableId(nextTableId++, descriptor);
+            tableIds.put(descriptor.getTablePath(), id);
+            return id;
+        }
+
+        /**
+         * @return the offset of the next record to read.
+         */
+        int getReadOffset() {
+            return buffer.getInt(READ_OFFSET_POSITION);
+        }
+
+        /**
+         * @param offset the offset of the next record to read.
+         */
+        void setReadOffset(int offset) {
+            buffer.putInt(READ_OFFSET_POSITION, offset);
+        }
+
+        /**
+         * Close and delete the segment file.
+         */
+        void delete() {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {/*don't care*/
+            }
+
+            if (!file.delete()) {
+                log.warn("Could not delete spool segment {}.", file);
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * The ID of a table written to a segment.
+     */
+    private static class TableId {
+
+        /** The ID given in the records. */
+        final int id;
+
+        /** The table as it was written. */
+        final InsertDescriptor descriptor;
+
+        TableId(int id, InsertDescriptor descriptor) {
+            this.id = id;
+            this.descriptor = descriptor;
+        }
+
+        /**
+         * @param other a table.
+         * @return true if the table was written as the other would be.
+         */
+        boolean isFor(InsertDescriptor other) {
+            return other == descriptor
+                    || (other.getStatement().equals(descriptor.getStatement())
+                    && other.getTableCreation().equals(
+                            descriptor.getTableCreation())
+                    && other.getTableDefinition().equals(
+                            descriptor.getTableDefinition()));
+        }
+    }
+}
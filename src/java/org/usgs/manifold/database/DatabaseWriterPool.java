@@ -0,0 +1,280 @@
+package org.usgs.manifold.database;
+
+import java.util.Collection;
+
+/**
+ * A fixed number of {@link DatabaseInsertThread}s sharing a
+ * {@link ConnectionPool}. Each writer has its own queue and statements are
+ * assigned to a writer by hashing their table path, so the rows for a table
+ * are always inserted in order by the same writer while unrelated tables are
+ * written in parallel. A slow table or a lock wait only holds up the tables
+ * of one writer.
+ *
+ * <p>
+ * The queues are {@link InsertQueue}s and what happens to a statement offered
+ * to a full queue is chosen by their {@link InsertQueue.Overflow} policy. If
+ * a {@link DatabaseSpool} is given, {@link InsertQueue.Overflow#SPILL} appends
+ * those statements to the spool, and a {@link DatabaseReplayThread} hands
+ * spooled statements back to the writers once they have room.
+ *
+ * <p>
+ * While the connection pool's circuit breaker is open, because the database
+ * can't be reached, new statements go straight to the spool rather than
+ * filling the queues, and a queue that is full does not block.
+ *
+ * <p>
+ * If partitioning is set, a {@link PartitionManager} creates new tables with
+ * time partitions and keeps them up to date.
+ *
+ */
+public class DatabaseWriterPool {
+
+    /** The queue of statements for each writer. */
+    private final InsertQueue[] queues;
+
+    /** The writer threads. */
+    private final DatabaseInsertThread[] writers;
+
+    /** Holds statements that did not fit in a queue. May be null. */
+    private final DatabaseSpool spool;
+
+    /** Creates and validates the tables, shared by the writers. */
+    private final TableValidator tableValidator;
+
+    /** Replays the spool, or null if there is no spool. */
+    private final DatabaseReplayThread replay;
+
+    /** The connections shared by the writers. */
+    private final ConnectionPool pool;
+
+    /** Maintains the table partitions, or null if tables aren't partitioned. */
+    private PartitionManager partitionManager;
+
+    /**
+     * @param dbURL database connection string specifying the address, username
+     *        and password.
+     * @param writerCount the number of writer threads.
+     * @param connections the maximum number of open database connections.
+     * @param queueSize the number of statements each writer can queue.
+     * @param overflow what to do with statements offered to a full queue.
+     * @param blockTimeout the milliseconds to wait for room in a full queue
+     *        under {@link InsertQueue.Overflow#BLOCK}.
+     * @param spool the spool for statements that can not be inserted yet, or
+     *        null to discard them.
+     * @param batchSize the maximum number of statements sent in one batch.
+     * @param batchAge the maximum milliseconds a statement waits for its
+     *        batch to fill before the batch is sent.
+     * @param conflict what to do with rows whose key is already in the table.
+     * @param bulkThreshold the number of statements queued for a writer that
+     *        switches it to bulk loads, or 0 to never use them.
+     * @param bulkSize the maximum number of statements in one bulk load.
+     */
+    public DatabaseWriterPool(String dbURL, int writerCount, int connections,
+            int queueSize, InsertQueue.Overflow overflow, long blockTimeout,
+            DatabaseSpool spool, int batchSize, int batchAge,
+            InsertDescriptor.Conflict conflict, int bulkThreshold,
+            int bulkSize) {
+
+        pool = new ConnectionPool(dbURL, connections, bulkThreshold > 0);
+        this.spool = spool;
+
+        // Check the tables again in the background after every reconnect.
+        tableValidator = new TableValidator(pool);
+        pool.setReconnectListener(new Runnable() {
+            public void run() {
+                tableValidator.validateKnownTablesLater();
+            }
+        });
+
+        queues = new InsertQueue[writerCount];
+        writers = new DatabaseInsertThread[writerCount];
+
+        for (int i = 0; i < writerCount; i++) {
+            queues[i] = new InsertQueue(queueSize, overflow, blockTimeout,
+                    spool);
+            writers[i] = new DatabaseInsertThread(queues[i], pool,
+                    tableValidator, spool, batchSize, batchAge, conflict,
+                    bulkThreshold, bulkSize);
+            writers[i].setName("DatabaseInsertThread-" + i);
+        }
+
+        replay = (spool == null)
+                ? null : new DatabaseReplayThread(spool, this, pool);
+    }
+
+    /**
+     * Add tables to create and validate before the writer threads start and
+     * again after every reconnect.
+     *
+     * @param descriptors the tables.
+     */
+    public void addKnownTables(Collection<InsertDescriptor> descriptors) {
+        tableValidator.addKnownTables(descriptors);
+    }
+
+    /**
+     * Partition new tables by time and maintain their partitions. This must be
+     * set before the writers are started.
+     *
+     * @param period the length of each partition, or
+     *        {@link PartitionManager.Period#NONE} to not partition tables.
+     * @param ahead the number of periods after the current one to create
+     *        partitions for ahead of time.
+     * @param retention the number of whole periods before the current one to
+     *        keep, or 0 to keep everything.
+     * @param archive true to move expired partitions to tables of their own,
+     *        false to drop them.
+     */
+    public void setPartitioning(PartitionManager.Period period, int ahead,
+            int retention, boolean archive) {
+
+        partitionManager = (period == PartitionManager.Period.NONE) ? null
+                : new PartitionManager(period, ahead, retention, archive, pool,
+                        tableValidator);
+        tableValidator.setPartitionManager(partitionManager);
+    }
+
+    /**
+     * Set the milliseconds to wait before connecting again after connections
+     * fail. The delay starts at the minimum and doubles with each failure in a
+     * row up to the maximum.
+     *
+     * @param minRetryDelay the delay after the first failure.
+     * @param maxRetryDelay the longest delay.
+     */
+    public void setRetryDelay(int minRetryDelay, int maxRetryDelay) {
+        pool.setRetryDelay(minRetryDelay, maxRetryDelay);
+    }
+
+    /**
+     * Validate the known tables, then start all of the writer threads. If the
+     * database can't be reached the tables are validated once it can.
+     */
+    public void start() {
+        tableValidator.validateWithPool();
+
+        for (DatabaseInsertThread writer : writers) {
+            writer.start();
+        }
+        if (replay != null) {
+            replay.start();
+        }
+        if (partitionManager != null) {
+            partitionManager.start();
+        }
+    }
+
+    /**
+     * Stop all of the writer threads after they complete their current loop.
+     */
+    public void stopRun() {
+        for (DatabaseInsertThread writer : writers) {
+            writer.stopRun();
+        }
+        if (replay != null) {
+            replay.stopRun();
+        }
+        if (partitionManager != null) {
+            partitionManager.stopRun();
+        }
+    }
+
+    /**
+     * Queue a statement with the writer responsible for its table, applying
+     * the queue's overflow policy if it is full. Under
+     * {@link InsertQueue.Overflow#SPILL} new statements go straight to the
+     * spool while it is being replayed, which keeps each table's statements
+     * in order. While the database can't be reached they go to the spool
+     * under any policy, and without a spool a full queue applies its policy
+     * without blocking.
+     *
+     * @param statement the statement to insert.
+     * @return true if the statement was queued or spooled, false if it was
+     *         discarded.
+     */
+    public boolean offer(DatabaseInsertStatement statement) {
+        InsertQueue queue = queues[writerFor(statement)];
+        boolean healthy = pool.isHealthy();
+
+        if (spool != null && (!healthy
+                || (queue.getOverflow() == InsertQueue.Overflow.SPILL
+                    && !spool.isEmpty()))) {
+            return spool.append(statement);
+        }
+        return queue.offer(statement, healthy);
+    }
+
+    /**
+     * Queue a statement from the spool with the writer responsible for its
+     * table if the writer's queue is less than half full, leaving room for
+     * new statements.
+     *
+     * @param statement the spooled statement.
+     * @return true if the statement was queued.
+     */
+    boolean offerReplay(DatabaseInsertStatement statement) {
+        InsertQueue queue = queues[writerFor(statement)];
+
+        if (queue.remainingCapacity() <= queue.size()) {
+            return false;
+        }
+        return queue.tryOffer(statement);
+    }
+
+    /**
+     * @param statement the statement to assign.
+     * @return the index of the writer responsible for the statement's table.
+     */
+    private int writerFor(DatabaseInsertStatement statement) {
+        String tablePath = statement.getDatabse() + "." + statement.getTable();
+        return (tablePath.hashCode() & 0x7fffffff) % queues.length;
+    }
+
+    /**
+     * @return the number of statements waiting in each writer's queue.
+     */
+    public int[] getQueueDepths() {
+        int[] depths = new int[queues.length];
+        for (int i = 0; i < queues.length; i++) {
+            depths[i] = queues[i].size();
+        }
+        return depths;
+    }
+
+    /**
+     * @return the state of the connection pool's circuit breaker.
+     */
+    public ConnectionPool.State getConnectionState() {
+        return pool.getState();
+    }
+
+    /**
+     * @return the number of connection attempts that have failed in a row.
+     */
+    public int getConnectionFailures() {
+        return pool.getFailures();
+    }
+
+    /**
+     * @return the message of the last connection failure, or null if there
+     *         has not been one.
+     */
+    public String getLastConnectionFailure() {
+        return pool.getLastFailure();
+    }
+
+    /**
+     * @return the milliseconds until a connection will be tried again, or 0
+     *         if the database is reachable.
+     */
+    public long getRetryDelay() {
+        return pool.getRetryDelay();
+    }
+
+    /**
+     * @return the spool, or null if there is none.
+     */
+    public DatabaseSpool getSpool() {
+        return spool;
+    }
+}
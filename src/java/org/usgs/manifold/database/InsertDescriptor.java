@@ -0,0 +1,378 @@
+package org.usgs.manifold.database;
+
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Everything needed to insert rows into one table, worked out once and shared
+ * by every {@link DatabaseInsertStatement} for that table. Holds the table
+ * path and the full insert SQL so that inserting a row only needs its
+ * parameters to be bound.
+ *
+ * <p>
+ * A descriptor may also give the {@link Types} of the insert parameters, in
+ * which case rows store their values in primitive arrays rather than as boxed
+ * objects. {@link Types#DOUBLE}, {@link Types#INTEGER} and {@link Types#BLOB}
+ * are supported.
+ *
+ * <p>
+ * If the insert statement only names columns and binds a placeholder to each
+ * of them, the descriptor also holds a {@code LOAD DATA LOCAL INFILE}
+ * statement for the same columns, used to bulk load rows from a stream.
+ *
+ * <p>
+ * The insert and load SQL are held for each {@link Conflict} mode, which
+ * decides what happens to a row whose key is already in the table.
+ *
+ * <pre> <code>
+ * Example:
+ *      Table: "Oregon"
+ *   Database: "People"
+ *  Statement: "(name,height) VALUES (?,?)"
+ *  Insert SQL: "INSERT INTO People.Oregon(name,height) VALUES (?,?)"
+ * </code> </pre>
+ *
+ */
+public final class InsertDescriptor {
+
+    /** What to do with a row whose key is already in the table. */
+    public enum Conflict {
+
+        /**
+         * Fail the insert. Bulk loads skip the row instead, since the server
+         * can't stop a LOAD DATA LOCAL stream part way.
+         */
+        ERROR,
+
+        /** Skip the row with {@code INSERT IGNORE}. */
+        IGNORE,
+
+        /**
+         * Overwrite the inserted columns of the existing row with
+         * {@code ON DUPLICATE KEY UPDATE}. Bulk loads replace the whole row.
+         */
+        UPDATE;
+
+        /**
+         * @param name a mode name such as "ignore".
+         * @return the mode, or null if the name is unknown.
+         */
+        public static Conflict forName(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    /** Matches an insert statement body that starts by naming its columns. */
+    private static final Pattern COLUMNS_INSERT = Pattern.compile(
+            "\\s*\\(([^()]*)\\)\\s*VALUES\\b.*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    /** Matches an insert statement body of columns and placeholders only. */
+    private static final Pattern PLACEHOLDER_INSERT = Pattern.compile(
+            "\\s*\\(([^()]*)\\)\\s*VALUES\\s*"
+            + "\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)\\s*",
+            Pattern.CASE_INSENSITIVE);
+
+    /** The start of every bulk load statement. */
+    private static final String LOAD_DATA =
+            "LOAD DATA LOCAL INFILE 'stream'";
+
+    /** The name of the table. */
+    private final String table;
+
+    /** The schema the table is in. */
+    private final String database;
+
+    /** The table location as "database.table". */
+    private final String tablePath;
+
+    /** Defines the columns that the table should contain. */
+    private final Map<String, String> tableDefinition;
+
+    /** The statement to use to create the table if it doesn't exist. */
+    private final String tableCreation;
+
+    /** The body of the SQL insert statement. */
+    private final String statement;
+
+    /** The full SQL insert statement for each conflict mode. */
+    private final String[] insertSQL;
+
+    /** The SQL to bulk load rows from a stream for each conflict mode, or
+     * null if there is none. */
+    private final String[] loadSQL;
+
+    /** The types of the parameters, or null if they are untyped. */
+    private final int[] parameterTypes;
+
+    /** The index of each parameter in the row array for its type. */
+    private final int[] parameterSlots;
+
+    /** The number of parameters of each type. */
+    private final int doubleCount;
+    private final int intCount;
+    private final int bytesCount;
+
+    /**
+     * @param table the name of the table to insert into.
+     * @param database the schema the table belongs to.
+     * @param tableDefinition a mapping of column names to column types which
+     *        defines the basic structures of the table.
+     * @param tableCreation the body of the SQL creation statement to use to
+     *        create the table if it doesn't exist. Everything that comes after
+     *        "CREATE TABLE IF NOT EXISTS database.table"
+     * @param statement the body of an SQL insert statement. Everything that
+     *        comes after "INSERT INTO database.table"
+     */
+    public InsertDescriptor(String table, String database,
+            Map<String, String> tableDefinition, String tableCreation,
+            String statement) {
+
+        this(table, database, tableDefinition, tableCreation, statement,
+                (int[]) null);
+    }
+
+    /**
+     * @param table the name of the table to insert into.
+     * @param database the schema the table belongs to.
+     * @param tableDefinition a mapping of column names to column types which
+     *        defines the basic structures of the table.
+     * @param tableCreation the body of the SQL creation statement to use to
+     *        create the table if it doesn't exist. Everything that comes after
+     *        "CREATE TABLE IF NOT EXISTS database.table"
+     * @param statement the body of an SQL insert statement. Everything that
+     *        comes after "INSERT INTO database.table"
+     * @param parameterTypes the {@link Types} of the insert parameters in
+     *        order, or null if the parameters are untyped.
+     * @throws IllegalArgumentException if a type is not supported.
+     */
+    public InsertDescriptor(String table, String database,
+            Map<String, String> tableDefinition, String tableCreation,
+            String statement, int... parameterTypes) {
+
+        this.table = table;
+        this.database = database;
+        this.tablePath = database + "." + table;
+        this.tableDefinition = tableDefinition;
+        this.tableCreation = tableCreation;
+        this.statement = statement;
+
+        // A trailing semicolon would stop the driver from rewriting batches.
+        String body = statement.trim();
+        if (body.endsWith(";")) {
+            body = body.substring(0, body.length() - 1);
+        }
+        this.insertSQL = new String[Conflict.values().length];
+        insertSQL[Conflict.ERROR.ordinal()] = "INSERT INTO " + tablePath + body;
+        insertSQL[Conflict.IGNORE.ordinal()] =
+                "INSERT IGNORE INTO " + tablePath + body;
+
+        // Without the column names there is nothing to update, so the row is
+        // skipped instead.
+        Matcher columns = COLUMNS_INSERT.matcher(body);
+        insertSQL[Conflict.UPDATE.ordinal()] = columns.matches()
+                ? insertSQL[Conflict.ERROR.ordinal()]
+                    + updateClause(columns.group(1))
+                : insertSQL[Conflict.IGNORE.ordinal()];
+
+        // Fields are tab separated and lines end in a newline, escaped with a
+        // backslash. The bytes are loaded as they are.
+        columns = PLACEHOLDER_INSERT.matcher(body);
+        if (columns.matches()) {
+            String into = " INTO TABLE " + tablePath
+                    + " CHARACTER SET binary (" + columns.group(1).trim() + ")";
+
+            this.loadSQL = new String[Conflict.values().length];
+            loadSQL[Conflict.ERROR.ordinal()] = LOAD_DATA + into;
+            loadSQL[Conflict.IGNORE.ordinal()] = LOAD_DATA + " IGNORE" + into;
+            loadSQL[Conflict.UPDATE.ordinal()] = LOAD_DATA + " REPLACE" + into;
+        } else {
+            this.loadSQL = null;
+        }
+
+        int doubles = 0;
+        int ints = 0;
+        int bytes = 0;
+
+        if (parameterTypes == null) {
+            this.parameterTypes = null;
+            this.parameterSlots = null;
+        } else {
+            this.parameterTypes = parameterTypes.clone();
+            this.parameterSlots = new int[parameterTypes.length];
+
+            for (int i = 0; i < parameterTypes.length; i++) {
+                switch (parameterTypes[i]) {
+                    case Types.DOUBLE:
+                        parameterSlots[i] = doubles++;
+                        break;
+                    case Types.INTEGER:
+                        parameterSlots[i] = ints++;
+                        break;
+                    case Types.BLOB:
+                        parameterSlots[i] = bytes++;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unsupported "
+                                + "parameter type " + parameterTypes[i] + ".");
+                }
+            }
+        }
+
+        this.doubleCount = doubles;
+        this.intCount = ints;
+        this.bytesCount = bytes;
+    }
+
+    /**
+     * @return the name of the table.
+     */
+    public String getTable() {
+        return table;
+    }
+
+    /**
+     * @return the schema the table belongs to.
+     */
+    public String getDatabase() {
+        return database;
+    }
+
+    /**
+     * @return the table location as "database.table".
+     */
+    public String getTablePath() {
+        return tablePath;
+    }
+
+    /**
+     * @return the mapping of column names to column types that define the
+     *         basic structure of the table.
+     */
+    public Map<String, String> getTableDefinition() {
+        return tableDefinition;
+    }
+
+    /**
+     * @return the body of the SQL creation statement that should be used to
+     *         create the table if it doesn't exist.
+     */
+    public String getTableCreation() {
+        return tableCreation;
+    }
+
+    /**
+     * @return the body of the SQL insert statement.
+     */
+    public String getStatement() {
+        return statement;
+    }
+
+    /**
+     * @return the full SQL insert statement without a trailing semicolon.
+     */
+    public String getInsertSQL() {
+        return getInsertSQL(Conflict.ERROR);
+    }
+
+    /**
+     * @param conflict what to do with a row whose key is already in the table.
+     * @return the full SQL insert statement without a trailing semicolon.
+     */
+    public String getInsertSQL(Conflict conflict) {
+        return insertSQL[conflict.ordinal()];
+    }
+
+    /**
+     * @param conflict what to do with a row whose key is already in the table.
+     * @return the SQL to bulk load tab separated rows from a stream into the
+     *         table, or null if the insert statement can not be bulk loaded.
+     */
+    public String getLoadSQL(Conflict conflict) {
+        return (loadSQL == null) ? null : loadSQL[conflict.ordinal()];
+    }
+
+    /**
+     * @param columns the comma separated names of the inserted columns.
+     * @return an {@code ON DUPLICATE KEY UPDATE} clause that sets each column
+     *         to its inserted value.
+     */
+    private static String updateClause(String columns) {
+        StringBuilder clause = new StringBuilder(" ON DUPLICATE KEY UPDATE ");
+        String[] names = columns.split(",");
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i].trim();
+            if (i > 0) {
+                clause.append(", ");
+            }
+            clause.append(name).append("=VALUES(").append(name).append(")");
+        }
+        return clause.toString();
+    }
+
+    /**
+     * @return true if the descriptor gives the types of its parameters.
+     */
+    public boolean isTyped() {
+        return parameterTypes != null;
+    }
+
+    /**
+     * @return the number of typed parameters.
+     */
+    public int getParameterCount() {
+        return parameterTypes.length;
+    }
+
+    /**
+     * @param index the parameter index, starting at 1.
+     * @return the {@link Types} of the parameter.
+     */
+    public int getParameterType(int index) {
+        return parameterTypes[index - 1];
+    }
+
+    /**
+     * @param index the parameter index, starting at 1.
+     * @return the index of the parameter in the row array for its type.
+     */
+    int getParameterSlot(int index) {
+        return parameterSlots[index - 1];
+    }
+
+    /**
+     * @return the number of {@link Types#DOUBLE} parameters.
+     */
+    int getDoubleCount() {
+        return doubleCount;
+    }
+
+    /**
+     * @return the number of {@link Types#INTEGER} parameters.
+     */
+    int getIntCount() {
+        return intCount;
+    }
+
+    /**
+     * @return the number of {@link Types#BLOB} parameters.
+     */
+    int getBytesCount() {
+        return bytesCount;
+    }
+
+    /**
+     * @param parameterTypes parameter types to compare with.
+     * @return true if the descriptor has the same parameter types.
+     */
+    boolean hasParameterTypes(int[] parameterTypes) {
+        return Arrays.equals(this.parameterTypes, parameterTypes);
+    }
+}
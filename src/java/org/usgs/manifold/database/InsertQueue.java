@@ -0,0 +1,426 @@
+package org.usgs.manifold.database;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free queue of {@link DatabaseInsertStatement}s handed from
+ * the connection threads to a {@link DatabaseInsertThread}.
+ *
+ * <p>
+ * The queue is a ring of slots, each with a sequence number that says whether
+ * the slot is ready to be written or read (after Dmitry Vyukov's bounded
+ * MPMC queue). Producers and consumers claim slots with a compare and set on
+ * the tail or head counter, so no locks are taken on the way in or out. Any
+ * number of threads may offer and poll, but only one thread may wait in
+ * {@link #take()} or {@link #poll(long, TimeUnit)} at a time.
+ *
+ * <p>
+ * What happens when the queue is full is chosen by an {@link Overflow}
+ * policy. The queue counts the statements affected by each policy and keeps
+ * the highest number of statements it has held since the count was last
+ * reset.
+ *
+ */
+public class InsertQueue {
+
+    /** What to do with a statement offered to a full queue. */
+    public enum Overflow {
+
+        /** Discard the statement being offered. */
+        DROP_NEWEST,
+
+        /** Discard the oldest statement in the queue to make room. */
+        DROP_OLDEST,
+
+        /** Wait for room, discarding the statement if none is made in time. */
+        BLOCK,
+
+        /** Append the statement to the {@link DatabaseSpool}. */
+        SPILL;
+
+        /**
+         * @param name a policy name such as "drop-oldest".
+         * @return the policy, or null if the name is unknown.
+         */
+        public static Overflow forName(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase().replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    /** Nanoseconds to park between attempts while blocked on a full queue. */
+    private static final long BLOCK_PARK = 100000L;
+
+    /** The slots, a power of two in number. */
+    private final AtomicReferenceArray<DatabaseInsertStatement> slots;
+
+    /** The sequence number of each slot. */
+    private final AtomicLongArray sequences;
+
+    /** Masks a position to a slot index. */
+    private final int mask;
+
+    /** The position of the next slot to write. */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** The position of the next slot to read. */
+    private final AtomicLong head = new AtomicLong();
+
+    /** The thread waiting for a statement, or null. */
+    private volatile Thread waiter;
+
+    /** The policy used when the queue is full. */
+    private final Overflow overflow;
+
+    /** Nanoseconds to wait for room under {@link Overflow#BLOCK}. */
+    private final long blockTimeout;
+
+    /** Holds statements under {@link Overflow#SPILL}. May be null. */
+    private final DatabaseSpool spool;
+
+    /** Metrics. */
+    private final AtomicInteger highWaterMark = new AtomicInteger();
+    private final AtomicLong droppedNewest = new AtomicLong();
+    private final AtomicLong droppedOldest = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+
+    /**
+     * @param capacity the minimum number of statements the queue can hold. It
+     *        is rounded up to a power of two.
+     * @param overflow the policy used when the queue is full.
+     * @param blockTimeout the milliseconds to wait for room under
+     *        {@link Overflow#BLOCK}.
+     * @param spool the spool used under {@link Overflow#SPILL}. If it is null
+     *        statements are discarded instead.
+     */
+    public InsertQueue(int capacity, Overflow overflow, long blockTimeout,
+            DatabaseSpool spool) {
+
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("The queue capacity must be "
+                    + "between 1 and 2^30.");
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+
+        this.slots = new AtomicReferenceArray<DatabaseInsertStatement>(size);
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+
+        this.overflow = overflow;
+        this.blockTimeout = TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+        this.spool = spool;
+    }
+
+    /**
+     * Add a statement to the queue, applying the overflow policy if the queue
+     * is full.
+     *
+     * @param statement the statement to add.
+     * @return true if the statement was queued or spilled to the spool, false
+     *         if it was discarded.
+     */
+    public boolean offer(DatabaseInsertStatement statement) {
+        return offer(statement, true);
+    }
+
+    /**
+     * Add a statement to the queue, applying the overflow policy if the queue
+     * is full. If blocking is not allowed {@link Overflow#BLOCK} discards the
+     * statement straight away, as there is no point waiting for a writer that
+     * can't reach the database.
+     *
+     * @param statement the statement to add.
+     * @param block false to never wait for room.
+     * @return true if the statement was queued or spilled to the spool, false
+     *         if it was discarded.
+     */
+    public boolean offer(DatabaseInsertStatement statement, boolean block) {
+
+        if (tryOffer(statement)) {
+            return true;
+        }
+
+        switch (overflow) {
+            case DROP_OLDEST:
+                // Keep making room until the new statement fits.
+                do {
+                    if (poll() != null) {
+                        droppedOldest.incrementAndGet();
+                    }
+                } while (!tryOffer(statement));
+                return true;
+
+            case BLOCK:
+                if (!block) {
+                    droppedNewest.incrementAndGet();
+                    return false;
+                }
+                blocked.incrementAndGet();
+                long deadline = System.nanoTime() + blockTimeout;
+                while (System.nanoTime() - deadline < 0) {
+                    LockSupport.parkNanos(this, BLOCK_PARK);
+                    if (tryOffer(statement)) {
+                        return true;
+                    }
+                }
+                timedOut.incrementAndGet();
+                return false;
+
+            case SPILL:
+                if (spool != null && spool.append(statement)) {
+                    spilled.incrementAndGet();
+                    return true;
+                }
+                droppedNewest.incrementAndGet();
+                return false;
+
+            default:
+                droppedNewest.incrementAndGet();
+                return false;
+        }
+    }
+
+    /**
+     * Add a statement to the queue if there is room, without applying the
+     * overflow policy.
+     *
+     * @param statement the statement to add.
+     * @return true if the statement was queued, false if the queue is full.
+     */
+    public boolean tryOffer(DatabaseInsertStatement statement) {
+
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.set(index, statement);
+                    sequences.set(index, position + 1);
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+
+        int size = size();
+        int high = highWaterMark.get();
+        while (size > high && !highWaterMark.compareAndSet(high, size)) {
+            high = highWaterMark.get();
+        }
+
+        Thread waiting = waiter;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+        return true;
+    }
+
+    /**
+     * @return the oldest statement in the queue, or null if it is empty.
+     */
+    public DatabaseInsertStatement poll() {
+
+        long position = head.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    DatabaseInsertStatement statement = slots.get(index);
+                    slots.set(index, null);
+                    sequences.set(index, position + mask + 1);
+                    return statement;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * Wait for a statement.
+     *
+     * @param timeout how long to wait.
+     * @param unit the unit of the timeout.
+     * @return the oldest statement, or null if none arrived in time.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public DatabaseInsertStatement poll(long timeout, TimeUnit unit)
+            throws InterruptedException {
+
+        DatabaseInsertStatement statement = poll();
+        if (statement != null) {
+            return statement;
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        waiter = Thread.currentThread();
+        try {
+            while ((statement = poll()) == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            return statement;
+        } finally {
+            waiter = null;
+        }
+    }
+
+    /**
+     * Wait for a statement for as long as it takes.
+     *
+     * @return the oldest statement.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public DatabaseInsertStatement take() throws InterruptedException {
+
+        DatabaseInsertStatement statement = poll();
+        if (statement != null) {
+            return statement;
+        }
+
+        waiter = Thread.currentThread();
+        try {
+            while ((statement = poll()) == null) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            return statement;
+        } finally {
+            waiter = null;
+        }
+    }
+
+    /**
+     * Move statements from the queue to a collection without waiting.
+     *
+     * @param batch the collection to add the statements to.
+     * @param max the maximum number of statements to move.
+     * @return the number of statements moved.
+     */
+    public int drainTo(Collection<? super DatabaseInsertStatement> batch,
+            int max) {
+
+        int count = 0;
+        DatabaseInsertStatement statement;
+        while (count < max && (statement = poll()) != null) {
+            batch.add(statement);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of statements in the queue. This may be out of date
+     *         by the time it is used.
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    /**
+     * @return the number of statements the queue can hold.
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return the number of statements that can be added before the queue is
+     *         full.
+     */
+    public int remainingCapacity() {
+        return capacity() - size();
+    }
+
+    /**
+     * @return the policy used when the queue is full.
+     */
+    public Overflow getOverflow() {
+        return overflow;
+    }
+
+    /**
+     * @return the highest number of statements held since the last call.
+     */
+    public int getAndResetHighWaterMark() {
+        return highWaterMark.getAndSet(size());
+    }
+
+    /**
+     * @return the number of new statements discarded because the queue was
+     *         full and could not spill them.
+     */
+    public long getDroppedNewest() {
+        return droppedNewest.get();
+    }
+
+    /**
+     * @return the number of old statements discarded to make room under
+     *         {@link Overflow#DROP_OLDEST}.
+     */
+    public long getDroppedOldest() {
+        return droppedOldest.get();
+    }
+
+    /**
+     * @return the number of offers that had to wait under
+     *         {@link Overflow#BLOCK}.
+     */
+    public long getBlocked() {
+        return blocked.get();
+    }
+
+    /**
+     * @return the number of statements discarded after waiting too long under
+     *         {@link Overflow#BLOCK}.
+     */
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+    /**
+     * @return the number of statements appended to the spool under
+     *         {@link Overflow#SPILL}.
+     */
+    public long getSpilled() {
+        return spilled.get();
+    }
+}
@@ -0,0 +1,578 @@
+package org.usgs.manifold.database;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.dbutils.QueryRunner;
+import org.apache.commons.dbutils.ResultSetHandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.usgs.manifold.utilities.Time;
+
+/**
+ * Keeps the station tables split into MySQL {@code RANGE} partitions on
+ * {@code j2ksec}, one partition per day, week, month or year, so that the
+ * indexes and the cost of an insert stay the same size however many years of
+ * data a table holds.
+ *
+ * <p>
+ * New tables are created with a partition for the current period, the next
+ * few periods and a {@code pmax} partition for anything later. Once an hour
+ * the partitions for the coming periods are split off {@code pmax} before
+ * data arrives for them, and partitions older than the retention are dropped
+ * or archived to a table of their own.
+ *
+ * <p>
+ * MySQL can only partition on an exact number, so new tables store
+ * {@code j2ksec} as a {@code DECIMAL} rather than a {@code DOUBLE} and are
+ * partitioned on {@code FLOOR(j2ksec)}. Existing tables that are not
+ * partitioned are left alone and logged once, since converting them means
+ * rebuilding the whole table.
+ *
+ */
+public class PartitionManager extends Thread {
+
+    private static Logger log =
+            LoggerFactory.getLogger(PartitionManager.class);
+
+    /** The length of each partition. */
+    public enum Period {
+
+        /** Tables are not partitioned. */
+        NONE,
+
+        /** One partition per day. */
+        DAY,
+
+        /** One partition per week, starting on Monday. */
+        WEEK,
+
+        /** One partition per month. */
+        MONTH,
+
+        /** One partition per year. */
+        YEAR;
+
+        /**
+         * @param name a period name such as "month".
+         * @return the period, or null if the name is unknown.
+         */
+        public static Period forName(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    /** Milliseconds between maintenance runs. */
+    private static final int MAINTENANCE_INTERVAL = 3600000;
+
+    /** The partition that holds everything after the last period. */
+    private static final String MAX_PARTITION = "pmax";
+
+    /** The column the tables are partitioned on, as a double. */
+    private static final Pattern TIME_COLUMN = Pattern.compile(
+            "\\bj2ksec\\s+DOUBLE\\b", Pattern.CASE_INSENSITIVE);
+
+    /** The exact type the partitioned column is stored as. */
+    private static final String TIME_COLUMN_TYPE = "j2ksec DECIMAL(16,6)";
+
+    /** The length of each partition. */
+    private final Period period;
+
+    /** The number of periods after the current one to create ahead. */
+    private final int ahead;
+
+    /** The number of periods before the current one to keep, or 0. */
+    private final int retention;
+
+    /** Archive expired partitions rather than drop them. */
+    private final boolean archive;
+
+    /** The pool to borrow connections from. */
+    private final ConnectionPool connectionPool;
+
+    /** Lists the tables to maintain. */
+    private final TableValidator tableValidator;
+
+    /** Tables already logged as not partitioned. */
+    private final Set<String> unpartitioned = new HashSet<String>();
+
+    /** Used to run the metadata queries and the DDL. */
+    private final QueryRunner runQuery = new QueryRunner();
+
+    /** Specifies if the thread should be stopped. */
+    private volatile boolean run;
+
+    /**
+     * @param period the length of each partition. Must not be
+     *        {@link Period#NONE}.
+     * @param ahead the number of periods after the current one to create
+     *        partitions for ahead of time.
+     * @param retention the number of whole periods before the current one to
+     *        keep, or 0 to keep everything.
+     * @param archive true to move expired partitions to tables of their own,
+     *        false to drop them.
+     * @param connectionPool the pool to borrow connections from.
+     * @param tableValidator lists the tables to maintain.
+     */
+    PartitionManager(Period period, int ahead, int retention,
+            boolean archive, ConnectionPool connectionPool,
+            TableValidator tableValidator) {
+
+        super("PartitionManager");
+        this.period = period;
+        this.ahead = ahead;
+        this.retention = retention;
+        this.archive = archive;
+        this.connectionPool = connectionPool;
+        this.tableValidator = tableValidator;
+        this.run = true;
+        setDaemon(true);
+    }
+
+    /**
+     * Add the partitioning to the body of a create table statement. The
+     * {@code j2ksec} column is changed to a {@code DECIMAL} and the table is
+     * split into partitions from the current period to {@code ahead} periods
+     * after it, plus {@code pmax}. Earlier rows go in the first partition.
+     *
+     * @param tableCreation the body of the create table statement.
+     * @return the partitioned body, or the body as it is if the table has no
+     *         {@code j2ksec DOUBLE} column.
+     */
+    String partitionCreation(String tableCreation) {
+
+        Matcher column = TIME_COLUMN.matcher(tableCreation);
+        if (!column.find()) {
+            return tableCreation;
+        }
+
+        StringBuilder creation = new StringBuilder(
+                column.replaceFirst(TIME_COLUMN_TYPE));
+        creation.append(" PARTITION BY RANGE (FLOOR(j2ksec)) (");
+
+        Calendar start = periodStart(System.currentTimeMillis());
+        for (int i = 0; i <= ahead; i++) {
+            appendPartition(creation, start);
+            creation.append(", ");
+        }
+        creation.append("PARTITION ").append(MAX_PARTITION)
+                .append(" VALUES LESS THAN MAXVALUE)");
+
+        return creation.toString();
+    }
+
+    @Override
+    public void run() {
+
+        while (run) {
+            try {
+                maintainWithPool();
+                Thread.sleep(MAINTENANCE_INTERVAL);
+            } catch (InterruptedException e) {/*don't care*/
+            }
+        }
+    }
+
+    /**
+     * Maintain the partitions of the valid tables on a connection from the
+     * pool.
+     *
+     * @throws InterruptedException if interrupted while waiting for a
+     *         connection.
+     */
+    private void maintainWithPool() throws InterruptedException {
+
+        if (!connectionPool.isHealthy()) {
+            return;
+        }
+
+        CachedConnection connection;
+        try {
+            connection = connectionPool.getConnection();
+        } catch (SQLException e) {
+            log.warn("Could not connect to the database to maintain "
+                    + "partitions.", e);
+            return;
+        }
+
+        try {
+            maintain(connection.getConnection(),
+                    tableValidator.getValidTables());
+            connectionPool.release(connection);
+        } catch (SQLException e) {
+            log.warn("Could not maintain the table partitions.", e);
+            connectionPool.invalidate(connection);
+        }
+    }
+
+    /**
+     * Create the coming partitions and expire the old ones of each table.
+     *
+     * @param dbConnection the connection to use.
+     * @param descriptors the tables to maintain.
+     * @throws SQLException if the partitions could not be listed.
+     */
+    void maintain(Connection dbConnection,
+            Collection<InsertDescriptor> descriptors) throws SQLException {
+
+        if (descriptors.isEmpty()) {
+            return;
+        }
+
+        Set<String> databases = new HashSet<String>();
+        for (InsertDescriptor descriptor : descriptors) {
+            databases.add(descriptor.getDatabase());
+        }
+
+        StringBuilder in = new StringBuilder("(");
+        for (int i = 0; i < databases.size(); i++) {
+            in.append(i == 0 ? "?" : ",?");
+        }
+        in.append(")");
+
+        Map<String, List<Partition>> partitions = runQuery.query(dbConnection,
+                "SELECT TABLE_SCHEMA, TABLE_NAME, PARTITION_NAME, "
+                + "PARTITION_DESCRIPTION FROM INFORMATION_SCHEMA.PARTITIONS "
+                + "WHERE TABLE_SCHEMA IN " + in, new PartitionResultSet(),
+                databases.toArray());
+
+        long now = System.currentTimeMillis();
+        for (InsertDescriptor descriptor : descriptors) {
+            String tablePath = descriptor.getTablePath();
+            List<Partition> existing = partitions.get(tablePath);
+
+            if (existing == null) {
+                continue;
+            }
+            if (existing.get(0).name == null) {
+                if (unpartitioned.add(tablePath)) {
+                    log.warn("The table '{}' is not partitioned and will not "
+                            + "be maintained.", tablePath);
+                }
+                continue;
+            }
+
+            try {
+                createAhead(dbConnection, tablePath, existing, now);
+                if (retention > 0) {
+                    expire(dbConnection, descriptor, existing, now);
+                }
+            } catch (SQLException e) {
+                log.warn("Could not maintain the partitions of '{}'.",
+                        tablePath, e);
+            }
+        }
+    }
+
+    /**
+     * Split the partitions for the current period up to {@code ahead} periods
+     * after it off {@code pmax}, or add them if there is no {@code pmax}.
+     *
+     * @param dbConnection the connection to use.
+     * @param tablePath the table.
+     * @param existing the partitions of the table.
+     * @param now the current time in milliseconds since 1970.
+     * @throws SQLException if the partitions could not be created.
+     */
+    private void createAhead(Connection dbConnection, String tablePath,
+            List<Partition> existing, long now) throws SQLException {
+
+        long highest = Long.MIN_VALUE;
+        boolean hasMax = false;
+        for (Partition partition : existing) {
+            if (partition.isMax()) {
+                hasMax = true;
+            } else {
+                highest = Math.max(highest, partition.bound);
+            }
+        }
+
+        StringBuilder created = new StringBuilder();
+        Calendar start = periodStart(now);
+        for (int i = 0; i <= ahead; i++) {
+            Calendar end = nextPeriod((Calendar) start.clone());
+
+            if (j2kseconds(end) > highest) {
+                if (created.length() > 0) {
+                    created.append(", ");
+                }
+                appendPartition(created, start);
+            } else {
+                nextPeriod(start);
+            }
+        }
+
+        if (created.length() == 0) {
+            return;
+        }
+
+        if (hasMax) {
+            runQuery.update(dbConnection, "ALTER TABLE " + tablePath
+                    + " REORGANIZE PARTITION " + MAX_PARTITION + " INTO ("
+                    + created + ", PARTITION " + MAX_PARTITION
+                    + " VALUES LESS THAN MAXVALUE)");
+        } else {
+            runQuery.update(dbConnection, "ALTER TABLE " + tablePath
+                    + " ADD PARTITION (" + created + ")");
+        }
+        log.info("Created partitions ({}) of '{}'.", created, tablePath);
+    }
+
+    /**
+     * Drop or archive the partitions that only hold rows from before the
+     * retention.
+     *
+     * @param dbConnection the connection to use.
+     * @param descriptor the table.
+     * @param existing the partitions of the table.
+     * @param now the current time in milliseconds since 1970.
+     * @throws SQLException if the partitions could not be dropped.
+     */
+    private void expire(Connection dbConnection, InsertDescriptor descriptor,
+            List<Partition> existing, long now) throws SQLException {
+
+        Calendar cutoff = periodStart(now);
+        for (int i = 0; i < retention; i++) {
+            previousPeriod(cutoff);
+        }
+        long oldest = j2kseconds(cutoff);
+
+        String tablePath = descriptor.getTablePath();
+        List<String> expired = new ArrayList<String>();
+        for (Partition partition : existing) {
+            if (!partition.isMax() && partition.bound <= oldest) {
+                if (!archive || archive(dbConnection, descriptor, partition)) {
+                    expired.add(partition.name);
+                }
+            }
+        }
+
+        // A table must keep at least one partition.
+        if (expired.isEmpty() || expired.size() == existing.size()) {
+            return;
+        }
+
+        StringBuilder names = new StringBuilder();
+        for (String name : expired) {
+            if (names.length() > 0) {
+                names.append(", ");
+            }
+            names.append(name);
+        }
+
+        runQuery.update(dbConnection, "ALTER TABLE " + tablePath
+                + " DROP PARTITION " + names);
+        log.info("{} partitions ({}) of '{}'.", new Object[]{
+            archive ? "Archived" : "Dropped", names, tablePath});
+    }
+
+    /**
+     * Move the rows of a partition to a new table named after the table and
+     * the partition, leaving the partition empty.
+     *
+     * @param dbConnection the connection to use.
+     * @param descriptor the table.
+     * @param partition the partition to archive.
+     * @return true if the partition was archived, false if the archive table
+     *         already exists or the rows could not be moved.
+     */
+    private boolean archive(Connection dbConnection,
+            InsertDescriptor descriptor, Partition partition) {
+
+        String tablePath = descriptor.getTablePath();
+        String archivePath = tablePath + "_" + partition.name;
+
+        try {
+            runQuery.update(dbConnection, "CREATE TABLE " + archivePath
+                    + " LIKE " + tablePath);
+            runQuery.update(dbConnection, "ALTER TABLE " + archivePath
+                    + " REMOVE PARTITIONING");
+            runQuery.update(dbConnection, "ALTER TABLE " + tablePath
+                    + " EXCHANGE PARTITION " + partition.name
+                    + " WITH TABLE " + archivePath);
+            return true;
+
+        } catch (SQLException e) {
+            log.warn("Could not archive the partition {} of '{}' to '{}'.",
+                    new Object[]{partition.name, tablePath, archivePath, e});
+            return false;
+        }
+    }
+
+    /**
+     * Append the definition of the partition for the period starting at
+     * {@code start} and move {@code start} on to the next period.
+     *
+     * @param definitions the partition definitions to append to.
+     * @param start the start of the period.
+     */
+    private void appendPartition(StringBuilder definitions, Calendar start) {
+        String name = partitionName(start);
+        long bound = j2kseconds(nextPeriod(start));
+
+        definitions.append("PARTITION ").append(name)
+                .append(" VALUES LESS THAN (").append(bound).append(")");
+    }
+
+    /**
+     * @param start the start of a period.
+     * @return the name of the partition for the period, such as "p201001".
+     */
+    private String partitionName(Calendar start) {
+        int year = start.get(Calendar.YEAR);
+        int month = start.get(Calendar.MONTH) + 1;
+        int day = start.get(Calendar.DAY_OF_MONTH);
+
+        switch (period) {
+            case YEAR:
+                return String.format("p%04d", year);
+            case MONTH:
+                return String.format("p%04d%02d", year, month);
+            default:
+                return String.format("p%04d%02d%02d", year, month, day);
+        }
+    }
+
+    /**
+     * @param time milliseconds since 1970.
+     * @return the start of the period holding the time, in UTC.
+     */
+    private Calendar periodStart(long time) {
+        Calendar start = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        start.setTimeInMillis(time);
+        start.set(Calendar.HOUR_OF_DAY, 0);
+        start.set(Calendar.MINUTE, 0);
+        start.set(Calendar.SECOND, 0);
+        start.set(Calendar.MILLISECOND, 0);
+
+        switch (period) {
+            case YEAR:
+                start.set(Calendar.DAY_OF_YEAR, 1);
+                break;
+            case MONTH:
+                start.set(Calendar.DAY_OF_MONTH, 1);
+                break;
+            case WEEK:
+                int sinceMonday = (start.get(Calendar.DAY_OF_WEEK)
+                        - Calendar.MONDAY + 7) % 7;
+                start.add(Calendar.DAY_OF_MONTH, -sinceMonday);
+                break;
+            default:
+        }
+        return start;
+    }
+
+    /**
+     * @param start the start of a period, which is moved on to the start of
+     *        the next period.
+     * @return {@code start}.
+     */
+    private Calendar nextPeriod(Calendar start) {
+        start.add(field(), period == Period.WEEK ? 7 : 1);
+        return start;
+    }
+
+    /**
+     * @param start the start of a period, which is moved back to the start of
+     *        the previous period.
+     * @return {@code start}.
+     */
+    private Calendar previousPeriod(Calendar start) {
+        start.add(field(), period == Period.WEEK ? -7 : -1);
+        return start;
+    }
+
+    /**
+     * @return the calendar field a period is counted in.
+     */
+    private int field() {
+        switch (period) {
+            case YEAR:
+                return Calendar.YEAR;
+            case MONTH:
+                return Calendar.MONTH;
+            default:
+                return Calendar.DAY_OF_MONTH;
+        }
+    }
+
+    /**
+     * @param time a time.
+     * @return the time in J2K seconds.
+     */
+    private static long j2kseconds(Calendar time) {
+        return Time.toJ2KSeconds(time.getTimeInMillis());
+    }
+
+    /**
+     * Stop the thread after it completes its current loop.
+     */
+    public void stopRun() {
+        run = false;
+    }
+
+    /** A partition of a table. */
+    private static class Partition {
+
+        /** The name, or null if the table is not partitioned. */
+        final String name;
+
+        /** The upper bound, or {@code Long.MAX_VALUE} for MAXVALUE. */
+        final long bound;
+
+        Partition(String name, String description) {
+            this.name = name;
+            this.bound = (description == null
+                    || description.equalsIgnoreCase("MAXVALUE"))
+                    ? Long.MAX_VALUE : Long.parseLong(description.trim());
+        }
+
+        boolean isMax() {
+            return bound == Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Reads the partitions of each table, keyed by table path.
+     */
+    private static class PartitionResultSet
+            implements ResultSetHandler<Map<String, List<Partition>>> {
+
+        public Map<String, List<Partition>> handle(ResultSet data)
+                throws SQLException {
+
+            Map<String, List<Partition>> tables =
+                    new HashMap<String, List<Partition>>();
+
+            while (data.next()) {
+                String tablePath = data.getString(1) + "." + data.getString(2);
+                List<Partition> partitions = tables.get(tablePath);
+                if (partitions == null) {
+                    partitions = new ArrayList<Partition>();
+                    tables.put(tablePath, partitions);
+                }
+                partitions.add(new Partition(data.getString(3),
+                        data.getString(4)));
+            }
+            return tables;
+        }
+    }
+}
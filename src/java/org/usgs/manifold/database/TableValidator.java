@@ -0,0 +1,368 @@
+package org.usgs.manifold.database;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.commons.dbutils.QueryRunner;
+import org.apache.commons.dbutils.ResultSetHandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates and validates the tables that the {@link DatabaseInsertThread}s
+ * insert into, and remembers the result for every writer and across
+ * reconnects.
+ *
+ * <p>
+ * The tables that are known from the configuration are validated together,
+ * with one query for the schemas, one for the existing tables and one batch
+ * of {@code CREATE TABLE IF NOT EXISTS} statements for the missing tables.
+ * This is done at startup and again in the background whenever the
+ * {@link ConnectionPool} reconnects, so inserts only wait on metadata queries
+ * for a table the first time it is seen if it was not known in advance.
+ *
+ * <p>
+ * If a {@link PartitionManager} is set, new tables are created with its
+ * partitions.
+ *
+ */
+public class TableValidator {
+
+    private static Logger log = LoggerFactory.getLogger(TableValidator.class);
+
+    /** The validation result of each table path. */
+    private final ConcurrentHashMap<String, Boolean> tables =
+            new ConcurrentHashMap<String, Boolean>();
+
+    /** The tables to validate in bulk, keyed by table path. */
+    private final ConcurrentHashMap<String, InsertDescriptor> known =
+            new ConcurrentHashMap<String, InsertDescriptor>();
+
+    /** The pool to borrow connections from for background validation. */
+    private final ConnectionPool connectionPool;
+
+    /** Set while a background validation is running. */
+    private final AtomicBoolean validating = new AtomicBoolean();
+
+    /** Adds partitions to new tables, or null. */
+    private volatile PartitionManager partitionManager;
+
+    /** Used to run the metadata queries. */
+    private final QueryRunner runQuery = new QueryRunner();
+
+    /**
+     * @param connectionPool the pool to borrow connections from for
+     *        background validation.
+     */
+    public TableValidator(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    /**
+     * Add tables to validate at startup and after every reconnect.
+     *
+     * @param descriptors the tables.
+     */
+    public void addKnownTables(Collection<InsertDescriptor> descriptors) {
+        for (InsertDescriptor descriptor : descriptors) {
+            known.putIfAbsent(descriptor.getTablePath(), descriptor);
+        }
+    }
+
+    /**
+     * @param partitionManager adds partitions to the tables created from now
+     *        on, or null to create them unpartitioned.
+     */
+    public void setPartitionManager(PartitionManager partitionManager) {
+        this.partitionManager = partitionManager;
+    }
+
+    /**
+     * @return the known tables that have been found to be valid.
+     */
+    public List<InsertDescriptor> getValidTables() {
+        List<InsertDescriptor> valid = new ArrayList<InsertDescriptor>();
+        for (InsertDescriptor descriptor : known.values()) {
+            if (Boolean.TRUE.equals(tables.get(descriptor.getTablePath()))) {
+                valid.add(descriptor);
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * @param descriptor a table.
+     * @return the body of the statement to create the table with.
+     */
+    private String tableCreation(InsertDescriptor descriptor) {
+        PartitionManager partitions = partitionManager;
+        return (partitions == null) ? descriptor.getTableCreation()
+                : partitions.partitionCreation(descriptor.getTableCreation());
+    }
+
+    /**
+     * Checks to see if the table exists and matches the given table
+     * definition. If the table does not exist it is created and validated.
+     * Tables are only validated once. Tables changed after that will not be
+     * re-evaluated until the next reconnect and may cause errors. This also
+     * goes for tables marked as invalid.
+     *
+     * @param dbConnection the connection to use if the table has not been
+     *        validated yet.
+     * @param descriptor the table to check, its 'definition' and the body of
+     *        the SQL creation statement to use to create it if it doesn't
+     *        exist.
+     * @return true if the table was found to be valid, false if the table or
+     *         database is not valid.
+     */
+    public boolean validate(Connection dbConnection,
+            InsertDescriptor descriptor) {
+
+        Boolean valid = tables.get(descriptor.getTablePath());
+        if (valid != null) {
+            return valid;
+        }
+
+        // Check it again after the next reconnect as well.
+        known.putIfAbsent(descriptor.getTablePath(), descriptor);
+        return validateTable(dbConnection, descriptor);
+    }
+
+    /**
+     * Validate a single table.
+     *
+     * @param dbConnection the connection to use.
+     * @param descriptor the table to validate.
+     * @return true if the table was found to be valid.
+     */
+    private boolean validateTable(Connection dbConnection,
+            InsertDescriptor descriptor) {
+
+        String table = descriptor.getTable();
+        String database = descriptor.getDatabase();
+        String tablePath = descriptor.getTablePath();
+
+        try {
+            /* Test if the database is valid. This is checked here for security
+             * reasons since the database comes from user input and the create
+             * table statement uses it directly. */
+            String statement = "SELECT TABLE_SCHEMA FROM "
+                    + "INFORMATION_SCHEMA.TABLES "
+                    + "WHERE TABLE_SCHEMA = ?;";
+
+            SchemaResultSet schemaResultSet = new SchemaResultSet();
+            boolean isValidSchema = runQuery.query(dbConnection, statement,
+                    schemaResultSet, database);
+
+            if (isValidSchema) {
+
+                runQuery.update(dbConnection,
+                        "CREATE TABLE IF NOT EXISTS " + tablePath + " "
+                        + tableCreation(descriptor) + ";");
+
+                /* Test to see if the table is valid. */
+                statement = "SELECT COLUMN_NAME, DATA_TYPE "
+                        + "FROM INFORMATION_SCHEMA.COLUMNS "
+                        + "WHERE TABLE_NAME  = ? "
+                        + "AND TABLE_SCHEMA = ?;";
+
+                SingleTableResultSet tableResultSet = new SingleTableResultSet(
+                        descriptor.getTableDefinition());
+                boolean isValidTable = runQuery.query(dbConnection, statement,
+                        tableResultSet, table, database);
+
+                if (!isValidTable) {
+                    //TODO fix this later os it actualy checks the table.
+                    //log.error("The table '{}' was found to be invalid.",
+                    //    tablePath);
+
+                    //tables.put(tablePath, false);
+                    //return false;
+                }
+                tables.put(tablePath, true);
+                return true;
+            } else {
+                log.error("The schema '{}' was found to be invalid.",
+                        database);
+
+                tables.put(tablePath, false);
+                return false;
+            }
+        } catch (SQLException e) {
+            log.warn("Failed trying to validate the table '{}'.", tablePath,
+                    e);
+            return false;
+        }
+    }
+
+    /**
+     * Create and validate all of the known tables on the given connection,
+     * replacing any earlier results. The statements are committed.
+     *
+     * @param dbConnection the connection to use.
+     * @throws SQLException if the tables could not be checked.
+     */
+    public void validateKnownTables(Connection dbConnection)
+            throws SQLException {
+
+        if (known.isEmpty()) {
+            return;
+        }
+
+        // Every schema used by a known table.
+        Set<String> databases = new HashSet<String>();
+        for (InsertDescriptor descriptor : known.values()) {
+            databases.add(descriptor.getDatabase());
+        }
+
+        StringBuilder in = new StringBuilder("(");
+        for (int i = 0; i < databases.size(); i++) {
+            in.append(i == 0 ? "?" : ",?");
+        }
+        in.append(")");
+        Object[] parameters = databases.toArray();
+
+        Set<String> schemas = runQuery.query(dbConnection,
+                "SELECT SCHEMA_NAME FROM INFORMATION_SCHEMA.SCHEMATA "
+                + "WHERE SCHEMA_NAME IN " + in, new PathResultSet(),
+                parameters);
+        Set<String> existing = runQuery.query(dbConnection,
+                "SELECT TABLE_SCHEMA, TABLE_NAME "
+                + "FROM INFORMATION_SCHEMA.TABLES "
+                + "WHERE TABLE_SCHEMA IN " + in, new PathResultSet(),
+                parameters);
+
+        Statement statement = dbConnection.createStatement();
+        try {
+
+            // Create the missing tables in one batch.
+            Map<String, Boolean> validated =
+                    new LinkedHashMap<String, Boolean>();
+            int created = 0;
+            for (InsertDescriptor descriptor : known.values()) {
+                String tablePath = descriptor.getTablePath();
+
+                if (!schemas.contains(descriptor.getDatabase())) {
+                    validated.put(tablePath, false);
+                    continue;
+                }
+
+                if (!existing.contains(tablePath)) {
+                    statement.addBatch("CREATE TABLE IF NOT EXISTS "
+                            + tablePath + " " + tableCreation(descriptor));
+                    created++;
+                }
+                validated.put(tablePath, true);
+            }
+
+            if (created > 0) {
+                statement.executeBatch();
+            }
+            dbConnection.commit();
+
+            tables.putAll(validated);
+
+            for (String database : databases) {
+                if (!schemas.contains(database)) {
+                    log.error("The schema '{}' was found to be invalid.",
+                            database);
+                }
+            }
+            log.info("Validated {} tables and created {} of them.",
+                    validated.size(), created);
+
+        } finally {
+            DbUtils.closeQuietly(statement);
+        }
+    }
+
+    /**
+     * Reads the rows of a result set into a set of strings, joining the
+     * columns of each row with '.' so that a schema and table name become a
+     * table path.
+     */
+    private static class PathResultSet
+            implements ResultSetHandler<Set<String>> {
+
+        public Set<String> handle(ResultSet data) throws SQLException {
+            int columns = data.getMetaData().getColumnCount();
+            Set<String> paths = new HashSet<String>();
+
+            while (data.next()) {
+                StringBuilder path = new StringBuilder(data.getString(1));
+                for (int i = 2; i <= columns; i++) {
+                    path.append('.').append(data.getString(i));
+                }
+                paths.add(path.toString());
+            }
+            return paths;
+        }
+    }
+
+    /**
+     * Validate all of the known tables on a background thread, unless that is
+     * already being done. Earlier results are used until it finishes.
+     */
+    public void validateKnownTablesLater() {
+
+        if (!validating.compareAndSet(false, true)) {
+            return;
+        }
+
+        Thread thread = new Thread("TableValidator") {
+
+            @Override
+            public void run() {
+                try {
+                    validateWithPool();
+                } finally {
+                    validating.set(false);
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Validate all of the known tables on a connection from the pool.
+     *
+     * @return true if the tables were validated.
+     */
+    public boolean validateWithPool() {
+
+        CachedConnection connection;
+        try {
+            connection = connectionPool.getConnection();
+        } catch (SQLException e) {
+            log.warn("Could not connect to the database to validate tables.",
+                    e);
+            return false;
+        } catch (InterruptedException e) {
+            return false;
+        }
+
+        try {
+            validateKnownTables(connection.getConnection());
+            connectionPool.release(connection);
+            return true;
+        } catch (SQLException e) {
+            log.warn("Could not validate the known tables.", e);
+            connectionPool.invalidate(connection);
+            return false;
+        }
+    }
+}
@@ -13,12 +13,54 @@ public class DefaultFooter {
     /** The string representing the end of packet delimeter. */
     public static final String END_OF_PACKET = "EOP\r\n";
 
+    /** The bytes of the end of packet delimeter. */
+    private static final byte[] END_OF_PACKET_BYTES =
+            END_OF_PACKET.getBytes(Charset.forName("UTF-8"));
+
     /**
      * @return the end of packet delimeter.
      */
     public static ChannelBuffer getDelimeter() {
-        Charset ascii = Charset.forName("UTF-8");
-        return ChannelBuffers.copiedBuffer(END_OF_PACKET.getBytes(ascii));
+        return ChannelBuffers.copiedBuffer(END_OF_PACKET_BYTES);
+    }
+
+    /**
+     * Check if the end of packet delimeter begins at the given index without
+     * modifying the buffer or allocating a delimeter to compare against.
+     *
+     * @param buffer the ChannelBuffer to check.
+     * @param index the absolute index in the buffer to check at.
+     * @return true if the whole delimeter is found at the index.
+     */
+    public static boolean isDelimeter(ChannelBuffer buffer, int index) {
+        if (index < 0
+                || index + END_OF_PACKET_BYTES.length > buffer.writerIndex()) {
+            return false;
+        }
+        for (int i = 0; i < END_OF_PACKET_BYTES.length; i++) {
+            if (buffer.getByte(index + i) != END_OF_PACKET_BYTES[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the first end of packet delimeter in the buffer.
+     *
+     * @param buffer the ChannelBuffer to search.
+     * @param fromIndex the absolute index to start searching from.
+     * @return the absolute index of the delimeter or -1 if it was not found.
+     */
+    public static int indexOf(ChannelBuffer buffer, int fromIndex) {
+        int last = buffer.writerIndex() - END_OF_PACKET_BYTES.length;
+        for (int i = fromIndex; i <= last; i++) {
+            if (buffer.getByte(i) == END_OF_PACKET_BYTES[0]
+                    && isDelimeter(buffer, i)) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     /**
@@ -32,11 +74,9 @@ public class DefaultFooter {
     public static void checkDelimeter(ChannelBuffer buffer)
             throws CorruptedFrameException {
 
-        // Get the ChannelBuffer for the ending delimeter.
-        ChannelBuffer delimeter = getDelimeter();
-
         // Compare the contents.
-        if (delimeter.compareTo(buffer) != 0) {
+        if (buffer.readableBytes() != END_OF_PACKET_BYTES.length
+                || !isDelimeter(buffer, buffer.readerIndex())) {
             throw new CorruptedFrameException("End of packet does not match "
                     + "the required end of packet string.");
         }
@@ -20,6 +20,13 @@ public class DefaultHeader {
     /** The string representing the start of packet delimeter. */
     public static final String START_OF_PACKET = "\r\nSOP";
 
+    /** The number of bytes in the header following the start delimeter. */
+    public static final int LENGTH = 3;
+
+    /** The bytes of the start of packet delimeter. */
+    private static final byte[] START_OF_PACKET_BYTES =
+            START_OF_PACKET.getBytes(Charset.forName("UTF-8"));
+
     /** The type of message the following body of data represents. */
     private short messageType;
 
@@ -78,8 +85,46 @@ public class DefaultHeader {
      * @return the start of packet delimeter.
      */
     public static ChannelBuffer getDelimeter() {
-        Charset ascii = Charset.forName("UTF-8");
-        return ChannelBuffers.copiedBuffer(START_OF_PACKET.getBytes(ascii));
+        return ChannelBuffers.copiedBuffer(START_OF_PACKET_BYTES);
+    }
+
+    /**
+     * Check if the start of packet delimeter begins at the given index without
+     * modifying the buffer or allocating a delimeter to compare against.
+     *
+     * @param buffer the ChannelBuffer to check.
+     * @param index the absolute index in the buffer to check at.
+     * @return true if the whole delimeter is found at the index.
+     */
+    public static boolean isDelimeter(ChannelBuffer buffer, int index) {
+        if (index < 0
+                || index + START_OF_PACKET_BYTES.length > buffer.writerIndex()) {
+            return false;
+        }
+        for (int i = 0; i < START_OF_PACKET_BYTES.length; i++) {
+            if (buffer.getByte(index + i) != START_OF_PACKET_BYTES[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the first start of packet delimeter in the buffer.
+     *
+     * @param buffer the ChannelBuffer to search.
+     * @param fromIndex the absolute index to start searching from.
+     * @return the absolute index of the delimeter or -1 if it was not found.
+     */
+    public static int indexOf(ChannelBuffer buffer, int fromIndex) {
+        int last = buffer.writerIndex() - START_OF_PACKET_BYTES.length;
+        for (int i = fromIndex; i <= last; i++) {
+            if (buffer.getByte(i) == START_OF_PACKET_BYTES[0]
+                    && isDelimeter(buffer, i)) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     /**
@@ -93,19 +138,16 @@ public class DefaultHeader {
     public static void checkDelimeter(ChannelBuffer frame)
             throws CorruptedFrameException {
 
-        try {
-
-            ChannelBuffer delimeter = getDelimeter();
-            ChannelBuffer start = frame.readSlice(START_OF_PACKET.length());
-
-            if (delimeter.compareTo(start) != 0) {
-                throw new CorruptedFrameException("Start of packet does not "
-                        + "match the required start of packet string.");
-            }
-
-        } catch (IndexOutOfBoundsException e) {
+        if (frame.readableBytes() < START_OF_PACKET_BYTES.length) {
             throw new CorruptedFrameException("Not enough bytes to parse "
                     + "start of packet string.");
         }
+
+        if (!isDelimeter(frame, frame.readerIndex())) {
+            throw new CorruptedFrameException("Start of packet does not "
+                    + "match the required start of packet string.");
+        }
+
+        frame.skipBytes(START_OF_PACKET_BYTES.length);
     }
 }
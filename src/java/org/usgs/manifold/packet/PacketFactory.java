@@ -20,8 +20,63 @@ public class PacketFactory
     private static Logger log =  LoggerFactory.getLogger(PacketFactory.class);
     private static ConfigurationPacket config = Initialize.getPacketConfig();
 
+    /** The length of the ascii time string used by most message types. */
+    private static final int TIME_LENGTH = 18;
+
     // Prevent instantiation
     private PacketFactory() {}
+
+    /**
+     * Work out how many bytes the body of a packet should have based on its
+     * message type and any length fields it contains. This does not modify the
+     * buffer.
+     *
+     * @param messageType the message type from the packet header.
+     * @param buffer the ChannelBuffer holding the packet.
+     * @param index the absolute index of the start of the packet body, just
+     *        after the {@link DefaultHeader}.
+     * @return the expected number of bytes in the body or -1 if the message
+     *         type has no known length or not enough of the body has been
+     *         received to tell.
+     */
+    public static int getBodyLength(short messageType, ChannelBuffer buffer,
+            int index) {
+
+        // Offset and size of the field holding the variable part of the body.
+        int countIndex;
+        int fixedLength;
+        int bytesPerCount;
+
+        if (messageType == config.SEISMIC_MESSAGE_TYPE) {
+            // sampleRate(4) samples(2) time(18) data(samples * 2)
+            countIndex = index + 4;
+            fixedLength = 4 + 2 + TIME_LENGTH;
+            bytesPerCount = 2;
+        } else if (messageType == config.GPS_MESSAGE_TYPE) {
+            // time(18) dataSize(2) data(dataSize)
+            countIndex = index + TIME_LENGTH;
+            fixedLength = TIME_LENGTH + 2;
+            bytesPerCount = 1;
+        } else if (messageType == config.MULTI_MESSAGE_TYPE) {
+            // channel(2) sampleRate(4) samples(2) time(18) data(samples * 2)
+            countIndex = index + 6;
+            fixedLength = 2 + 4 + 2 + TIME_LENGTH;
+            bytesPerCount = 2;
+        } else if (messageType == config.SCAN_MESSAGE_TYPE) {
+            // time(18) data(8 * 2)
+            return TIME_LENGTH + 16;
+        } else if (messageType == config.RAIN_MESSAGE_TYPE) {
+            // time(18) data(2)
+            return TIME_LENGTH + 2;
+        } else {
+            return -1;
+        }
+
+        if (countIndex + 2 > buffer.writerIndex()) {
+            return -1;
+        }
+        return fixedLength + buffer.getUnsignedShort(countIndex) * bytesPerCount;
+    }
     
     /**
      * Create a packet from the given {@link ChannelBuffer} frame.
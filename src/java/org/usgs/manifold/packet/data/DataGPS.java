@@ -1,6 +1,5 @@
 package org.usgs.manifold.packet.data;
 
-import java.nio.charset.Charset;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
 import org.usgs.manifold.packet.DataPacket;
@@ -51,12 +50,8 @@ public class DataGPS extends DataPacket {
             this.networkID = networkID;
             this.header = header;
 
-            // Get the timeString string.
-            Charset ascii = Charset.forName("UTF-8");
-            String timeString = buffer.readBytes(18).toString(ascii);
-
-            // Convert the timeString into milliseconds since the 1970 epoch.
-            timeStamp = Time.parsePacketTime(timeString);
+            // Read the time string as milliseconds since the 1970 epoch.
+            timeStamp = Time.readPacketTime(buffer);
 
             // Get the size of the data block
             dataSize = buffer.readUnsignedShort();
@@ -5,7 +5,6 @@
 
 package org.usgs.manifold.packet.data;
 
-import java.nio.charset.Charset;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
 import org.usgs.manifold.packet.DataPacket;
@@ -69,12 +68,9 @@ public class DataMulti extends DataPacket{
             sampleRate = buffer.readFloat();
             samples = buffer.readUnsignedShort();
 
-            // Get the time string.
-            Charset ascii = Charset.forName("UTF-8");
-            String time = buffer.readBytes(18).toString(ascii);
-
-            // Convert the time string into Seconds since the 1970 epoch.
-            startTime = Time.parsePacketTime(time) / 1000l;
+            // Read the time string as seconds since the 1970 epoch, keeping
+            // the milliseconds.
+            startTime = Time.readPacketTime(buffer) / 1000.0;
 
             //TODO: check that the end time is corect..
             // Use the start time, number of samples, and sample rate to
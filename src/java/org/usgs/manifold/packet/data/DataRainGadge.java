@@ -1,6 +1,5 @@
 package org.usgs.manifold.packet.data;
 
-import java.nio.charset.Charset;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
 import org.usgs.manifold.packet.DataPacket;
@@ -22,8 +21,11 @@ public class DataRainGadge extends DataPacket{
     /** The number of unsigned shorts. */
     private final int DATA_BLOCKS = 1;
 
+    /** The type name, which is also the suffix of the table names. */
+    public static final String TYPE_NAME = "RAIN";
+
     {   // Set type name
-        this.typeName = "RAIN";
+        this.typeName = TYPE_NAME;
     }
 
     /**
@@ -45,12 +47,8 @@ public class DataRainGadge extends DataPacket{
             this.networkID = networkID;
             this.header = header;
 
-            // Get the timeString string.
-            Charset ascii = Charset.forName("UTF-8");
-            String timeString = buffer.readBytes(18).toString(ascii);
-
-            // Convert the timeString into milliseconds since the 1970 epoch.
-            timeStamp = Time.parsePacketTime(timeString);
+            // Read the time string as milliseconds since the 1970 epoch.
+            timeStamp = Time.readPacketTime(buffer);
 
             // Get the data.
             data = new int[DATA_BLOCKS];
@@ -0,0 +1,88 @@
+package org.usgs.manifold.packet.data;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.usgs.manifold.database.InsertDescriptor;
+import org.usgs.manifold.packet.DataPacket;
+
+/**
+ * Holds the {@link InsertDescriptor} for each network and station of one type
+ * of data so the table name and insert SQL are only worked out the first time
+ * a station sends data, or when the known tables are listed at startup.
+ *
+ */
+abstract class InsertDescriptorCache {
+
+    /** The number of station numbers cached for each network. */
+    private static final int STATIONS = 256;
+
+    /** The descriptors for each network, indexed by station number. */
+    private final ConcurrentMap<String, AtomicReferenceArray<InsertDescriptor>>
+            networks = new ConcurrentHashMap<String,
+                    AtomicReferenceArray<InsertDescriptor>>();
+
+    /**
+     * @param packet a packet to insert into the database.
+     * @return the descriptor for the table the packet's data goes in.
+     */
+    public InsertDescriptor get(DataPacket packet) {
+        return get(packet.getNetworkID(), packet.getStationNumber());
+    }
+
+    /**
+     * @param networkID the network the station is on.
+     * @param station the station number.
+     * @return the descriptor for the table the station's data goes in.
+     */
+    public InsertDescriptor get(String networkID, int station) {
+
+        if (station < 0 || station >= STATIONS) {
+            return create(networkID, station);
+        }
+
+        AtomicReferenceArray<InsertDescriptor> stations =
+                networks.get(networkID);
+        if (stations == null) {
+            networks.putIfAbsent(networkID,
+                    new AtomicReferenceArray<InsertDescriptor>(STATIONS));
+            stations = networks.get(networkID);
+        }
+
+        InsertDescriptor descriptor = stations.get(station);
+        if (descriptor == null) {
+            descriptor = create(networkID, station);
+            stations.set(station, descriptor);
+        }
+        return descriptor;
+    }
+
+    /**
+     * @param networkIDs the networks.
+     * @param stations the station numbers.
+     * @return the descriptors for the tables of every station on every
+     *         network.
+     */
+    public List<InsertDescriptor> getAll(List<String> networkIDs,
+            Collection<Integer> stations) {
+
+        List<InsertDescriptor> descriptors = new ArrayList<InsertDescriptor>();
+        for (String networkID : networkIDs) {
+            for (Integer station : stations) {
+                descriptors.add(get(networkID, station));
+            }
+        }
+        return descriptors;
+    }
+
+    /**
+     * @param networkID the network the station is on.
+     * @param station a station that has not been seen before.
+     * @return the descriptor for the table the station's data goes in.
+     */
+    protected abstract InsertDescriptor create(String networkID, int station);
+}
@@ -0,0 +1,417 @@
+package org.usgs.manifold.packet.data;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.usgs.manifold.database.DatabaseInsertStatement;
+import org.usgs.manifold.database.DatabaseWriterPool;
+import org.usgs.manifold.database.InsertDescriptor;
+import org.usgs.manifold.packet.DataPacket;
+import org.usgs.manifold.utilities.DatabaseHelper;
+import org.usgs.manifold.utilities.Time;
+
+/**
+ * Summarizes the samples of one type of multi station data over one minute
+ * and one hour windows, so long periods can be read from a few summary rows
+ * rather than from every one second row.
+ *
+ * <p>
+ * Each station and window keeps a running count of its samples and the
+ * minimum, maximum and sum of each channel. When a sample arrives for a later
+ * window, or once the window has ended by more than a grace period with no
+ * such sample, the open window is closed and its row is offered to the same
+ * {@link DatabaseWriterPool} as the samples, into a companion table named
+ * after the sample table with a "_1m" or "_1h" suffix. A row holds the start
+ * of the window, the number of samples and either the minimum, maximum and
+ * mean of each channel or, for counters such as rain tips, their sum.
+ *
+ * <p>
+ * Samples must arrive in time order. A sample from before the open window,
+ * or from a window already closed, is stored but left out of the summaries.
+ * The windows still open when the program stops are written by
+ * {@link #flush()} with the samples they have.
+ *
+ */
+class Rollups implements TimerTask {
+
+    private static Logger log = LoggerFactory.getLogger(Rollups.class);
+
+    /** The length of each window in seconds. */
+    private static final int[] WINDOWS = {60, 3600};
+
+    /** The table name suffix for each window. */
+    private static final String[] SUFFIXES = {"_1m", "_1h"};
+
+    /** The seconds a window is kept open after it ends for late samples. */
+    private static final int GRACE = 30;
+
+    /** The seconds between checks for windows past their grace period. */
+    private static final int CHECK_INTERVAL = 10;
+
+    /** The timer closing the windows, shared by every type of data. */
+    private static final Timer timer =
+            new HashedWheelTimer(1, TimeUnit.SECONDS);
+
+    /** The database the tables are in. */
+    private final String database;
+
+    /** The type name of the sample tables. */
+    private final String typeName;
+
+    /** The number of channels summarized. */
+    private final int channels;
+
+    /** True to write the sum of each channel rather than its statistics. */
+    private final boolean summed;
+
+    /** The body of the create table statement. */
+    private final String tableCreation;
+
+    /** The body of the insert statement. */
+    private final String insertStatement;
+
+    /** The types of the insert parameters. */
+    private final int[] insertTypes;
+
+    /** The database table definition. */
+    private final Map<String, String> tableDefinition =
+            new HashMap<String, String>();
+
+    /** The table and insert SQL for each window, network and station. */
+    private final InsertDescriptorCache[] descriptors =
+            new InsertDescriptorCache[WINDOWS.length];
+
+    /** The open windows of each network and station. */
+    private final Map<String, Window[]> open = new HashMap<String, Window[]>();
+
+    /** The writers the closed windows are offered to, or null until the
+     * first sample. */
+    private DatabaseWriterPool writers;
+
+    /** The next check for windows past their grace period, or null until
+     * the first sample. */
+    private Timeout timeout;
+
+    /**
+     * @param database the database the tables are in.
+     * @param typeName the type name of the sample tables.
+     * @param columns the column name of each channel.
+     * @param summed true to write the sum of each channel, false to write its
+     *        minimum, maximum and mean.
+     */
+    Rollups(String database, String typeName, String[] columns,
+            boolean summed) {
+
+        this.database = database;
+        this.typeName = typeName;
+        this.channels = columns.length;
+        this.summed = summed;
+
+        StringBuilder creation = new StringBuilder(
+                "(j2ksec DOUBLE PRIMARY KEY, samples INTEGER");
+        StringBuilder names = new StringBuilder("(j2ksec,samples");
+        StringBuilder values = new StringBuilder(" VALUES (?,?");
+        List<Integer> types = new ArrayList<Integer>();
+        types.add(Types.DOUBLE);
+        types.add(Types.INTEGER);
+        tableDefinition.put("j2ksec", "double");
+        tableDefinition.put("samples", "int");
+
+        for (String column : columns) {
+            if (summed) {
+                creation.append(", ").append(column).append(" INTEGER");
+                names.append(',').append(column);
+                values.append(",?");
+                types.add(Types.INTEGER);
+                tableDefinition.put(column, "int");
+            } else {
+                creation.append(", ").append(column).append("_min INTEGER, ")
+                        .append(column).append("_max INTEGER, ")
+                        .append(column).append("_mean DOUBLE");
+                names.append(',').append(column).append("_min,")
+                        .append(column).append("_max,")
+                        .append(column).append("_mean");
+                values.append(",?,?,?");
+                types.add(Types.INTEGER);
+                types.add(Types.INTEGER);
+                types.add(Types.DOUBLE);
+                tableDefinition.put(column + "_min", "int");
+                tableDefinition.put(column + "_max", "int");
+                tableDefinition.put(column + "_mean", "double");
+            }
+        }
+
+        this.tableCreation = creation.append(")").toString();
+        this.insertStatement = names.append(")").toString()
+                + values.append(")").toString();
+        this.insertTypes = new int[types.size()];
+        for (int i = 0; i < insertTypes.length; i++) {
+            insertTypes[i] = types.get(i);
+        }
+
+        for (int i = 0; i < WINDOWS.length; i++) {
+            final String suffix = SUFFIXES[i];
+            descriptors[i] = new InsertDescriptorCache() {
+
+                @Override
+                protected InsertDescriptor create(String networkID,
+                        int station) {
+                    return descriptor(networkID, station, suffix);
+                }
+            };
+        }
+    }
+
+    /**
+     * @param networkID the network the station is on.
+     * @param station the station number.
+     * @param suffix the suffix of the window.
+     * @return the table and insert SQL for the station's window.
+     */
+    private InsertDescriptor descriptor(String networkID, int station,
+            String suffix) {
+
+        String table = DatabaseHelper.getTableName(networkID, station,
+                typeName) + suffix;
+        log.debug("Inserting rollups into table {}.", table);
+
+        return new InsertDescriptor(table, database, tableDefinition,
+                tableCreation, insertStatement, insertTypes);
+    }
+
+    /**
+     * Lists the rollup tables of the stations so they can be created and
+     * validated before any data arrives.
+     *
+     * @param networkIDs the networks the stations are on.
+     * @param stations the station numbers.
+     * @return the table and insert SQL for each window of each station.
+     */
+    List<InsertDescriptor> getKnownDescriptors(List<String> networkIDs,
+            Collection<Integer> stations) {
+
+        List<InsertDescriptor> known = new ArrayList<InsertDescriptor>();
+        for (InsertDescriptorCache cache : descriptors) {
+            known.addAll(cache.getAll(networkIDs, stations));
+        }
+        return known;
+    }
+
+    /**
+     * Add a sample to the open windows of its station, first writing any
+     * window the sample closes.
+     *
+     * @param packet the packet the sample came from.
+     * @param time the time of the sample in J2K seconds.
+     * @param values the value of each channel.
+     * @param writers the writers to offer closed windows to.
+     */
+    synchronized void add(DataPacket packet, double time, int[] values,
+            DatabaseWriterPool writers) {
+
+        this.writers = writers;
+        if (timeout == null) {
+            timeout = timer.newTimeout(this, CHECK_INTERVAL, TimeUnit.SECONDS);
+        }
+
+        String key = packet.getNetworkID() + "." + packet.getStationNumber();
+        Window[] windows = open.get(key);
+        if (windows == null) {
+            windows = new Window[WINDOWS.length];
+            for (int i = 0; i < WINDOWS.length; i++) {
+                windows[i] = new Window(WINDOWS[i], channels);
+            }
+            open.put(key, windows);
+        }
+
+        for (int i = 0; i < windows.length; i++) {
+            Window window = windows[i];
+
+            if (window.isBefore(time)) {
+                continue;
+            }
+            if (window.isClosedBy(time)) {
+                write(window);
+            }
+            if (window.count == 0) {
+                window.descriptor = descriptors[i].get(packet);
+            }
+            window.add(time, values);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Close the windows that ended more than the grace period ago and check
+     * again after the check interval.
+     */
+    @Override
+    public synchronized void run(Timeout expired) {
+
+        double now = Time.toJ2KSeconds(System.currentTimeMillis());
+        for (Window[] windows : open.values()) {
+            for (Window window : windows) {
+                if (window.isClosedBy(now - GRACE)) {
+                    write(window);
+                }
+            }
+        }
+
+        timeout = timer.newTimeout(this, CHECK_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Write every open window with the samples it has, for when the program
+     * stops.
+     */
+    synchronized void flush() {
+
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        for (Window[] windows : open.values()) {
+            for (Window window : windows) {
+                if (window.count > 0) {
+                    write(window);
+                }
+            }
+        }
+    }
+
+    /**
+     * Offer the row of a window to the writers and empty the window.
+     *
+     * @param window the window to close.
+     */
+    private void write(Window window) {
+
+        DatabaseInsertStatement row = toRow(window.descriptor, window);
+        if (!writers.offer(row)) {
+            log.warn("Can not insert a rollup into the database due "
+                    + "to a full queue.\nIt will be discarded.");
+        }
+        window.reset();
+    }
+
+    /**
+     * @param descriptor the table to insert into.
+     * @param window a closed window.
+     * @return the row for the window.
+     */
+    private DatabaseInsertStatement toRow(InsertDescriptor descriptor,
+            Window window) {
+
+        DatabaseInsertStatement row = new DatabaseInsertStatement(descriptor)
+                .setDouble(1, window.start).setInt(2, window.count);
+
+        int index = 3;
+        for (int i = 0; i < channels; i++) {
+            if (summed) {
+                row.setInt(index++, (int) window.sum[i]);
+            } else {
+                row.setInt(index++, window.min[i])
+                        .setInt(index++, window.max[i])
+                        .setDouble(index++,
+                            (double) window.sum[i] / window.count);
+            }
+        }
+        return row;
+    }
+
+    /** The running summary of one window of one station. */
+    private static class Window {
+
+        /** The length of the window in seconds. */
+        final int length;
+
+        /** The start of the window in J2K seconds. */
+        double start;
+
+        /** The number of samples in the window, or 0 if it is not open. */
+        int count;
+
+        /** The end of the last window closed in J2K seconds. */
+        double closed = Double.NEGATIVE_INFINITY;
+
+        /** The table the window is written to. */
+        InsertDescriptor descriptor;
+
+        /** The minimum, maximum and sum of each channel. */
+        final int[] min;
+        final int[] max;
+        final long[] sum;
+
+        Window(int length, int channels) {
+            this.length = length;
+            this.min = new int[channels];
+            this.max = new int[channels];
+            this.sum = new long[channels];
+        }
+
+        /**
+         * @param time a sample time in J2K seconds.
+         * @return true if the sample is from before the open window, or
+         *         from a window already closed.
+         */
+        boolean isBefore(double time) {
+            return (count > 0) ? time < start : time < closed;
+        }
+
+        /**
+         * @param time a sample time in J2K seconds.
+         * @return true if the sample is from after the open window.
+         */
+        boolean isClosedBy(double time) {
+            return count > 0 && time >= start + length;
+        }
+
+        /**
+         * @param time the sample time in J2K seconds.
+         * @param values the value of each channel.
+         */
+        void add(double time, int[] values) {
+            if (count == 0) {
+                start = Math.floor(time / length) * length;
+                for (int i = 0; i < sum.length; i++) {
+                    min[i] = Integer.MAX_VALUE;
+                    max[i] = Integer.MIN_VALUE;
+                    sum[i] = 0;
+                }
+            }
+
+            for (int i = 0; i < sum.length; i++) {
+                int value = values[i];
+                if (value < min[i]) {
+                    min[i] = value;
+                }
+                if (value > max[i]) {
+                    max[i] = value;
+                }
+                sum[i] += value;
+            }
+            count++;
+        }
+
+        /**
+         * Empty the window once it has been written.
+         */
+        void reset() {
+            closed = start + length;
+            count = 0;
+        }
+    }
+}
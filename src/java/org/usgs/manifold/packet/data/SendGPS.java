@@ -1,9 +1,9 @@
 package org.usgs.manifold.packet.data;
 
+import java.sql.Types;
 import java.util.HashMap;
-import org.usgs.manifold.utilities.DatabaseHelper;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 
@@ -15,6 +15,8 @@ import org.usgs.manifold.ConfigurationPacket;
 import org.usgs.manifold.Initialize;
 
 import org.usgs.manifold.database.DatabaseInsertStatement;
+import org.usgs.manifold.database.DatabaseWriterPool;
+import org.usgs.manifold.database.InsertDescriptor;
 import org.usgs.manifold.utilities.Time;
 
 /**
@@ -47,8 +49,23 @@ public class SendGPS {
         tableDefinition.put("rawGPS",    "blob"  );
     }
 
-    /** Holds SQL statements. */
-    private static BlockingQueue<DatabaseInsertStatement> statements = null;
+    /** The table and insert SQL for each station. */
+    private static final InsertDescriptorCache descriptors =
+            new InsertDescriptorCache() {
+
+        @Override
+        protected InsertDescriptor create(String networkID, int station) {
+            String table = config.GPS_SATION_NAME_MAP.get(station);
+            log.debug("Inserting GPS data into table {}.", table);
+
+            return new InsertDescriptor(table, config.GPS_DATABASE,
+                    tableDefinition, tableCreation, insertStatement,
+                    Types.DOUBLE, Types.BLOB);
+        }
+    };
+
+    /** Writes SQL statements to the database. */
+    private static DatabaseWriterPool writers = null;
 
     /** Mapping of ports to channels. */
     private static Map<Integer, ChannelGroup> portChannelMap = null;
@@ -58,17 +75,30 @@ public class SendGPS {
     }
 
     /**
-     * Sets the statement queue that is used by
+     * Sets the database writers that are used by
      * {@link #sendToQueue(DataGPS) sendToDatabase}.
      *
-     * @param statements a queue to hold {@link DatabaseInsertStatement}
+     * @param writers the writers that insert the
+     *        {@link DatabaseInsertStatement}
      *        objects generated by
      *        {@link #sendToQueue(DataGPS) sendToDatabase}.
      */
-    public static void setStatementQueue(
-            BlockingQueue<DatabaseInsertStatement> statements) {
+    public static void setDatabaseWriters(DatabaseWriterPool writers) {
+
+        SendGPS.writers = writers;
+    }
+
+    /**
+     * Lists the tables of every GPS station so they can be created and
+     * validated before any data arrives.
+     *
+     * @param networkIDs the networks the stations are on.
+     * @return the table and insert SQL for each GPS station.
+     */
+    public static List<InsertDescriptor> getKnownDescriptors(
+            List<String> networkIDs) {
 
-        SendGPS.statements = statements;
+        return descriptors.getAll(networkIDs, config.GPS_STATIONS);
     }
 
     /**
@@ -86,39 +116,30 @@ public class SendGPS {
 
     /**
      * Generates a {@link DatabaseInsertStatement} object from the data in the
-     * packet and offers it it to the queue specified by
-     * {@link #setStatementQueue(BlockingQueue) setStatementQueue}.
+     * packet and offers it it to the writers specified by
+     * {@link #setDatabaseWriters(DatabaseWriterPool) setDatabaseWriters}.
      *
      * <p>
      * The database indicated in {@link GPS} is the database used in the 
      * creation of the {@link DatabaseInsertStatement} object.
      * 
      * @param gpsData the packet to send out.
-     * @throws IllegalStateException if the statement queue has not been set.
+     * @throws IllegalStateException if the database writers have not been set.
      */
     public static void sendToQueue(DataGPS gpsData) {
 
-        if (statements == null) {
-            throw new IllegalStateException("GPS statement queue has not "
+        if (writers == null) {
+            throw new IllegalStateException("GPS database writers have not "
                     + "been set.");
         }
 
-        //String table = DatabaseHelper.getTableName(gpsData);
-
-        String table = DatabaseHelper.getTableName(gpsData, config.GPS_SATION_NAME_MAP);
-
-        //TODO: Remove
-        System.out.println("Table: " + table);
-
         // Define the parameters to insert.
-        double time = Time.toJ2KSeconds(gpsData.getTime());
-        byte[] data = gpsData.getData();
-
-        DatabaseInsertStatement dbStatement = new DatabaseInsertStatement(
-                table, config.GPS_DATABASE, tableDefinition, tableCreation,
-                insertStatement, time, data);
+        DatabaseInsertStatement dbStatement =
+                new DatabaseInsertStatement(descriptors.get(gpsData))
+                .setDouble(1, Time.toJ2KSeconds(gpsData.getTime()))
+                .setBytes(2, gpsData.getData());
 
-        if (!statements.offer(dbStatement)) {
+        if (!writers.offer(dbStatement)) {
             log.warn("Can not insert GPS data into database due to a full "
                     + "queue.\nData will be discarded.");
         }
@@ -1,24 +1,99 @@
 package org.usgs.manifold.packet.data;
 
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.usgs.manifold.ConfigurationPacket;
 import org.usgs.manifold.Initialize;
 
-import org.usgs.manifold.packet.earthworm.TraceBufferPacket;
 import org.usgs.manifold.packet.earthworm.TraceBuffer2Packet;
+import org.usgs.manifold.packet.earthworm.TraceChannel;
+import org.usgs.manifold.server.SeedLinkStore;
+import org.usgs.manifold.server.TraceBackfill;
+import org.usgs.manifold.server.WaveStore;
 
 /**
+ * Static methods to help with sending multi channel seismic data to where it
+ * needs to go.
+ *
+ * <p>
+ * Nothing here is synchronized. Each packet is encoded into its own buffer
+ * and the routing table is never modified, so packets from different
+ * stations and MOXA connections are encoded and written in parallel. Packets
+ * from one connection are handled by one thread at a time, so packets for a
+ * channel are still written in the order they arrived. With a
+ * {@link TraceCoalescer} the packets of a channel are merged first, and the
+ * merged messages are written in order under the channel's lock.
  *
  */
 public class SendMulti {
 
-private static ConfigurationPacket config = Initialize.getPacketConfig();
+    private static Logger log = LoggerFactory.getLogger(SendMulti.class);
+    private static ConfigurationPacket config = Initialize.getPacketConfig();
+
+    /** Keeps the recent messages for new earthworms. May be null. */
+    private static volatile TraceBackfill backfill = null;
+
+    /** Keeps the recent messages for the wave server. May be null. */
+    private static volatile WaveStore waveStore = null;
+
+    /** Encodes the samples into miniSEED for SeedLink. May be null. */
+    private static volatile SeedLinkStore seedLinkStore = null;
+
+    /** Merges small packets into larger messages. May be null. */
+    private static volatile TraceCoalescer coalescer = null;
 
     // Prevent instantiation
     private SendMulti() {
     }
 
+    /**
+     * Sets the backlog that keeps the messages written by
+     * {@link #sendToEarthworm(DataMulti) sendToEarthworm} for earthworms that
+     * connect later.
+     *
+     * @param backfill the backlog, or null to only send live data.
+     */
+    public static void setBackfill(TraceBackfill backfill) {
+        SendMulti.backfill = backfill;
+    }
+
+    /**
+     * Sets the tanks that keep the messages written by
+     * {@link #sendToEarthworm(DataMulti) sendToEarthworm} for the wave
+     * server.
+     *
+     * @param waveStore the tanks, or null if there is no wave server.
+     */
+    public static void setWaveStore(WaveStore waveStore) {
+        SendMulti.waveStore = waveStore;
+    }
+
+    /**
+     * Sets the records that keep the samples sent by
+     * {@link #sendToEarthworm(DataMulti) sendToEarthworm} for the SeedLink
+     * server.
+     *
+     * @param seedLinkStore the records, or null if there is no SeedLink
+     *        server.
+     */
+    public static void setSeedLinkStore(SeedLinkStore seedLinkStore) {
+        SendMulti.seedLinkStore = seedLinkStore;
+    }
+
+    /**
+     * Sets the coalescer that merges the packets sent by
+     * {@link #sendToEarthworm(DataMulti) sendToEarthworm} into larger
+     * messages.
+     *
+     * @param coalescer the coalescer, or null to send each packet as its own
+     *        message.
+     */
+    public static void setCoalescer(TraceCoalescer coalescer) {
+        SendMulti.coalescer = coalescer;
+    }
+
     /**
      * Write out the DataSingleSeismic to all connected earthworms.
      *
@@ -26,51 +101,88 @@ private static ConfigurationPacket config = Initialize.getPacketConfig();
      * @throws IllegalStateException if the required variables have not been
      *         channelSetup.
      */
-    public static synchronized void sendToEarthworm(
+    public static void sendToEarthworm(
             DataMulti seismicData) {
 
-        //check for nulls
-        if(config.MULTI_STATION_MAP.get((seismicData.getStationNumber() * 10 + seismicData.getChannel()) ) == null ||
-        config.MULTI_TYPE_MAP.get(seismicData.getStationNumber() * 10 + seismicData.getChannel() ) == null ||
-        config.MULTI_LOCATION_MAP.get(seismicData.getStationNumber() * 10 + seismicData.getChannel() ) == null ) {
-            System.out.println("no translation for " + ((Integer)seismicData.getStationNumber() + "." + seismicData.getChannel()) );
+        // Look up the pre-encoded station, channel and location.
+        TraceChannel channel = config.getMultiChannel(
+                seismicData.getStationNumber(), seismicData.getChannel());
+        if (channel == null) {
+            log.warn("No translation for {}.{}",
+                    seismicData.getStationNumber(), seismicData.getChannel());
             return;
         }
 
+        // SeedLink builds its own records, so it gets every packet as is.
+        SeedLinkStore records = seedLinkStore;
+        if (records != null) {
+            records.add(seismicData.getNetworkID(), channel.getStation(),
+                    channel.getLocation(), channel.getChannel(),
+                    seismicData.getStartTime(), seismicData.getSampleRate(),
+                    seismicData.getData());
+        }
+
+        TraceCoalescer merger = coalescer;
+        if (merger != null) {
+            merger.add(channel, seismicData.getNetworkID(),
+                    seismicData.getStartTime(), seismicData.getEndTime(),
+                    seismicData.getSampleRate(), seismicData.getData());
+        } else {
+            sendTrace(channel, seismicData.getNetworkID(),
+                    seismicData.getStartTime(), seismicData.getEndTime(),
+                    seismicData.getSampleRate(), seismicData.getData());
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Seismic: time = " + seismicData.getStartTime()
+                    + ", station = " + channel.getStation()
+                    + ", type = " + channel.getChannel()
+                    + ", location = " + channel.getLocation());
+        }
+    }
+
+    /**
+     * Encode samples as one TRACEBUF2 message and write it to the connected
+     * earthworms and the wave server.
+     *
+     * @param channel the station, channel and location of the trace.
+     * @param networkID the network of the trace.
+     * @param startTime the time of the first sample in epoch seconds.
+     * @param endTime the time of the last sample in epoch seconds.
+     * @param sampleRate the sample rate in Hz.
+     * @param data the samples.
+     */
+    static void sendTrace(TraceChannel channel, String networkID,
+            double startTime, double endTime, double sampleRate,
+            int[] data) {
+
         //switched to use a tracebuffer2
         // Chris Lockett
-        
-        // Create trace buffer data to send out.
-        //byte[] traceBufferData = new TraceBufferPacket(
-        //        config.MULTI_STATION_MAP.get(seismicData.getStationNumber() * 10 + seismicData.getChannel()),
-        //        seismicData.getNetworkID(),
-        //        config.MULTI_LOCATION_MAP.get(seismicData.getStationNumber() * 10 + seismicData.getChannel()),
-        //        config.MULTI_TYPE_MAP.get(seismicData.getStationNumber() * 10 + seismicData.getChannel()),
-        //        seismicData.getStartTime(),
-        //        seismicData.getEndTime(),
-        //        seismicData.getSampleRate(),
-        //        seismicData.getData()).getMessage();
-
-         byte[] traceBufferData = new TraceBuffer2Packet(
-                config.MULTI_STATION_MAP.get(seismicData.getStationNumber() * 10 + seismicData.getChannel()),
-                seismicData.getNetworkID(),
-                config.MULTI_LOCATION_MAP.get(seismicData.getStationNumber() * 10 + seismicData.getChannel()),
-                config.MULTI_TYPE_MAP.get(seismicData.getStationNumber() * 10 + seismicData.getChannel()),
-                seismicData.getStartTime(),
-                seismicData.getEndTime(),
-                seismicData.getSampleRate(),
-                seismicData.getData()).getMessage();
-
-        // Wrap the byte[] with a ChannelBuffer so it can be sent to a channel.
-        ChannelBuffer output =
-                ChannelBuffers.wrappedBuffer(traceBufferData);
-
-        config.SEISMIC_EARTHWORM_CHANNELS.write(output);
-
-        //TODO: Remove
-        System.out.println("Seismic: time =" + seismicData.getStartTime()
-            + ", station = " + config.MULTI_STATION_MAP.get(seismicData.getStationNumber() * 10 + seismicData.getChannel())
-            + ", type = " + config.MULTI_TYPE_MAP.get(seismicData.getStationNumber() * 10 + seismicData.getChannel())
-            + ", location = " + config.MULTI_LOCATION_MAP.get(seismicData.getStationNumber() * 10 + seismicData.getChannel()));
+
+        // Encode the trace buffer straight into a buffer for the channels.
+        // The wave server keeps the message without its earthworm framing,
+        // so then the body is encoded once and framed from there.
+        TraceBuffer2Packet packet = new TraceBuffer2Packet(
+                channel,
+                networkID,
+                startTime,
+                endTime,
+                sampleRate,
+                data);
+        WaveStore tanks = waveStore;
+        byte[] body = (tanks == null) ? null : packet.getMessageBody();
+        ChannelBuffer output = packet.getMessageBuffer(body);
+
+        TraceBackfill backlog = backfill;
+        if (backlog != null) {
+            backlog.write(channel, networkID, output);
+        } else {
+            config.SEISMIC_EARTHWORM_CHANNELS.write(output);
+        }
+
+        if (tanks != null) {
+            tanks.add(channel, networkID, body, startTime, endTime,
+                    sampleRate);
+        }
     }
 }
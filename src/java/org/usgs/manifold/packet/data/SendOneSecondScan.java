@@ -1,9 +1,10 @@
 package org.usgs.manifold.packet.data;
 
+import java.sql.Types;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import org.usgs.manifold.utilities.DatabaseHelper;
-import java.util.concurrent.BlockingQueue;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,6 +12,8 @@ import org.usgs.manifold.ConfigurationPacket;
 import org.usgs.manifold.Initialize;
 
 import org.usgs.manifold.database.DatabaseInsertStatement;
+import org.usgs.manifold.database.DatabaseWriterPool;
+import org.usgs.manifold.database.InsertDescriptor;
 import org.usgs.manifold.utilities.Time;
 
 /**
@@ -37,6 +40,12 @@ public class SendOneSecondScan {
     private static final String insertStatement = 
     //        "(t,CH0,CH1,CH2,CH3,CH4,CH5,CH6,CH7) VALUES (?,?,?,?,?,?,?,?,?);";
              "(j2ksec,CH0,CH1,CH2,CH3,CH4,CH5,CH6,CH7,tid,rid) VALUES (?,?,?,?,?,?,?,?,?,?,?);";
+    /** The types of the insert parameters: the time, 8 channels, tid, rid. */
+    private static final int[] insertTypes = {Types.DOUBLE,
+        Types.INTEGER, Types.INTEGER, Types.INTEGER, Types.INTEGER,
+        Types.INTEGER, Types.INTEGER, Types.INTEGER, Types.INTEGER,
+        Types.INTEGER, Types.INTEGER};
+
     /** The database table definition for One Second Scan data. */
     private static final Map<String, String> tableDefinition =
             new HashMap<String, String>();
@@ -57,8 +66,29 @@ public class SendOneSecondScan {
         tableDefinition.put("rid",  "int");
     }
 
-    /** Holds SQL statements. */
-    private static BlockingQueue<DatabaseInsertStatement> statements = null;
+    /** The table and insert SQL for each network and station. */
+    private static final InsertDescriptorCache descriptors =
+            new InsertDescriptorCache() {
+
+        @Override
+        protected InsertDescriptor create(String networkID, int station) {
+            String table = DatabaseHelper.getTableName(networkID, station,
+                    DataOneSecondScan.TYPE_NAME);
+            log.debug("Inserting One Second Scan data into table {}.", table);
+
+            return new InsertDescriptor(table, config.SCAN_DATABASE,
+                    tableDefinition, tableCreation, insertStatement,
+                    insertTypes);
+        }
+    };
+
+    /** Summarizes the channels over one minute and one hour windows. */
+    private static final Rollups rollups = new Rollups(config.SCAN_DATABASE,
+            DataOneSecondScan.TYPE_NAME, new String[]{"CH0", "CH1", "CH2",
+                "CH3", "CH4", "CH5", "CH6", "CH7"}, false);
+
+    /** Writes SQL statements to the database. */
+    private static DatabaseWriterPool writers = null;
 
 
     // Prevent instantiation
@@ -66,43 +96,59 @@ public class SendOneSecondScan {
     }
 
     /**
-     * Sets the statement queue that is used by
+     * Sets the database writers that are used by
      * {@link #sendToQueue(DataOneSecondScan) sendToQueue}.
      *
-     * @param statements a queue to hold {@link DatabaseInsertStatement}
+     * @param writers the writers that insert the
+     *        {@link DatabaseInsertStatement}
      *        objects generated by
      *        {@link #sendToQueue(DataOneSecondScan) sendToQueue}.
      */
-    public static synchronized void setStatementQueue(
-            BlockingQueue<DatabaseInsertStatement> statements) {
+    public static synchronized void setDatabaseWriters(
+            DatabaseWriterPool writers) {
 
-        SendOneSecondScan.statements = statements;
+        SendOneSecondScan.writers = writers;
+    }
+
+    /**
+     * Lists the One Second Scan tables, and their rollup tables if rollups
+     * are on, of every configured multi station on every network so they can
+     * be created and validated before any data arrives.
+     *
+     * @param networkIDs the networks the stations are on.
+     * @return the table and insert SQL for each station.
+     */
+    public static List<InsertDescriptor> getKnownDescriptors(
+            List<String> networkIDs) {
+
+        List<InsertDescriptor> known =
+                descriptors.getAll(networkIDs, config.MULTI_STATIONS);
+        if (config.ROLLUPS) {
+            known.addAll(rollups.getKnownDescriptors(networkIDs,
+                    config.MULTI_STATIONS));
+        }
+        return known;
     }
 
     /**
      * Generates a {@link DatabaseInsertStatement} object from the data in the
-     * packet and offers it it to the queue specified by
-     * {@link #setStatementQueue(BlockingQueue) setStatementQueue}.
+     * packet and offers it it to the writers specified by
+     * {@link #setDatabaseWriters(DatabaseWriterPool) setDatabaseWriters}.
      *
      * <p>
      * The database indicated in {@link OneSecondScan} is the database used in
      * the creation of the {@link DatabaseInsertStatement} object.
      *
      * @param scanData the packet being sent out.
-     * @throws IllegalStateException if the statement queue has not been set.
+     * @throws IllegalStateException if the database writers have not been set.
      */
     public static synchronized void sendToQueue(DataOneSecondScan scanData) {
 
-        if (statements == null) {
-            throw new IllegalStateException("One Second Scan statement queue "
-                    + "has not been set.");
+        if (writers == null) {
+            throw new IllegalStateException("One Second Scan database writers "
+                    + "have not been set.");
         }
 
-        String table = DatabaseHelper.getTableName(scanData);
-
-        //TODO: Remove
-        System.out.println("Table: " + table);
-
         // Define the parameters to insert.
         double time = Time.toJ2KSeconds(scanData.getTime());
         int[] data = scanData.getData();
@@ -113,14 +159,29 @@ public class SendOneSecondScan {
         //       insertStatement, time, data[0], data[1], data[2], data[3],
         //        data[4], data[5], data[6], data[7]);
         //changed for valve 3.4
-        DatabaseInsertStatement dbStatement = new DatabaseInsertStatement(
-                table, config.SCAN_DATABASE, tableDefinition, tableCreation,
-                insertStatement, time, data[0], data[1], data[2], data[3],
-                data[4], data[5], data[6], data[7], 1, 1);
+        DatabaseInsertStatement dbStatement =
+                new DatabaseInsertStatement(descriptors.get(scanData))
+                .setDouble(1, time);
+        for (int i = 0; i < 8; i++) {
+            dbStatement.setInt(i + 2, data[i]);
+        }
+        dbStatement.setInt(10, 1).setInt(11, 1);
 
-        if (!statements.offer(dbStatement)) {
+        if (!writers.offer(dbStatement)) {
             log.warn("Can not insert One Second Scan data into database due to "
                     + "a full queue.\nData will be discarded.");
         }
+
+        if (config.ROLLUPS) {
+            rollups.add(scanData, time, data, writers);
+        }
+    }
+
+    /**
+     * Writes the One Second Scan rollup windows still open with the samples
+     * they have, for when the program stops.
+     */
+    public static void flushRollups() {
+        rollups.flush();
     }
 }
@@ -1,10 +1,11 @@
 package org.usgs.manifold.packet.data;
 
 
+import java.sql.Types;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import org.usgs.manifold.utilities.DatabaseHelper;
-import java.util.concurrent.BlockingQueue;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,6 +13,8 @@ import org.usgs.manifold.ConfigurationPacket;
 import org.usgs.manifold.Initialize;
 
 import org.usgs.manifold.database.DatabaseInsertStatement;
+import org.usgs.manifold.database.DatabaseWriterPool;
+import org.usgs.manifold.database.InsertDescriptor;
 import org.usgs.manifold.utilities.Time;
 
 /**
@@ -44,8 +47,28 @@ public class SendRainGadge {
         tableDefinition.put("rid",  "int");
     }
 
-    /** Holds SQL statements. */
-    private static BlockingQueue<DatabaseInsertStatement> statements = null;
+    /** The table and insert SQL for each network and station. */
+    private static final InsertDescriptorCache descriptors =
+            new InsertDescriptorCache() {
+
+        @Override
+        protected InsertDescriptor create(String networkID, int station) {
+            String table = DatabaseHelper.getTableName(networkID, station,
+                    DataRainGadge.TYPE_NAME);
+            log.debug("Inserting Rain Gadge data into table {}.", table);
+
+            return new InsertDescriptor(table, config.RAIN_DATABASE,
+                    tableDefinition, tableCreation, insertStatement,
+                    Types.DOUBLE, Types.INTEGER, Types.INTEGER, Types.INTEGER);
+        }
+    };
+
+    /** Sums the rain tips over one minute and one hour windows. */
+    private static final Rollups rollups = new Rollups(config.RAIN_DATABASE,
+            DataRainGadge.TYPE_NAME, new String[]{"rainTips"}, true);
+
+    /** Writes SQL statements to the database. */
+    private static DatabaseWriterPool writers = null;
 
 
     // Prevent instantiation
@@ -53,43 +76,59 @@ public class SendRainGadge {
     }
 
     /**
-     * Sets the statement queue that is used by
+     * Sets the database writers that are used by
      * {@link #sendToQueue(DataOneSecondScan) sendToQueue}.
      *
-     * @param statements a queue to hold {@link DatabaseInsertStatement}
+     * @param writers the writers that insert the
+     *        {@link DatabaseInsertStatement}
      *        objects generated by
      *        {@link #sendToQueue(DataOneSecondScan) sendToQueue}.
      */
-    public static synchronized void setStatementQueue(
-            BlockingQueue<DatabaseInsertStatement> statements) {
+    public static synchronized void setDatabaseWriters(
+            DatabaseWriterPool writers) {
 
-        SendRainGadge.statements = statements;
+        SendRainGadge.writers = writers;
+    }
+
+    /**
+     * Lists the Rain Gadge tables, and their rollup tables if rollups are
+     * on, of every configured multi station on every network so they can be
+     * created and validated before any data arrives.
+     *
+     * @param networkIDs the networks the stations are on.
+     * @return the table and insert SQL for each station.
+     */
+    public static List<InsertDescriptor> getKnownDescriptors(
+            List<String> networkIDs) {
+
+        List<InsertDescriptor> known =
+                descriptors.getAll(networkIDs, config.MULTI_STATIONS);
+        if (config.ROLLUPS) {
+            known.addAll(rollups.getKnownDescriptors(networkIDs,
+                    config.MULTI_STATIONS));
+        }
+        return known;
     }
 
     /**
      * Generates a {@link DatabaseInsertStatement} object from the data in the
-     * packet and offers it it to the queue specified by
-     * {@link #setStatementQueue(BlockingQueue) setStatementQueue}.
+     * packet and offers it it to the writers specified by
+     * {@link #setDatabaseWriters(DatabaseWriterPool) setDatabaseWriters}.
      *
      * <p>
      * The database indicated in {@link OneSecondScan} is the database used in
      * the creation of the {@link DatabaseInsertStatement} object.
      *
      * @param scanData the packet being sent out.
-     * @throws IllegalStateException if the statement queue has not been set.
+     * @throws IllegalStateException if the database writers have not been set.
      */
     public static synchronized void sendToQueue(DataRainGadge rainData) {
 
-        if (statements == null) {
-            throw new IllegalStateException("One Rain Gadge statement queue "
-                    + "has not been set.");
+        if (writers == null) {
+            throw new IllegalStateException("One Rain Gadge database writers "
+                    + "have not been set.");
         }
 
-        String table = DatabaseHelper.getTableName(rainData);
-
-        //TODO: Remove
-        System.out.println("Table: " + table);
-
         // Define the parameters to insert.
         double time = Time.toJ2KSeconds(rainData.getTime());
         int[] data = rainData.getData();
@@ -100,14 +139,26 @@ public class SendRainGadge {
         //       insertStatement, time, data[0]);
         
         //changed for valve 3.4
-        DatabaseInsertStatement dbStatement = new DatabaseInsertStatement(
-                table, config.RAIN_DATABASE, tableDefinition, tableCreation,
-                insertStatement, time, data[0], 1, 1);
+        DatabaseInsertStatement dbStatement =
+                new DatabaseInsertStatement(descriptors.get(rainData))
+                .setDouble(1, time).setInt(2, data[0]).setInt(3, 1)
+                .setInt(4, 1);
 
-        if (!statements.offer(dbStatement)) {
+        if (!writers.offer(dbStatement)) {
             log.warn("Can not insert One Second Scan data into database due to "
                     + "a full queue.\nData will be discarded.");
         }
+
+        if (config.ROLLUPS) {
+            rollups.add(rainData, time, data, writers);
+        }
     }
 
+    /**
+     * Writes the Rain Gadge rollup windows still open with the samples they
+     * have, for when the program stops.
+     */
+    public static void flushRollups() {
+        rollups.flush();
+    }
 }
@@ -1,25 +1,73 @@
 package org.usgs.manifold.packet.data;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.usgs.manifold.ConfigurationPacket;
 import org.usgs.manifold.Initialize;
 
 import org.usgs.manifold.packet.earthworm.TraceBufferPacket;
+import org.usgs.manifold.packet.earthworm.TraceChannel;
+import org.usgs.manifold.server.SeedLinkStore;
+import org.usgs.manifold.server.TraceBackfill;
 
 /**
  * Static methods to help with sending seismic data to where it needs to
  * go.
  *
+ * <p>
+ * Nothing here is synchronized. Each packet is encoded into its own buffer so
+ * packets from different stations and MOXA connections are encoded and
+ * written in parallel. Packets from one connection are handled by one thread
+ * at a time, so packets for a station are still written in order.
+ *
  */
 public class SendSingleSeismic {
 
+    private static Logger log = LoggerFactory.getLogger(SendSingleSeismic.class);
     private static ConfigurationPacket config = Initialize.getPacketConfig();
 
+    /** Keeps the recent messages for new earthworms. May be null. */
+    private static volatile TraceBackfill backfill = null;
+
+    /** The trace of each station and type, by "station type". */
+    private static final ConcurrentMap<String, TraceChannel> channels =
+            new ConcurrentHashMap<String, TraceChannel>();
+
+    /** Encodes the samples into miniSEED for SeedLink. May be null. */
+    private static volatile SeedLinkStore seedLinkStore = null;
+
     // Prevent instantiation
     private SendSingleSeismic() {
     }
 
+    /**
+     * Sets the backlog that keeps the messages written by
+     * {@link #sendToEarthworm(DataSingleSeismic) sendToEarthworm} for
+     * earthworms that connect later.
+     *
+     * @param backfill the backlog, or null to only send live data.
+     */
+    public static void setBackfill(TraceBackfill backfill) {
+        SendSingleSeismic.backfill = backfill;
+    }
+
+    /**
+     * Sets the records that keep the samples sent by
+     * {@link #sendToEarthworm(DataSingleSeismic) sendToEarthworm} for the
+     * SeedLink server.
+     *
+     * @param seedLinkStore the records, or null if there is no SeedLink
+     *        server.
+     */
+    public static void setSeedLinkStore(SeedLinkStore seedLinkStore) {
+        SendSingleSeismic.seedLinkStore = seedLinkStore;
+    }
+
     /**
      * Write out the DataSingleSeismic to all connected earthworms.
      *
@@ -27,29 +75,65 @@ public class SendSingleSeismic {
      * @throws IllegalStateException if the required variables have not been
      *         channelSetup.
      */
-    public static synchronized void sendToEarthworm(
+    public static void sendToEarthworm(
             DataSingleSeismic seismicData) {
 
-        // Create trace buffer data to send out.
-        byte[] traceBufferData = new TraceBufferPacket(
+        // Encode the trace buffer straight into a buffer for the channels.
+        ChannelBuffer output = new TraceBufferPacket(
                 seismicData.getStationNumber(),
                 seismicData.getNetworkID(),
                 seismicData.getTypeName(),
                 seismicData.getStartTime(),
                 seismicData.getEndTime(),
                 seismicData.getSampleRate(),
-                seismicData.getData()).getMessage();
+                seismicData.getData()).getMessageBuffer();
+
+        TraceBackfill backlog = backfill;
+        if (backlog != null) {
+            backlog.write(getChannel(seismicData), seismicData.getNetworkID(),
+                    output);
+        } else {
+            config.SEISMIC_EARTHWORM_CHANNELS.write(output);
+        }
 
-        // Wrap the byte[] with a ChannelBuffer so it can be sent to a channel.
-        ChannelBuffer output =
-                ChannelBuffers.wrappedBuffer(traceBufferData);
+        SeedLinkStore records = seedLinkStore;
+        if (records != null) {
+            records.add(seismicData.getNetworkID(),
+                    TraceBufferPacket.getStation(
+                        seismicData.getStationNumber()),
+                    "--", seismicData.getTypeName(),
+                    seismicData.getStartTime(), seismicData.getSampleRate(),
+                    seismicData.getData());
+        }
 
-        config.SEISMIC_EARTHWORM_CHANNELS.write(output);
+        if (log.isDebugEnabled()) {
+            log.debug("Seismic: " + seismicData.getNetworkID() + " "
+                    + seismicData.getStationNumber() + " "
+                    + seismicData.getStartTime() + " to "
+                    + seismicData.getEndTime());
+        }
+    }
 
-        //TODO: Remove
-        System.out.println("Seismic: " +  seismicData.getNetworkID() + " " +
-                            seismicData.getStationNumber());
-        System.out.println( seismicData.getStartTime() + " to "
-                            + seismicData.getEndTime());
+    /**
+     * @return the trace of the packet's station and type, which keys its
+     *         backfill ring, created the first time it is asked for.
+     */
+    private static TraceChannel getChannel(DataSingleSeismic seismicData) {
+        String key = seismicData.getStationNumber() + " "
+                + seismicData.getTypeName();
+        TraceChannel channel = channels.get(key);
+        if (channel == null) {
+            channel = new TraceChannel(
+                    TraceBufferPacket.getStation(
+                        seismicData.getStationNumber()),
+                    seismicData.getTypeName(), "--",
+                    config.SEISMIC_EARTHWORM_INTALLATION,
+                    config.SEISMIC_EARTHWORM_MODULE);
+            TraceChannel existing = channels.putIfAbsent(key, channel);
+            if (existing != null) {
+                channel = existing;
+            }
+        }
+        return channel;
     }
-}
\ No newline at end of file
+}
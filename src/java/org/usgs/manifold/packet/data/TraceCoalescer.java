@@ -0,0 +1,234 @@
+package org.usgs.manifold.packet.data;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+import org.usgs.manifold.packet.earthworm.TraceChannel;
+
+/**
+ * Merges the contiguous multi channel packets of each station, channel,
+ * network and location into TRACEBUF2 messages of up to the Earthworm limit
+ * of 4096 bytes, so a trace of many small packets is sent as fewer, larger
+ * messages. A packet is contiguous when its sample rate matches and it
+ * starts within half a sample of where the last one left off; anything else
+ * sends what has been merged so far and starts a new message.
+ *
+ * <p>
+ * A message holds up to 1008 i4 samples, or up to 2016 while every sample
+ * merged into it fits in the 16 bits of an i2 and the channel is
+ * {@link TraceChannel#isCompact() compact}. When a wider sample arrives at a
+ * message already past 1008 samples, the message is sent as i2 and the wider
+ * sample starts the next one.
+ *
+ * <p>
+ * A message is sent once it is full, or once its first samples have waited
+ * for the latency ceiling, so a quiet or slow trace is never held back for
+ * longer than that. Messages are sent through
+ * {@link SendMulti#sendTrace(TraceChannel, String, double, double, double,
+ * int[]) SendMulti.sendTrace} while holding the trace's lock, so the messages
+ * of a trace are still sent in order.
+ *
+ */
+public class TraceCoalescer {
+
+    /** The Earthworm limit on the size of a TRACEBUF2 message. */
+    public static final int MAX_TRACEBUF_SIZE = 4096;
+
+    /** The size of a TRACEBUF2 header. */
+    private static final int HEADER_SIZE = 64;
+
+    /** The most i4 samples in one message. */
+    private static final int MAX_SAMPLES =
+            (MAX_TRACEBUF_SIZE - HEADER_SIZE) / 4;
+
+    /** The most i2 samples in one message. */
+    private static final int MAX_SHORT_SAMPLES =
+            (MAX_TRACEBUF_SIZE - HEADER_SIZE) / 2;
+
+    /** The milliseconds the first samples of a message may wait. */
+    private final long latency;
+
+    /** Sends the messages that reach the latency ceiling. */
+    private final Timer timer =
+            new HashedWheelTimer(10, TimeUnit.MILLISECONDS);
+
+    /** The message being merged for each trace, by channel and network ID. */
+    private final ConcurrentMap<TraceChannel, ConcurrentMap<String, Pending>>
+            pending = new ConcurrentHashMap<TraceChannel,
+                    ConcurrentMap<String, Pending>>();
+
+    /**
+     * @param latency the milliseconds the first samples of a message may
+     *        wait before it is sent unfilled.
+     */
+    public TraceCoalescer(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Merge a packet into its trace's message, sending the message when it
+     * fills or when the packet does not follow on from it.
+     *
+     * @param channel the station, channel and location of the trace.
+     * @param networkID the network of the trace.
+     * @param start the time of the first sample in epoch seconds.
+     * @param end the time of the last sample in epoch seconds.
+     * @param rate the sample rate in Hz.
+     * @param data the samples.
+     */
+    public void add(TraceChannel channel, String networkID, double start,
+            double end, double rate, int[] data) {
+
+        getPending(channel, networkID).add(start, end, rate, data);
+    }
+
+    /**
+     * @return the message being merged for the trace, created the first time
+     *         it is asked for.
+     */
+    private Pending getPending(TraceChannel channel, String networkID) {
+
+        ConcurrentMap<String, Pending> networks = pending.get(channel);
+        if (networks == null) {
+            networks = new ConcurrentHashMap<String, Pending>();
+            ConcurrentMap<String, Pending> existing =
+                    pending.putIfAbsent(channel, networks);
+            if (existing != null) {
+                networks = existing;
+            }
+        }
+
+        Pending message = networks.get(networkID);
+        if (message == null) {
+            message = new Pending(channel, networkID);
+            Pending existing = networks.putIfAbsent(networkID, message);
+            if (existing != null) {
+                message = existing;
+            }
+        }
+        return message;
+    }
+
+    /**
+     * @return true if the sample can be sent as an i2.
+     */
+    private static boolean fitsShort(int sample) {
+        return sample >= Short.MIN_VALUE && sample <= Short.MAX_VALUE;
+    }
+
+    /** The message being merged for one trace. */
+    private class Pending implements TimerTask {
+
+        private final TraceChannel channel;
+        private final String networkID;
+
+        /** The merged samples. */
+        private final int[] samples = new int[MAX_SHORT_SAMPLES];
+        private int count;
+
+        /** Whether the message has to be sent as i4. */
+        private boolean wide;
+
+        /** The times of the first and last merged samples. */
+        private double start;
+        private double end;
+
+        /** The sample rate of the merged samples. */
+        private double rate;
+
+        /** Sends the message at the latency ceiling, or null if empty. */
+        private Timeout timeout;
+
+        Pending(TraceChannel channel, String networkID) {
+            this.channel = channel;
+            this.networkID = networkID;
+        }
+
+        synchronized void add(double packetStart, double packetEnd,
+                double packetRate, int[] data) {
+
+            if (count > 0 && (packetRate != rate
+                    || Math.abs(packetStart - (end + 1 / rate))
+                    > 0.5 / rate)) {
+                send();
+            }
+
+            int offset = 0;
+            while (offset < data.length) {
+                if (count == 0) {
+                    start = packetStart + offset / packetRate;
+                    rate = packetRate;
+                    wide = !channel.isCompact();
+                    timeout = timer.newTimeout(this, latency,
+                            TimeUnit.MILLISECONDS);
+                }
+
+                int limit = wide ? MAX_SAMPLES : MAX_SHORT_SAMPLES;
+                int n = Math.min(limit - count, data.length - offset);
+                if (!wide) {
+                    // Stop at the first sample that needs an i4.
+                    int narrow = 0;
+                    while (narrow < n && fitsShort(data[offset + narrow])) {
+                        narrow++;
+                    }
+                    if (narrow < n) {
+                        if (count + narrow > MAX_SAMPLES) {
+                            // Too many samples for an i4, so send the
+                            // narrow ones as i2.
+                            n = narrow;
+                            limit = count + narrow;
+                        } else {
+                            wide = true;
+                            limit = MAX_SAMPLES;
+                            n = Math.min(limit - count,
+                                    data.length - offset);
+                        }
+                    }
+                }
+
+                System.arraycopy(data, offset, samples, count, n);
+                count += n;
+                offset += n;
+                end = (offset == data.length) ? packetEnd
+                        : start + (count - 1) / rate;
+
+                if (count == limit) {
+                    send();
+                }
+            }
+        }
+
+        /**
+         * Send the message once its first samples have waited long enough,
+         * unless it was sent since.
+         */
+        public synchronized void run(Timeout expired) {
+            if (expired == timeout) {
+                send();
+            }
+        }
+
+        /**
+         * Send the merged samples as one message and start a new one.
+         */
+        private void send() {
+            if (count == 0) {
+                return;
+            }
+
+            int[] data = new int[count];
+            System.arraycopy(samples, 0, data, 0, count);
+            count = 0;
+            timeout.cancel();
+            timeout = null;
+
+            SendMulti.sendTrace(channel, networkID, start, end, rate, data);
+        }
+    }
+}
@@ -1,9 +1,7 @@
 package org.usgs.manifold.packet.earthworm;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.nio.charset.Charset;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 
 import org.usgs.manifold.ConfigurationPacket;
 import org.usgs.manifold.Initialize;
@@ -44,11 +42,21 @@ abstract public class EarthwormPacket {
     public static final int TYPE_STRONGMOTION = 27;		// single-instrument peak accel, peak velocity, peak displacement, spectral acceleration
     public static final int TYPE_MAGNITUDE = 28;		// event magnitude: summary plus station info
     public static final int TYPE_STRONGMOTIONII = 29;
-    private static final byte ESC = 27;
-    private static final byte STX = 0x02;
-    private static final byte ETX = 0x03;
+    static final byte ESC = 27;
+    static final byte STX = 0x02;
+    static final byte ETX = 0x03;
     /* End of copied code */
-    private byte[] messageHeader;
+    private final byte[] messageHeader;
+
+    /** The buffer each thread escapes its messages into before they are
+     * copied out at their exact size. */
+    private static final ThreadLocal<ChannelBuffer> scratch =
+            new ThreadLocal<ChannelBuffer>() {
+                @Override
+                protected ChannelBuffer initialValue() {
+                    return ChannelBuffers.dynamicBuffer(8192);
+                }
+            };
 
     /** Used to store the header bytes for this message*/
     /** Construct a new earthworm message of the appropriate type. Builds the
@@ -57,26 +65,50 @@ abstract public class EarthwormPacket {
      * @param msgType the type of message (as defined above)
      */
     public EarthwormPacket(int msgType) {
+        //get the configuration
+        ConfigurationPacket config = Initialize.getPacketConfig();
+
+        messageHeader = createHeader(config.SEISMIC_EARTHWORM_INTALLATION,
+                config.SEISMIC_EARTHWORM_MODULE, msgType);
+    }
+
+    /** Construct a new earthworm message with a header that has already been
+     * built by {@link #createHeader(int, int, int)}. The header is shared and
+     * not copied.
+     *
+     * @param messageHeader the header for the message.
+     */
+    protected EarthwormPacket(byte[] messageHeader) {
+        this.messageHeader = messageHeader;
+    }
+
+    /** Builds the message header, the STX flag followed by the installation,
+     * module and message type, each padded to three characters.
+     *
+     * @param installation the installation ID of the sending module.
+     * @param module the module ID of the sending module.
+     * @param msgType the type of message (as defined above)
+     * @return the header bytes, not yet escaped.
+     */
+    public static byte[] createHeader(int installation, int module,
+            int msgType) {
         //For now, limit it to the two types we expect
         if (msgType != TYPE_HEARTBEAT && msgType != TYPE_TRACEBUF &&
                 msgType != TYPE_TRACEBUF2) {
             throw new RuntimeException("Unsupported Packet Type");
         }
-        
-        //get the configuration
-        ConfigurationPacket config = Initialize.getPacketConfig();
-        
+
         //Build header string
         //String s = " 26 211" + Integer.toString(msgType);
 
-        String intstr = Integer.toString(config.SEISMIC_EARTHWORM_INTALLATION);
+        String intstr = Integer.toString(installation);
         
         //Make it the right length
         while (intstr.length() < 3) {
             intstr = " " + intstr;
         }
         
-        String modstr = Integer.toString(config.SEISMIC_EARTHWORM_MODULE);
+        String modstr = Integer.toString(module);
                 
         //Make it the right length
         while (modstr.length() < 3) {
@@ -92,19 +124,15 @@ abstract public class EarthwormPacket {
         
         String s = " " + intstr + modstr + typstr;
         
-        //System.out.println("String s = {" + s + "}");
-                
         //Make it the right length
         while (s.length() < 10) {
             s = s.concat(" ");
         }
         
-        //System.out.println("String s = {" + s + "}");
-        
         //Add STX flag
-        messageHeader = s.getBytes();
-        messageHeader[0] = STX;
-        
+        byte[] header = s.getBytes();
+        header[0] = STX;
+        return header;
     }
 
     /** Retrieves the bytes that make up the body of the message, between
@@ -114,47 +142,76 @@ abstract public class EarthwormPacket {
      */
     public abstract byte[] getMessageBody();
 
-    /** Retrieves the byte sequence that makes up the entire message, stuffed
-     * and flagged and ready for transmission.
+    /** Writes the body of the message, between the header and the ETX flag,
+     * to the writer. By default this writes {@link #getMessageBody()}.
+     * Subclasses can override this to write their fields directly and avoid
+     * building the body separately.
      *
-     * @return the complete Earthworm message as a byte array
+     * @param out the writer to write the payload to.
      */
-    public byte[] getMessage() {
-        //Retrieve payload
-        byte[] messageBody = getMessageBody();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(baos);
-
-        try {
-            //Write the header into the buffer
-            for (byte b : messageHeader) {
-                //Escape as necesssary
-                if (b == ETX || b == ESC) {
-                    out.writeByte(ESC);
-                }
-                //Write actual byte
-                out.writeByte(b);
+    protected void writeMessageBody(EarthwormWriter out) {
+        out.writeBytes(getMessageBody());
+    }
+
+    /** Writes the header, body and end flag to the writer.
+     *
+     * @param out the writer to write the message to.
+     * @param body the body from {@link #getMessageBody()}, or null to write
+     *        it with {@link #writeMessageBody(EarthwormWriter)}.
+     */
+    private void writeMessage(EarthwormWriter out, byte[] body) {
+        //Write the header, escaping as necessary
+        for (byte b : messageHeader) {
+            if (b == ETX || b == ESC) {
+                out.writeRaw(ESC);
             }
+            out.writeRaw(b);
+        }
 
-            //Write the payload into the buffer
-            for (byte b : messageBody) {
-                //Escape as necssary
-                if (b == ETX || b == ESC || b == STX) {
-                    out.writeByte(ESC);
-                }
+        //Write the payload, escaping as necessary
+        if (body == null) {
+            writeMessageBody(out);
+        } else {
+            out.writeBytes(body);
+        }
 
-                //Write actual byte
-                out.writeByte(b);
-            }
+        //Write end flag
+        out.writeRaw(ETX);
+    }
 
-            //Write end flag
-            out.writeByte(ETX);
+    /** Retrieves the entire message, stuffed and flagged and ready for
+     * transmission, in a buffer of exactly the right size. The message is
+     * encoded and escaped once, into a buffer kept by the thread, and then
+     * copied out.
+     *
+     * @return the complete Earthworm message as a ChannelBuffer
+     */
+    public ChannelBuffer getMessageBuffer() {
+        return getMessageBuffer(null);
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /** Retrieves the entire message, stuffed and flagged and ready for
+     * transmission, around a body that has already been encoded. This saves
+     * encoding the body again when it is also needed on its own.
+     *
+     * @param body the body from {@link #getMessageBody()}, or null to encode
+     *        it.
+     * @return the complete Earthworm message as a ChannelBuffer
+     */
+    public ChannelBuffer getMessageBuffer(byte[] body) {
+        ChannelBuffer buffer = scratch.get();
+        buffer.clear();
+        writeMessage(new EarthwormWriter(buffer, true), body);
+        return ChannelBuffers.copiedBuffer(buffer);
+    }
 
-        //Convert the byte buffer to a byte array and return it
-        return baos.toByteArray();
+    /** Retrieves the byte sequence that makes up the entire message, stuffed
+     * and flagged and ready for transmission.
+     *
+     * @return the complete Earthworm message as a byte array
+     */
+    public byte[] getMessage() {
+        //The buffer is created with exactly the size of the message
+        return getMessageBuffer().array();
     }
 }
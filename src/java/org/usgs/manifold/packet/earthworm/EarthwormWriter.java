@@ -0,0 +1,106 @@
+package org.usgs.manifold.packet.earthworm;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Writes the fields of an Earthworm message straight into a
+ * {@code ChannelBuffer}, escaping the STX, ETX and ESC flags as it goes.
+ * Multi-byte values are written in little endian (Intel) byte order.
+ *
+ */
+public final class EarthwormWriter {
+
+    /** The buffer to write to. */
+    private final ChannelBuffer buffer;
+
+    /** Specifies if flag bytes should be escaped. */
+    private final boolean escape;
+
+    /** The number of bytes that have been written. */
+    private int length = 0;
+
+    /**
+     * @param buffer the buffer to write to.
+     * @param escape true if STX, ETX and ESC bytes should be escaped.
+     */
+    public EarthwormWriter(ChannelBuffer buffer, boolean escape) {
+        this.buffer = buffer;
+        this.escape = escape;
+    }
+
+    /**
+     * @return the number of bytes written, including escape bytes.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Write a single byte without escaping it.
+     *
+     * @param b the byte to write.
+     */
+    public void writeRaw(int b) {
+        buffer.writeByte(b);
+        length++;
+    }
+
+    /**
+     * Write a single byte, escaping it if it is a flag.
+     *
+     * @param b the byte to write.
+     */
+    public void writeByte(int b) {
+        byte value = (byte) b;
+        if (escape && (value == EarthwormPacket.ETX
+                || value == EarthwormPacket.ESC
+                || value == EarthwormPacket.STX)) {
+            writeRaw(EarthwormPacket.ESC);
+        }
+        writeRaw(value);
+    }
+
+    /**
+     * Write the low two bytes of a value in little endian order.
+     *
+     * @param value the value to write.
+     */
+    public void writeShort(int value) {
+        writeByte(value);
+        writeByte(value >>> 8);
+    }
+
+    /**
+     * Write an int in little endian order.
+     *
+     * @param value the value to write.
+     */
+    public void writeInt(int value) {
+        writeByte(value);
+        writeByte(value >>> 8);
+        writeByte(value >>> 16);
+        writeByte(value >>> 24);
+    }
+
+    /**
+     * Write a double in little endian order.
+     *
+     * @param value the value to write.
+     */
+    public void writeDouble(double value) {
+        long bits = Double.doubleToLongBits(value);
+        writeInt((int) bits);
+        writeInt((int) (bits >>> 32));
+    }
+
+    /**
+     * Write the bytes as they are, escaping any flags.
+     *
+     * @param bytes the bytes to write.
+     */
+    public void writeBytes(byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            writeByte(bytes[i]);
+        }
+    }
+}
@@ -1,10 +1,10 @@
 package org.usgs.manifold.packet.earthworm;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.util.*;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
 /**
  * Represents an Earthworm TraceBuffer (a data element relating to waveforms).
  * Used to communicate sensor web data to Earthworm devices that are connected
@@ -12,19 +12,25 @@ import java.util.*;
  */
 public class TraceBuffer2Packet extends EarthwormPacket {
 
-    private String station = "---";      //Represents source of data
-    private String location = "--";
-    private String channelName = "---";  //Represents type of data
+    private byte[] stationField =        //Represents source of data
+            TraceChannel.encode("---", TraceChannel.STATION_LENGTH);
+    private byte[] locationField =
+            TraceChannel.encode("--", TraceChannel.LOCATION_LENGTH);
+    private byte[] channelField =        //Represents type of data
+            TraceChannel.encode("---", TraceChannel.CHANNEL_LENGTH);
+    private byte[] networkField =        //Network field
+            TraceChannel.encode("--", TraceChannel.NETWORK_LENGTH);
     private int[] data;                  //Stores actual data
     private int pin;                     //Unused field of trace buffer
     private int numSamples;              //Size of data
     private double startTime;            //Time of first data point
     private double endTime;              //Time of last data point
     private double sampleRate;           //Sampling rate (in Hz)
+    private boolean shortSamples;        //Samples written as i2, not i4
     private static Map<Integer, String> stationMap; //Used to match stations
     // to id numbers
     public String network = "--";    		    //Network string
-    private static boolean initialized = false;     //Initialize only once
+    private static volatile boolean initialized = false; //Initialize only once
 
     /**
      * Construct a default TraceBufferPacket with test data to check
@@ -66,11 +72,15 @@ public class TraceBuffer2Packet extends EarthwormPacket {
         }
         //Set NetworkID from given networkID
         this.network = networkID;
+        networkField = TraceChannel.encode(networkID,
+                TraceChannel.NETWORK_LENGTH);
         //Get or calculate station name
-        station = getStation(stationNum);
+        stationField = TraceChannel.encode(getStation(stationNum),
+                TraceChannel.STATION_LENGTH);
         // Fill in fields of this packet from data provided
         numSamples = data.length;
-        this.channelName = channelName;
+        channelField = TraceChannel.encode(channelName,
+                TraceChannel.CHANNEL_LENGTH);
         this.startTime = startTime;
         this.endTime = endTime;
         this.sampleRate = sampleRate;
@@ -89,12 +99,16 @@ public class TraceBuffer2Packet extends EarthwormPacket {
         }
         //Set NetworkID from given networkID
         this.network = networkID.toUpperCase();
+        networkField = TraceChannel.getNetworkField(networkID);
         //Set station name
-        this.station = stationName.toUpperCase();
+        stationField = TraceChannel.encode(stationName.toUpperCase(),
+                TraceChannel.STATION_LENGTH);
         //Set the type
-        this.channelName = type.toUpperCase();
+        channelField = TraceChannel.encode(type.toUpperCase(),
+                TraceChannel.CHANNEL_LENGTH);
         //Set the location
-        this.location = Location.toUpperCase();
+        locationField = TraceChannel.encode(Location.toUpperCase(),
+                TraceChannel.LOCATION_LENGTH);
 
         // Fill in fields of this packet from data provided
         numSamples = data.length;
@@ -105,11 +119,63 @@ public class TraceBuffer2Packet extends EarthwormPacket {
         this.data = data;
     }
 
+    /**
+     * Construct a TraceBufferPacket for a channel from the routing table in
+     * {@link org.usgs.manifold.ConfigurationPacket}. The station, channel,
+     * location and logo were encoded when the table was built so nothing is
+     * converted here.
+     *
+     * @param channel the station, channel and location of this waveform
+     * @param networkID the network of this waveform
+     * @param startTime Time of first sample point
+     * @param endTime Time of last sample point
+     * @param sampleRate Sampling frequency (in Hz)
+     * @param data The data samples
+     */
+    public TraceBuffer2Packet(TraceChannel channel, String networkID,
+            double startTime, double endTime, double sampleRate, int[] data) {
+        super(channel.getLogo());
+
+        this.network = networkID;
+        networkField = TraceChannel.getNetworkField(networkID);
+        stationField = channel.getStationField();
+        channelField = channel.getChannelField();
+        locationField = channel.getLocationField();
+
+        numSamples = data.length;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.sampleRate = sampleRate;
+        pin = 1;
+        this.data = data;
+        shortSamples = channel.isCompact() && fitsShort(data, 0, data.length);
+    }
+
+    /**
+     * Checks whether samples can be sent as i2.
+     *
+     * @param data the samples.
+     * @param offset the index of the first sample to check.
+     * @param length the number of samples to check.
+     * @return true if every sample checked fits in a signed 16 bit integer.
+     */
+    public static boolean fitsShort(int[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (data[i] < Short.MIN_VALUE || data[i] > Short.MAX_VALUE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
 
     /**
      * Creates a global map of station names to ID numbers
      */
-    public static void initialize() {
+    public static synchronized void initialize() {
+        if (initialized) {
+            return;
+        }
         stationMap = new HashMap<Integer, String>();
         initialized = true;
 
@@ -136,63 +202,9 @@ public class TraceBuffer2Packet extends EarthwormPacket {
         return stationMap.get(stationNum);
     }
 
-    
-    private byte [] intTolittleEndian(int i) throws IOException{
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(baos);
-        
-        out.writeInt(i);        
-        byte [] ba = baos.toByteArray();
-        baos.reset();
-        for(int j = ba.length -1; j >= 0; --j){
-            out.write(ba[j]);
-        }
-        //System.out.println("size = " + baos.toByteArray().length);
-        return baos.toByteArray();
-    }
+    /** The number of bytes in the trace header before the samples. */
+    private static final int HEADER_LENGTH = 64;
 
-    private byte [] intToBigEndian(int i) throws IOException{
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(baos);
-        
-        out.writeInt(i);        
-        byte [] ba = baos.toByteArray();
-        baos.reset();
-        for(int j = 0; j <= ba.length -1; ++j){
-            out.write(ba[j]);
-        }
-        return baos.toByteArray();
-    }
-    
-    
-    private byte [] doubleTolittleEndian(double d) throws IOException{
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(baos);
-
-        out.writeDouble(d);
-        byte [] ba = baos.toByteArray();
-        baos.reset();
-        for(int j = ba.length -1; j >= 0; --j){
-            out.write(ba[j]);
-        }
-        //System.out.println("size = " + baos.toByteArray().length);
-        return baos.toByteArray();
-    }
-    
-    private byte [] doubleToBigEndian(double d) throws IOException{
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(baos);
-
-        out.writeDouble(d);
-        byte [] ba = baos.toByteArray();
-        baos.reset();
-        for(int j = 0; j <= ba.length -1; ++j){
-            out.write(ba[j]);
-        }
-        //System.out.println("size = " + baos.toByteArray().length);
-        return baos.toByteArray();
-    }
-    
     /**
      * Converts the fields and data contained in this packet into a flat byte
      * array for transmission via TCP. Creation of flags and tacking on the
@@ -203,100 +215,67 @@ public class TraceBuffer2Packet extends EarthwormPacket {
      */
     @Override
     public byte[] getMessageBody() {
-        try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            
-            DataOutputStream out = new DataOutputStream(baos);
-            
-            // Write initial information
-            //out.writeInt(pin);
-            out.write(intTolittleEndian(pin));
-            
-            //out.writeInt(numSamples);
-            out.write(intTolittleEndian(numSamples));
-            
-            //out.writeDouble(startTime);
-            out.write(doubleTolittleEndian(startTime));
-            
-            //out.writeDouble(endTime);
-            out.write(doubleTolittleEndian(endTime));
-            
-            //out.writeDouble(sampleRate);
-            out.write(doubleTolittleEndian(sampleRate));
+        ChannelBuffer buffer = ChannelBuffers.buffer(
+                HEADER_LENGTH + (shortSamples ? 2 : 4) * data.length);
+        writeMessageBody(new EarthwormWriter(buffer, false));
+        return buffer.array();
+    }
 
-            // Write SNCL data
-            //station field is 7 bytes chars long
-            int len = 7 - station.length();
-            out.writeBytes(station);
-            for (int i = 0; i < len; i++) {
-                out.write((byte) 0);
-            }
-            // network field is 9 bytes long
-            len = 9 - network.length();
-            out.writeBytes(network);
-            for (int i = 0; i < len; i++) {
-                out.write((byte) 0);
-            }
+    /**
+     * Writes the 64 byte trace header and the samples in little endian order
+     * straight to the writer, which escapes them as they are written. The
+     * samples are written as i2 when the channel allows it and they all fit,
+     * halving the size of the message, and as i4 otherwise.
+     *
+     * @param out the writer to write the payload to.
+     */
+    @Override
+    protected void writeMessageBody(EarthwormWriter out) {
+        // Write initial information
+        out.writeInt(pin);
+        out.writeInt(numSamples);
+        out.writeDouble(startTime);
+        out.writeDouble(endTime);
+        out.writeDouble(sampleRate);
 
-            //channel field is 4 bytes long
-            //changed the channel feild size from 9 to 4
-            len = 4 - channelName.length();
-            out.writeBytes(channelName);
-            for (int i = 0; i < len; i++) {
-                out.write((byte) 0);
-            }
+        // Write SNCL data
+        //station field is 7 bytes chars long
+        out.writeBytes(stationField);
+        // network field is 9 bytes long
+        out.writeBytes(networkField);
+        //channel field is 4 bytes long
+        out.writeBytes(channelField);
+        //Chris Lockett
+        //added location to make compatable with tracebuff2
+        //location location field is 3 chars long
+        out.writeBytes(locationField);
 
-            //Chris Lockett
-            //added location to make compatable with tracebuff2
-            //location location field is 3 chars long
-            len = 3 - location.length();            
-            out.writeBytes(location);
-            for(int i = 0; i < len; i++) {
-                out.write((byte) 0);
-            }
+        //version
+        out.writeByte('2');
+        out.writeByte('0');
+
+        // Write data format (data type)
+        out.writeByte('i');   //two or four bytes, i byte order (little-endian)
+        out.writeByte(shortSamples ? '2' : '4');
+        out.writeByte(0);
 
-            //7-19-2013
-            // changed version from 
-            //out.write((byte)'0');
-            //out.write((byte)'0');
-            //to 
-            
-            //version
-            out.write((byte)'2');
-            out.write((byte)'0');            
-            
-            // Write data format (data type)
-            //out.writeBytes("s4");   //four bytes in Sun byte order (big-endian)
-            out.writeBytes("i4");   //four bytes in i byte order (little-endian)
-            
-            out.write((byte) 0);
-            
-            //7-19-2013 added quality and pad and changed version
-            //quality
-            out.write((byte)'0');
-            out.write((byte)'0');
-            //pad
-            out.write((byte)0);
-            out.write((byte)0);
+        //quality
+        out.writeByte('0');
+        out.writeByte('0');
+        //pad
+        out.writeByte(0);
+        out.writeByte(0);
 
-            // Write actual data
+        // Write actual data
+        if (shortSamples) {
             for (int i = 0; i < data.length; i++) {
-                //out.writeInt(data[i]);
-                out.write(intTolittleEndian(data[i]));
+                out.writeShort(data[i]);
+            }
+        } else {
+            for (int i = 0; i < data.length; i++) {
+                out.writeInt(data[i]);
             }
-
-            //I don't know why this was placed here but I caused an error in WWS
-            //for (int i = 0; i < 30; ++i) {
-            //    out.write((byte) 0);
-            //}
-            //out.write((byte) 0);
-
-            // Return as byte array
-            return baos.toByteArray();
-        } catch (IOException e) {
-            e.printStackTrace();
         }
-        return null;
     }
 
     /**
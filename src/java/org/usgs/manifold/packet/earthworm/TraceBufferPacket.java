@@ -24,7 +24,7 @@ public class TraceBufferPacket extends EarthwormPacket {
     private static Map<Integer, String> stationMap; //Used to match stations
     // to id numbers
     public String network = "--";    		    //Network string
-    private static boolean initialized = false;     //Initialize only once
+    private static volatile boolean initialized = false; //Initialize only once
 
     /**
      * Construct a default TraceBufferPacket with test data to check
@@ -109,7 +109,10 @@ public class TraceBufferPacket extends EarthwormPacket {
     /**
      * Creates a global map of station names to ID numbers
      */
-    public static void initialize() {
+    public static synchronized void initialize() {
+        if (initialized) {
+            return;
+        }
         stationMap = new HashMap<Integer, String>();
         initialized = true;
 
@@ -0,0 +1,176 @@
+package org.usgs.manifold.packet.earthworm;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An immutable description of where a trace is sent: its station, channel
+ * and location along with the logo of the module sending it. The fields are
+ * encoded, upper cased and padded to their TRACEBUF2 sizes once so that
+ * building a trace header for each packet is only a matter of copying bytes.
+ *
+ */
+public final class TraceChannel {
+
+    /** The size of the station field in a TRACEBUF2 header. */
+    public static final int STATION_LENGTH = 7;
+    /** The size of the network field in a TRACEBUF2 header. */
+    public static final int NETWORK_LENGTH = 9;
+    /** The size of the channel field in a TRACEBUF2 header. */
+    public static final int CHANNEL_LENGTH = 4;
+    /** The size of the location field in a TRACEBUF2 header. */
+    public static final int LOCATION_LENGTH = 3;
+
+    /** Padded network fields for each network ID seen so far. */
+    private static final Map<String, byte[]> networks =
+            new ConcurrentHashMap<String, byte[]>();
+
+    private final String station;
+    private final String channel;
+    private final String location;
+
+    private final byte[] stationField;
+    private final byte[] channelField;
+    private final byte[] locationField;
+
+    /** The message header holding the installation, module and type. */
+    private final byte[] logo;
+
+    /** Whether messages whose samples all fit in 16 bits are sent as i2. */
+    private final boolean compact;
+
+    /**
+     * Describe a trace whose messages are always sent as i4.
+     *
+     * @param station the station name.
+     * @param channel the channel name, also known as the type.
+     * @param location the location code.
+     * @param installation the installation ID of the sending module.
+     * @param module the module ID of the sending module.
+     */
+    public TraceChannel(String station, String channel, String location,
+            int installation, int module) {
+        this(station, channel, location, installation, module, false);
+    }
+
+    /**
+     * @param station the station name.
+     * @param channel the channel name, also known as the type.
+     * @param location the location code.
+     * @param installation the installation ID of the sending module.
+     * @param module the module ID of the sending module.
+     * @param compact true to send messages whose samples all fit in 16 bits
+     *        as i2, false to always send i4.
+     */
+    public TraceChannel(String station, String channel, String location,
+            int installation, int module, boolean compact) {
+
+        this.compact = compact;
+        this.station = station.toUpperCase();
+        this.channel = channel.toUpperCase();
+        this.location = location.toUpperCase();
+
+        stationField = encode(this.station, STATION_LENGTH);
+        channelField = encode(this.channel, CHANNEL_LENGTH);
+        locationField = encode(this.location, LOCATION_LENGTH);
+
+        logo = EarthwormPacket.createHeader(installation, module,
+                EarthwormPacket.TYPE_TRACEBUF2);
+    }
+
+    /**
+     * Encode a string as ascii into a zero padded field. Characters that don't
+     * fit are dropped.
+     *
+     * @param value the string to encode.
+     * @param fieldLength the size of the field in bytes.
+     * @return the padded field.
+     */
+    static byte[] encode(String value, int fieldLength) {
+        byte[] bytes = value.getBytes(Charset.forName("UTF-8"));
+        byte[] field = new byte[fieldLength];
+        System.arraycopy(bytes, 0, field, 0,
+                Math.min(bytes.length, fieldLength));
+        return field;
+    }
+
+    /**
+     * Retrieves the padded network field for a network ID. Fields are only
+     * encoded the first time a network ID is seen.
+     *
+     * @param networkID the network ID.
+     * @return the upper cased network ID padded to the network field size.
+     */
+    public static byte[] getNetworkField(String networkID) {
+        byte[] field = networks.get(networkID);
+        if (field == null) {
+            field = encode(networkID.toUpperCase(), NETWORK_LENGTH);
+            networks.put(networkID, field);
+        }
+        return field;
+    }
+
+    /**
+     * @return the upper cased station name.
+     */
+    public String getStation() {
+        return station;
+    }
+
+    /**
+     * @return the upper cased channel name.
+     */
+    public String getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return the upper cased location code.
+     */
+    public String getLocation() {
+        return location;
+    }
+
+    /**
+     * @return true if messages whose samples all fit in 16 bits are sent as
+     *         i2, false if they are always sent as i4.
+     */
+    public boolean isCompact() {
+        return compact;
+    }
+
+    /**
+     * @return the padded station field. Must not be modified.
+     */
+    byte[] getStationField() {
+        return stationField;
+    }
+
+    /**
+     * @return the padded channel field. Must not be modified.
+     */
+    byte[] getChannelField() {
+        return channelField;
+    }
+
+    /**
+     * @return the padded location field. Must not be modified.
+     */
+    byte[] getLocationField() {
+        return locationField;
+    }
+
+    /**
+     * @return the TRACEBUF2 message header. Must not be modified.
+     */
+    byte[] getLogo() {
+        return logo;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return station + "." + channel + "." + location;
+    }
+}
@@ -12,13 +12,34 @@ import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
 
 /**
  * A simple server that organizes connections into {@code channelGroup}s based
- * on the port the connection connected on.
+ * on the port the connection connected on. Each connection has its own
+ * {@link SubscriberQueue} with the slow consumer policy of its port, and a
+ * port with a {@link TraceBackfill} sends new connections its backlog first.
  *
  */
 public class CVOServer {
 
+    /**
+     * @param portChannelMap a mapping of the ports to serve to the channel
+     *        groups their connections are added to.
+     * @param portInterfaceMap a mapping of ports to the interfaces to bind
+     *        them on.
+     * @param portPolicyMap a mapping of ports to slow consumer policies.
+     * @param writeHighWaterMark the bytes in a connection's write buffer at
+     *        which it stops taking messages from its queue.
+     * @param writeLowWaterMark the bytes in a connection's write buffer at
+     *        which it takes messages from its queue again.
+     * @param queueSize the maximum number of bytes queued for each client.
+     * @param lagLimit the milliseconds a message may wait before the client
+     *        is disconnected under {@link SubscriberQueue.Policy#DISCONNECT}.
+     * @param portBackfillMap a mapping of ports to the backlogs sent to new
+     *        connections.
+     */
     public static void startServer(Map<Integer, ChannelGroup> portChannelMap, 
-            Map<Integer, String> portInterfaceMap) {
+            Map<Integer, String> portInterfaceMap,
+            Map<Integer, SubscriberQueue.Policy> portPolicyMap,
+            int writeHighWaterMark, int writeLowWaterMark, int queueSize,
+            long lagLimit, Map<Integer, TraceBackfill> portBackfillMap) {
 
         // The ChannelFactory handles I/O requests and sets up channels. The
         // factory acquires threads from the given thread pools.
@@ -31,8 +52,9 @@ public class CVOServer {
 
         // Set up the event pipeline factory. A new pipeline is created for
         // each connection.
-        bootstrap.setPipelineFactory(
-                new CVOServerPipelineFactory(portChannelMap));
+        bootstrap.setPipelineFactory(new CVOServerPipelineFactory(
+                portChannelMap, portPolicyMap, writeHighWaterMark,
+                writeLowWaterMark, queueSize, lagLimit, portBackfillMap));
 
         // Keep connections alive.
         bootstrap.setOption("child.tcpNoDelay", true);
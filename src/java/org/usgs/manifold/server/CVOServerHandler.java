@@ -11,6 +11,7 @@ import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
 import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioSocketChannelConfig;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,6 +22,14 @@ import org.slf4j.LoggerFactory;
  * any incoming data from the connections and closes connections if an
  * {@code SQLException} is thrown.
  *
+ * <p>
+ * Each connection has its own {@link SubscriberQueue}, so a client that can't
+ * keep up loses data under the slow consumer policy of its port without
+ * affecting the other clients. The queue of a connection, and its counters,
+ * can be found with {@link #getSubscriberQueue(Channel)}. A port with a
+ * {@link TraceBackfill} sends a new connection the recent trace messages it
+ * missed before its live data.
+ *
  */
 public class CVOServerHandler extends SimpleChannelHandler {
 
@@ -29,12 +38,65 @@ public class CVOServerHandler extends SimpleChannelHandler {
     /** A mapping of ports to channel groups. */
     private Map<Integer, ChannelGroup> portChannelMap;
 
+    /** A mapping of ports to slow consumer policies. */
+    private final Map<Integer, SubscriberQueue.Policy> portPolicyMap;
+
+    /** The channel's write buffer water marks in bytes. */
+    private final int writeHighWaterMark;
+    private final int writeLowWaterMark;
+
+    /** The maximum number of bytes queued for the client. */
+    private final int queueSize;
+
+    /** The milliseconds a message may wait under
+     * {@link SubscriberQueue.Policy#DISCONNECT}. */
+    private final long lagLimit;
+
+    /** A mapping of ports to the backlogs sent to new connections. */
+    private final Map<Integer, TraceBackfill> portBackfillMap;
+
+    /** The messages waiting to be written, or null until connected. */
+    private volatile SubscriberQueue queue;
+
     /**
      * @param portChannelMap Holds a mapping of ports to channel groups and is
      *        used to sort connections.
+     * @param portPolicyMap Holds a mapping of ports to slow consumer policies.
+     *        Ports that are not mapped drop the oldest messages.
+     * @param writeHighWaterMark the bytes in the channel's write buffer at
+     *        which it stops taking messages from the queue.
+     * @param writeLowWaterMark the bytes in the channel's write buffer at
+     *        which it takes messages from the queue again.
+     * @param queueSize the maximum number of bytes queued for the client.
+     * @param lagLimit the milliseconds a message may wait before the client
+     *        is disconnected under {@link SubscriberQueue.Policy#DISCONNECT}.
+     * @param portBackfillMap Holds a mapping of ports to the backlogs sent to
+     *        new connections.
      */
-    public CVOServerHandler(Map<Integer, ChannelGroup> portChannelMap) {
+    public CVOServerHandler(Map<Integer, ChannelGroup> portChannelMap,
+            Map<Integer, SubscriberQueue.Policy> portPolicyMap,
+            int writeHighWaterMark, int writeLowWaterMark, int queueSize,
+            long lagLimit, Map<Integer, TraceBackfill> portBackfillMap) {
+
         this.portChannelMap = portChannelMap;
+        this.portPolicyMap = portPolicyMap;
+        this.writeHighWaterMark = writeHighWaterMark;
+        this.writeLowWaterMark = writeLowWaterMark;
+        this.queueSize = queueSize;
+        this.lagLimit = lagLimit;
+        this.portBackfillMap = portBackfillMap;
+    }
+
+    /**
+     * Retrieves the queue of messages waiting to be written to a client.
+     *
+     * @param channel a connection to the server.
+     * @return the connection's queue, or null if it has none.
+     */
+    public static SubscriberQueue getSubscriberQueue(Channel channel) {
+        CVOServerHandler handler =
+                channel.getPipeline().get(CVOServerHandler.class);
+        return (handler == null) ? null : handler.queue;
     }
 
     /**
@@ -61,15 +123,82 @@ public class CVOServerHandler extends SimpleChannelHandler {
      * {@inheritDoc}
      * <p>
      * Sort the connected client into a channel group based on its port
-     * connection.
+     * connection, after giving it a queue with the port's slow consumer
+     * policy. If the port keeps a backlog the client joins the group once it
+     * has been sent the backlog.
      */
     @Override
     public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) {
-        int port = getLocalAddress(e.getChannel()).getPort();
+        Channel channel = e.getChannel();
+        int port = getLocalAddress(channel).getPort();
+
+        setWaterMarks(channel);
+
+        SubscriberQueue.Policy policy = portPolicyMap.get(port);
+        queue = new SubscriberQueue(channel, (policy == null)
+                ? SubscriberQueue.Policy.DROP_OLDEST : policy, queueSize,
+                lagLimit);
+
+        TraceBackfill backfill = portBackfillMap.get(port);
+        if (backfill != null) {
+            backfill.join(ctx, queue);
+        } else if (portChannelMap.containsKey(port)) {
+            portChannelMap.get(port).add(channel);
+        }
+    }
+
+    /**
+     * Set the water marks of the channel's write buffer, in an order that
+     * keeps the low mark below the high mark at every step.
+     *
+     * @param channel the connected channel.
+     */
+    private void setWaterMarks(Channel channel) {
+        if (!(channel.getConfig() instanceof NioSocketChannelConfig)) {
+            return;
+        }
+
+        NioSocketChannelConfig config =
+                (NioSocketChannelConfig) channel.getConfig();
+        if (writeHighWaterMark >= config.getWriteBufferLowWaterMark()) {
+            config.setWriteBufferHighWaterMark(writeHighWaterMark);
+            config.setWriteBufferLowWaterMark(writeLowWaterMark);
+        } else {
+            config.setWriteBufferLowWaterMark(writeLowWaterMark);
+            config.setWriteBufferHighWaterMark(writeHighWaterMark);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Write the queued messages once the channel is writable again.
+     */
+    @Override
+    public void channelInterestChanged(ChannelHandlerContext ctx,
+            ChannelStateEvent e) throws Exception {
 
-        if (portChannelMap.containsKey(port)) {
-            portChannelMap.get(port).add(e.getChannel());
+        SubscriberQueue pending = queue;
+        if (pending != null) {
+            pending.flush(ctx);
         }
+        super.channelInterestChanged(ctx, e);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Fail the messages still queued for the client.
+     */
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e)
+            throws Exception {
+
+        SubscriberQueue pending = queue;
+        if (pending != null) {
+            pending.close();
+        }
+        super.channelClosed(ctx, e);
     }
 
     /**
@@ -84,16 +213,16 @@ public class CVOServerHandler extends SimpleChannelHandler {
     /**
      * {@inheritDoc}
      * <p>
-     * Write the data out to the client only if the buffer is not full.
+     * Queue the data for the client, which writes it out while the channel's
+     * buffer is not full.
      */
     @Override
     public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) {
-        Channel channel = e.getChannel();
-        if (channel.isWritable()) {
-            ctx.sendDownstream(e);
+        SubscriberQueue pending = queue;
+        if (pending != null) {
+            pending.offer(ctx, e);
         } else {
-            log.warn("Could not write to client '{}",
-                    getRemoteAddress(channel));
+            ctx.sendDownstream(e);
         }
     }
 
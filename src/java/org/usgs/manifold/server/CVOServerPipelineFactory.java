@@ -16,25 +16,63 @@ public class CVOServerPipelineFactory implements ChannelPipelineFactory {
     /** Holds a mapping of ports to channel groups. */
     private Map<Integer, ChannelGroup> portChannelMap;
 
+    /** Holds a mapping of ports to slow consumer policies. */
+    private final Map<Integer, SubscriberQueue.Policy> portPolicyMap;
+
+    /** The write buffer water marks of each connection in bytes. */
+    private final int writeHighWaterMark;
+    private final int writeLowWaterMark;
+
+    /** The maximum number of bytes queued for each client. */
+    private final int queueSize;
+
+    /** The milliseconds a message may wait before a client is disconnected. */
+    private final long lagLimit;
+
+    /** Holds a mapping of ports to the backlogs sent to new connections. */
+    private final Map<Integer, TraceBackfill> portBackfillMap;
+
     /**
      * @param portChannelMap Holds a mapping of ports to channel groups and is 
      *        used to sort connections.
+     * @param portPolicyMap Holds a mapping of ports to slow consumer policies.
+     * @param writeHighWaterMark the bytes in a connection's write buffer at
+     *        which it stops taking messages from its queue.
+     * @param writeLowWaterMark the bytes in a connection's write buffer at
+     *        which it takes messages from its queue again.
+     * @param queueSize the maximum number of bytes queued for each client.
+     * @param lagLimit the milliseconds a message may wait before the client
+     *        is disconnected under {@link SubscriberQueue.Policy#DISCONNECT}.
+     * @param portBackfillMap Holds a mapping of ports to the backlogs sent to
+     *        new connections.
      */
-    public CVOServerPipelineFactory(Map<Integer, ChannelGroup> portChannelMap) {
+    public CVOServerPipelineFactory(Map<Integer, ChannelGroup> portChannelMap,
+            Map<Integer, SubscriberQueue.Policy> portPolicyMap,
+            int writeHighWaterMark, int writeLowWaterMark, int queueSize,
+            long lagLimit, Map<Integer, TraceBackfill> portBackfillMap) {
+
         this.portChannelMap = portChannelMap;
+        this.portPolicyMap = portPolicyMap;
+        this.writeHighWaterMark = writeHighWaterMark;
+        this.writeLowWaterMark = writeLowWaterMark;
+        this.queueSize = queueSize;
+        this.lagLimit = lagLimit;
+        this.portBackfillMap = portBackfillMap;
     }
 
     /**
      * Creates a very simple pipeline to sort connected clients into groups.
-     * Any messages sent from the clients are ignored and data can be written to
-     * the clients if their write buffer is not full.
+     * Any messages sent from the clients are ignored and data is queued for
+     * each client and written while its write buffer is not full.
      * 
      * @return the {@link ChannelPipeline} created.
      */
     public ChannelPipeline getPipeline() throws Exception {
         ChannelPipeline pipeline = Channels.pipeline();
 
-        pipeline.addLast("handler", new CVOServerHandler(portChannelMap));
+        pipeline.addLast("handler", new CVOServerHandler(portChannelMap,
+                portPolicyMap, writeHighWaterMark, writeLowWaterMark,
+                queueSize, lagLimit, portBackfillMap));
 
         return pipeline;
     }
@@ -0,0 +1,235 @@
+package org.usgs.manifold.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Static methods to encode 512 byte miniSEED records: a SEED 2.4 fixed
+ * header, a blockette 1000 and the samples compressed with Steim1, big
+ * endian throughout. Every SeedLink client can read these.
+ *
+ */
+final class MiniSeed {
+
+    /** The size of a record. */
+    static final int RECORD_SIZE = 512;
+
+    /** The offset of the first data frame. */
+    private static final int DATA_OFFSET = 64;
+
+    /** The size of a Steim frame. */
+    private static final int FRAME_SIZE = 64;
+
+    /** The number of Steim frames in a record. */
+    private static final int FRAMES = (RECORD_SIZE - DATA_OFFSET) / FRAME_SIZE;
+
+    /** The Steim1 encoding format and the power of two of the record size. */
+    private static final int STEIM1 = 10;
+    private static final int RECORD_LENGTH_POWER = 9;
+
+    /** The two bit codes of a Steim1 data word. */
+    private static final int FOUR_BYTES = 1;
+    private static final int TWO_SHORTS = 2;
+    private static final int ONE_INT = 3;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // Prevent instantiation
+    private MiniSeed() {
+    }
+
+    /**
+     * Encode as many samples as fit into a record.
+     *
+     * @param record the 512 byte array to encode into.
+     * @param network the network code.
+     * @param station the station code.
+     * @param location the location code, where "--" is blank.
+     * @param channel the channel code.
+     * @param start the time of the first sample in epoch seconds.
+     * @param rate the sample rate in Hz.
+     * @param samples the samples.
+     * @param count the number of samples to encode.
+     * @param previous the sample before the first, for the first difference.
+     * @return the number of samples encoded.
+     */
+    static int encode(byte[] record, String network, String station,
+            String location, String channel, double start, double rate,
+            int[] samples, int count, int previous) {
+
+        Arrays.fill(record, (byte) 0);
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+
+        // Pack the differences into data words, skipping the control word of
+        // each frame and the integration constants of the first.
+        int encoded = 0;
+        int last = previous;
+        for (int frame = 0; frame < FRAMES && encoded < count; frame++) {
+            int offset = DATA_OFFSET + frame * FRAME_SIZE;
+            int nibbles = 0;
+            for (int word = (frame == 0) ? 3 : 1; word < 16
+                    && encoded < count; word++) {
+
+                int n = count - encoded;
+                int code;
+                int value;
+                if (n >= 4 && fits(samples, encoded, last, 4, Byte.MIN_VALUE,
+                        Byte.MAX_VALUE)) {
+                    code = FOUR_BYTES;
+                    value = 0;
+                    for (int i = 0; i < 4; i++) {
+                        value = (value << 8) | ((samples[encoded] - last)
+                                & 0xff);
+                        last = samples[encoded++];
+                    }
+                } else if (n >= 2 && fits(samples, encoded, last, 2,
+                        Short.MIN_VALUE, Short.MAX_VALUE)) {
+                    code = TWO_SHORTS;
+                    value = (samples[encoded] - last) << 16;
+                    last = samples[encoded++];
+                    value |= (samples[encoded] - last) & 0xffff;
+                    last = samples[encoded++];
+                } else {
+                    code = ONE_INT;
+                    value = samples[encoded] - last;
+                    last = samples[encoded++];
+                }
+                buffer.putInt(offset + 4 * word, value);
+                nibbles |= code << (30 - 2 * word);
+            }
+            buffer.putInt(offset, nibbles);
+        }
+
+        // The forward and reverse integration constants.
+        if (encoded > 0) {
+            buffer.putInt(DATA_OFFSET + 4, samples[0]);
+            buffer.putInt(DATA_OFFSET + 8, samples[encoded - 1]);
+        }
+
+        writeHeader(buffer, network, station, location, channel, start, rate,
+                encoded);
+        return encoded;
+    }
+
+    /**
+     * Set the sequence number of a record.
+     *
+     * @param record the record.
+     * @param sequence the sequence number, of which the last six decimal
+     *        digits are kept.
+     */
+    static void setSequence(byte[] record, long sequence) {
+        long digits = sequence % 1000000;
+        for (int i = 5; i >= 0; i--) {
+            record[i] = (byte) ('0' + digits % 10);
+            digits /= 10;
+        }
+    }
+
+    /**
+     * @param record a record.
+     * @param index the index of the record within its buffer.
+     * @return the location and channel codes as "LLCCC".
+     */
+    static String getLocationChannel(byte[] record, int index) {
+        return new String(record, index + 13, 5, ASCII);
+    }
+
+    /**
+     * @return true if the differences of the next n samples fit the range.
+     */
+    private static boolean fits(int[] samples, int from, int previous, int n,
+            int min, int max) {
+
+        int last = previous;
+        for (int i = from; i < from + n; i++) {
+            int difference = samples[i] - last;
+            if (difference < min || difference > max) {
+                return false;
+            }
+            last = samples[i];
+        }
+        return true;
+    }
+
+    /**
+     * Write the fixed header and blockette 1000.
+     */
+    private static void writeHeader(ByteBuffer buffer, String network,
+            String station, String location, String channel, double start,
+            double rate, int count) {
+
+        setSequence(buffer.array(), 0);
+        buffer.put(6, (byte) 'D');
+        putField(buffer, 7, " ", 1);
+        putField(buffer, 8, station, 5);
+        putField(buffer, 13, location.replace('-', ' '), 2);
+        putField(buffer, 15, channel, 3);
+        putField(buffer, 18, network, 2);
+
+        // The start time, to a ten thousandth of a second.
+        long tenths = Math.round(start * 10000);
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setTimeInMillis(tenths / 10);
+        buffer.putShort(20, (short) calendar.get(Calendar.YEAR));
+        buffer.putShort(22, (short) calendar.get(Calendar.DAY_OF_YEAR));
+        buffer.put(24, (byte) calendar.get(Calendar.HOUR_OF_DAY));
+        buffer.put(25, (byte) calendar.get(Calendar.MINUTE));
+        buffer.put(26, (byte) calendar.get(Calendar.SECOND));
+        buffer.putShort(28, (short) (tenths % 10000));
+
+        buffer.putShort(30, (short) count);
+        int[] factor = getRateFactor(rate);
+        buffer.putShort(32, (short) factor[0]);
+        buffer.putShort(34, (short) factor[1]);
+        buffer.put(39, (byte) 1);
+        buffer.putShort(44, (short) DATA_OFFSET);
+        buffer.putShort(46, (short) 48);
+
+        // Blockette 1000, the last.
+        buffer.putShort(48, (short) 1000);
+        buffer.putShort(50, (short) 0);
+        buffer.put(52, (byte) STEIM1);
+        buffer.put(53, (byte) 1);
+        buffer.put(54, (byte) RECORD_LENGTH_POWER);
+    }
+
+    /**
+     * @param rate a sample rate in Hz.
+     * @return the sample rate factor and multiplier of the rate.
+     */
+    private static int[] getRateFactor(double rate) {
+        if (rate <= 0) {
+            return new int[]{0, 0};
+        }
+        if (rate < 1) {
+            // A negative factor is a period in seconds.
+            return new int[]{(int) -Math.round(1 / rate), 1};
+        }
+        if (rate == Math.rint(rate) && rate <= Short.MAX_VALUE) {
+            return new int[]{(int) rate, 1};
+        }
+
+        // A negative multiplier divides the factor.
+        int divisor = 10000;
+        while (divisor > 1 && rate * divisor > Short.MAX_VALUE) {
+            divisor /= 10;
+        }
+        return new int[]{(int) Math.round(rate * divisor), -divisor};
+    }
+
+    /**
+     * Write a string into a space padded ascii field.
+     */
+    private static void putField(ByteBuffer buffer, int index, String value,
+            int length) {
+
+        for (int i = 0; i < length; i++) {
+            char c = (i < value.length()) ? value.charAt(i) : ' ';
+            buffer.put(index + i, (byte) c);
+        }
+    }
+}
@@ -0,0 +1,571 @@
+package org.usgs.manifold.server;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Speaks SeedLink 3 to one client, sending it the records of a
+ * {@link SeedLinkStore}. Both the uni-station mode, where DATA, FETCH or
+ * TIME starts the data of every station, and the multi-station mode, where
+ * STATION, SELECT and DATA, FETCH or TIME are given for each station and END
+ * starts the data, are supported, along with HELLO, CAT and BYE.
+ *
+ * <p>
+ * The client is not given a queue of its own. It keeps a position in each
+ * station's {@link SeedLinkRing} and is sent the records from there while
+ * its channel is writable, so a slow client only falls behind in the rings
+ * and loses the records overwritten before it reads them.
+ *
+ * <p>
+ * A client resuming with the sequence number of the last record it read is
+ * sent the records after it. If that record has been overwritten it is sent
+ * the oldest records kept, and if the number is not in the ring at all, as
+ * after a restart, it is sent the records after the time it gave, or only
+ * new records. The end time of TIME is not supported.
+ *
+ */
+public class SeedLinkHandler extends SimpleChannelUpstreamHandler {
+
+    private static Logger log = LoggerFactory.getLogger(SeedLinkHandler.class);
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /** The reply to HELLO. */
+    private static final String HELLO = "SeedLink v3.1 (Manifold) :: "
+            + "SLPROTO:3.1 NSWILDCARD\r\nManifold\r\n";
+
+    private static final String OK = "OK\r\n";
+    private static final String ERROR = "ERROR\r\n";
+
+    /** The records the client is sent. */
+    private final SeedLinkStore store;
+
+    /** The client. */
+    private volatile Channel channel;
+
+    /** The stations asked for, in multi-station mode. */
+    private final List<Selection> selections = new ArrayList<Selection>();
+
+    /** The selection commands apply to: the last station, or every station
+     * in uni-station mode. */
+    private Selection current = new Selection("*", "*");
+
+    /** Set once the client is sent data. */
+    private volatile boolean streaming;
+
+    /** Set in FETCH mode, where the client is disconnected once it has been
+     * sent every record kept. */
+    private boolean fetch;
+
+    /** Set once a FETCH client has been sent every record. */
+    private volatile boolean finished;
+
+    /** The rings that existed when the data started. Rings created since are
+     * sent from their first record. */
+    private int knownRings;
+
+    /** The client's position in each ring, or {@link #NOT_SELECTED} where
+     * it selected none of the station. */
+    private final Map<SeedLinkRing, Cursor> cursors =
+            new ConcurrentHashMap<SeedLinkRing, Cursor>();
+
+    /** Set while a thread is sending records. */
+    private final AtomicBoolean sending = new AtomicBoolean();
+
+    /** Set when there may be records to send. */
+    private final AtomicBoolean wanted = new AtomicBoolean();
+
+    /** A ring none of the client's stations are in. */
+    private static final Cursor NOT_SELECTED = new Cursor(null, 0);
+
+    /**
+     * @param store the records the client is sent.
+     */
+    public SeedLinkHandler(SeedLinkStore store) {
+        this.store = store;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void channelConnected(ChannelHandlerContext ctx,
+            ChannelStateEvent e) {
+
+        channel = e.getChannel();
+    }
+
+    /**
+     * Answers one command line.
+     */
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+
+        String line = ((String) e.getMessage()).trim();
+        if (line.length() == 0) {
+            return;
+        }
+        String[] fields = line.split("\\s+");
+        String command = fields[0].toUpperCase();
+
+        if (streaming) {
+            // Only BYE is listened to once the data has started.
+            if (command.equals("BYE")) {
+                channel.close();
+            }
+            return;
+        }
+
+        if (command.equals("HELLO")) {
+            write(HELLO);
+        } else if (command.equals("CAT")) {
+            StringBuilder reply = new StringBuilder();
+            for (SeedLinkRing ring : store.getRings()) {
+                reply.append(ring.getNetwork()).append(' ')
+                        .append(ring.getStation()).append("\r\n");
+            }
+            write(reply.append("END").toString());
+        } else if (command.equals("STATION") && fields.length >= 2) {
+            String network = (fields.length >= 3) ? fields[2] : "*";
+            if (!Selection.isPattern(fields[1])
+                    || !Selection.isPattern(network)) {
+                write(ERROR);
+                return;
+            }
+            current = new Selection(fields[1], network);
+            selections.add(current);
+            write(OK);
+        } else if (command.equals("SELECT")) {
+            if (fields.length < 2) {
+                current.selectors.clear();
+                write(OK);
+            } else if (current.addSelector(fields[1])) {
+                write(OK);
+            } else {
+                write(ERROR);
+            }
+        } else if (command.equals("DATA") || command.equals("FETCH")
+                || command.equals("TIME")) {
+            try {
+                current.setStart(command, fields);
+            } catch (RuntimeException ex) {
+                write(ERROR);
+                return;
+            }
+            fetch = command.equals("FETCH");
+            if (selections.isEmpty()) {
+                selections.add(current);
+                start();
+            } else {
+                write(OK);
+            }
+        } else if (command.equals("END") && !selections.isEmpty()) {
+            start();
+        } else if (command.equals("BYE")) {
+            channel.close();
+        } else {
+            log.debug("Unsupported SeedLink command '{}' from '{}'.", line,
+                    channel.getRemoteAddress());
+            write(ERROR);
+        }
+    }
+
+    /**
+     * Start sending the client data.
+     */
+    private void start() {
+        List<SeedLinkRing> rings = store.getRings();
+        knownRings = rings.size();
+        for (Selection selection : selections) {
+            int matched = 0;
+            for (SeedLinkRing ring : rings) {
+                if (selection.matches(ring)) {
+                    matched++;
+                }
+            }
+            selection.single = (matched == 1);
+        }
+
+        streaming = true;
+        log.info("SeedLink client '{}' started {} station selections.",
+                channel.getRemoteAddress(), selections.size());
+
+        store.subscribe(this);
+        dataAvailable();
+    }
+
+    /**
+     * Send the client any records it has not been sent. Records are sent by
+     * one thread at a time, while the channel is writable.
+     */
+    void dataAvailable() {
+        wanted.set(true);
+        while (!finished && wanted.get()
+                && sending.compareAndSet(false, true)) {
+            try {
+                wanted.set(false);
+                if (send() && fetch) {
+                    finished = true;
+                    store.unsubscribe(this);
+                    channel.write(ChannelBuffers.copiedBuffer("END", ASCII))
+                            .addListener(ChannelFutureListener.CLOSE);
+                    return;
+                }
+            } finally {
+                sending.set(false);
+            }
+        }
+    }
+
+    /**
+     * Send records from each selected ring until the client has them all or
+     * its channel is full.
+     *
+     * @return true if the client has been sent every record.
+     */
+    private boolean send() {
+        for (SeedLinkRing ring : store.getRings()) {
+            Cursor cursor = cursors.get(ring);
+            if (cursor == null) {
+                cursor = createCursor(ring);
+                cursors.put(ring, cursor);
+            }
+            if (cursor == NOT_SELECTED) {
+                continue;
+            }
+
+            long oldest = ring.getOldest();
+            if (cursor.next < oldest) {
+                log.warn("SeedLink client '{}' lost {} records of {} {} that "
+                        + "were overwritten before it read them.",
+                        new Object[]{channel.getRemoteAddress(),
+                            oldest - cursor.next, ring.getNetwork(),
+                            ring.getStation()});
+                cursor.next = oldest;
+            }
+
+            long next = ring.getNext();
+            while (cursor.next < next) {
+                if (!channel.isWritable()) {
+                    return false;
+                }
+                ChannelBuffer packet = ring.get(cursor.next);
+                if (packet == null) {
+                    // Overwritten since the check; pick up at the oldest.
+                    cursor.next = ring.getOldest();
+                    continue;
+                }
+                cursor.next++;
+                if (cursor.selection.accepts(packet)) {
+                    channel.write(packet);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param ring a station's ring.
+     * @return the client's position in the ring, or {@link #NOT_SELECTED}.
+     */
+    private Cursor createCursor(SeedLinkRing ring) {
+        for (Selection selection : selections) {
+            if (selection.matches(ring)) {
+                long start = (ring.getId() >= knownRings)
+                        ? ring.getOldest() : selection.getStart(ring);
+                return new Cursor(selection, start);
+            }
+        }
+        return NOT_SELECTED;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Send more records once the channel is writable again.
+     */
+    @Override
+    public void channelInterestChanged(ChannelHandlerContext ctx,
+            ChannelStateEvent e) throws Exception {
+
+        if (streaming) {
+            dataAvailable();
+        }
+        super.channelInterestChanged(ctx, e);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e)
+            throws Exception {
+
+        store.unsubscribe(this);
+        super.channelClosed(ctx, e);
+    }
+
+    /**
+     * Logs the error and closes the connection.
+     */
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+            log.warn("SeedLink connection error: {}", cause.toString());
+        } else {
+            log.warn("Unexpected SeedLink error.", cause);
+        }
+        e.getChannel().close();
+    }
+
+    private void write(String reply) {
+        channel.write(ChannelBuffers.copiedBuffer(reply, ASCII));
+    }
+
+    /** The client's position in a ring. */
+    private static class Cursor {
+
+        /** The selection the ring's station is in. */
+        final Selection selection;
+
+        /** The sequence number of the next record to send. */
+        long next;
+
+        Cursor(Selection selection, long next) {
+            this.selection = selection;
+            this.next = next;
+        }
+    }
+
+    /** The stations, streams and start of a STATION command. */
+    private static class Selection {
+
+        /** The station and network, where ? and * are wildcards. */
+        final String station;
+        final String network;
+
+        /** A selector no stream matches. */
+        private static final String NOTHING = "#";
+
+        /** The location and channel patterns of SELECT, as "LLCCC" where ?
+         * is a wildcard, led by ! to leave the streams out. */
+        final List<String> selectors = new ArrayList<String>();
+
+        /** The 24 bit sequence number of the last record the client read,
+         * or -1. */
+        int sequence = -1;
+
+        /** Set if the selection matched exactly one station when the data
+         * started, the only case a sequence number can be resumed from. */
+        boolean single;
+
+        /** The time to start at, or NaN. */
+        double time = Double.NaN;
+
+        Selection(String station, String network) {
+            this.station = station.toUpperCase();
+            this.network = network.toUpperCase();
+        }
+
+        /**
+         * @param pattern a SELECT pattern: "CCC", "LLCCC" or either followed
+         *        by ".D", led by ! to leave the streams out.
+         * @return true if the pattern is valid.
+         */
+        boolean addSelector(String pattern) {
+            String selector = pattern.toUpperCase();
+            boolean negate = selector.startsWith("!");
+            if (negate) {
+                selector = selector.substring(1);
+            }
+
+            String type = "D";
+            int dot = selector.indexOf('.');
+            if (dot >= 0) {
+                type = selector.substring(dot + 1);
+                selector = selector.substring(0, dot);
+            }
+            if (selector.length() == 3) {
+                selector = "??" + selector;
+            }
+            if (selector.length() != 5 || !isPattern(selector)) {
+                return false;
+            }
+
+            // Only data records are sent, so other types select nothing.
+            if (!type.equals("D")) {
+                selector = NOTHING;
+            }
+
+            selectors.add((negate ? "!" : "") + selector.replace('-', ' '));
+            return true;
+        }
+
+        /**
+         * Set where the data starts from the arguments of DATA, FETCH or
+         * TIME.
+         *
+         * @param command the command.
+         * @param fields the command and its arguments.
+         */
+        void setStart(String command, String[] fields) {
+            if (command.equals("TIME")) {
+                if (fields.length < 2) {
+                    throw new IllegalArgumentException("No start time.");
+                }
+                time = parseTime(fields[1]);
+            } else {
+                if (fields.length >= 2) {
+                    sequence = Integer.parseInt(fields[1], 16);
+                }
+                if (fields.length >= 3) {
+                    time = parseTime(fields[2]);
+                }
+            }
+        }
+
+        /**
+         * Each ring counts its records on its own, so the sequence number is
+         * only used when the selection is of a single station. It is only
+         * trusted when the record found ends after the time the client gave,
+         * since the number may be from an earlier run.
+         *
+         * @param ring a station's ring.
+         * @return the sequence number the client starts at.
+         */
+        long getStart(SeedLinkRing ring) {
+            if (sequence >= 0 && single) {
+                long last = ring.find(sequence);
+                if (last >= 0 && (Double.isNaN(time)
+                        || ring.getEnd(last) > time)) {
+                    return Math.max(last + 1, ring.getOldest());
+                }
+            }
+            if (!Double.isNaN(time)) {
+                return ring.findTime(time);
+            }
+            return ring.getNext();
+        }
+
+        /**
+         * @return true if the ring's station is selected.
+         */
+        boolean matches(SeedLinkRing ring) {
+            return glob(station, ring.getStation())
+                    && glob(network, ring.getNetwork());
+        }
+
+        /**
+         * @param packet a SeedLink packet.
+         * @return true if the record's stream is selected.
+         */
+        boolean accepts(ChannelBuffer packet) {
+            if (selectors.isEmpty()) {
+                return true;
+            }
+
+            byte[] codes = new byte[5];
+            packet.getBytes(packet.readerIndex() + SeedLinkRing.HEADER_SIZE
+                    + 13, codes);
+            String stream = new String(codes, ASCII);
+
+            boolean selected = false;
+            boolean anyPositive = false;
+            for (String selector : selectors) {
+                if (selector.startsWith("!")) {
+                    if (glob(selector.substring(1), stream)) {
+                        return false;
+                    }
+                } else {
+                    anyPositive = true;
+                    selected |= glob(selector, stream);
+                }
+            }
+            return selected || !anyPositive;
+        }
+
+        /**
+         * @param pattern a pattern from the client.
+         * @return true if the pattern only holds letters, digits, - and the
+         *         wildcards ? and *.
+         */
+        static boolean isPattern(String pattern) {
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (!Character.isLetterOrDigit(c) && c != '-' && c != '?'
+                        && c != '*') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return true if the value matches the pattern, where ? matches any
+         *         one character and * any number.
+         */
+        private static boolean glob(String pattern, String value) {
+            int p = 0;
+            int v = 0;
+            int star = -1;
+            int resume = 0;
+            while (v < value.length()) {
+                if (p < pattern.length() && (pattern.charAt(p) == '?'
+                        || pattern.charAt(p) == value.charAt(v))) {
+                    p++;
+                    v++;
+                } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                    // Try matching nothing first, then one more each time.
+                    star = p++;
+                    resume = v;
+                } else if (star >= 0) {
+                    p = star + 1;
+                    v = ++resume;
+                } else {
+                    return false;
+                }
+            }
+            while (p < pattern.length() && pattern.charAt(p) == '*') {
+                p++;
+            }
+            return p == pattern.length();
+        }
+
+        /**
+         * @param time a time as "YYYY,MM,DD,hh,mm,ss".
+         * @return the time in epoch seconds.
+         */
+        private static double parseTime(String time) {
+            String[] parts = time.split(",");
+            if (parts.length != 6) {
+                throw new IllegalArgumentException("Bad time '" + time + "'.");
+            }
+
+            Calendar calendar =
+                    Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+            calendar.clear();
+            calendar.set(Integer.parseInt(parts[0]),
+                    Integer.parseInt(parts[1]) - 1, Integer.parseInt(parts[2]),
+                    Integer.parseInt(parts[3]), Integer.parseInt(parts[4]),
+                    Integer.parseInt(parts[5]));
+            return calendar.getTimeInMillis() / 1000.0;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package org.usgs.manifold.server;
+
+import java.nio.charset.Charset;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * The recent miniSEED records of one station, each wrapped once in a
+ * SeedLink packet, "SL", its sequence number in six hex digits and the
+ * record, which every connection then writes. A fixed number of packets is
+ * kept and the oldest is overwritten by the newest.
+ *
+ * <p>
+ * Sequence numbers are counted as longs from the second the ring was
+ * created, so they run ahead of the numbers an earlier run gave a station
+ * unless it sent more than a record a second. SeedLink only carries the last
+ * 24 bits of them, which {@link #find(int)} maps back.
+ *
+ */
+class SeedLinkRing {
+
+    /** The size of the SeedLink header ahead of each record. */
+    static final int HEADER_SIZE = 8;
+
+    /** The sequence numbers SeedLink can carry. */
+    private static final long SEQUENCE_MASK = 0xffffff;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /** The order the rings were created in. */
+    private final int id;
+
+    private final String network;
+    private final String station;
+
+    /** The packets, by sequence number modulo their number. */
+    private final ChannelBuffer[] packets;
+
+    /** The time after the last sample of each packet. */
+    private final double[] ends;
+
+    /** The sequence number of the first packet. */
+    private final long first;
+
+    /** The sequence number of the next packet. */
+    private long next;
+
+    /**
+     * @param id the order the ring was created in.
+     * @param network the network code.
+     * @param station the station code.
+     * @param size the number of packets kept.
+     */
+    SeedLinkRing(int id, String network, String station, int size) {
+        this.id = id;
+        this.network = network;
+        this.station = station;
+        this.packets = new ChannelBuffer[size];
+        this.ends = new double[size];
+        this.first = System.currentTimeMillis() / 1000;
+        this.next = first;
+    }
+
+    /**
+     * Number a record and add it, overwriting the oldest if the ring is
+     * full.
+     *
+     * @param record the record, which is numbered and then kept.
+     * @param end the time after its last sample.
+     */
+    synchronized void append(byte[] record, double end) {
+
+        MiniSeed.setSequence(record, next);
+        byte[] header = String.format("SL%06X", next & SEQUENCE_MASK)
+                .getBytes(ASCII);
+
+        int slot = (int) (next % packets.length);
+        packets[slot] = ChannelBuffers.wrappedBuffer(header, record);
+        ends[slot] = end;
+        next++;
+    }
+
+    /**
+     * @param sequence a sequence number.
+     * @return the packet, to be written as is, or null if it was overwritten
+     *         or has not been added.
+     */
+    synchronized ChannelBuffer get(long sequence) {
+        if (sequence < getOldest() || sequence >= next) {
+            return null;
+        }
+        return packets[(int) (sequence % packets.length)].duplicate();
+    }
+
+    /**
+     * @return the sequence number of the oldest packet kept.
+     */
+    synchronized long getOldest() {
+        return Math.max(first, next - packets.length);
+    }
+
+    /**
+     * @return the sequence number of the next packet.
+     */
+    synchronized long getNext() {
+        return next;
+    }
+
+    /**
+     * @param sequence the last 24 bits of a sequence number.
+     * @return the latest sequence number ending in those bits, which may
+     *         have been overwritten, or -1 if none has been added.
+     */
+    synchronized long find(int sequence) {
+        long latest = next - 1;
+        long found = latest - ((latest - sequence) & SEQUENCE_MASK);
+        return (found < first) ? -1 : found;
+    }
+
+    /**
+     * @param sequence a sequence number.
+     * @return the time after the last sample of the packet, or NaN if it was
+     *         overwritten or has not been added.
+     */
+    synchronized double getEnd(long sequence) {
+        if (sequence < getOldest() || sequence >= next) {
+            return Double.NaN;
+        }
+        return ends[(int) (sequence % packets.length)];
+    }
+
+    /**
+     * @param time a time in epoch seconds.
+     * @return the sequence number of the oldest packet kept with samples at
+     *         or after the time, or the next if there is none.
+     */
+    synchronized long findTime(double time) {
+        long sequence = getOldest();
+        while (sequence < next
+                && ends[(int) (sequence % packets.length)] <= time) {
+            sequence++;
+        }
+        return sequence;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    String getNetwork() {
+        return network;
+    }
+
+    String getStation() {
+        return station;
+    }
+}
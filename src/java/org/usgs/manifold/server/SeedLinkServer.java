@@ -0,0 +1,73 @@
+package org.usgs.manifold.server;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executors;
+
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.frame.DelimiterBasedFrameDecoder;
+import org.jboss.netty.handler.codec.string.StringDecoder;
+
+/**
+ * A SeedLink 3 server sending the recent seismic data kept in a
+ * {@link SeedLinkStore} as miniSEED records, alongside the earthworm export
+ * of the {@link CVOServer}.
+ *
+ */
+public class SeedLinkServer {
+
+    /** The longest command line accepted. */
+    private static final int MAX_COMMAND_LENGTH = 256;
+
+    // Prevent instantiation
+    private SeedLinkServer() {
+    }
+
+    /**
+     * @param store the records to send.
+     * @param port the port to serve.
+     * @param networkInterface the interface to bind the port on, or null for
+     *        every interface.
+     */
+    public static void startServer(final SeedLinkStore store, int port,
+            String networkInterface) {
+
+        ChannelFactory factory = new NioServerSocketChannelFactory(
+                Executors.newCachedThreadPool(),
+                Executors.newCachedThreadPool());
+
+        ServerBootstrap bootstrap = new ServerBootstrap(factory);
+
+        // Clients end their commands with a carriage return, a line feed or
+        // both, so split on either and skip the empty lines.
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+
+            public ChannelPipeline getPipeline() throws Exception {
+                ChannelPipeline pipeline = Channels.pipeline();
+                pipeline.addLast("framer", new DelimiterBasedFrameDecoder(
+                        MAX_COMMAND_LENGTH,
+                        ChannelBuffers.wrappedBuffer(new byte[]{'\r'}),
+                        ChannelBuffers.wrappedBuffer(new byte[]{'\n'})));
+                pipeline.addLast("decoder",
+                        new StringDecoder(Charset.forName("US-ASCII")));
+                pipeline.addLast("handler", new SeedLinkHandler(store));
+                return pipeline;
+            }
+        });
+
+        bootstrap.setOption("child.tcpNoDelay", true);
+        bootstrap.setOption("child.keepAlive", true);
+
+        if (networkInterface != null) {
+            bootstrap.bind(new InetSocketAddress(networkInterface, port));
+        } else {
+            bootstrap.bind(new InetSocketAddress(port));
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.usgs.manifold.server;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The miniSEED records of every seismic trace sent out, for the
+ * {@link SeedLinkServer}. The samples of each station, channel, network and
+ * location are encoded into records once, by a {@link SeedLinkStream}, and
+ * kept in the {@link SeedLinkRing} of their station, from which every
+ * connection reads them.
+ *
+ */
+public class SeedLinkStore {
+
+    private static Logger log = LoggerFactory.getLogger(SeedLinkStore.class);
+
+    /** The number of records kept for each station. */
+    private final int ringSize;
+
+    /** The seconds of data after which a record is sent before it is full. */
+    private final double flushSeconds;
+
+    /** The stream of each trace, by "NET STA LOC CHA". */
+    private final ConcurrentMap<String, SeedLinkStream> streams =
+            new ConcurrentHashMap<String, SeedLinkStream>();
+
+    /** The ring of each station, by "NET STA". */
+    private final ConcurrentMap<String, SeedLinkRing> ringsByName =
+            new ConcurrentHashMap<String, SeedLinkRing>();
+
+    /** Every ring, in the order they were created. */
+    private final List<SeedLinkRing> rings =
+            new CopyOnWriteArrayList<SeedLinkRing>();
+
+    /** Sends the samples of quiet streams at the flush interval. */
+    private final Timer timer =
+            new HashedWheelTimer(100, TimeUnit.MILLISECONDS);
+
+    /** The connections sending data. */
+    private final CopyOnWriteArraySet<SeedLinkHandler> subscribers =
+            new CopyOnWriteArraySet<SeedLinkHandler>();
+
+    /**
+     * @param ringSize the number of records kept for each station.
+     * @param flushSeconds the seconds of data after which a record is sent
+     *        before it is full.
+     */
+    public SeedLinkStore(int ringSize, double flushSeconds) {
+        this.ringSize = ringSize;
+        this.flushSeconds = flushSeconds;
+    }
+
+    /**
+     * Add the samples of a trace and send the records they complete to the
+     * connections.
+     *
+     * @param network the network code.
+     * @param station the station code.
+     * @param location the location code.
+     * @param channel the channel code.
+     * @param start the time of the first sample in epoch seconds.
+     * @param rate the sample rate in Hz.
+     * @param data the samples.
+     */
+    public void add(String network, String station, String location,
+            String channel, double start, double rate, int[] data) {
+
+        if (rate <= 0 || data.length == 0) {
+            return;
+        }
+
+        String name = network + " " + station + " " + location + " "
+                + channel;
+        SeedLinkStream stream = streams.get(name);
+        if (stream == null) {
+            stream = createStream(name, network, station, location, channel);
+        }
+
+        if (stream.add(start, rate, data)) {
+            notifySubscribers();
+        }
+    }
+
+    /**
+     * Tell the connections records were added. A connection that fails is
+     * logged and left alone so it can't stop the data reaching the others,
+     * or the earthworms the samples are sent to next.
+     */
+    void notifySubscribers() {
+        for (SeedLinkHandler subscriber : subscribers) {
+            try {
+                subscriber.dataAvailable();
+            } catch (RuntimeException e) {
+                log.error("Failed to send SeedLink records to a client.", e);
+            }
+        }
+    }
+
+    /**
+     * @return every station's ring, in the order they were created.
+     */
+    List<SeedLinkRing> getRings() {
+        return rings;
+    }
+
+    /**
+     * @param subscriber a connection to tell when records are added.
+     */
+    void subscribe(SeedLinkHandler subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    /**
+     * @param subscriber a connection that has closed.
+     */
+    void unsubscribe(SeedLinkHandler subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    /**
+     * Create the stream of a trace, and the ring of its station, the first
+     * time they are seen. The codes are cut to their miniSEED sizes.
+     */
+    private synchronized SeedLinkStream createStream(String name,
+            String network, String station, String location,
+            String channel) {
+
+        SeedLinkStream stream = streams.get(name);
+        if (stream != null) {
+            return stream;
+        }
+
+        network = getCode(network, 2);
+        station = getCode(station, 5);
+        location = getCode(location, 2);
+        channel = getCode(channel, 3);
+
+        String stationName = network + " " + station;
+        SeedLinkRing ring = ringsByName.get(stationName);
+        if (ring == null) {
+            ring = new SeedLinkRing(rings.size(), network, station, ringSize);
+            ringsByName.put(stationName, ring);
+            rings.add(ring);
+        }
+
+        stream = new SeedLinkStream(network, station, location, channel, ring,
+                flushSeconds, this, timer);
+        streams.put(name, stream);
+        return stream;
+    }
+
+    /**
+     * @return the code upper cased and cut to the length.
+     */
+    private static String getCode(String code, int length) {
+        String upper = code.trim().toUpperCase();
+        return (upper.length() > length) ? upper.substring(0, length) : upper;
+    }
+}
@@ -0,0 +1,200 @@
+package org.usgs.manifold.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * Gathers the samples of one station, channel, network and location into
+ * miniSEED records for its station's {@link SeedLinkRing}. Each record is
+ * encoded once, when it is full, when it holds the flush interval of data,
+ * or when the stream breaks with a gap, overlap or change of sample rate.
+ * Samples that have waited the flush interval for more are also sent, so
+ * the last samples of a station that goes quiet still reach the clients.
+ *
+ */
+class SeedLinkStream implements TimerTask {
+
+    /** The number of samples buffered to start with. */
+    private static final int INITIAL_SIZE = 1024;
+
+    private final String network;
+    private final String station;
+    private final String location;
+    private final String channel;
+
+    /** The ring the records are added to. */
+    private final SeedLinkRing ring;
+
+    /** The seconds of data after which a record is sent unfilled. */
+    private final double flushSeconds;
+
+    /** The store to tell when the timer adds records. */
+    private final SeedLinkStore store;
+
+    /** Sends the samples that wait too long for more. */
+    private final Timer timer;
+
+    /** Sends the buffered samples at the flush interval, or null if none are
+     * buffered. */
+    private Timeout timeout;
+
+    /** The samples not yet in a record. */
+    private int[] samples = new int[INITIAL_SIZE];
+    private int count;
+
+    /** The time of the first sample not yet in a record. */
+    private double start;
+
+    /** The time the next sample is expected at. */
+    private double expected;
+
+    /** The sample rate of the buffered samples. */
+    private double rate;
+
+    /** The last sample put in a record, for the first difference of the
+     * next. */
+    private int previous;
+
+    /** The record being encoded. */
+    private final byte[] record = new byte[MiniSeed.RECORD_SIZE];
+
+    /**
+     * @param network the network code.
+     * @param station the station code.
+     * @param location the location code.
+     * @param channel the channel code.
+     * @param ring the ring the records are added to.
+     * @param flushSeconds the seconds of data after which a record is sent
+     *        before it is full.
+     * @param store the store to tell when the timer adds records.
+     * @param timer the timer that sends the samples that wait too long.
+     */
+    SeedLinkStream(String network, String station, String location,
+            String channel, SeedLinkRing ring, double flushSeconds,
+            SeedLinkStore store, Timer timer) {
+
+        this.network = network;
+        this.station = station;
+        this.location = location;
+        this.channel = channel;
+        this.ring = ring;
+        this.flushSeconds = flushSeconds;
+        this.store = store;
+        this.timer = timer;
+    }
+
+    /**
+     * Add samples, adding any records they complete to the ring.
+     *
+     * @param time the time of the first sample in epoch seconds.
+     * @param sampleRate the sample rate in Hz.
+     * @param data the samples.
+     * @return true if a record was added to the ring.
+     */
+    synchronized boolean add(double time, double sampleRate, int[] data) {
+
+        boolean added = false;
+        if (sampleRate != rate || Math.abs(time - expected) > 0.5 / rate) {
+            if (count > 0) {
+                flush();
+                added = true;
+            }
+            previous = data[0];
+        }
+        if (count == 0) {
+            start = time;
+            rate = sampleRate;
+        }
+
+        if (count + data.length > samples.length) {
+            int[] grown = new int[Math.max(samples.length * 2,
+                    count + data.length)];
+            System.arraycopy(samples, 0, grown, 0, count);
+            samples = grown;
+        }
+        System.arraycopy(data, 0, samples, count, data.length);
+        count += data.length;
+        expected = time + data.length / sampleRate;
+
+        // Send every full record, then the rest if it has waited long
+        // enough.
+        while (count > 0) {
+            int encoded = encode();
+            if (encoded < count || count / rate >= flushSeconds) {
+                emit(encoded);
+                added = true;
+            } else {
+                break;
+            }
+        }
+
+        // Wait for more samples from the oldest one buffered.
+        if (count == 0 || added) {
+            cancel();
+        }
+        if (count > 0 && timeout == null) {
+            timeout = timer.newTimeout(this,
+                    (long) (flushSeconds * 1000), TimeUnit.MILLISECONDS);
+        }
+        return added;
+    }
+
+    /**
+     * Send the buffered samples once they have waited the flush interval for
+     * more, unless they were sent since.
+     */
+    public void run(Timeout expired) {
+        synchronized (this) {
+            if (expired != timeout || count == 0) {
+                return;
+            }
+            timeout = null;
+            flush();
+        }
+        store.notifySubscribers();
+    }
+
+    /**
+     * Stop waiting to send the buffered samples.
+     */
+    private void cancel() {
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+    }
+
+    /**
+     * Send the buffered samples in as many records as they need.
+     */
+    private void flush() {
+        while (count > 0) {
+            emit(encode());
+        }
+    }
+
+    /**
+     * @return the number of buffered samples that fit in the record.
+     */
+    private int encode() {
+        return MiniSeed.encode(record, network, station, location, channel,
+                start, rate, samples, count, previous);
+    }
+
+    /**
+     * Add the encoded record to the ring and drop its samples.
+     *
+     * @param encoded the number of samples in the record.
+     */
+    private void emit(int encoded) {
+        previous = samples[encoded - 1];
+        start += encoded / rate;
+        count -= encoded;
+        System.arraycopy(samples, encoded, samples, 0, count);
+
+        ring.append(record.clone(), start);
+    }
+}
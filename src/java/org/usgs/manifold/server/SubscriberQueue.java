@@ -0,0 +1,393 @@
+package org.usgs.manifold.server;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded queue of the messages waiting to be written to one client. Every
+ * message goes through the queue and is handed on to the channel while it is
+ * writable, so a client that can't keep up only fills its own queue rather
+ * than holding up or losing data for the other clients on the same port.
+ *
+ * <p>
+ * When more than the maximum number of bytes are queued the {@link Policy}
+ * of the client's port decides which messages are lost. The queue keeps
+ * counters of what happened to the client's messages and warns at most once
+ * a minute while the client is losing data, rather than for every message.
+ * A client's lag is the time since it last took a message while it had
+ * messages waiting. While the connection is backfilled the live messages
+ * are held up to a separate limit instead, which stays until the queue has
+ * drained back under its maximum, so catching up doesn't lose them.
+ *
+ * <p>
+ * Messages are offered from the threads sending out data and the queue is
+ * flushed from those threads and from the I/O thread when the channel
+ * becomes writable again. Only one thread flushes at a time, which keeps the
+ * messages in order without holding a lock while writing to the channel.
+ *
+ */
+public class SubscriberQueue {
+
+    private static Logger log = LoggerFactory.getLogger(SubscriberQueue.class);
+
+    /** What to do with a client that has more than the maximum queued. */
+    public enum Policy {
+
+        /** Discard the oldest queued messages until the rest fit. */
+        DROP_OLDEST,
+
+        /** Discard every queued message but the newest, so the client skips
+         * straight to the current data. */
+        COALESCE,
+
+        /** Discard the oldest queued messages, and close the connection once
+         * the client has lagged longer than the lag limit. */
+        DISCONNECT;
+
+        /**
+         * @param name a policy name such as "drop-oldest", in any case.
+         * @return the policy, or null if the name is not known.
+         */
+        public static Policy forName(String name) {
+            String constant = name.trim().toUpperCase().replace('-', '_');
+            for (Policy policy : values()) {
+                if (policy.name().equals(constant)) {
+                    return policy;
+                }
+            }
+            return null;
+        }
+    }
+
+    /** The channel the messages are written to. */
+    private final Channel channel;
+
+    /** What to do when too much is queued. */
+    private final Policy policy;
+
+    /** The maximum number of bytes queued. */
+    private final int maxBytes;
+
+    /** The milliseconds a message may wait under {@link Policy#DISCONNECT}. */
+    private final long lagLimit;
+
+    /** The messages waiting to be written, oldest first. */
+    private final ConcurrentLinkedQueue<Pending> queue =
+            new ConcurrentLinkedQueue<Pending>();
+
+    /** Set while a thread is flushing the queue. */
+    private final AtomicBoolean flushing = new AtomicBoolean();
+
+    /** The number of bytes queued. */
+    private final AtomicInteger queuedBytes = new AtomicInteger();
+
+    /** The most bytes queued since the last reset. */
+    private final AtomicInteger highWaterMark = new AtomicInteger();
+
+    /** Milliseconds between warnings about a client losing data. */
+    private static final int REPORT_INTERVAL = 60000;
+
+    /** The time of the next warning about the client losing data. */
+    private volatile long nextReport;
+
+    /** The time the client last took a message, or the time a message was
+     * queued for it while it had nothing waiting. */
+    private volatile long lastProgress;
+
+    /** Set while the connection is being backfilled, which holds the live
+     * messages in the queue. */
+    private volatile boolean paused;
+
+    /** The bytes that may be held while paused and until the queue drains
+     * under its maximum again, or 0 once it has. */
+    private volatile int heldBytes;
+
+    /** Set once the connection is closing, after which nothing is queued. */
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /** The counters of the client's messages. */
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * @param channel the channel of the client.
+     * @param policy what to do when more than maxBytes are queued.
+     * @param maxBytes the maximum number of bytes queued.
+     * @param lagLimit the milliseconds a message may wait before the client
+     *        is disconnected under {@link Policy#DISCONNECT}.
+     */
+    public SubscriberQueue(Channel channel, Policy policy, int maxBytes,
+            long lagLimit) {
+
+        this.channel = channel;
+        this.policy = policy;
+        this.maxBytes = maxBytes;
+        this.lagLimit = lagLimit;
+    }
+
+    /**
+     * Queue a message for the client, apply the policy if the queue is over
+     * its maximum and write as much as the channel will take.
+     *
+     * @param ctx the context to send the message down.
+     * @param e the write request.
+     */
+    public void offer(ChannelHandlerContext ctx, MessageEvent e) {
+
+        if (closed.get()) {
+            e.getFuture().setFailure(
+                    new IOException("The connection was closed."));
+            return;
+        }
+
+        Pending pending = new Pending(e);
+        if (queue.isEmpty()) {
+            lastProgress = pending.time;
+        }
+        queue.offer(pending);
+
+        int bytes = queuedBytes.addAndGet(pending.size);
+        int high = highWaterMark.get();
+        while (bytes > high && !highWaterMark.compareAndSet(high, bytes)) {
+            high = highWaterMark.get();
+        }
+
+        int limit = Math.max(maxBytes, heldBytes);
+        if (bytes > limit) {
+            overflow(pending, limit);
+        }
+        if (policy == Policy.DISCONNECT && !paused && getLag() > lagLimit) {
+            disconnect();
+            return;
+        }
+
+        flush(ctx);
+    }
+
+    /**
+     * Write queued messages to the channel while it is writable. If another
+     * thread is already flushing it will write the messages queued since.
+     *
+     * @param ctx the context to send the messages down.
+     */
+    public void flush(ChannelHandlerContext ctx) {
+
+        while (!paused && !queue.isEmpty() && channel.isWritable()
+                && flushing.compareAndSet(false, true)) {
+            try {
+                Pending pending;
+                while (channel.isWritable()
+                        && (pending = queue.poll()) != null) {
+                    queuedBytes.addAndGet(-pending.size);
+                    written.incrementAndGet();
+                    lastProgress = System.currentTimeMillis();
+                    ctx.sendDownstream(pending.event);
+                }
+                if (!paused && queuedBytes.get() <= maxBytes) {
+                    heldBytes = 0;
+                }
+            } finally {
+                flushing.set(false);
+            }
+        }
+    }
+
+    /**
+     * Hold the messages in the queue rather than writing them, while older
+     * messages are written to the channel directly. The policy is only
+     * applied once more than the larger of the maximum and maxHeldBytes are
+     * queued, until the queue has drained under its maximum after resuming.
+     *
+     * @param maxHeldBytes the most bytes held meanwhile.
+     */
+    public void pause(int maxHeldBytes) {
+        heldBytes = maxHeldBytes;
+        paused = true;
+    }
+
+    /**
+     * Start writing the queued messages again.
+     *
+     * @param ctx the context to send the messages down.
+     */
+    public void resume(ChannelHandlerContext ctx) {
+        lastProgress = System.currentTimeMillis();
+        paused = false;
+        flush(ctx);
+    }
+
+    /**
+     * Fail the messages still queued once the channel has closed.
+     */
+    public void close() {
+        boolean disconnected = closed.getAndSet(true);
+        failQueued();
+
+        if (!disconnected && (dropped.get() > 0 || coalesced.get() > 0)) {
+            log.info("Client '{}' closed: {} messages written, {} dropped, "
+                    + "{} coalesced.", new Object[]{
+                        channel.getRemoteAddress(), written.get(),
+                        dropped.get(), coalesced.get()});
+        }
+    }
+
+    /**
+     * Discard messages under the policy until the queue is within its
+     * limit. The newest message is always kept.
+     *
+     * @param newest the message just queued.
+     * @param limit the most bytes queued.
+     */
+    private void overflow(Pending newest, int limit) {
+
+        long now = newest.time;
+        if (now >= nextReport) {
+            nextReport = now + REPORT_INTERVAL;
+            log.warn("Client '{}' can't keep up and is {} ms behind; applying "
+                    + "{}: {} messages written, {} dropped, {} coalesced.",
+                    new Object[]{channel.getRemoteAddress(), getLag(), policy,
+                        written.get(), dropped.get(), coalesced.get()});
+        }
+
+        if (policy == Policy.COALESCE) {
+            while (queue.peek() != newest && discard()) {
+                coalesced.incrementAndGet();
+            }
+        } else {
+            while (queuedBytes.get() > limit && queue.peek() != newest
+                    && discard()) {
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Discard the oldest queued message.
+     *
+     * @return true if there was a message to discard.
+     */
+    private boolean discard() {
+        Pending pending = queue.poll();
+        if (pending == null) {
+            return false;
+        }
+        queuedBytes.addAndGet(-pending.size);
+        pending.event.getFuture().setFailure(new IOException(
+                "The client could not keep up and the message was dropped."));
+        return true;
+    }
+
+    /**
+     * Close the connection of a client that has fallen too far behind.
+     */
+    private void disconnect() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        log.warn("Disconnecting client '{}', which is more than {} ms behind: "
+                + "{} messages written, {} dropped.", new Object[]{
+                    channel.getRemoteAddress(), lagLimit, written.get(),
+                    dropped.get()});
+        channel.close();
+        failQueued();
+    }
+
+    /**
+     * Fail the queued messages.
+     */
+    private void failQueued() {
+        Pending pending;
+        while ((pending = queue.poll()) != null) {
+            queuedBytes.addAndGet(-pending.size);
+            pending.event.getFuture().setFailure(
+                    new IOException("The connection was closed."));
+        }
+    }
+
+    /**
+     * @return the number of bytes waiting to be written.
+     */
+    public int getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * @return the most bytes queued since the last call.
+     */
+    public int getAndResetHighWaterMark() {
+        return highWaterMark.getAndSet(queuedBytes.get());
+    }
+
+    /**
+     * @return the milliseconds since the client last took a message while it
+     *         had messages waiting, or 0 if nothing is queued.
+     */
+    public long getLag() {
+        return queue.isEmpty() ? 0
+                : Math.max(0, System.currentTimeMillis() - lastProgress);
+    }
+
+    /**
+     * @return the number of messages handed to the channel.
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * @return the number of messages discarded to keep the queue within its
+     *         maximum.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of messages discarded under
+     *         {@link Policy#COALESCE}.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the policy of the client's port.
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /** A queued write request. */
+    private static class Pending {
+
+        /** The write request. */
+        final MessageEvent event;
+
+        /** The size of the message in bytes. */
+        final int size;
+
+        /** The time the message was queued. */
+        final long time;
+
+        Pending(MessageEvent event) {
+            this.event = event;
+            Object message = event.getMessage();
+            this.size = (message instanceof ChannelBuffer)
+                    ? ((ChannelBuffer) message).readableBytes() : 0;
+            this.time = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package org.usgs.manifold.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.group.ChannelGroup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.usgs.manifold.packet.earthworm.TraceChannel;
+
+/**
+ * Keeps the last few minutes of the trace messages sent to a group of
+ * earthworm connections, in a {@link TraceRing} for each station, channel,
+ * network and location, so a newly connected earthworm can be sent what it
+ * missed before it is switched to live data. This fills the gap left when an
+ * import module restarts.
+ *
+ * <p>
+ * A joining connection is added to the group and the end of every ring is
+ * noted in one step that no message is sent during, so each message is
+ * either in the backlog or sent live, never both. Live messages are held in
+ * the connection's {@link SubscriberQueue} while the backlog is written, one
+ * trace at a time and no faster than the backfill rate, by a thread of its
+ * own. The queue holds as much as is estimated to arrive while the backlog
+ * is written, so the connection doesn't lose the live messages meanwhile.
+ *
+ */
+public class TraceBackfill {
+
+    private static Logger log = LoggerFactory.getLogger(TraceBackfill.class);
+
+    /** The most bytes copied out of a ring at a time. */
+    private static final int BATCH_SIZE = 64 * 1024;
+
+    /** Milliseconds to wait for a connection's write buffer to drain. */
+    private static final int WRITABLE_WAIT = 10;
+
+    /** The connections the messages are sent to. */
+    private final ChannelGroup channels;
+
+    /** The milliseconds of messages sent to a joining connection. */
+    private final long window;
+
+    /** The size of each ring in bytes. */
+    private final int ringSize;
+
+    /** The most bytes sent each second to a joining connection. */
+    private final int rate;
+
+    /** The ring of each trace, by channel and network ID. */
+    private final ConcurrentMap<TraceChannel, ConcurrentMap<String, TraceRing>>
+            rings = new ConcurrentHashMap<TraceChannel,
+                    ConcurrentMap<String, TraceRing>>();
+
+    /** Shared while sending messages, exclusive while a connection joins. */
+    private final ReadWriteLock joinLock = new ReentrantReadWriteLock();
+
+    /**
+     * @param channels the earthworm connections.
+     * @param window the milliseconds of messages sent to a joining
+     *        connection.
+     * @param ringSize the size of each trace's ring in bytes, which caps how
+     *        much of the window is kept for a busy trace.
+     * @param rate the most bytes sent each second to a joining connection.
+     */
+    public TraceBackfill(ChannelGroup channels, long window, int ringSize,
+            int rate) {
+
+        this.channels = channels;
+        this.window = window;
+        this.ringSize = ringSize;
+        this.rate = rate;
+    }
+
+    /**
+     * Keep a trace message and send it to the connections.
+     *
+     * @param channel the station, channel and location of the trace.
+     * @param networkID the network of the trace.
+     * @param message the encoded message.
+     */
+    public void write(TraceChannel channel, String networkID,
+            ChannelBuffer message) {
+
+        TraceRing ring = getRing(channel, networkID);
+
+        joinLock.readLock().lock();
+        try {
+            ring.append(message, System.currentTimeMillis());
+            channels.write(message);
+        } finally {
+            joinLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Add a connection to the group once it has been sent the backlog. The
+     * backlog is sent by a new thread.
+     *
+     * @param ctx the context of the connection's handler.
+     * @param queue the queue holding the live messages meanwhile.
+     */
+    public void join(final ChannelHandlerContext ctx,
+            final SubscriberQueue queue) {
+
+        queue.pause(getHeldBytes());
+
+        Thread thread = new Thread("TraceBackfill-"
+                + ctx.getChannel().getRemoteAddress()) {
+
+            @Override
+            public void run() {
+                try {
+                    backfill(ctx);
+                } catch (InterruptedException e) {/*don't care*/
+                } finally {
+                    queue.resume(ctx);
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Join the connection to the group and send it the backlog.
+     *
+     * @param ctx the context of the connection's handler.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private void backfill(ChannelHandlerContext ctx)
+            throws InterruptedException {
+
+        Channel channel = ctx.getChannel();
+        Map<TraceRing, Long> ends = new LinkedHashMap<TraceRing, Long>();
+
+        joinLock.writeLock().lock();
+        try {
+            channels.add(channel);
+            for (Map<String, TraceRing> networks : rings.values()) {
+                for (TraceRing ring : networks.values()) {
+                    ends.put(ring, ring.getTail());
+                }
+            }
+        } finally {
+            joinLock.writeLock().unlock();
+        }
+
+        long start = System.currentTimeMillis();
+        long since = start - window;
+        long sent = 0;
+        int messages = 0;
+        List<ChannelBuffer> batch = new ArrayList<ChannelBuffer>();
+
+        for (Map.Entry<TraceRing, Long> end : ends.entrySet()) {
+            long position = 0;
+            while (position < end.getValue()) {
+                position = end.getKey().copy(position, end.getValue(), since,
+                        batch, BATCH_SIZE);
+
+                for (ChannelBuffer message : batch) {
+                    while (!channel.isWritable()) {
+                        if (!channel.isConnected()) {
+                            return;
+                        }
+                        Thread.sleep(WRITABLE_WAIT);
+                    }
+
+                    sent += message.readableBytes();
+                    messages++;
+                    Channels.write(ctx, Channels.future(channel), message);
+                }
+                batch.clear();
+
+                // Sleep until the bytes sent are within the rate.
+                long ahead = sent * 1000 / rate
+                        - (System.currentTimeMillis() - start);
+                if (ahead > 0) {
+                    Thread.sleep(ahead);
+                }
+            }
+        }
+
+        log.info("Backfilled {} trace messages ({} bytes) to '{}' in {} ms.",
+                new Object[]{messages, sent, channel.getRemoteAddress(),
+                    System.currentTimeMillis() - start});
+    }
+
+    /**
+     * Estimate the live bytes that arrive while a joining connection is sent
+     * the backlog. They arrive at about the backlog's size over the window
+     * and for as long as the backlog takes at the backfill rate.
+     *
+     * @return twice the estimate, to allow for bursts.
+     */
+    private int getHeldBytes() {
+
+        long backlog = 0;
+        for (Map<String, TraceRing> networks : rings.values()) {
+            for (TraceRing ring : networks.values()) {
+                backlog += ring.getTail() - ring.getHead();
+            }
+        }
+
+        double seconds = (double) backlog / rate;
+        double held = 2 * seconds * backlog * 1000 / window;
+        return (int) Math.min(Integer.MAX_VALUE, held);
+    }
+
+    /**
+     * @param channel the station, channel and location of the trace.
+     * @param networkID the network of the trace.
+     * @return the ring of the trace, created the first time it is asked for.
+     */
+    private TraceRing getRing(TraceChannel channel, String networkID) {
+
+        ConcurrentMap<String, TraceRing> networks = rings.get(channel);
+        if (networks == null) {
+            networks = new ConcurrentHashMap<String, TraceRing>();
+            ConcurrentMap<String, TraceRing> existing =
+                    rings.putIfAbsent(channel, networks);
+            if (existing != null) {
+                networks = existing;
+            }
+        }
+
+        TraceRing ring = networks.get(networkID);
+        if (ring == null) {
+            ring = new TraceRing(ringSize);
+            TraceRing existing = networks.putIfAbsent(networkID, ring);
+            if (existing != null) {
+                ring = existing;
+            }
+        }
+        return ring;
+    }
+}
@@ -0,0 +1,199 @@
+package org.usgs.manifold.server;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * A fixed size ring of the encoded messages of one trace, held in direct or
+ * memory mapped buffers so a long backlog of many traces does not weigh on
+ * the heap or the garbage collector. When a new message does not fit the
+ * oldest messages are overwritten.
+ *
+ * <p>
+ * Each message is stored as its length, the time it was added and its bytes.
+ * A message never wraps around the end of the buffer; the space left at the
+ * end is skipped, marked with a length of -1 if there is room for one.
+ * Positions are counted from the first message ever added, so a reader can
+ * tell when the messages it was about to read have been overwritten.
+ *
+ */
+class TraceRing {
+
+    /** The bytes stored ahead of each message: its length and time. */
+    private static final int HEADER_SIZE = 12;
+
+    /** Marks the skipped space at the end of the buffer. */
+    private static final int PADDING = -1;
+
+    /** Holds the messages. */
+    private final ByteBuffer buffer;
+
+    /** The size of the buffer. */
+    private final int capacity;
+
+    /** The position of the oldest message. */
+    private long head;
+
+    /** The position the next message is added at. */
+    private long tail;
+
+    /**
+     * @param capacity the size of the ring in bytes, allocated in direct
+     *        memory.
+     */
+    TraceRing(int capacity) {
+        this(ByteBuffer.allocateDirect(capacity));
+    }
+
+    /**
+     * @param buffer the buffer to hold the messages in, such as a memory
+     *        mapped file. Its contents are overwritten.
+     */
+    TraceRing(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.capacity = buffer.capacity();
+    }
+
+    /**
+     * Add a message, overwriting the oldest messages to make room. A message
+     * too large to ever fit is not added.
+     *
+     * @param message the encoded message. Its indexes are not changed.
+     * @param time the time the message was sent.
+     * @return the position of the message, or -1 if it was not added.
+     */
+    synchronized long append(ChannelBuffer message, long time) {
+
+        int length = message.readableBytes();
+        int size = HEADER_SIZE + length;
+        if (size > capacity) {
+            return -1;
+        }
+
+        // Absolute gets and puts are checked against the last copy's limit.
+        buffer.clear();
+
+        int offset = (int) (tail % capacity);
+        int padding = (capacity - offset < size) ? capacity - offset : 0;
+        while (head < tail && tail + padding + size - head > capacity) {
+            head = next(head);
+        }
+
+        if (padding > 0) {
+            if (padding >= 4) {
+                buffer.putInt(offset, PADDING);
+            }
+            if (head == tail) {
+                head += padding;
+            }
+            tail += padding;
+            offset = 0;
+        }
+
+        buffer.putInt(offset, length);
+        buffer.putLong(offset + 4, time);
+        buffer.position(offset + HEADER_SIZE)
+                .limit(offset + HEADER_SIZE + length);
+        message.getBytes(message.readerIndex(), buffer);
+
+        long position = tail;
+        tail += size;
+        return position;
+    }
+
+    /**
+     * @return the position of the oldest message.
+     */
+    synchronized long getHead() {
+        return head;
+    }
+
+    /**
+     * @return the position the next message will be added at.
+     */
+    synchronized long getTail() {
+        return tail;
+    }
+
+    /**
+     * Copy a message to the heap.
+     *
+     * @param position the position of the message.
+     * @return the message, or null if it has been overwritten.
+     */
+    synchronized ChannelBuffer get(long position) {
+        if (position < head) {
+            return null;
+        }
+
+        buffer.clear();
+        int offset = (int) (position % capacity);
+        int length = buffer.getInt(offset);
+
+        ChannelBuffer copy = ChannelBuffers.buffer(length);
+        buffer.position(offset + HEADER_SIZE)
+                .limit(offset + HEADER_SIZE + length);
+        copy.writeBytes(buffer);
+        return copy;
+    }
+
+    /**
+     * Copy messages to the heap, starting at a position or at the oldest
+     * message if that position has been overwritten.
+     *
+     * @param from the position to start at.
+     * @param to the position to stop at.
+     * @param since the earliest time of the messages to copy. Older ones are
+     *        skipped.
+     * @param out the list to add the copies to.
+     * @param maxBytes the number of bytes after which to stop copying.
+     * @return the position after the last message copied or skipped.
+     */
+    synchronized long copy(long from, long to, long since,
+            List<ChannelBuffer> out, int maxBytes) {
+
+        long position = Math.max(from, head);
+        int copied = 0;
+
+        while (position < to && copied < maxBytes) {
+            buffer.clear();
+            int offset = (int) (position % capacity);
+            int length = (capacity - offset < HEADER_SIZE)
+                    ? PADDING : buffer.getInt(offset);
+            if (length == PADDING) {
+                position += capacity - offset;
+                continue;
+            }
+
+            if (buffer.getLong(offset + 4) >= since) {
+                ChannelBuffer copy = ChannelBuffers.buffer(length);
+                buffer.position(offset + HEADER_SIZE)
+                        .limit(offset + HEADER_SIZE + length);
+                copy.writeBytes(buffer);
+                out.add(copy);
+                copied += length;
+            }
+            position += HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    /**
+     * @param position the position of a message or of the skipped space at
+     *        the end of the buffer.
+     * @return the position after it.
+     */
+    private long next(long position) {
+        int offset = (int) (position % capacity);
+        if (capacity - offset < HEADER_SIZE) {
+            return position + capacity - offset;
+        }
+
+        int length = buffer.getInt(offset);
+        return (length == PADDING) ? position + capacity - offset
+                : position + HEADER_SIZE + length;
+    }
+}
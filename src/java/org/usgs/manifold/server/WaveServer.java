@@ -0,0 +1,70 @@
+package org.usgs.manifold.server;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executors;
+
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.frame.DelimiterBasedFrameDecoder;
+import org.jboss.netty.handler.codec.frame.Delimiters;
+import org.jboss.netty.handler.codec.string.StringDecoder;
+
+/**
+ * A server answering wave_serverV requests from the recent trace data kept
+ * in a {@link WaveStore}, so Swarm and Valve can read the data straight from
+ * Manifold.
+ *
+ */
+public class WaveServer {
+
+    /** The longest request line accepted. */
+    private static final int MAX_REQUEST_LENGTH = 1024;
+
+    // Prevent instantiation
+    private WaveServer() {
+    }
+
+    /**
+     * @param store the tanks to answer requests from.
+     * @param port the port to serve.
+     * @param networkInterface the interface to bind the port on, or null for
+     *        every interface.
+     */
+    public static void startServer(final WaveStore store, int port,
+            String networkInterface) {
+
+        ChannelFactory factory = new NioServerSocketChannelFactory(
+                Executors.newCachedThreadPool(),
+                Executors.newCachedThreadPool());
+
+        ServerBootstrap bootstrap = new ServerBootstrap(factory);
+
+        // Split the requests into lines and answer them one at a time.
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+
+            public ChannelPipeline getPipeline() throws Exception {
+                ChannelPipeline pipeline = Channels.pipeline();
+                pipeline.addLast("framer", new DelimiterBasedFrameDecoder(
+                        MAX_REQUEST_LENGTH, Delimiters.lineDelimiter()));
+                pipeline.addLast("decoder",
+                        new StringDecoder(Charset.forName("US-ASCII")));
+                pipeline.addLast("handler", new WaveServerHandler(store));
+                return pipeline;
+            }
+        });
+
+        bootstrap.setOption("child.tcpNoDelay", true);
+        bootstrap.setOption("child.keepAlive", true);
+
+        if (networkInterface != null) {
+            bootstrap.bind(new InetSocketAddress(networkInterface, port));
+        } else {
+            bootstrap.bind(new InetSocketAddress(port));
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package org.usgs.manifold.server;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Answers the wave_serverV requests Swarm and Valve make, {@code MENU},
+ * {@code GETSCNL} and {@code GETSCNLRAW}, from the tanks of a
+ * {@link WaveStore}. Each request is one line and is answered in full
+ * before the next is read.
+ *
+ * <p>
+ * Replies follow wave_serverV: a request that can't be met is answered with
+ * a flag, {@code FN} for an unknown trace, {@code FL} or {@code FR} when the
+ * range is before or after the tank, along with the tank's start or end, and
+ * {@code FG} when the range falls in a gap.
+ *
+ */
+public class WaveServerHandler extends SimpleChannelUpstreamHandler {
+
+    private static Logger log =
+            LoggerFactory.getLogger(WaveServerHandler.class);
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /** The size of a TRACEBUF2 header. */
+    private static final int HEADER_SIZE = 64;
+
+    /** Lists tanks by pin. */
+    private static final Comparator<WaveTank> BY_PIN =
+            new Comparator<WaveTank>() {
+
+        public int compare(WaveTank a, WaveTank b) {
+            return a.getPin() - b.getPin();
+        }
+    };
+
+    /** The tanks requests are answered from. */
+    private final WaveStore store;
+
+    /**
+     * @param store the tanks requests are answered from.
+     */
+    public WaveServerHandler(WaveStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Answers one request line.
+     */
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+
+        String request = ((String) e.getMessage()).trim();
+        String[] fields = request.split("\\s+");
+        Channel channel = e.getChannel();
+
+        try {
+            if (fields[0].equals("MENU:") && fields.length >= 2) {
+                menu(channel, fields[1]);
+            } else if (fields[0].equals("GETSCNLRAW:") && fields.length >= 8) {
+                getRaw(channel, fields);
+            } else if (fields[0].equals("GETSCNL:") && fields.length >= 9) {
+                getAscii(channel, fields);
+            } else if (request.length() > 0) {
+                log.debug("Ignoring wave server request '{}' from '{}'.",
+                        request, channel.getRemoteAddress());
+            }
+        } catch (NumberFormatException ex) {
+            log.debug("Ignoring wave server request '{}' from '{}': {}",
+                    new Object[]{request, channel.getRemoteAddress(),
+                        ex.toString()});
+        }
+    }
+
+    /**
+     * List every tank with its time range.
+     *
+     * @param channel the client.
+     * @param requestID the ID echoed back to the client.
+     */
+    private void menu(Channel channel, String requestID) {
+
+        List<WaveTank> tanks = store.getTanks();
+        Collections.sort(tanks, BY_PIN);
+
+        StringBuilder reply = new StringBuilder(requestID);
+        for (WaveTank tank : tanks) {
+            double start = tank.getStart();
+            if (Double.isNaN(start)) {
+                continue;
+            }
+            reply.append("  ").append(tank.getPin()).append(' ')
+                    .append(getName(tank)).append(' ')
+                    .append(format(start)).append(' ')
+                    .append(format(tank.getEnd())).append(' ')
+                    .append(tank.getDataType()).append(' ');
+        }
+        reply.append('\n');
+        write(channel, reply);
+    }
+
+    /**
+     * Send the TRACEBUF2 messages overlapping a time range as they were
+     * received, after a header giving their range and size.
+     *
+     * @param channel the client.
+     * @param fields the request: command, ID, SCNL, start and end.
+     */
+    private void getRaw(Channel channel, String[] fields) {
+
+        double from = Double.parseDouble(fields[6]);
+        double to = Double.parseDouble(fields[7]);
+        List<ChannelBuffer> messages = new ArrayList<ChannelBuffer>();
+        WaveTank tank = find(channel, fields, from, to, messages);
+        if (tank == null) {
+            return;
+        }
+
+        int bytes = 0;
+        for (ChannelBuffer message : messages) {
+            bytes += message.readableBytes();
+        }
+
+        StringBuilder header = getReplyHeader(fields[1], tank)
+                .append(" F ").append(getDataType(messages.get(0)))
+                .append(' ')
+                .append(format(getStartTime(messages.get(0)))).append(' ')
+                .append(format(getEndTime(messages.get(messages.size() - 1))))
+                .append(' ').append(bytes).append('\n');
+
+        ChannelBuffer[] reply = new ChannelBuffer[messages.size() + 1];
+        reply[0] = ChannelBuffers.copiedBuffer(header, ASCII);
+        for (int i = 0; i < messages.size(); i++) {
+            reply[i + 1] = messages.get(i);
+        }
+        channel.write(ChannelBuffers.wrappedBuffer(reply));
+    }
+
+    /**
+     * Send the samples within a time range as text, with each missing
+     * sample between messages replaced by the fill value.
+     *
+     * @param channel the client.
+     * @param fields the request: command, ID, SCNL, start, end and fill.
+     */
+    private void getAscii(Channel channel, String[] fields) {
+
+        double from = Double.parseDouble(fields[6]);
+        double to = Double.parseDouble(fields[7]);
+        String fill = fields[8];
+        List<ChannelBuffer> messages = new ArrayList<ChannelBuffer>();
+        WaveTank tank = find(channel, fields, from, to, messages);
+        if (tank == null) {
+            return;
+        }
+
+        StringBuilder samples = new StringBuilder();
+        double first = Double.NaN;
+        double rate = 0;
+        double next = Double.NaN;
+
+        for (ChannelBuffer message : messages) {
+            int offset = message.readerIndex();
+            int count = getInt(message, offset + 4);
+            boolean shortSamples = getDataType(message).equals("i2");
+            double start = getStartTime(message);
+            rate = getDouble(message, offset + 24);
+
+            // The samples of the message within the range.
+            int low = Math.max(0, (int) Math.ceil((from - start) * rate
+                    - 0.001));
+            int high = Math.min(count - 1, (int) Math.floor((to - start)
+                    * rate + 0.001));
+            if (low > high) {
+                continue;
+            }
+
+            double time = start + low / rate;
+            if (Double.isNaN(first)) {
+                first = time;
+            } else {
+                long missing = Math.round((time - next) * rate);
+                for (long i = 0; i < missing; i++) {
+                    samples.append(fill).append(' ');
+                }
+            }
+
+            for (int i = low; i <= high; i++) {
+                if (shortSamples) {
+                    samples.append(Short.reverseBytes(message.getShort(
+                            offset + HEADER_SIZE + 2 * i))).append(' ');
+                } else {
+                    samples.append(getInt(message,
+                            offset + HEADER_SIZE + 4 * i)).append(' ');
+                }
+            }
+            next = start + (high + 1) / rate;
+        }
+
+        StringBuilder reply = getReplyHeader(fields[1], tank);
+        if (Double.isNaN(first)) {
+            reply.append(" FG ").append(tank.getDataType()).append('\n');
+        } else {
+            reply.append(" F ").append(getDataType(messages.get(0)))
+                    .append(' ')
+                    .append(format(first)).append(' ')
+                    .append(format(rate)).append(' ')
+                    .append(samples).append('\n');
+        }
+        write(channel, reply);
+    }
+
+    /**
+     * Look up the tank of a request and copy the messages overlapping its
+     * range, answering the client with the right flag if there are none.
+     *
+     * @param channel the client.
+     * @param fields the request, with the SCNL in fields 2 to 5.
+     * @param from the start of the range.
+     * @param to the end of the range.
+     * @param messages the list to add the messages to.
+     * @return the tank, or null if the client has been answered with a flag.
+     */
+    private WaveTank find(Channel channel, String[] fields, double from,
+            double to, List<ChannelBuffer> messages) {
+
+        WaveTank tank = store.getTank(fields[2], fields[3], fields[4],
+                fields[5]);
+        double start = (tank == null) ? Double.NaN : tank.getStart();
+        if (Double.isNaN(start)) {
+            write(channel, new StringBuilder(fields[1]).append(" 0 ")
+                    .append(fields[2]).append(' ').append(fields[3])
+                    .append(' ').append(fields[4]).append(' ')
+                    .append(fields[5]).append(" FN\n"));
+            return null;
+        }
+
+        double end = tank.getEnd();
+        if (to < start) {
+            write(channel, getReplyHeader(fields[1], tank).append(" FL ")
+                    .append(tank.getDataType()).append(' ')
+                    .append(format(start)).append('\n'));
+            return null;
+        }
+        if (from > end) {
+            write(channel, getReplyHeader(fields[1], tank).append(" FR ")
+                    .append(tank.getDataType()).append(' ')
+                    .append(format(end)).append('\n'));
+            return null;
+        }
+
+        tank.get(from, to, messages);
+        if (messages.isEmpty()) {
+            write(channel, getReplyHeader(fields[1], tank).append(" FG ")
+                    .append(tank.getDataType()).append('\n'));
+            return null;
+        }
+        return tank;
+    }
+
+    /**
+     * @return the request ID, pin and SCNL that start a reply.
+     */
+    private static StringBuilder getReplyHeader(String requestID,
+            WaveTank tank) {
+
+        return new StringBuilder(requestID).append(' ').append(tank.getPin())
+                .append(' ').append(getName(tank));
+    }
+
+    /**
+     * @return the station, channel, network and location of a tank.
+     */
+    private static String getName(WaveTank tank) {
+        return tank.getStation() + " " + tank.getChannel() + " "
+                + tank.getNetwork() + " " + tank.getLocation();
+    }
+
+    /**
+     * @return the start time of a TRACEBUF2 message.
+     */
+    private static double getStartTime(ChannelBuffer message) {
+        return getDouble(message, message.readerIndex() + 8);
+    }
+
+    /**
+     * @return the end time of a TRACEBUF2 message.
+     */
+    private static double getEndTime(ChannelBuffer message) {
+        return getDouble(message, message.readerIndex() + 16);
+    }
+
+    /**
+     * @return the data type of a TRACEBUF2 message, i2 or i4.
+     */
+    private static String getDataType(ChannelBuffer message) {
+        return (message.getByte(message.readerIndex() + 58) == '2')
+                ? "i2" : "i4";
+    }
+
+    /**
+     * @return the little endian int at an index.
+     */
+    private static int getInt(ChannelBuffer buffer, int index) {
+        return Integer.reverseBytes(buffer.getInt(index));
+    }
+
+    /**
+     * @return the little endian double at an index.
+     */
+    private static double getDouble(ChannelBuffer buffer, int index) {
+        return Double.longBitsToDouble(Long.reverseBytes(
+                buffer.getLong(index)));
+    }
+
+    /**
+     * @return a time or rate the way wave_serverV writes it.
+     */
+    private static String format(double value) {
+        return String.format(Locale.US, "%.6f", value);
+    }
+
+    private static void write(Channel channel, CharSequence reply) {
+        channel.write(ChannelBuffers.copiedBuffer(reply, ASCII));
+    }
+
+    /**
+     * Logs the error and closes the connection.
+     */
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+            log.warn("Wave server connection error: {}", cause.toString());
+        } else {
+            log.warn("Unexpected wave server error.", cause);
+        }
+        e.getChannel().close();
+    }
+}
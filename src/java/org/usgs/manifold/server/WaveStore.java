@@ -0,0 +1,171 @@
+package org.usgs.manifold.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.usgs.manifold.packet.earthworm.TraceChannel;
+
+/**
+ * The {@link WaveTank}s of every trace sent out, filled as the trace
+ * messages are written and read by the {@link WaveServer}. A tank is created
+ * the first time a trace is seen, in a file of its own in the tank
+ * directory.
+ *
+ */
+public class WaveStore {
+
+    private static Logger log = LoggerFactory.getLogger(WaveStore.class);
+
+    /** The directory holding the tank files. */
+    private final File directory;
+
+    /** The size of each tank in bytes. */
+    private final int tankSize;
+
+    /** The tank of each trace, by channel and network ID. */
+    private final ConcurrentMap<TraceChannel, ConcurrentMap<String, WaveTank>>
+            tanks = new ConcurrentHashMap<TraceChannel,
+                    ConcurrentMap<String, WaveTank>>();
+
+    /** The tank of each trace, by "STATION CHANNEL NETWORK LOCATION". */
+    private final ConcurrentMap<String, WaveTank> tanksByName =
+            new ConcurrentHashMap<String, WaveTank>();
+
+    /** The traces whose tank could not be created. */
+    private final ConcurrentMap<String, Boolean> failed =
+            new ConcurrentHashMap<String, Boolean>();
+
+    /** The pin of the next tank. */
+    private int nextPin = 1;
+
+    /**
+     * @param directory the directory to keep the tank files in, created if
+     *        needed.
+     * @param tankSize the size of each tank in bytes.
+     * @throws IOException if the directory can't be created.
+     */
+    public WaveStore(File directory, int tankSize) throws IOException {
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the tank directory '"
+                    + directory + "'.");
+        }
+        this.directory = directory;
+        this.tankSize = tankSize;
+    }
+
+    /**
+     * Keep a trace message.
+     *
+     * @param channel the station, channel and location of the trace.
+     * @param networkID the network of the trace.
+     * @param message the TRACEBUF2 message without its earthworm framing.
+     * @param start the time of the first sample in epoch seconds.
+     * @param end the time of the last sample in epoch seconds.
+     * @param rate the sample rate in Hz.
+     */
+    public void add(TraceChannel channel, String networkID, byte[] message,
+            double start, double end, double rate) {
+
+        ConcurrentMap<String, WaveTank> networks = tanks.get(channel);
+        WaveTank tank = (networks == null) ? null : networks.get(networkID);
+        if (tank == null) {
+            tank = createTank(channel, networkID);
+            if (tank == null) {
+                return;
+            }
+        }
+        tank.add(message, start, end, rate);
+    }
+
+    /**
+     * @param station the station name.
+     * @param channel the channel name.
+     * @param network the network name.
+     * @param location the location code.
+     * @return the tank of the trace, or null if it has not been seen.
+     */
+    WaveTank getTank(String station, String channel, String network,
+            String location) {
+
+        return tanksByName.get(getName(station, channel, network, location));
+    }
+
+    /**
+     * @return every tank, in no particular order.
+     */
+    List<WaveTank> getTanks() {
+        return new ArrayList<WaveTank>(tanksByName.values());
+    }
+
+    /**
+     * Create the tank of a trace the first time it is seen. Only one thread
+     * sends a given trace, but tanks may be created for different traces at
+     * once.
+     *
+     * @param channel the station, channel and location of the trace.
+     * @param networkID the network of the trace.
+     * @return the tank, or null if it could not be created.
+     */
+    private WaveTank createTank(TraceChannel channel, String networkID) {
+
+        String network = networkID.toUpperCase();
+        String location = (channel.getLocation().length() == 0)
+                ? "--" : channel.getLocation();
+        String name = getName(channel.getStation(), channel.getChannel(),
+                network, location);
+        if (failed.containsKey(name)) {
+            return null;
+        }
+
+        WaveTank tank;
+        synchronized (this) {
+            tank = tanksByName.get(name);
+            if (tank == null) {
+                File file = new File(directory, channel.getStation() + "."
+                        + channel.getChannel() + "." + network + "."
+                        + location + ".tank");
+                try {
+                    tank = new WaveTank(file, tankSize,
+                            nextPin++, channel.getStation(),
+                            channel.getChannel(), network, location);
+                } catch (IOException e) {
+                    log.error("Could not create the wave server tank '"
+                            + file + "'. The trace will not be served.", e);
+                    failed.put(name, Boolean.TRUE);
+                    return null;
+                }
+                tanksByName.put(name, tank);
+            }
+        }
+
+        ConcurrentMap<String, WaveTank> networks = tanks.get(channel);
+        if (networks == null) {
+            networks = new ConcurrentHashMap<String, WaveTank>();
+            ConcurrentMap<String, WaveTank> existing =
+                    tanks.putIfAbsent(channel, networks);
+            if (existing != null) {
+                networks = existing;
+            }
+        }
+        networks.put(networkID, tank);
+        return tank;
+    }
+
+    /**
+     * @return the name a tank is looked up by.
+     */
+    private static String getName(String station, String channel,
+            String network, String location) {
+
+        return station.toUpperCase() + " " + channel.toUpperCase() + " "
+                + network.toUpperCase() + " " + location.toUpperCase();
+    }
+}
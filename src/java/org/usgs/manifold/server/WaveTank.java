@@ -0,0 +1,237 @@
+package org.usgs.manifold.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * The recent TRACEBUF2 messages of one station, channel, network and
+ * location, kept for {@link WaveServerHandler} the way a wave_serverV tank
+ * keeps them. The messages are held in a {@link TraceRing} over a memory
+ * mapped file, so the tanks of many traces live in the page cache rather
+ * than on the heap, and an index of their start and end times is kept on the
+ * heap so a request only reads the messages it returns.
+ *
+ * <p>
+ * Messages are expected in time order. The file is overwritten each time the
+ * tank is opened, so a tank only serves what was seen since the start.
+ *
+ */
+class WaveTank {
+
+    /** The index entries the index starts with. */
+    private static final int INITIAL_ENTRIES = 256;
+
+    private final int pin;
+    private final String station;
+    private final String channel;
+    private final String network;
+    private final String location;
+
+    /** Holds the messages. */
+    private final TraceRing ring;
+
+    /** The ring positions and times of the messages, oldest first, in a
+     * circular index of count entries starting at first. */
+    private long[] positions = new long[INITIAL_ENTRIES];
+    private double[] starts = new double[INITIAL_ENTRIES];
+    private double[] ends = new double[INITIAL_ENTRIES];
+    private int first;
+    private int count;
+
+    /** The sample rate of the newest message. */
+    private double sampleRate;
+
+    /** The index of the second character of a message's data type. */
+    private static final int DATA_TYPE_SIZE_OFFSET = 58;
+
+    /** The data type of the newest message, i2 or i4. */
+    private String dataType = "i4";
+
+    /**
+     * @param file the file to map the tank to.
+     * @param size the size of the tank in bytes.
+     * @param pin the number the tank is listed under.
+     * @param station the station name.
+     * @param channel the channel name.
+     * @param network the network name.
+     * @param location the location code.
+     * @throws IOException if the file can't be created or mapped.
+     */
+    WaveTank(File file, int size, int pin, String station, String channel,
+            String network, String location) throws IOException {
+
+        this.pin = pin;
+        this.station = station;
+        this.channel = channel;
+        this.network = network;
+        this.location = location;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            MappedByteBuffer buffer = raf.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, size);
+            ring = new TraceRing(buffer);
+        } finally {
+            // The mapping stays valid after the file is closed.
+            raf.close();
+        }
+    }
+
+    /**
+     * Add a message and drop the index entries of the messages it
+     * overwrote.
+     *
+     * @param message the TRACEBUF2 message without its earthworm framing.
+     * @param start the time of the first sample in epoch seconds.
+     * @param end the time of the last sample in epoch seconds.
+     * @param rate the sample rate in Hz.
+     */
+    synchronized void add(byte[] message, double start, double end,
+            double rate) {
+
+        long position = ring.append(ChannelBuffers.wrappedBuffer(message),
+                System.currentTimeMillis());
+        if (position < 0) {
+            return;
+        }
+
+        long head = ring.getHead();
+        while (count > 0 && positions[first] < head) {
+            first = (first + 1) % positions.length;
+            count--;
+        }
+
+        if (count == positions.length) {
+            grow();
+        }
+        int last = (first + count) % positions.length;
+        positions[last] = position;
+        starts[last] = start;
+        ends[last] = end;
+        count++;
+        sampleRate = rate;
+        dataType = (message[DATA_TYPE_SIZE_OFFSET] == '2') ? "i2" : "i4";
+    }
+
+    /**
+     * Copy the messages overlapping a time range to the heap.
+     *
+     * @param from the start of the range in epoch seconds.
+     * @param to the end of the range in epoch seconds.
+     * @param out the list to add the messages to, oldest first.
+     */
+    synchronized void get(double from, double to, List<ChannelBuffer> out) {
+
+        // Find the first message that ends at or after the start.
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (ends[entry(middle)] < from) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        for (int i = low; i < count && starts[entry(i)] <= to; i++) {
+            ChannelBuffer message = ring.get(positions[entry(i)]);
+            if (message != null) {
+                out.add(message);
+            }
+        }
+    }
+
+    /**
+     * @param i the number of an entry counted from the oldest.
+     * @return the index of the entry in the index arrays.
+     */
+    private int entry(int i) {
+        return (first + i) % positions.length;
+    }
+
+    /**
+     * Double the size of the index, moving the oldest entry to the start.
+     */
+    private void grow() {
+        int size = positions.length * 2;
+        long[] newPositions = new long[size];
+        double[] newStarts = new double[size];
+        double[] newEnds = new double[size];
+
+        int tail = positions.length - first;
+        System.arraycopy(positions, first, newPositions, 0, tail);
+        System.arraycopy(positions, 0, newPositions, tail, first);
+        System.arraycopy(starts, first, newStarts, 0, tail);
+        System.arraycopy(starts, 0, newStarts, tail, first);
+        System.arraycopy(ends, first, newEnds, 0, tail);
+        System.arraycopy(ends, 0, newEnds, tail, first);
+
+        positions = newPositions;
+        starts = newStarts;
+        ends = newEnds;
+        first = 0;
+    }
+
+    /**
+     * @return the start of the oldest message, or NaN if the tank is empty.
+     */
+    synchronized double getStart() {
+        return (count == 0) ? Double.NaN : starts[first];
+    }
+
+    /**
+     * @return the end of the newest message, or NaN if the tank is empty.
+     */
+    synchronized double getEnd() {
+        return (count == 0) ? Double.NaN : ends[entry(count - 1)];
+    }
+
+    /**
+     * @return the sample rate of the newest message.
+     */
+    synchronized double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @return the data type of the newest message, i2 or i4.
+     */
+    synchronized String getDataType() {
+        return dataType;
+    }
+
+    int getPin() {
+        return pin;
+    }
+
+    String getStation() {
+        return station;
+    }
+
+    String getChannel() {
+        return channel;
+    }
+
+    String getNetwork() {
+        return network;
+    }
+
+    String getLocation() {
+        return location;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return station + "." + channel + "." + network + "." + location;
+    }
+}
@@ -14,15 +14,29 @@ public class DatabaseHelper {
      */
     public static String getTableName(DataPacket packet) {
 
-        int stationNumber = packet.getStationNumber();
+        return getTableName(packet.getNetworkID(), packet.getStationNumber(),
+                packet.getTypeName());
+    }
+
+    /**
+     * Create a table name by combining a networkID a station number and the
+     * type of data.
+     *
+     * @param networkID the network the station is on.
+     * @param stationNumber the station number.
+     * @param typeName the {@link String} representation of the type of data.
+     * @return the name of the table.
+     */
+    public static String getTableName(String networkID, int stationNumber,
+            String typeName) {
 
         if (stationNumber < 0) {
             throw new IllegalArgumentException("Station number can't be less "
                     + "than 0.");
         }
 
-        return packet.getNetworkID() + "_n" + (stationNumber < 10 ? "0" : "")
-                + stationNumber + packet.getTypeName();
+        return networkID + "_n" + (stationNumber < 10 ? "0" : "")
+                + stationNumber + typeName;
     }
 
     public static String getTableName(DataPacket packet, Map<Integer, String> sm) {
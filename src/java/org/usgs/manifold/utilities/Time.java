@@ -1,8 +1,9 @@
 package org.usgs.manifold.utilities;
 
-import java.util.Calendar;
-import java.util.GregorianCalendar;
-import java.util.TimeZone;
+import java.nio.charset.Charset;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 
 /**
  * Some simple static methods for time conversion related to ExportCVO
@@ -35,6 +36,19 @@ public class Time {
         return Math.floor(unixTime / 1000) - 946728000;
     }
 
+    /** The number of ascii bytes in a YYYYMMDDHHMMSS.SSS packet time. */
+    public static final int PACKET_TIME_LENGTH = 18;
+
+    /** Milliseconds in a minute. */
+    private static final long MILLIS_PER_MINUTE = 60l * 1000l;
+
+    /** Days in each month of a non leap year. */
+    private static final int[] DAYS_IN_MONTH =
+            {31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+    /** The most recent minute converted by {@link #readPacketTime}. */
+    private static volatile MinuteCache lastMinute = new MinuteCache(-1, 0);
+
     /**
      * Converts the time given in a YYYYMMDDHHMMSS.SSS format into "Unix
      * time," milliseconds since midnight January 1st, 1970 UTC.
@@ -46,47 +60,157 @@ public class Time {
      * string into a valid date.
      */
     public static long parsePacketTime(String time) {
-        int year = 0, month = 0, day = 0, hour = 0, minute = 0, second = 0;
 
         // Check the length of the date.
-        if (time.length() != 18) {
+        if (time.length() != PACKET_TIME_LENGTH) {
             throw new IllegalArgumentException("'" + time + "' Does not match "
                     + "the required argument length of YYYYMMDDHHMMSS.SSS.");
         }
 
-        // Try to convert input to integers
-        try {
-            year = Integer.parseInt(time.substring(0, 4));
-            month = Integer.parseInt(time.substring(4, 6));
-            month--; //Java uses 0 - 11 for months
-            day = Integer.parseInt(time.substring(6, 8));
-            hour = Integer.parseInt(time.substring(8, 10));
-            minute = Integer.parseInt(time.substring(10, 12));
-            second = Integer.parseInt(time.substring(12, 14));
-        } catch (NumberFormatException e) {
-            throw new IllegalArgumentException("'" + time + "' contains "
-                    + "characters that can not be converted into integers. "
-                    + e.getMessage());
+        Charset ascii = Charset.forName("UTF-8");
+        return readPacketTime(ChannelBuffers.wrappedBuffer(
+                time.getBytes(ascii)));
+    }
+
+    /**
+     * Reads a time given in a YYYYMMDDHHMMSS.SSS format straight from the
+     * buffer and converts it into "Unix time," milliseconds since midnight
+     * January 1st, 1970 UTC. This modifies the buffers reader index and does
+     * not allocate unless the time is invalid. The start of the most recent
+     * minute is cached since packets arrive in time order.
+     *
+     * @param buffer the buffer with the time at its current reader index.
+     * @return the date converted to "Unix time," milliseconds since midnight
+     * Jan 1, 1970 UTC, including the milliseconds.
+     * @throws IndexOutOfBoundsException if there are not enough bytes in the
+     * buffer.
+     * @throws IllegalArgumentException if there is an error converting the
+     * bytes into a valid date.
+     */
+    public static long readPacketTime(ChannelBuffer buffer) {
+
+        if (buffer.readableBytes() < PACKET_TIME_LENGTH) {
+            throw new IndexOutOfBoundsException("Not enough bytes to read a "
+                    + "YYYYMMDDHHMMSS.SSS time.");
+        }
+
+        int index = buffer.readerIndex();
+
+        int year = digits(buffer, index, 4);
+        int month = digits(buffer, index + 4, 2);
+        int day = digits(buffer, index + 6, 2);
+        int hour = digits(buffer, index + 8, 2);
+        int minute = digits(buffer, index + 10, 2);
+        int second = digits(buffer, index + 12, 2);
+        int millis = digits(buffer, index + 15, 3);
+
+        if (year < 0 || month < 0 || day < 0 || hour < 0 || minute < 0
+                || second < 0 || millis < 0 || buffer.getByte(index + 14) != '.') {
+            throw new IllegalArgumentException("'" + asString(buffer)
+                    + "' contains characters that can not be converted into "
+                    + "integers.");
+        }
+
+        // Only work out the date when the minute changes.
+        long key = (((year * 100l + month) * 100l + day) * 100l + hour) * 100l
+                + minute;
+        MinuteCache cache = lastMinute;
+        if (cache.key != key) {
+
+            // Causes an error to be thrown if the date isn't strictly
+            // legitamate.
+            if (month < 1 || month > 12 || day < 1
+                    || day > daysInMonth(year, month) || hour > 23
+                    || minute > 59) {
+                throw new IllegalArgumentException("'" + asString(buffer)
+                        + "' is not a valid date.");
+            }
+
+            long minutes = (daysSinceEpoch(year, month, day) * 24l + hour)
+                    * 60l + minute;
+            cache = new MinuteCache(key, minutes * MILLIS_PER_MINUTE);
+            lastMinute = cache;
+        }
+
+        if (second > 59) {
+            throw new IllegalArgumentException("'" + asString(buffer)
+                    + "' is not a valid date.");
+        }
+
+        buffer.skipBytes(PACKET_TIME_LENGTH);
+        return cache.millis + second * 1000l + millis;
+    }
+
+    /**
+     * Reads a number made up of ascii digits without modifying the buffer.
+     *
+     * @return the number or -1 if any of the bytes are not digits.
+     */
+    private static int digits(ChannelBuffer buffer, int index, int count) {
+        int value = 0;
+        for (int i = index; i < index + count; i++) {
+            int digit = buffer.getByte(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
         }
+        return value;
+    }
+
+    /**
+     * @return the number of days in the month of the given year.
+     */
+    private static int daysInMonth(int year, int month) {
+        if (month == 2 && (year % 4 == 0)
+                && (year % 100 != 0 || year % 400 == 0)) {
+            return 29;
+        }
+        return DAYS_IN_MONTH[month - 1];
+    }
+
+    /**
+     * Counts the days from Jan 1, 1970 to the given date in the proleptic
+     * Gregorian calendar.
+     *
+     * @param month the month from 1 to 12.
+     * @return the number of days since Jan 1, 1970.
+     */
+    private static long daysSinceEpoch(int year, int month, int day) {
+        // Count years from March so the leap day is the last day of the year.
+        long y = (month <= 2) ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5
+                + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+                + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * @return the packet time at the reader index, for error messages.
+     */
+    private static String asString(ChannelBuffer buffer) {
+        Charset ascii = Charset.forName("UTF-8");
+        return buffer.toString(buffer.readerIndex(), PACKET_TIME_LENGTH, ascii);
+    }
+
+    /**
+     * The start of a minute in milliseconds since the 1970 epoch along with
+     * the YYYYMMDDHHMM it was converted from.
+     */
+    private static class MinuteCache {
+
+        /** YYYYMMDDHHMM as a number. */
+        private final long key;
+
+        /** The start of the minute in milliseconds since the 1970 epoch. */
+        private final long millis;
 
-        // Create a calendar for time manipulation.
-        Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
-
-        // Causes an error to be thrown if the date isn't strictly legitamate.
-        calendar.setLenient(false);
-
-        try {
-            calendar.set(year, month, day, hour, minute, second);
-            return calendar.getTimeInMillis();
-        } catch (IllegalArgumentException e) {
-            System.out.println("year   - " + year );
-            System.out.println("month  - " + month );
-            System.out.println("day    - " + day );
-            System.out.println("hour   - " + hour );
-            System.out.println("minute - " + minute );
-            System.out.println("second - " + second );
-            throw new IllegalArgumentException("'" + time + "' is not a valid "
-                    + "date. Error: " + e.getMessage());
+        MinuteCache(long key, long millis) {
+            this.key = key;
+            this.millis = millis;
         }
     }
 }